@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Collects the {@code bound} smallest items added to it according to a {@link Comparator}, without
+ * ever holding on to more than {@code bound} items. Items that compare equal keep the order they
+ * were added in, the same as a stable sort of every item would.
+ *
+ * If there is no comparator, the order items are added in is the order they are sorted in, so only
+ * the first {@code bound} items are kept. A negative {@code bound} keeps everything.
+ */
+/** package */ class BoundedSortedList<T> {
+
+  private static class Item<T> {
+    private final T value;
+    private final long sequence;
+
+    private Item(T value, long sequence) {
+      this.value = value;
+      this.sequence = sequence;
+    }
+  }
+
+  private final int bound;
+  private final Comparator<Item<T>> comparator;
+  // The largest item is at the head, so it can be evicted when something smaller comes along.
+  private final PriorityQueue<Item<T>> queue;
+  private long sequence = 0;
+
+  public BoundedSortedList(int bound, final Comparator<? super T> comparator) {
+    this.bound = bound;
+    this.comparator = new Comparator<Item<T>>() {
+      @Override
+      public int compare(Item<T> lhs, Item<T> rhs) {
+        if (comparator != null) {
+          int result = comparator.compare(lhs.value, rhs.value);
+          if (result != 0) {
+            return result;
+          }
+        }
+        return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence > rhs.sequence ? 1 : 0);
+      }
+    };
+    queue = new PriorityQueue<>(11, Collections.reverseOrder(this.comparator));
+  }
+
+  /**
+   * Adds an item, evicting the largest item if there are more than {@code bound}.
+   *
+   * @return {@code false} if the item was discarded right away.
+   */
+  public boolean add(T value) {
+    if (bound == 0) {
+      return false;
+    }
+    Item<T> item = new Item<>(value, sequence++);
+    if (bound < 0 || queue.size() < bound) {
+      queue.add(item);
+      return true;
+    }
+    if (comparator.compare(item, queue.peek()) >= 0) {
+      return false;
+    }
+    queue.poll();
+    queue.add(item);
+    return true;
+  }
+
+  public int size() {
+    return queue.size();
+  }
+
+  /**
+   * @return the items, sorted.
+   */
+  public List<T> toList() {
+    List<Item<T>> items = new ArrayList<>(queue);
+    Collections.sort(items, comparator);
+    List<T> values = new ArrayList<>(items.size());
+    for (Item<T> item : items) {
+      values.add(item.value);
+    }
+    return values;
+  }
+}
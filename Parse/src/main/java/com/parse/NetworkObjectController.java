@@ -20,10 +20,35 @@ import bolts.Task;
 
   private ParseHttpClient client;
   private ParseObjectCoder coder;
+  // Batches concurrent saves and deletes, if enabled.
+  private ParseRESTObjectBatcher batcher;
 
   public NetworkObjectController(ParseHttpClient client) {
+    this(client, 0);
+  }
+
+  /**
+   * @param batchWindowMillis
+   *          How long to wait for other saves and deletes to send in the same {@code /batch}
+   *          request as each one, in milliseconds, or 0 to send each one on its own.
+   */
+  public NetworkObjectController(ParseHttpClient client, long batchWindowMillis) {
     this.client = client;
     this.coder = ParseObjectCoder.get();
+    if (batchWindowMillis > 0) {
+      batcher = new ParseRESTObjectBatcher(client, batchWindowMillis);
+    }
+  }
+
+  /* package for tests */ ParseRESTObjectBatcher getBatcher() {
+    return batcher;
+  }
+
+  private Task<JSONObject> executeAsync(ParseRESTObjectCommand command, String sessionToken) {
+    if (batcher != null) {
+      return batcher.executeAsync(command, sessionToken);
+    }
+    return command.executeAsync(client);
   }
 
   @Override
@@ -34,6 +59,7 @@ import bolts.Task;
         state.className(),
         sessionToken);
     command.enableRetrying();
+    command.enableCoalescing();
 
     return command.executeAsync(client).onSuccess(new Continuation<JSONObject, ParseObject.State>() {
       @Override
@@ -65,7 +91,9 @@ import bolts.Task;
         objectJSON,
         sessionToken);
     command.enableRetrying();
-    return command.executeAsync(client).onSuccess(new Continuation<JSONObject, ParseObject.State>() {
+    command.setPriority(operations.getPriority());
+    return executeAsync(command, sessionToken).onSuccess(
+        new Continuation<JSONObject, ParseObject.State>() {
       @Override
       public ParseObject.State then(Task<JSONObject> task) throws Exception {
         JSONObject result = task.getResult();
@@ -95,6 +123,7 @@ import bolts.Task;
 
       ParseRESTObjectCommand command = ParseRESTObjectCommand.saveObjectCommand(
           state, objectJSON, sessionToken);
+      command.setPriority(operations.getPriority());
       commands.add(command);
     }
 
@@ -126,7 +155,7 @@ import bolts.Task;
         state, sessionToken);
     command.enableRetrying();
 
-    return command.executeAsync(client).makeVoid();
+    return executeAsync(command, sessionToken).makeVoid();
   }
 
   @Override
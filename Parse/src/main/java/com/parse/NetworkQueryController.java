@@ -58,6 +58,29 @@ import bolts.Task;
     if (shouldRetry) {
       command.enableRetrying();
     }
+    command.enableCoalescing();
+    command.setPriority(state.priority());
+
+    /*
+     * Stream the results out of the response, unless the whole response has to be cached, or the
+     * class of the results is only known from the end of the response.
+     */
+    ParseQuery.CachePolicy policy = state.cachePolicy();
+    final boolean isCached = policy != null && policy != ParseQuery.CachePolicy.IGNORE_CACHE;
+    if (!isCached && !state.extraOptions().containsKey("redirectClassNameForKey")) {
+      command.setResultDecoder(new ParseRESTCommand.ResultDecoder() {
+        @Override
+        public Object decode(JSONObject result) throws JSONException {
+          return UnmergedParseObject.decode(
+              result, state.className(), state.selectedKeys() == null);
+        }
+
+        @Override
+        public Object merge(Object decoded) {
+          return ((UnmergedParseObject) decoded).merge();
+        }
+      });
+    }
 
     final long querySent = System.nanoTime();
     return command.executeAsync(restClient, ct).onSuccess(new Continuation<JSONObject, List<T>>() {
@@ -65,14 +88,23 @@ import bolts.Task;
       public List<T> then(Task<JSONObject> task) throws Exception {
         JSONObject json = task.getResult();
         // Cache the results, unless we are ignoring the cache
-        ParseQuery.CachePolicy policy = state.cachePolicy();
-        if (policy != null && (policy != ParseQuery.CachePolicy.IGNORE_CACHE)) {
+        if (isCached) {
           ParseKeyValueCache.saveToKeyValueCache(command.getCacheKey(), json.toString());
         }
 
         long queryReceived = System.nanoTime();
 
-        List<T> response = convertFindResponse(state, task.getResult());
+        List<T> response;
+        List<Object> decodedResults = command.getDecodedResults();
+        if (decodedResults != null) {
+          @SuppressWarnings("unchecked")
+          List<T> results = (List<T>) (List<?>) decodedResults;
+          response = results;
+          // The results may have been decoded for another query that this one was coalesced into.
+          addKnownObjects(state, response);
+        } else {
+          response = convertFindResponse(state, json);
+        }
 
         long objectsParsed = System.nanoTime();
 
@@ -100,6 +132,8 @@ import bolts.Task;
     if (shouldRetry) {
       command.enableRetrying();
     }
+    command.enableCoalescing();
+    command.setPriority(state.priority());
 
     return command.executeAsync(restClient, ct).onSuccessTask(new Continuation<JSONObject, Task<JSONObject>>() {
       @Override
@@ -135,22 +169,32 @@ import bolts.Task;
         resultClassName = state.className();
       }
       for (int i = 0; i < results.length(); ++i) {
-        JSONObject data = results.getJSONObject(i);
-        T object = ParseObject.fromJSON(data, resultClassName, state.selectedKeys() == null);
-        answer.add(object);
-
-        /*
-         * If there was a $relatedTo constraint on the query, then add any results to the list of
-         * known objects in the relation for offline caching
-         */
-        ParseQuery.RelationConstraint relation =
-            (ParseQuery.RelationConstraint) state.constraints().get("$relatedTo");
-        if (relation != null) {
-          relation.getRelation().addKnownObject(object);
-        }
+        answer.add(convertFindResult(state, results.getJSONObject(i), resultClassName));
       }
+      addKnownObjects(state, answer);
     }
 
     return answer;
   }
+
+  // Converts a single result of a find command to a ParseObject.
+  /* package */ <T extends ParseObject> T convertFindResult(ParseQuery.State<T> state,
+      JSONObject data, String resultClassName) {
+    return ParseObject.fromJSON(data, resultClassName, state.selectedKeys() == null);
+  }
+
+  /*
+   * If there was a $relatedTo constraint on the query, then add any results to the list of
+   * known objects in the relation for offline caching
+   */
+  private static <T extends ParseObject> void addKnownObjects(ParseQuery.State<T> state,
+      List<T> results) {
+    ParseQuery.RelationConstraint relation =
+        (ParseQuery.RelationConstraint) state.constraints().get("$relatedTo");
+    if (relation != null) {
+      for (T object : results) {
+        relation.getRelation().addKnownObject(object);
+      }
+    }
+  }
 }
@@ -0,0 +1,367 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Groups the objects that match a local datastore query by the value of a key, and reduces each
+ * group to a count and the sum, minimum or maximum of numeric keys.
+ *
+ * Reductions are written {@code "count"}, {@code "sum(key)"}, {@code "min(key)"} or
+ * {@code "max(key)"}, and each group's results are keyed by the same strings. Values that aren't
+ * numbers are ignored by sum, min and max, and a group without any numbers for a key has a sum of
+ * 0 and no minimum or maximum. Objects without a value for the group key are grouped under
+ * {@code null}.
+ *
+ * The objects are reduced as they're matched, one at a time, so nothing is held on to but the
+ * running totals. {@link OfflineStore} computes everything in SQL instead when the indexes can
+ * answer it exactly, using {@link #createSelect} and {@link #readRow}.
+ */
+/** package */ class OfflineAggregation {
+
+  /* package */ static final String COUNT = "count";
+
+  private static final Pattern REDUCTION = Pattern.compile("^(sum|min|max)\\((.+)\\)$");
+
+  /**
+   * A single reduction of a key's values, such as {@code sum(score)}.
+   */
+  /* package */ static class Reduction {
+    /* package */ final String name;
+    /* package */ final String operator;
+    /* package */ final String key;
+
+    private Reduction(String name, String operator, String key) {
+      this.name = name;
+      this.operator = operator;
+      this.key = key;
+    }
+
+    /* package */ static Reduction parse(String name) {
+      if (COUNT.equals(name)) {
+        return new Reduction(name, COUNT, null);
+      }
+      Matcher matcher = REDUCTION.matcher(name);
+      if (!matcher.matches()) {
+        throw new IllegalArgumentException(String.format(
+            "Unsupported reduction: %s. Use count, sum(key), min(key) or max(key).", name));
+      }
+      return new Reduction(name, matcher.group(1), matcher.group(2));
+    }
+  }
+
+  private final String groupByKey;
+  private final List<Reduction> reductions = new ArrayList<>();
+
+  // group value -> the running result of each reduction, in the same order as reductions
+  private final Map<Object, Number[]> groups = new HashMap<>();
+
+  /**
+   * @param groupByKey
+   *          (Optional) The key to group by, or {@code null} to reduce every object into a single
+   *          group.
+   * @param reductions
+   *          The reductions to compute for each group.
+   */
+  /* package */ OfflineAggregation(String groupByKey, List<String> reductions) {
+    if (reductions.isEmpty()) {
+      throw new IllegalArgumentException("An aggregation needs at least one reduction.");
+    }
+    this.groupByKey = groupByKey;
+    for (String reduction : reductions) {
+      this.reductions.add(Reduction.parse(reduction));
+    }
+  }
+
+  /* package */ String getGroupByKey() {
+    return groupByKey;
+  }
+
+  /* package */ List<Reduction> getReductions() {
+    return Collections.unmodifiableList(reductions);
+  }
+
+  /**
+   * Converts a value to the type the SQL path produces for it, so that both paths group and
+   * reduce the same way.
+   */
+  private static Object normalize(Object value) {
+    if (value == JSONObject.NULL) {
+      return null;
+    } else if (value instanceof Double || value instanceof Float) {
+      return ((Number) value).doubleValue();
+    } else if (value instanceof Number) {
+      return ((Number) value).longValue();
+    }
+    return value;
+  }
+
+  //region In Memory
+
+  /**
+   * Adds an object that matched the query to its group.
+   */
+  /* package */ void add(ParseObject object) throws ParseException {
+    Object group = groupByKey != null
+        ? normalize(OfflineQueryLogic.getValue(object, groupByKey))
+        : null;
+    Number[] results = groups.get(group);
+    if (results == null) {
+      results = new Number[reductions.size()];
+      groups.put(group, results);
+    }
+
+    for (int i = 0; i < reductions.size(); i++) {
+      Reduction reduction = reductions.get(i);
+      if (reduction.key == null) {
+        results[i] = results[i] == null ? 1L : results[i].longValue() + 1;
+        continue;
+      }
+      Object value = normalize(OfflineQueryLogic.getValue(object, reduction.key));
+      if (!(value instanceof Number)) {
+        continue;
+      }
+      Number number = (Number) value;
+      if (results[i] == null) {
+        results[i] = number;
+      } else if ("sum".equals(reduction.operator)) {
+        results[i] = Numbers.add(results[i], number);
+      } else if ("min".equals(reduction.operator)) {
+        results[i] = Numbers.compare(number, results[i]) < 0 ? number : results[i];
+      } else {
+        results[i] = Numbers.compare(number, results[i]) > 0 ? number : results[i];
+      }
+    }
+  }
+
+  /**
+   * @return The results of each group, keyed by the names of the reductions.
+   */
+  /* package */ Map<Object, Map<String, Number>> getResults() {
+    Map<Object, Map<String, Number>> results = new HashMap<>();
+    for (Map.Entry<Object, Number[]> entry : groups.entrySet()) {
+      results.put(entry.getKey(), toMap(entry.getValue()));
+    }
+    return results;
+  }
+
+  private Map<String, Number> toMap(Number[] values) {
+    Map<String, Number> map = new HashMap<>();
+    for (int i = 0; i < reductions.size(); i++) {
+      Reduction reduction = reductions.get(i);
+      Number value = values[i];
+      if (value == null && (reduction.key == null || "sum".equals(reduction.operator))) {
+        value = 0L;
+      }
+      if (value != null) {
+        map.put(reduction.name, value);
+      }
+    }
+    return map;
+  }
+
+  //endregion
+
+  //region SQL
+
+  /**
+   * Returns whether every key the aggregation looks at is indexed, which the SQL path needs.
+   */
+  /* package */ boolean isIndexed(Set<String> indexedKeys) {
+    if (groupByKey != null && !isIndexedKey(groupByKey, indexedKeys)) {
+      return false;
+    }
+    for (Reduction reduction : reductions) {
+      if (reduction.key != null && !isIndexedKey(reduction.key, indexedKeys)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isIndexedKey(String key, Set<String> indexedKeys) {
+    return OfflineIndexes.isIndexableKey(key) && indexedKeys.contains(key);
+  }
+
+  /**
+   * Returns the joins and columns that compute the aggregation over the objects table, aliased as
+   * {@code A}. The arguments of the joins are appended to {@code args}, and must come before any
+   * in the where clause.
+   *
+   * Each key gets its own join on the index, which only has a single row per object for scalar
+   * values. Every row of the result ends with a column that counts the values the joins couldn't
+   * describe exactly, such as arrays, which have a row per element, and values with pending
+   * operations. If it's ever non-zero, the aggregation has to be done in memory instead.
+   *
+   * @return The columns, then {@code " FROM "}, the table and the joins, as a single string.
+   */
+  /* package */ String createSelect(String objectsTable, List<String> args) {
+    List<String> columns = new ArrayList<>();
+    List<String> joins = new ArrayList<>();
+    List<String> inexact = new ArrayList<>();
+
+    if (groupByKey != null) {
+      joins.add(createJoin("G", groupByKey, args));
+      columns.add("G." + OfflineSQLiteOpenHelper.KEY_TYPE);
+      columns.add("G." + OfflineSQLiteOpenHelper.KEY_VALUE);
+      inexact.add(createInexactCount("G"));
+    }
+    columns.add("COUNT(*)");
+    for (int i = 0; i < reductions.size(); i++) {
+      Reduction reduction = reductions.get(i);
+      if (reduction.key == null) {
+        continue;
+      }
+      String alias = "R" + i;
+      joins.add(createJoin(alias, reduction.key, args));
+      columns.add(String.format(Locale.US, "%s(CASE WHEN %s.%s = %d THEN %s.%s END)",
+          reduction.operator.toUpperCase(Locale.US), alias, OfflineSQLiteOpenHelper.KEY_TYPE,
+          OfflineIndexes.TYPE_NUMBER, alias, OfflineSQLiteOpenHelper.KEY_VALUE));
+      inexact.add(createInexactCount(alias));
+    }
+    columns.add(inexact.isEmpty() ? "0" : join(" + ", inexact));
+
+    StringBuilder sql = new StringBuilder();
+    sql.append(join(", ", columns));
+    sql.append(" FROM ").append(objectsTable).append(" A");
+    for (String joinClause : joins) {
+      sql.append(joinClause);
+    }
+    return sql.toString();
+  }
+
+  /**
+   * @return The GROUP BY clause to add after the where clause, or an empty string.
+   */
+  /* package */ String createGroupBy() {
+    if (groupByKey == null) {
+      return "";
+    }
+    return " GROUP BY G." + OfflineSQLiteOpenHelper.KEY_TYPE +
+        ", G." + OfflineSQLiteOpenHelper.KEY_VALUE;
+  }
+
+  private static String createJoin(String alias, String key, List<String> args) {
+    args.add(key);
+    // Full-text rows duplicate the string rows of the same key.
+    return " LEFT JOIN " + OfflineSQLiteOpenHelper.TABLE_INDEXES + " " + alias +
+        " ON " + alias + "." + OfflineSQLiteOpenHelper.KEY_UUID +
+        " = A." + OfflineSQLiteOpenHelper.KEY_UUID +
+        " AND " + alias + "." + OfflineSQLiteOpenHelper.KEY_KEY + " = ?" +
+        " AND " + alias + "." + OfflineSQLiteOpenHelper.KEY_TYPE +
+        " != " + OfflineIndexes.TYPE_FULL_TEXT;
+  }
+
+  private static String createInexactCount(String alias) {
+    return String.format(Locale.US, "SUM(CASE WHEN %s.%s IN (%d, %d, %d) THEN 1 ELSE 0 END)",
+        alias, OfflineSQLiteOpenHelper.KEY_TYPE, OfflineIndexes.TYPE_UNKNOWN,
+        OfflineIndexes.TYPE_OPAQUE, OfflineIndexes.TYPE_GEO_POINT);
+  }
+
+  private static String join(String separator, List<String> parts) {
+    StringBuilder builder = new StringBuilder();
+    for (String part : parts) {
+      if (builder.length() > 0) {
+        builder.append(separator);
+      }
+      builder.append(part);
+    }
+    return builder.toString();
+  }
+
+  /**
+   * Adds a row of the query built by {@link #createSelect} to the results, with each column read
+   * as a string.
+   *
+   * @return {@code false} if the row can't be used, and the aggregation has to be done in memory.
+   */
+  /* package */ boolean readRow(String[] row) {
+    int column = groupByKey != null ? 2 : 0;
+    long count = Long.parseLong(row[column++]);
+    if (count == 0) {
+      // Without a GROUP BY, there's always a row, even if nothing matched.
+      return true;
+    }
+    if (!"0".equals(row[row.length - 1])) {
+      return false;
+    }
+    Object group = groupByKey != null ? parseValue(row[0], row[1]) : null;
+
+    Number[] results = new Number[reductions.size()];
+    for (int i = 0; i < reductions.size(); i++) {
+      if (reductions.get(i).key == null) {
+        results[i] = count;
+      } else {
+        results[i] = parseNumber(row[column++]);
+      }
+    }
+    groups.put(group, results);
+    return true;
+  }
+
+  /**
+   * Parses an index row's value back into what {@link ParseObject#get(String)} would return.
+   */
+  private static Object parseValue(String type, String value) {
+    if (type == null) {
+      return null;
+    }
+    switch (Integer.parseInt(type)) {
+      case OfflineIndexes.TYPE_STRING:
+        return value;
+      case OfflineIndexes.TYPE_NUMBER:
+        return parseNumber(value);
+      case OfflineIndexes.TYPE_BOOLEAN:
+        return "1".equals(value);
+      case OfflineIndexes.TYPE_DATE:
+        return new Date(Long.parseLong(value));
+      case OfflineIndexes.TYPE_POINTER:
+        int separator = value.indexOf(':');
+        return ParseObject.createWithoutData(
+            value.substring(0, separator), value.substring(separator + 1));
+      default:
+        throw new IllegalStateException("Unexpected index type: " + type);
+    }
+  }
+
+  /**
+   * Parses a number the way SQLite formats it as a string, keeping integers as {@link Long}s.
+   */
+  private static Number parseNumber(String value) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      return Long.parseLong(value);
+    } catch (NumberFormatException e) {
+      return Double.parseDouble(value);
+    }
+  }
+
+  /**
+   * Drops any results, so that the aggregation can be done again from scratch.
+   */
+  /* package */ void clear() {
+    groups.clear();
+  }
+
+  //endregion
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes large numbers of rows to the local datastore with as few statements as possible, reusing
+ * compiled statements instead of building a new one for every row.
+ *
+ * Every method must be called on the database thread, which usually means from a
+ * {@link ParseSQLiteDatabase.Batch}.
+ */
+/** package */ class OfflineBulkWriter {
+
+  /**
+   * SQLite has a max of 999 SQL variables in a single statement.
+   */
+  private static final int MAX_SQL_VARIABLES = 999;
+
+  /**
+   * Inserting several rows with a single VALUES clause was added in SQLite 3.7.11, which first
+   * shipped with Jelly Bean.
+   */
+  private static final boolean SUPPORTS_MULTI_ROW_INSERT =
+      Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+
+  /**
+   * Inserts {@code rows} into {@code table}, putting as many rows into each statement as SQLite
+   * allows.
+   *
+   * @param conflict
+   *          The conflict clause, such as {@code "OR IGNORE"}, or an empty string.
+   * @param columns
+   *          The columns to insert into.
+   * @param rows
+   *          The rows to insert, with one value for each of {@code columns}.
+   */
+  /* package */ static void insert(SQLiteDatabase db, String table, String conflict,
+      String[] columns, List<Object[]> rows) {
+    int rowsPerStatement = SUPPORTS_MULTI_ROW_INSERT
+        ? Math.max(1, MAX_SQL_VARIABLES / columns.length)
+        : 1;
+
+    SQLiteStatement statement = null;
+    int statementRows = 0;
+    try {
+      for (int start = 0; start < rows.size(); start += rowsPerStatement) {
+        int count = Math.min(rowsPerStatement, rows.size() - start);
+        // Every full chunk shares a statement, only the last one needs its own.
+        if (count != statementRows) {
+          if (statement != null) {
+            statement.close();
+          }
+          statement = db.compileStatement(createInsertSql(table, conflict, columns, count));
+          statementRows = count;
+        }
+
+        statement.clearBindings();
+        int index = 1;
+        for (int i = start; i < start + count; i++) {
+          for (Object value : rows.get(i)) {
+            bind(statement, index++, value);
+          }
+        }
+        statement.executeInsert();
+      }
+    } finally {
+      if (statement != null) {
+        statement.close();
+      }
+    }
+  }
+
+  /**
+   * Deletes every row of {@code table} whose {@code column} is one of {@code values}, in as few
+   * statements as SQLite allows.
+   */
+  /* package */ static void deleteIn(SQLiteDatabase db, String table, String column,
+      List<String> values) {
+    for (int start = 0; start < values.size(); start += MAX_SQL_VARIABLES) {
+      int end = Math.min(start + MAX_SQL_VARIABLES, values.size());
+      List<String> chunk = values.subList(start, end);
+      String where = column + " IN (" + createPlaceholders(chunk.size()) + ")";
+      db.delete(table, where, chunk.toArray(new String[chunk.size()]));
+    }
+  }
+
+  /**
+   * Binds {@code value} to a compiled statement, using the same storage class that
+   * {@link android.content.ContentValues} would give it.
+   */
+  /* package */ static void bind(SQLiteStatement statement, int index, Object value) {
+    if (value == null) {
+      statement.bindNull(index);
+    } else if (value instanceof String) {
+      statement.bindString(index, (String) value);
+    } else if (value instanceof Double || value instanceof Float) {
+      statement.bindDouble(index, ((Number) value).doubleValue());
+    } else if (value instanceof Number) {
+      statement.bindLong(index, ((Number) value).longValue());
+    } else if (value instanceof Boolean) {
+      statement.bindLong(index, (Boolean) value ? 1 : 0);
+    } else if (value instanceof byte[]) {
+      statement.bindBlob(index, (byte[]) value);
+    } else {
+      throw new IllegalArgumentException("Unable to bind value of type " + value.getClass());
+    }
+  }
+
+  private static String createInsertSql(String table, String conflict, String[] columns,
+      int rows) {
+    StringBuilder sql = new StringBuilder("INSERT ");
+    if (conflict.length() > 0) {
+      sql.append(conflict).append(" ");
+    }
+    sql.append("INTO ").append(table).append(" (")
+        .append(ParseTextUtils.join(", ", Arrays.asList(columns)))
+        .append(") VALUES ");
+    String row = "(" + createPlaceholders(columns.length) + ")";
+    for (int i = 0; i < rows; i++) {
+      if (i > 0) {
+        sql.append(", ");
+      }
+      sql.append(row);
+    }
+    return sql.toString();
+  }
+
+  private static String createPlaceholders(int count) {
+    StringBuilder placeholders = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      if (i > 0) {
+        placeholders.append(", ");
+      }
+      placeholders.append("?");
+    }
+    return placeholders.toString();
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The classes, pins and objects that a committed write to {@link OfflineStore} touched.
+ *
+ * An object is listed if its data was written or deleted, or if it was added to or removed from a
+ * pin. Only objects that are still in memory are listed, since nothing can be holding on to the
+ * others, but their classes are always listed.
+ */
+/** package */ class OfflineChange {
+
+  private final Set<String> classNames = new HashSet<>();
+  private final Set<String> pinNames = new HashSet<>();
+  // ParseObjects compare by identity.
+  private final Set<ParseObject> objects = new HashSet<>();
+
+  /* package */ synchronized void addClassName(String className) {
+    classNames.add(className);
+  }
+
+  /* package */ synchronized void addPinName(String name) {
+    pinNames.add(name);
+  }
+
+  /* package */ synchronized void addObject(ParseObject object) {
+    classNames.add(object.getClassName());
+    objects.add(object);
+  }
+
+  /* package */ synchronized Set<String> getClassNames() {
+    return Collections.unmodifiableSet(new HashSet<>(classNames));
+  }
+
+  /**
+   * @return The names of the pins that objects were added to or removed from.
+   */
+  /* package */ synchronized Set<String> getPinNames() {
+    return Collections.unmodifiableSet(new HashSet<>(pinNames));
+  }
+
+  /* package */ synchronized boolean hasClassName(String className) {
+    return classNames.contains(className);
+  }
+
+  /**
+   * @return The objects of the given class that were touched.
+   */
+  /* package */ synchronized <T extends ParseObject> List<T> getObjects(String className) {
+    List<T> results = new ArrayList<>();
+    for (ParseObject object : objects) {
+      if (object.getClassName().equals(className)) {
+        @SuppressWarnings("unchecked")
+        T result = (T) object;
+        results.add(result);
+      }
+    }
+    return results;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("OfflineChange[classNames=%s, pinNames=%s, objects=%d]",
+        classNames, pinNames, objects.size());
+  }
+}
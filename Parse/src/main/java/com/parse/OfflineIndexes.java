@@ -0,0 +1,534 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Secondary indexes for the local datastore.
+ *
+ * Every declared (className, key) pair gets a row in {@link OfflineSQLiteOpenHelper#TABLE_INDEXES}
+ * for each comparable value an object holds for that key. Arrays produce one row per element so
+ * that Mongo-style array containment can be answered by the index as well. The index is only ever
+ * used to narrow down the set of candidate rows for a query, every candidate is still evaluated by
+ * {@link OfflineQueryLogic}, so the rows here must describe a superset of what could match.
+ */
+/** package */ class OfflineIndexes {
+
+  /**
+   * The key has pending local operations stored alongside the object, so its value can't be known
+   * without decoding the object. Rows of this type match every index lookup.
+   */
+  /* package */ static final int TYPE_UNKNOWN = 0;
+  /**
+   * The key holds a value that can't be compared in SQL, such as a JSONObject.
+   * Rows of this type only record that the key exists.
+   */
+  /* package */ static final int TYPE_OPAQUE = 1;
+  /* package */ static final int TYPE_STRING = 2;
+  /* package */ static final int TYPE_NUMBER = 3;
+  /* package */ static final int TYPE_BOOLEAN = 4;
+  /* package */ static final int TYPE_DATE = 5;
+  /* package */ static final int TYPE_POINTER = 6;
+  /**
+   * The value is the latitude of a ParseGeoPoint and the longitude is stored alongside it, so that
+   * geo queries can look up the rows in a bounding box.
+   */
+  /* package */ static final int TYPE_GEO_POINT = 7;
+  /**
+   * The value is a string of a full-text indexed key, which is copied into
+   * {@link OfflineSQLiteOpenHelper#TABLE_FULL_TEXT}. These rows are in addition to the
+   * {@link #TYPE_STRING} row for the same string, so every other lookup ignores them.
+   */
+  /* package */ static final int TYPE_FULL_TEXT = 8;
+
+  /**
+   * A single row of the index.
+   */
+  /* package */ static class Entry {
+    /* package */ final String key;
+    /* package */ final int type;
+    /* package */ final Object value;
+    // Only set for TYPE_GEO_POINT.
+    /* package */ final Double longitude;
+
+    /* package */ Entry(String key, int type, Object value) {
+      this(key, type, value, null);
+    }
+
+    /* package */ Entry(String key, int type, Object value, Double longitude) {
+      this.key = key;
+      this.type = type;
+      this.value = value;
+      this.longitude = longitude;
+    }
+  }
+
+  /**
+   * Returns whether {@code key} can be indexed. Dotted keys and internal keys are resolved by
+   * traversing into objects, which can't be expressed as a row of the index.
+   */
+  /* package */ static boolean isIndexableKey(String key) {
+    return key != null
+        && key.length() > 0
+        && !key.contains(".")
+        && !key.startsWith("__")
+        && !"objectId".equals(key)
+        && !"className".equals(key);
+  }
+
+  /**
+   * Encodes a pointer the same way both when indexing and when looking up a value.
+   * {@link OfflineQueryLogic} builds the same value in SQL for $inQuery, so the two have to agree.
+   */
+  /* package */ static String pointerValue(String className, String objectId) {
+    return className + ":" + objectId;
+  }
+
+  /**
+   * Splits a string into the tokens FTS3's "simple" tokenizer would, so that matching in memory
+   * agrees with {@link OfflineSQLiteOpenHelper#TABLE_FULL_TEXT}. Runs of ASCII letters and digits
+   * and of non-ASCII characters are tokens, everything else separates them, and only ASCII letters
+   * are folded to lower case.
+   */
+  /* package */ static List<String> tokenize(String text) {
+    List<String> tokens = new ArrayList<>();
+    StringBuilder token = new StringBuilder();
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c >= 'A' && c <= 'Z') {
+        token.append((char) (c - 'A' + 'a'));
+      } else if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c >= 0x80) {
+        token.append(c);
+      } else if (token.length() > 0) {
+        tokens.add(token.toString());
+        token.setLength(0);
+      }
+    }
+    if (token.length() > 0) {
+      tokens.add(token.toString());
+    }
+    return tokens;
+  }
+
+  private final Map<String, Set<String>> keysByClassName;
+  private final Map<String, Set<String>> fullTextKeysByClassName;
+
+  /* package */ OfflineIndexes() {
+    this(null);
+  }
+
+  /* package */ OfflineIndexes(Map<String, Set<String>> keysByClassName) {
+    this(keysByClassName, null);
+  }
+
+  /**
+   * @param keysByClassName
+   *          The keys to index for each class.
+   * @param fullTextKeysByClassName
+   *          The keys whose strings are also indexed for full-text search. These are indexed like
+   *          any other key as well, whether or not they're in {@code keysByClassName}.
+   */
+  /* package */ OfflineIndexes(Map<String, Set<String>> keysByClassName,
+      Map<String, Set<String>> fullTextKeysByClassName) {
+    Map<String, Set<String>> keys = new HashMap<>();
+    Map<String, Set<String>> fullTextKeys = new HashMap<>();
+    addAll(keys, keysByClassName);
+    addAll(keys, fullTextKeysByClassName);
+    addAll(fullTextKeys, fullTextKeysByClassName);
+    this.keysByClassName = unmodifiableCopy(keys);
+    this.fullTextKeysByClassName = unmodifiableCopy(fullTextKeys);
+  }
+
+  private static void addAll(Map<String, Set<String>> to, Map<String, Set<String>> from) {
+    if (from == null) {
+      return;
+    }
+    for (Map.Entry<String, Set<String>> entry : from.entrySet()) {
+      Set<String> keys = to.get(entry.getKey());
+      if (keys == null) {
+        keys = new HashSet<>();
+        to.put(entry.getKey(), keys);
+      }
+      keys.addAll(entry.getValue());
+    }
+  }
+
+  private static Map<String, Set<String>> unmodifiableCopy(Map<String, Set<String>> map) {
+    Map<String, Set<String>> copy = new HashMap<>();
+    for (Map.Entry<String, Set<String>> entry : map.entrySet()) {
+      copy.put(entry.getKey(), Collections.unmodifiableSet(new HashSet<>(entry.getValue())));
+    }
+    return Collections.unmodifiableMap(copy);
+  }
+
+  /**
+   * @return the keys that are indexed for the given class.
+   */
+  /* package */ Set<String> getIndexedKeys(String className) {
+    Set<String> keys = keysByClassName.get(className);
+    return keys != null ? keys : Collections.<String>emptySet();
+  }
+
+  /**
+   * @return the keys that are indexed for full-text search for the given class. These are always
+   * a subset of {@link #getIndexedKeys(String)}.
+   */
+  /* package */ Set<String> getFullTextKeys(String className) {
+    Set<String> keys = fullTextKeysByClassName.get(className);
+    return keys != null ? keys : Collections.<String>emptySet();
+  }
+
+  /**
+   * Extracts the index rows for the given keys out of the JSON we store for an object.
+   *
+   * @see ParseObject#toRest(ParseEncoder)
+   */
+  /* package */ static List<Entry> extract(JSONObject json, Collection<String> keys) {
+    return extract(json, keys, Collections.<String>emptySet());
+  }
+
+  /**
+   * The same as {@link #extract(JSONObject, Collection)}, but also extracts
+   * {@link #TYPE_FULL_TEXT} rows for the strings of {@code fullTextKeys}.
+   */
+  /* package */ static List<Entry> extract(JSONObject json, Collection<String> keys,
+      Collection<String> fullTextKeys) {
+    List<Entry> entries = new ArrayList<>();
+    if (keys.isEmpty()) {
+      return entries;
+    }
+
+    Set<String> pendingKeys = getPendingKeys(json);
+    for (String key : keys) {
+      if (pendingKeys.contains(key)) {
+        entries.add(new Entry(key, TYPE_UNKNOWN, null));
+        continue;
+      }
+
+      Object value;
+      if (ParseObject.KEY_CREATED_AT.equals(key) || ParseObject.KEY_UPDATED_AT.equals(key)) {
+        String iso = json.optString(key, null);
+        Date date = iso != null ? ParseDateFormat.getInstance().parse(iso) : null;
+        if (date != null) {
+          entries.add(new Entry(key, TYPE_DATE, date.getTime()));
+        }
+        continue;
+      } else {
+        value = json.opt(key);
+      }
+
+      if (value == null || value == JSONObject.NULL) {
+        // Undefined and null values don't get any rows, which is what $exists relies on.
+        continue;
+      }
+
+      if (value instanceof JSONArray) {
+        JSONArray array = (JSONArray) value;
+        for (int i = 0; i < array.length(); i++) {
+          Entry entry = createEntry(key, array.opt(i));
+          if (entry != null) {
+            entries.add(entry);
+          }
+        }
+        // Arrays are never scalars, even if they only have one element. Sorting relies on this.
+        entries.add(new Entry(key, TYPE_OPAQUE, null));
+      } else {
+        Entry entry = createEntry(key, value);
+        // If the key exists but we have nothing to compare against, still record that it exists.
+        entries.add(entry != null ? entry : new Entry(key, TYPE_OPAQUE, null));
+        if (value instanceof String && fullTextKeys.contains(key)) {
+          entries.add(new Entry(key, TYPE_FULL_TEXT, value));
+        }
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * @return the keys that have operations in the operation set queue we store for the object.
+   */
+  private static Set<String> getPendingKeys(JSONObject json) {
+    Set<String> keys = new HashSet<>();
+    JSONArray operations = json.optJSONArray(ParseObject.KEY_OPERATIONS);
+    if (operations == null) {
+      return keys;
+    }
+    for (int i = 0; i < operations.length(); i++) {
+      JSONObject operationSet = operations.optJSONObject(i);
+      if (operationSet == null) {
+        continue;
+      }
+      Iterator<String> iterator = operationSet.keys();
+      while (iterator.hasNext()) {
+        keys.add(iterator.next());
+      }
+    }
+    return keys;
+  }
+
+  /**
+   * Creates an index row for a single REST encoded value, or {@code null} if the value can't be
+   * compared in SQL.
+   */
+  private static Entry createEntry(String key, Object value) {
+    if (value instanceof String) {
+      return new Entry(key, TYPE_STRING, value);
+    } else if (value instanceof Boolean) {
+      return new Entry(key, TYPE_BOOLEAN, (Boolean) value ? 1L : 0L);
+    } else if (value instanceof Double || value instanceof Float) {
+      return new Entry(key, TYPE_NUMBER, ((Number) value).doubleValue());
+    } else if (value instanceof Number) {
+      return new Entry(key, TYPE_NUMBER, ((Number) value).longValue());
+    } else if (value instanceof JSONObject) {
+      JSONObject json = (JSONObject) value;
+      String type = json.optString("__type");
+      if ("Date".equals(type)) {
+        Date date = ParseDateFormat.getInstance().parse(json.optString("iso"));
+        return date != null ? new Entry(key, TYPE_DATE, date.getTime()) : null;
+      } else if ("Pointer".equals(type)) {
+        String className = json.optString("className", null);
+        String objectId = json.optString("objectId", null);
+        if (className != null && objectId != null) {
+          return new Entry(key, TYPE_POINTER, pointerValue(className, objectId));
+        }
+      } else if ("GeoPoint".equals(type)) {
+        if (json.has("latitude") && json.has("longitude")) {
+          return new Entry(key, TYPE_GEO_POINT, json.optDouble("latitude"),
+              json.optDouble("longitude"));
+        }
+      } else if ("OfflineObject".equals(type)) {
+        // The referenced object may have been saved since, so we can't tell what it'll compare to.
+        return new Entry(key, TYPE_UNKNOWN, null);
+      }
+    }
+    return null;
+  }
+
+  /* package */ static ContentValues toContentValues(String uuid, String className, Entry entry) {
+    ContentValues values = new ContentValues();
+    values.put(OfflineSQLiteOpenHelper.KEY_UUID, uuid);
+    values.put(OfflineSQLiteOpenHelper.KEY_CLASS_NAME, className);
+    values.put(OfflineSQLiteOpenHelper.KEY_KEY, entry.key);
+    values.put(OfflineSQLiteOpenHelper.KEY_TYPE, entry.type);
+    if (entry.value instanceof String) {
+      values.put(OfflineSQLiteOpenHelper.KEY_VALUE, (String) entry.value);
+    } else if (entry.value instanceof Long) {
+      values.put(OfflineSQLiteOpenHelper.KEY_VALUE, (Long) entry.value);
+    } else if (entry.value instanceof Double) {
+      values.put(OfflineSQLiteOpenHelper.KEY_VALUE, (Double) entry.value);
+    } else {
+      values.putNull(OfflineSQLiteOpenHelper.KEY_VALUE);
+    }
+    if (entry.longitude != null) {
+      values.put(OfflineSQLiteOpenHelper.KEY_LONGITUDE, entry.longitude);
+    }
+    return values;
+  }
+
+  /**
+   * The columns of a row of {@link OfflineSQLiteOpenHelper#TABLE_INDEXES}, in the order they are
+   * returned by {@link #toRow}.
+   */
+  /* package */ static final String[] COLUMNS = {
+      OfflineSQLiteOpenHelper.KEY_UUID,
+      OfflineSQLiteOpenHelper.KEY_CLASS_NAME,
+      OfflineSQLiteOpenHelper.KEY_KEY,
+      OfflineSQLiteOpenHelper.KEY_TYPE,
+      OfflineSQLiteOpenHelper.KEY_VALUE,
+      OfflineSQLiteOpenHelper.KEY_LONGITUDE
+  };
+
+  /* package */ static Object[] toRow(String uuid, String className, Entry entry) {
+    return new Object[] {
+        uuid, className, entry.key, (long) entry.type, entry.value, entry.longitude };
+  }
+
+  private static void bind(SQLiteStatement statement, String uuid, String className, Entry entry) {
+    statement.clearBindings();
+    statement.bindString(1, uuid);
+    statement.bindString(2, className);
+    statement.bindString(3, entry.key);
+    statement.bindLong(4, entry.type);
+    if (entry.value instanceof String) {
+      statement.bindString(5, (String) entry.value);
+    } else if (entry.value instanceof Long) {
+      statement.bindLong(5, (Long) entry.value);
+    } else if (entry.value instanceof Double) {
+      statement.bindDouble(5, (Double) entry.value);
+    } else {
+      statement.bindNull(5);
+    }
+    if (entry.longitude != null) {
+      statement.bindDouble(6, entry.longitude);
+    } else {
+      statement.bindNull(6);
+    }
+  }
+
+  /**
+   * Brings the index tables in line with the declared indexes. Indexes that are no longer declared
+   * are dropped, since nothing would keep them up to date, and newly declared ones are built from
+   * the objects that are already in the database. Indexes that became or stopped being full-text
+   * indexes are dropped and built again.
+   *
+   * This must be run on the database thread.
+   */
+  /* package */ void sync(SQLiteDatabase db) {
+    // className -> key -> whether it's indexed for full-text search
+    Map<String, Map<String, Boolean>> built = new HashMap<>();
+    Cursor cursor = db.query(OfflineSQLiteOpenHelper.TABLE_INDEXED_KEYS,
+        new String[] { OfflineSQLiteOpenHelper.KEY_CLASS_NAME, OfflineSQLiteOpenHelper.KEY_KEY,
+            OfflineSQLiteOpenHelper.KEY_IS_FULL_TEXT },
+        null, null, null, null, null);
+    try {
+      for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+        String className = cursor.getString(0);
+        Map<String, Boolean> keys = built.get(className);
+        if (keys == null) {
+          keys = new HashMap<>();
+          built.put(className, keys);
+        }
+        keys.put(cursor.getString(1), cursor.getInt(2) != 0);
+      }
+    } finally {
+      cursor.close();
+    }
+
+    db.beginTransaction();
+    try {
+      for (Map.Entry<String, Map<String, Boolean>> entry : built.entrySet()) {
+        String className = entry.getKey();
+        Iterator<Map.Entry<String, Boolean>> keys = entry.getValue().entrySet().iterator();
+        while (keys.hasNext()) {
+          Map.Entry<String, Boolean> key = keys.next();
+          if (getIndexedKeys(className).contains(key.getKey())
+              && getFullTextKeys(className).contains(key.getKey()) == key.getValue()) {
+            continue;
+          }
+          String where = OfflineSQLiteOpenHelper.KEY_CLASS_NAME + "=? AND "
+              + OfflineSQLiteOpenHelper.KEY_KEY + "=?";
+          String[] args = { className, key.getKey() };
+          db.delete(OfflineSQLiteOpenHelper.TABLE_INDEXES, where, args);
+          db.delete(OfflineSQLiteOpenHelper.TABLE_INDEXED_KEYS, where, args);
+          keys.remove();
+        }
+      }
+
+      for (Map.Entry<String, Set<String>> entry : keysByClassName.entrySet()) {
+        String className = entry.getKey();
+        Set<String> missing = new HashSet<>(entry.getValue());
+        if (built.containsKey(className)) {
+          missing.removeAll(built.get(className).keySet());
+        }
+        if (missing.isEmpty()) {
+          continue;
+        }
+
+        Set<String> fullTextKeys = getFullTextKeys(className);
+        build(db, className, missing, fullTextKeys);
+        for (String key : missing) {
+          ContentValues values = new ContentValues();
+          values.put(OfflineSQLiteOpenHelper.KEY_CLASS_NAME, className);
+          values.put(OfflineSQLiteOpenHelper.KEY_KEY, key);
+          values.put(OfflineSQLiteOpenHelper.KEY_IS_FULL_TEXT, fullTextKeys.contains(key) ? 1 : 0);
+          db.insertOrThrow(OfflineSQLiteOpenHelper.TABLE_INDEXED_KEYS, null, values);
+        }
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Indexes every object of a class again, such as after rows were copied into the objects table
+   * without going through {@link #extract}.
+   *
+   * This must be run on the database thread.
+   */
+  /* package */ void rebuild(SQLiteDatabase db, String className) {
+    Set<String> keys = getIndexedKeys(className);
+    if (keys.isEmpty()) {
+      return;
+    }
+    db.delete(OfflineSQLiteOpenHelper.TABLE_INDEXES,
+        OfflineSQLiteOpenHelper.KEY_CLASS_NAME + "=?", new String[] { className });
+    build(db, className, keys, getFullTextKeys(className));
+  }
+
+  /**
+   * Indexes the given keys of every object of a class that is already in the database.
+   */
+  private static void build(SQLiteDatabase db, String className, Set<String> keys,
+      Set<String> fullTextKeys) {
+    String sql = "INSERT INTO " + OfflineSQLiteOpenHelper.TABLE_INDEXES + " (" +
+        OfflineSQLiteOpenHelper.KEY_UUID + ", " +
+        OfflineSQLiteOpenHelper.KEY_CLASS_NAME + ", " +
+        OfflineSQLiteOpenHelper.KEY_KEY + ", " +
+        OfflineSQLiteOpenHelper.KEY_TYPE + ", " +
+        OfflineSQLiteOpenHelper.KEY_VALUE + ", " +
+        OfflineSQLiteOpenHelper.KEY_LONGITUDE + ") VALUES (?, ?, ?, ?, ?, ?)";
+    SQLiteStatement statement = db.compileStatement(sql);
+    Cursor cursor = db.query(OfflineSQLiteOpenHelper.TABLE_OBJECTS,
+        new String[] { OfflineSQLiteOpenHelper.KEY_UUID, OfflineSQLiteOpenHelper.KEY_JSON,
+            OfflineSQLiteOpenHelper.KEY_DATA },
+        OfflineSQLiteOpenHelper.KEY_CLASS_NAME + "=? AND ("
+            + OfflineSQLiteOpenHelper.KEY_JSON + " IS NOT NULL OR "
+            + OfflineSQLiteOpenHelper.KEY_DATA + " IS NOT NULL)",
+        new String[] { className }, null, null, null);
+    // Encoded objects only need the indexed keys and the pending operations decoded.
+    List<String> fields = new ArrayList<>(keys);
+    fields.add(ParseObject.KEY_OPERATIONS);
+    try {
+      for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+        String uuid = cursor.getString(0);
+        List<Entry> entries;
+        try {
+          byte[] data = cursor.getBlob(2);
+          JSONObject json = data != null
+              ? OfflineObjectCodec.decode(data).toJSONObject(fields)
+              : new JSONObject(cursor.getString(1));
+          entries = extract(json, keys, fullTextKeys);
+        } catch (JSONException e) {
+          // We can't tell what's in there, so make sure queries still consider it.
+          entries = new ArrayList<>();
+          for (String key : keys) {
+            entries.add(new Entry(key, TYPE_UNKNOWN, null));
+          }
+        }
+        for (Entry entry : entries) {
+          bind(statement, uuid, className, entry);
+          statement.executeInsert();
+        }
+      }
+    } finally {
+      cursor.close();
+      statement.close();
+    }
+  }
+}
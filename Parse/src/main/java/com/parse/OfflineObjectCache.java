@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded set of strong references to the objects {@link OfflineStore} most recently fetched.
+ *
+ * The store only holds on to its objects weakly, so an object that nothing else references is
+ * collected along with the record that it was already fetched, and the next query that touches it
+ * has to read and decode it again. Objects in this cache stay reachable, so fetching them again
+ * never goes to the database. The least recently used objects are dropped once there are more than
+ * {@code maxObjects} of them, or their estimated size exceeds {@code maxBytes}.
+ *
+ * Hits and misses are counted whether or not the cache holds on to anything, so that they can be
+ * used to pick a size.
+ */
+/** package */ class OfflineObjectCache {
+
+  private final int maxObjects;
+  private final long maxBytes;
+
+  // object -> estimated size in bytes, least recently used first
+  private final LinkedHashMap<ParseObject, Long> sizes = new LinkedHashMap<>(16, 0.75f, true);
+  private long bytes = 0;
+
+  private long hitCount = 0;
+  private long missCount = 0;
+  private long evictionCount = 0;
+
+  /**
+   * @param maxObjects
+   *          The most objects to hold on to. If 0, nothing is held on to.
+   * @param maxBytes
+   *          The largest estimated size of the objects held on to, or 0 for no limit.
+   */
+  /* package */ OfflineObjectCache(int maxObjects, long maxBytes) {
+    if (maxObjects < 0 || maxBytes < 0) {
+      throw new IllegalArgumentException("The size of the cache can't be negative.");
+    }
+    this.maxObjects = maxObjects;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Holds on to an object that was just fetched.
+   *
+   * @param size
+   *          The estimated size of the object, such as the size of its stored JSON.
+   */
+  /* package */ synchronized void put(ParseObject object, long size) {
+    if (maxObjects == 0) {
+      return;
+    }
+    Long previous = sizes.put(object, size);
+    bytes += size - (previous != null ? previous : 0);
+    trim();
+  }
+
+  /**
+   * Records that a fetched object was asked for again, and marks it as recently used.
+   */
+  /* package */ synchronized void hit(ParseObject object) {
+    hitCount++;
+    // A read of an access-ordered map moves the entry to the end.
+    sizes.get(object);
+  }
+
+  /**
+   * Records that an object had to be read from the database.
+   */
+  /* package */ synchronized void miss() {
+    missCount++;
+  }
+
+  /* package */ synchronized void remove(ParseObject object) {
+    Long size = sizes.remove(object);
+    if (size != null) {
+      bytes -= size;
+    }
+  }
+
+  /* package */ synchronized void clear() {
+    sizes.clear();
+    bytes = 0;
+  }
+
+  private void trim() {
+    Iterator<Map.Entry<ParseObject, Long>> iterator = sizes.entrySet().iterator();
+    while (iterator.hasNext()
+        && (sizes.size() > maxObjects || (maxBytes > 0 && bytes > maxBytes))) {
+      bytes -= iterator.next().getValue();
+      iterator.remove();
+      evictionCount++;
+    }
+  }
+
+  /* package */ synchronized int size() {
+    return sizes.size();
+  }
+
+  /* package */ synchronized long getSizeInBytes() {
+    return bytes;
+  }
+
+  /* package */ synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  /* package */ synchronized long getMissCount() {
+    return missCount;
+  }
+
+  /* package */ synchronized long getEvictionCount() {
+    return evictionCount;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(
+        "OfflineObjectCache[objects=%d, bytes=%d, hits=%d, misses=%d, evictions=%d]",
+        sizes.size(), bytes, hitCount, missCount, evictionCount);
+  }
+}
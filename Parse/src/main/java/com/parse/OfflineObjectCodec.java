@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compact binary encoding for the JSON that the local datastore stores for each object.
+ *
+ * The encoding starts with the UUIDs of every OfflineObject the object references, so that they
+ * can be looked up without walking the JSON, followed by a dictionary of the top-level fields and
+ * the offsets of their values. Values are only decoded when they're asked for, so reading a handful
+ * of fields doesn't pay for decoding the rest of the object.
+ *
+ * <pre>
+ * byte    version
+ * int     number of references, followed by each UUID as a string
+ * int     number of fields, followed by each name as a string and the offset of its value
+ * byte[]  the values, each a type tag followed by its payload
+ * </pre>
+ *
+ * Strings are an int length followed by UTF-8 bytes, and all numbers are big-endian.
+ */
+/** package */ class OfflineObjectCodec {
+
+  private static final byte VERSION = 1;
+
+  private static final byte TYPE_NULL = 0;
+  private static final byte TYPE_FALSE = 1;
+  private static final byte TYPE_TRUE = 2;
+  private static final byte TYPE_INT = 3;
+  private static final byte TYPE_LONG = 4;
+  private static final byte TYPE_DOUBLE = 5;
+  private static final byte TYPE_STRING = 6;
+  private static final byte TYPE_OBJECT = 7;
+  private static final byte TYPE_ARRAY = 8;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /**
+   * Encodes the JSON of an object.
+   */
+  /* package */ static byte[] encode(JSONObject json) throws JSONException {
+    Set<String> references = new LinkedHashSet<>();
+    Map<String, Integer> offsets = new LinkedHashMap<>();
+    ByteArrayOutputStream valueBytes = new ByteArrayOutputStream();
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try {
+      DataOutputStream values = new DataOutputStream(valueBytes);
+      Iterator<String> keys = json.keys();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        offsets.put(key, values.size());
+        writeValue(values, json.get(key), references);
+      }
+      values.flush();
+
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeByte(VERSION);
+      out.writeInt(references.size());
+      for (String uuid : references) {
+        writeString(out, uuid);
+      }
+      out.writeInt(offsets.size());
+      for (Map.Entry<String, Integer> entry : offsets.entrySet()) {
+        writeString(out, entry.getKey());
+        out.writeInt(entry.getValue());
+      }
+      valueBytes.writeTo(out);
+      out.flush();
+    } catch (IOException e) {
+      // This can't happen when writing to memory.
+      throw new RuntimeException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static void writeValue(DataOutputStream out, Object value, Set<String> references)
+      throws IOException, JSONException {
+    if (value == null || value == JSONObject.NULL) {
+      out.writeByte(TYPE_NULL);
+    } else if (value instanceof Boolean) {
+      out.writeByte((Boolean) value ? TYPE_TRUE : TYPE_FALSE);
+    } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      out.writeByte(TYPE_INT);
+      out.writeInt(((Number) value).intValue());
+    } else if (value instanceof Long) {
+      out.writeByte(TYPE_LONG);
+      out.writeLong((Long) value);
+    } else if (value instanceof Number) {
+      out.writeByte(TYPE_DOUBLE);
+      out.writeDouble(((Number) value).doubleValue());
+    } else if (value instanceof JSONObject) {
+      JSONObject json = (JSONObject) value;
+      if ("OfflineObject".equals(json.optString("__type"))) {
+        references.add(json.optString("uuid"));
+      }
+      out.writeByte(TYPE_OBJECT);
+      out.writeInt(json.length());
+      Iterator<String> keys = json.keys();
+      while (keys.hasNext()) {
+        String key = keys.next();
+        writeString(out, key);
+        writeValue(out, json.get(key), references);
+      }
+    } else if (value instanceof JSONArray) {
+      JSONArray array = (JSONArray) value;
+      out.writeByte(TYPE_ARRAY);
+      out.writeInt(array.length());
+      for (int i = 0; i < array.length(); i++) {
+        writeValue(out, array.get(i), references);
+      }
+    } else {
+      // Anything else would have been written out as a string by JSONObject.toString() as well.
+      out.writeByte(TYPE_STRING);
+      writeString(out, value.toString());
+    }
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  /**
+   * Reads the header of encoded JSON. The values are decoded later, as they're needed.
+   */
+  /* package */ static EncodedObject decode(byte[] data) throws JSONException {
+    return new EncodedObject(data);
+  }
+
+  /**
+   * A read-only view of encoded JSON that decodes each field when it's first asked for.
+   */
+  /* package */ static class EncodedObject {
+    private final ByteBuffer buffer;
+    private final List<String> references;
+    private final Map<String, Integer> offsets;
+    private final int valuesStart;
+
+    private EncodedObject(byte[] data) throws JSONException {
+      buffer = ByteBuffer.wrap(data);
+      try {
+        byte version = buffer.get();
+        if (version != VERSION) {
+          throw new JSONException("Unknown encoding version " + version);
+        }
+        int referenceCount = buffer.getInt();
+        List<String> references = new ArrayList<>(referenceCount);
+        for (int i = 0; i < referenceCount; i++) {
+          references.add(readString(buffer));
+        }
+        this.references = Collections.unmodifiableList(references);
+
+        int fieldCount = buffer.getInt();
+        offsets = new LinkedHashMap<>(fieldCount);
+        for (int i = 0; i < fieldCount; i++) {
+          String key = readString(buffer);
+          offsets.put(key, buffer.getInt());
+        }
+        valuesStart = buffer.position();
+      } catch (BufferUnderflowException | IllegalArgumentException e) {
+        throw new JSONException("Truncated object data");
+      }
+    }
+
+    /**
+     * @return the UUIDs of every OfflineObject the JSON references, at any depth.
+     */
+    /* package */ List<String> getReferencedUUIDs() {
+      return references;
+    }
+
+    /* package */ boolean has(String key) {
+      return offsets.containsKey(key);
+    }
+
+    /**
+     * Decodes a single top-level field, the same way {@link JSONObject#opt(String)} would return
+     * it.
+     */
+    /* package */ Object opt(String key) throws JSONException {
+      Integer offset = offsets.get(key);
+      if (offset == null) {
+        return null;
+      }
+      // Slices share the data, but have a position of their own.
+      ByteBuffer value = buffer.duplicate();
+      try {
+        value.position(valuesStart + offset);
+        return readValue(value);
+      } catch (BufferUnderflowException | IllegalArgumentException e) {
+        throw new JSONException("Truncated object data");
+      }
+    }
+
+    /**
+     * Decodes the given top-level fields into a JSONObject, leaving out the rest.
+     */
+    /* package */ JSONObject toJSONObject(Collection<String> keys) throws JSONException {
+      JSONObject json = new JSONObject();
+      for (String key : keys) {
+        Object value = opt(key);
+        if (value != null) {
+          json.put(key, value);
+        }
+      }
+      return json;
+    }
+
+    /**
+     * Decodes every field into a JSONObject.
+     */
+    /* package */ JSONObject toJSONObject() throws JSONException {
+      return toJSONObject(offsets.keySet());
+    }
+  }
+
+  private static Object readValue(ByteBuffer buffer) throws JSONException {
+    byte type = buffer.get();
+    switch (type) {
+      case TYPE_NULL:
+        return JSONObject.NULL;
+      case TYPE_FALSE:
+        return false;
+      case TYPE_TRUE:
+        return true;
+      case TYPE_INT:
+        return buffer.getInt();
+      case TYPE_LONG:
+        return buffer.getLong();
+      case TYPE_DOUBLE:
+        return buffer.getDouble();
+      case TYPE_STRING:
+        return readString(buffer);
+      case TYPE_OBJECT: {
+        int count = buffer.getInt();
+        JSONObject json = new JSONObject();
+        for (int i = 0; i < count; i++) {
+          String key = readString(buffer);
+          json.put(key, readValue(buffer));
+        }
+        return json;
+      }
+      case TYPE_ARRAY: {
+        int count = buffer.getInt();
+        JSONArray array = new JSONArray();
+        for (int i = 0; i < count; i++) {
+          array.put(readValue(buffer));
+        }
+        return array;
+      }
+      default:
+        throw new JSONException("Unknown value type " + type);
+    }
+  }
+
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    String value = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+        UTF_8);
+    buffer.position(buffer.position() + length);
+    return value;
+  }
+}
@@ -17,15 +17,18 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import bolts.Continuation;
@@ -49,6 +52,31 @@ import bolts.Task;
     /* package */ abstract Task<Boolean> matchesAsync(T object, ParseSQLiteDatabase db);
   }
 
+  private static final Task<Boolean> TASK_TRUE = Task.forResult(true);
+  private static final Task<Boolean> TASK_FALSE = Task.forResult(false);
+
+  /**
+   * A ConstraintMatcher that never has to wait on anything, so that it can be run synchronously
+   * when matching lots of objects.
+   */
+  private abstract class StatelessMatcher<T extends ParseObject> extends ConstraintMatcher<T> {
+
+    public StatelessMatcher(ParseUser user) {
+      super(user);
+    }
+
+    /* package */ abstract boolean matches(T object) throws ParseException;
+
+    @Override
+    /* package */ Task<Boolean> matchesAsync(T object, ParseSQLiteDatabase db) {
+      try {
+        return matches(object) ? TASK_TRUE : TASK_FALSE;
+      } catch (ParseException e) {
+        return Task.forError(e);
+      }
+    }
+  }
+
   private final OfflineStore store;
 
   /* package */ OfflineQueryLogic(OfflineStore store) {
@@ -59,7 +87,7 @@ import bolts.Task;
    * Returns an Object's value for a given key, handling any special keys like objectId. Also
    * handles dot-notation for traversing into objects.
    */
-  private static Object getValue(Object container, String key) throws ParseException {
+  /* package */ static Object getValue(Object container, String key) throws ParseException {
     return getValue(container, key, 0);
   }
 
@@ -231,80 +259,59 @@ import bolts.Task;
           && lhs.getLongitude() == rhs.getLongitude();
     }
 
-    return compare(constraint, value, new Decider() {
-      @Override
-      public boolean decide(Object constraint, Object value) {
-        return constraint.equals(value);
-      }
-    });
+    return compare(constraint, value, EQUAL_TO);
   }
 
-  /**
-   * Matches $ne constraints.
-   */
-  private static boolean matchesNotEqualConstraint(Object constraint, Object value) {
-    return !matchesEqualConstraint(constraint, value);
-  }
+  private static final Decider EQUAL_TO = new Decider() {
+    @Override
+    public boolean decide(Object constraint, Object value) {
+      return constraint.equals(value);
+    }
+  };
 
   /**
-   * Matches $lt constraints.
+   * Decides whether values are less than, less than or equal to, greater than, or greater than or
+   * equal to a constraint.
    */
-  private static boolean matchesLessThanConstraint(Object constraint, Object value) {
-    return compare(constraint, value, new Decider() {
-      @Override
-      public boolean decide(Object constraint, Object value) {
-        if (value == null || value == JSONObject.NULL) {
-          return false;
-        }
-        return compareTo(constraint, value) > 0;
+  private static final Decider LESS_THAN = new Decider() {
+    @Override
+    public boolean decide(Object constraint, Object value) {
+      if (value == null || value == JSONObject.NULL) {
+        return false;
       }
-    });
-  }
+      return compareTo(constraint, value) > 0;
+    }
+  };
 
-  /**
-   * Matches $lte constraints.
-   */
-  private static boolean matchesLessThanOrEqualToConstraint(Object constraint, Object value) {
-    return compare(constraint, value, new Decider() {
-      @Override
-      public boolean decide(Object constraint, Object value) {
-        if (value == null || value == JSONObject.NULL) {
-          return false;
-        }
-        return compareTo(constraint, value) >= 0;
+  private static final Decider LESS_THAN_OR_EQUAL_TO = new Decider() {
+    @Override
+    public boolean decide(Object constraint, Object value) {
+      if (value == null || value == JSONObject.NULL) {
+        return false;
       }
-    });
-  }
+      return compareTo(constraint, value) >= 0;
+    }
+  };
 
-  /**
-   * Matches $gt constraints.
-   */
-  private static boolean matchesGreaterThanConstraint(Object constraint, Object value) {
-    return compare(constraint, value, new Decider() {
-      @Override
-      public boolean decide(Object constraint, Object value) {
-        if (value == null || value == JSONObject.NULL) {
-          return false;
-        }
-        return compareTo(constraint, value) < 0;
+  private static final Decider GREATER_THAN = new Decider() {
+    @Override
+    public boolean decide(Object constraint, Object value) {
+      if (value == null || value == JSONObject.NULL) {
+        return false;
       }
-    });
-  }
+      return compareTo(constraint, value) < 0;
+    }
+  };
 
-  /**
-   * Matches $gte constraints.
-   */
-  private static boolean matchesGreaterThanOrEqualToConstraint(Object constraint, Object value) {
-    return compare(constraint, value, new Decider() {
-      @Override
-      public boolean decide(Object constraint, Object value) {
-        if (value == null || value == JSONObject.NULL) {
-          return false;
-        }
-        return compareTo(constraint, value) <= 0;
+  private static final Decider GREATER_THAN_OR_EQUAL_TO = new Decider() {
+    @Override
+    public boolean decide(Object constraint, Object value) {
+      if (value == null || value == JSONObject.NULL) {
+        return false;
       }
-    });
-  }
+      return compareTo(constraint, value) <= 0;
+    }
+  };
 
   /**
    * Matches $in constraints.
@@ -322,13 +329,6 @@ import bolts.Task;
     throw new IllegalArgumentException("Constraint type not supported for $in queries.");
   }
 
-  /**
-   * Matches $nin constraints.
-   */
-  private static boolean matchesNotInConstraint(Object constraint, Object value) {
-    return !matchesInConstraint(constraint, value);
-  }
-
   /**
    * Matches $all constraints.
    */
@@ -352,44 +352,6 @@ import bolts.Task;
     throw new IllegalArgumentException("Constraint type not supported for $all queries.");
   }
 
-  /**
-   * Matches $regex constraints.
-   */
-  private static boolean matchesRegexConstraint(Object constraint, Object value, String options)
-      throws ParseException {
-    if (value == null || value == JSONObject.NULL) {
-      return false;
-    }
-
-    if (options == null) {
-      options = "";
-    }
-
-    if (!options.matches("^[imxs]*$")) {
-      throw new ParseException(ParseException.INVALID_QUERY, String.format(
-          "Invalid regex options: %s", options));
-    }
-
-    int flags = 0;
-    if (options.contains("i")) {
-      flags = flags | Pattern.CASE_INSENSITIVE;
-    }
-    if (options.contains("m")) {
-      flags = flags | Pattern.MULTILINE;
-    }
-    if (options.contains("x")) {
-      flags = flags | Pattern.COMMENTS;
-    }
-    if (options.contains("s")) {
-      flags = flags | Pattern.DOTALL;
-    }
-
-    String regex = (String) constraint;
-    Pattern pattern = Pattern.compile(regex, flags);
-    Matcher matcher = pattern.matcher((String) value);
-    return matcher.find();
-  }
-
   /**
    * Matches $exists constraints.
    */
@@ -405,203 +367,247 @@ import bolts.Task;
   }
 
   /**
-   * Matches $nearSphere constraints.
+   * A constraint on a single value that has been compiled ahead of time, so that matching it
+   * doesn't need to look at the constraint again for every object.
    */
-  private static boolean matchesNearSphereConstraint(Object constraint, Object value,
-      Double maxDistance) {
-    if (value == null || value == JSONObject.NULL) {
-      return false;
-    }
-    if (maxDistance == null) {
-      return true;
-    }
-    ParseGeoPoint point1 = (ParseGeoPoint) constraint;
-    ParseGeoPoint point2 = (ParseGeoPoint) value;
-    return point1.distanceInRadiansTo(point2) <= maxDistance;
+  private interface ValueMatcher {
+    boolean matches(Object value) throws ParseException;
   }
 
   /**
-   * Matches $within constraints.
+   * Matches everything, for operators such as $options that only modify another operator.
    */
-  private static boolean matchesWithinConstraint(Object constraint, Object value)
-      throws ParseException {
-    if (value == null || value == JSONObject.NULL) {
-      return false;
+  private static final ValueMatcher MATCHES_ANYTHING = new ValueMatcher() {
+    @Override
+    public boolean matches(Object value) {
+      return true;
     }
+  };
 
-    @SuppressWarnings("unchecked")
-    HashMap<String, ArrayList<ParseGeoPoint>> constraintMap =
-        (HashMap<String, ArrayList<ParseGeoPoint>>) constraint;
-    ArrayList<ParseGeoPoint> box = constraintMap.get("$box");
-    ParseGeoPoint southwest = box.get(0);
-    ParseGeoPoint northeast = box.get(1);
-    ParseGeoPoint target = (ParseGeoPoint) value;
+  /**
+   * The maximum number of compiled constraints to keep around for queries that are run again.
+   */
+  private static final int MAX_COMPILED_CONSTRAINTS = 64;
 
-    if (northeast.getLongitude() < southwest.getLongitude()) {
-      throw new ParseException(ParseException.INVALID_QUERY,
-          "whereWithinGeoBox queries cannot cross the International Date Line.");
+  /**
+   * The most recently used compiled constraints, keyed by everything they were compiled from. This
+   * is what lets repeated queries skip compiling their regular expressions and sets again.
+   */
+  private static final Map<List<Object>, ValueMatcher> compiledConstraints =
+      new LinkedHashMap<List<Object>, ValueMatcher>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<List<Object>, ValueMatcher> eldest) {
+          return size() > MAX_COMPILED_CONSTRAINTS;
+        }
+      };
+
+  /**
+   * Returns a compiled version of a stateless constraint, reusing a previous compilation of the same
+   * constraint if there is one. Invalid constraints compile fine, and fail when they're matched.
+   */
+  private static ValueMatcher compileConstraint(String operator, Object constraint,
+      KeyConstraints allKeyConstraints) {
+    Object options = "$regex".equals(operator) ? allKeyConstraints.get("$options") : null;
+    Object maxDistance =
+        "$nearSphere".equals(operator) ? allKeyConstraints.get("$maxDistance") : null;
+    // Copy collections, so that changing one later can't change what it was compiled from.
+    Object constraintKey = constraint instanceof Collection
+        ? new ArrayList<>((Collection<?>) constraint)
+        : constraint;
+    if (!hasValueEquality(constraintKey)) {
+      // It would never be found again, so caching it would only keep it from being collected.
+      return createValueMatcher(operator, constraintKey, options, maxDistance);
     }
-    if (northeast.getLatitude() < southwest.getLatitude()) {
-      throw new ParseException(ParseException.INVALID_QUERY,
-          "The southwest corner of a geo box must be south of the northeast corner.");
+    List<Object> cacheKey = Arrays.asList(operator, constraintKey, options, maxDistance);
+
+    ValueMatcher matcher;
+    synchronized (compiledConstraints) {
+      matcher = compiledConstraints.get(cacheKey);
     }
-    if (northeast.getLongitude() - southwest.getLongitude() > 180) {
-      throw new ParseException(ParseException.INVALID_QUERY,
-          "Geo box queries larger than 180 degrees in longitude are not supported. "
-              + "Please check point order.");
+    if (matcher == null) {
+      matcher = createValueMatcher(operator, constraintKey, options, maxDistance);
+      synchronized (compiledConstraints) {
+        compiledConstraints.put(cacheKey, matcher);
+      }
     }
-
-    return (target.getLatitude() >= southwest.getLatitude()
-        && target.getLatitude() <= northeast.getLatitude()
-        && target.getLongitude() >= southwest.getLongitude()
-        && target.getLongitude() <= northeast.getLongitude());
+    return matcher;
   }
 
   /**
-   * Returns true iff the given value matches the given operator and constraint.
-   *
-   * @throws UnsupportedOperationException
-   *           if the operator is not one this function can handle.
+   * Returns whether an equal constraint compares equal to this one, which isn't the case for
+   * values such as {@link ParseObject}s and {@link ParseGeoPoint}s that are only equal to
+   * themselves, or for values such as {@link Date}s that can change while they're cached.
    */
-  private static boolean matchesStatelessConstraint(String operator, Object constraint,
-      Object value, KeyConstraints allKeyConstraints) throws ParseException {
+  private static boolean hasValueEquality(Object constraint) {
+    if (constraint == null || constraint instanceof String || constraint instanceof Number
+        || constraint instanceof Boolean) {
+      return true;
+    }
+    if (constraint instanceof Collection) {
+      for (Object item : (Collection<?>) constraint) {
+        if (!hasValueEquality(item)) {
+          return false;
+        }
+      }
+      return true;
+    }
+    return false;
+  }
+
+  /* package for tests */ static int getCompiledConstraintCount() {
+    synchronized (compiledConstraints) {
+      return compiledConstraints.size();
+    }
+  }
+
+  /* package for tests */ static void clearCompiledConstraints() {
+    synchronized (compiledConstraints) {
+      compiledConstraints.clear();
+    }
+  }
+
+  private static ValueMatcher createValueMatcher(final String operator, final Object constraint,
+      Object options, Object maxDistance) {
     switch (operator) {
       case "$ne":
-        return matchesNotEqualConstraint(constraint, value);
+        return new ValueMatcher() {
+          @Override
+          public boolean matches(Object value) {
+            return !matchesEqualConstraint(constraint, value);
+          }
+        };
 
       case "$lt":
-        return matchesLessThanConstraint(constraint, value);
+        return createComparisonMatcher(constraint, LESS_THAN);
 
       case "$lte":
-        return matchesLessThanOrEqualToConstraint(constraint, value);
+        return createComparisonMatcher(constraint, LESS_THAN_OR_EQUAL_TO);
 
       case "$gt":
-        return matchesGreaterThanConstraint(constraint, value);
+        return createComparisonMatcher(constraint, GREATER_THAN);
 
       case "$gte":
-        return matchesGreaterThanOrEqualToConstraint(constraint, value);
+        return createComparisonMatcher(constraint, GREATER_THAN_OR_EQUAL_TO);
 
       case "$in":
-        return matchesInConstraint(constraint, value);
+        return createInMatcher(constraint);
 
       case "$nin":
-        return matchesNotInConstraint(constraint, value);
+        final ValueMatcher inMatcher = createInMatcher(constraint);
+        return new ValueMatcher() {
+          @Override
+          public boolean matches(Object value) throws ParseException {
+            return !inMatcher.matches(value);
+          }
+        };
 
       case "$all":
-        return matchesAllConstraint(constraint, value);
+        return new ValueMatcher() {
+          @Override
+          public boolean matches(Object value) {
+            return matchesAllConstraint(constraint, value);
+          }
+        };
 
       case "$regex":
-        String regexOptions = (String) allKeyConstraints.get("$options");
-        return matchesRegexConstraint(constraint, value, regexOptions);
+        return createRegexMatcher(constraint, (String) options);
 
-      case "$options":
-        // No need to do anything. This is handled by $regex.
-        return true;
+      case "$text":
+        return createFullTextMatcher(constraint);
 
       case "$exists":
-        return matchesExistsConstraint(constraint, value);
+        return new ValueMatcher() {
+          @Override
+          public boolean matches(Object value) {
+            return matchesExistsConstraint(constraint, value);
+          }
+        };
 
       case "$nearSphere":
-        Double maxDistance = (Double) allKeyConstraints.get("$maxDistance");
-        return matchesNearSphereConstraint(constraint, value, maxDistance);
-
-      case "$maxDistance":
-        // No need to do anything. This is handled by $nearSphere.
-        return true;
+        return createNearSphereMatcher(constraint, (Double) maxDistance);
 
       case "$within":
-        return matchesWithinConstraint(constraint, value);
-
-      default:
-        throw new UnsupportedOperationException(String.format(
-            "The offline store does not yet support the %s operator.", operator));
-    }
-  }
-
-  private abstract class SubQueryMatcher<T extends ParseObject> extends ConstraintMatcher<T> {
-    private final ParseQuery.State<T> subQuery;
-    private Task<List<T>> subQueryResults = null;
+        return createWithinMatcher(constraint);
 
-    public SubQueryMatcher(ParseUser user, ParseQuery.State<T> subQuery) {
-      super(user);
-      this.subQuery = subQuery;
-    }
+      case "$options":
+      case "$maxDistance":
+        // No need to do anything. These are handled by $regex and $nearSphere.
+        return MATCHES_ANYTHING;
 
-    @Override
-    public Task<Boolean> matchesAsync(final T object, ParseSQLiteDatabase db) {
-      /*
-       * As an optimization, we do this lazily. Then we may not have to do it at all, if this part
-       * of the query gets short-circuited.
-       */
-      if (subQueryResults == null) {
-        //TODO (grantland): We need to pass through the original pin we were limiting the parent
-        // query on.
-        subQueryResults = store.findAsync(subQuery, user, null, db);
-      }
-      return subQueryResults.onSuccess(new Continuation<List<T>, Boolean>() {
-        @Override
-        public Boolean then(Task<List<T>> task) throws ParseException {
-          return matches(object, task.getResult());
-        }
-      });
+      default:
+        return new ValueMatcher() {
+          @Override
+          public boolean matches(Object value) {
+            throw new UnsupportedOperationException(String.format(
+                "The offline store does not yet support the %s operator.", operator));
+          }
+        };
     }
-
-    protected abstract boolean matches(T object, List<T> results) throws ParseException;
   }
 
   /**
-   * Creates a matcher that handles $inQuery constraints.
+   * Matches $lt, $lte, $gt and $gte constraints.
    */
-  private <T extends ParseObject> ConstraintMatcher<T> createInQueryMatcher(ParseUser user,
-      Object constraint, final String key) {
-    // TODO(grantland): Convert builder to state t6941155
-    @SuppressWarnings("unchecked")
-    ParseQuery.State<T> query = ((ParseQuery.State.Builder<T>) constraint).build();
-    return new SubQueryMatcher<T>(user, query) {
+  private static ValueMatcher createComparisonMatcher(final Object constraint,
+      final Decider decider) {
+    return new ValueMatcher() {
       @Override
-      protected boolean matches(T object, List<T> results) throws ParseException {
-        Object value = getValue(object, key);
-        return matchesInConstraint(results, value);
+      public boolean matches(Object value) {
+        return compare(constraint, value, decider);
       }
     };
   }
 
   /**
-   * Creates a matcher that handles $notInQuery constraints.
+   * Matches $in constraints. String items, which are by far the most common, are looked up in a
+   * set, and everything else is compared one at a time.
    */
-  private <T extends ParseObject> ConstraintMatcher<T> createNotInQueryMatcher(ParseUser user,
-      Object constraint, final String key) {
-    final ConstraintMatcher<T> inQueryMatcher = createInQueryMatcher(user, constraint, key);
-    return new ConstraintMatcher<T>(user) {
-      @Override
-      public Task<Boolean> matchesAsync(T object, ParseSQLiteDatabase db) {
-        return inQueryMatcher.matchesAsync(object, db).onSuccess(new Continuation<Boolean, Boolean>() {
-          @Override
-          public Boolean then(Task<Boolean> task) throws Exception {
-            return !task.getResult();
-          }
-        });
+  private static ValueMatcher createInMatcher(final Object constraint) {
+    if (!(constraint instanceof Collection)) {
+      return new ValueMatcher() {
+        @Override
+        public boolean matches(Object value) {
+          throw new IllegalArgumentException("Constraint type not supported for $in queries.");
+        }
+      };
+    }
+
+    final Set<String> strings = new HashSet<>();
+    final List<Object> others = new ArrayList<>();
+    for (Object item : (Collection<?>) constraint) {
+      if (item instanceof String) {
+        strings.add((String) item);
+      } else {
+        others.add(item);
       }
-    };
-  }
+    }
 
-  /**
-   * Creates a matcher that handles $select constraints.
-   */
-  private <T extends ParseObject> ConstraintMatcher<T> createSelectMatcher(ParseUser user,
-      Object constraint, final String key) {
-    Map<?, ?> constraintMap = (Map<?, ?>) constraint;
-    // TODO(grantland): Convert builder to state t6941155
-    @SuppressWarnings("unchecked")
-    ParseQuery.State<T> query = ((ParseQuery.State.Builder<T>) constraintMap.get("query")).build();
-    final String resultKey = (String) constraintMap.get("key");
-    return new SubQueryMatcher<T>(user, query) {
+    return new ValueMatcher() {
       @Override
-      protected boolean matches(T object, List<T> results) throws ParseException {
-        Object value = getValue(object, key);
-        for (T result : results) {
-          Object resultValue = getValue(result, resultKey);
-          if (matchesEqualConstraint(value, resultValue)) {
+      public boolean matches(Object value) {
+        if (!strings.isEmpty()) {
+          // Just like matchesEqualConstraint, arrays match if any of their items do.
+          if (value instanceof String) {
+            if (strings.contains(value)) {
+              return true;
+            }
+          } else if (value instanceof List) {
+            for (Object item : (List<?>) value) {
+              if (strings.contains(item)) {
+                return true;
+              }
+            }
+          } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            for (int i = 0; i < array.length(); i++) {
+              if (strings.contains(array.opt(i))) {
+                return true;
+              }
+            }
+          }
+        }
+        for (Object item : others) {
+          if (matchesEqualConstraint(item, value)) {
             return true;
           }
         }
@@ -611,20 +617,399 @@ import bolts.Task;
   }
 
   /**
-   * Creates a matcher that handles $dontSelect constraints.
+   * Matches $regex constraints. The pattern is compiled once, up front.
    */
-  private <T extends ParseObject> ConstraintMatcher<T> createDontSelectMatcher(ParseUser user,
-      Object constraint, final String key) {
-    final ConstraintMatcher<T> selectMatcher = createSelectMatcher(user, constraint, key);
-    return new ConstraintMatcher<T>(user) {
-      @Override
-      public Task<Boolean> matchesAsync(T object, ParseSQLiteDatabase db) {
-        return selectMatcher.matchesAsync(object, db).onSuccess(new Continuation<Boolean, Boolean>() {
-          @Override
-          public Boolean then(Task<Boolean> task) throws Exception {
-            return !task.getResult();
+  private static ValueMatcher createRegexMatcher(Object constraint, String options) {
+    final Pattern pattern;
+    try {
+      pattern = compileRegex((String) constraint, options);
+    } catch (final ParseException | RuntimeException e) {
+      return new ValueMatcher() {
+        @Override
+        public boolean matches(Object value) throws ParseException {
+          if (value == null || value == JSONObject.NULL) {
+            return false;
           }
-        });
+          if (e instanceof ParseException) {
+            throw (ParseException) e;
+          }
+          throw (RuntimeException) e;
+        }
+      };
+    }
+
+    return new ValueMatcher() {
+      @Override
+      public boolean matches(Object value) {
+        if (value == null || value == JSONObject.NULL) {
+          return false;
+        }
+        return pattern.matcher((String) value).find();
+      }
+    };
+  }
+
+  private static Pattern compileRegex(String regex, String options) throws ParseException {
+    if (options == null) {
+      options = "";
+    }
+
+    if (!options.matches("^[imxs]*$")) {
+      throw new ParseException(ParseException.INVALID_QUERY, String.format(
+          "Invalid regex options: %s", options));
+    }
+
+    int flags = 0;
+    if (options.contains("i")) {
+      flags = flags | Pattern.CASE_INSENSITIVE;
+    }
+    if (options.contains("m")) {
+      flags = flags | Pattern.MULTILINE;
+    }
+    if (options.contains("x")) {
+      flags = flags | Pattern.COMMENTS;
+    }
+    if (options.contains("s")) {
+      flags = flags | Pattern.DOTALL;
+    }
+
+    return Pattern.compile(regex, flags);
+  }
+
+  /**
+   * Returns the text to search for out of a $text constraint, or {@code null} if it doesn't have
+   * any.
+   *
+   * @see ParseQuery.State.Builder#whereFullText(String, String)
+   */
+  private static String getFullTextTerm(Object constraint) {
+    if (!(constraint instanceof Map)) {
+      return null;
+    }
+    Object search = ((Map<?, ?>) constraint).get("$search");
+    if (!(search instanceof Map)) {
+      return null;
+    }
+    Object term = ((Map<?, ?>) search).get("$term");
+    return term instanceof String ? (String) term : null;
+  }
+
+  /**
+   * Matches $text constraints. A string matches if it contains every word of the text, split into
+   * words the same way the full-text index does so that the two always agree.
+   */
+  private static ValueMatcher createFullTextMatcher(Object constraint) {
+    String term = getFullTextTerm(constraint);
+    if (term == null) {
+      return new ValueMatcher() {
+        @Override
+        public boolean matches(Object value) throws ParseException {
+          throw new ParseException(ParseException.INVALID_QUERY,
+              "$text must have a $search with a $term.");
+        }
+      };
+    }
+
+    final List<String> tokens = OfflineIndexes.tokenize(term);
+    return new ValueMatcher() {
+      @Override
+      public boolean matches(Object value) {
+        if (!(value instanceof String) || tokens.isEmpty()) {
+          return false;
+        }
+        return new HashSet<>(OfflineIndexes.tokenize((String) value)).containsAll(tokens);
+      }
+    };
+  }
+
+  /**
+   * Matches $nearSphere constraints.
+   */
+  private static ValueMatcher createNearSphereMatcher(Object constraint,
+      final Double maxDistance) {
+    final ParseGeoPoint point = (ParseGeoPoint) constraint;
+    return new ValueMatcher() {
+      @Override
+      public boolean matches(Object value) {
+        if (value == null || value == JSONObject.NULL) {
+          return false;
+        }
+        if (maxDistance == null) {
+          return true;
+        }
+        return point.distanceInRadiansTo((ParseGeoPoint) value) <= maxDistance;
+      }
+    };
+  }
+
+  /**
+   * Matches $within constraints. The box is checked once, up front.
+   */
+  private static ValueMatcher createWithinMatcher(Object constraint) {
+    @SuppressWarnings("unchecked")
+    HashMap<String, ArrayList<ParseGeoPoint>> constraintMap =
+        (HashMap<String, ArrayList<ParseGeoPoint>>) constraint;
+    ArrayList<ParseGeoPoint> box = constraintMap.get("$box");
+    final ParseGeoPoint southwest = box.get(0);
+    final ParseGeoPoint northeast = box.get(1);
+
+    String error = null;
+    if (northeast.getLongitude() < southwest.getLongitude()) {
+      error = "whereWithinGeoBox queries cannot cross the International Date Line.";
+    } else if (northeast.getLatitude() < southwest.getLatitude()) {
+      error = "The southwest corner of a geo box must be south of the northeast corner.";
+    } else if (northeast.getLongitude() - southwest.getLongitude() > 180) {
+      error = "Geo box queries larger than 180 degrees in longitude are not supported. "
+          + "Please check point order.";
+    }
+    final String finalError = error;
+
+    return new ValueMatcher() {
+      @Override
+      public boolean matches(Object value) throws ParseException {
+        if (value == null || value == JSONObject.NULL) {
+          return false;
+        }
+        if (finalError != null) {
+          throw new ParseException(ParseException.INVALID_QUERY, finalError);
+        }
+
+        ParseGeoPoint target = (ParseGeoPoint) value;
+        return (target.getLatitude() >= southwest.getLatitude()
+            && target.getLatitude() <= northeast.getLatitude()
+            && target.getLongitude() >= southwest.getLongitude()
+            && target.getLongitude() <= northeast.getLongitude());
+      }
+    };
+  }
+
+  /**
+   * Runs a subquery the first time it's needed and matches objects against its results. The
+   * results are handed to {@link #index(List)} once, so that each object can then be matched with
+   * a hash lookup instead of a scan over all of the results.
+   */
+  private abstract class SubQueryMatcher<T extends ParseObject> extends ConstraintMatcher<T> {
+    private final ParseQuery.State<T> subQuery;
+    private Task<Void> subQueryResults = null;
+
+    public SubQueryMatcher(ParseUser user, ParseQuery.State<T> subQuery) {
+      super(user);
+      this.subQuery = subQuery;
+    }
+
+    @Override
+    public Task<Boolean> matchesAsync(final T object, ParseSQLiteDatabase db) {
+      /*
+       * As an optimization, we do this lazily. Then we may not have to do it at all, if this part
+       * of the query gets short-circuited.
+       */
+      if (subQueryResults == null) {
+        //TODO (grantland): We need to pass through the original pin we were limiting the parent
+        // query on.
+        subQueryResults = store.findAsync(subQuery, user, null, db).onSuccess(
+            new Continuation<List<T>, Void>() {
+          @Override
+          public Void then(Task<List<T>> task) throws ParseException {
+            index(task.getResult());
+            return null;
+          }
+        });
+      }
+      if (subQueryResults.isCompleted() && !subQueryResults.isFaulted()
+          && !subQueryResults.isCancelled()) {
+        // Most objects are matched after the subquery has finished, so don't go through a task.
+        try {
+          return matches(object) ? TASK_TRUE : TASK_FALSE;
+        } catch (ParseException e) {
+          return Task.forError(e);
+        }
+      }
+      return subQueryResults.onSuccess(new Continuation<Void, Boolean>() {
+        @Override
+        public Boolean then(Task<Void> task) throws ParseException {
+          return matches(object);
+        }
+      });
+    }
+
+    /**
+     * Called exactly once with the results of the subquery, before any call to
+     * {@link #matches(ParseObject)}.
+     */
+    protected abstract void index(List<T> results) throws ParseException;
+
+    protected abstract boolean matches(T object) throws ParseException;
+  }
+
+  /**
+   * Creates a matcher that handles $inQuery constraints.
+   */
+  private <T extends ParseObject> ConstraintMatcher<T> createInQueryMatcher(ParseUser user,
+      Object constraint, final String key) {
+    // TODO(grantland): Convert builder to state t6941155
+    @SuppressWarnings("unchecked")
+    ParseQuery.State<T> query = ((ParseQuery.State.Builder<T>) constraint).build();
+    return new SubQueryMatcher<T>(user, query) {
+      // ParseObjects compare by identity, which is exactly what the hash set does.
+      private Set<ParseObject> results;
+
+      @Override
+      protected void index(List<T> results) {
+        this.results = new HashSet<ParseObject>(results);
+      }
+
+      @Override
+      protected boolean matches(T object) throws ParseException {
+        Object value = getValue(object, key);
+        if (value instanceof List) {
+          for (Object item : (List<?>) value) {
+            if (results.contains(item)) {
+              return true;
+            }
+          }
+          return false;
+        } else if (value instanceof JSONArray) {
+          JSONArray array = (JSONArray) value;
+          for (int i = 0; i < array.length(); i++) {
+            if (results.contains(array.opt(i))) {
+              return true;
+            }
+          }
+          return false;
+        }
+        return value != null && results.contains(value);
+      }
+    };
+  }
+
+  /**
+   * Creates a matcher that handles $notInQuery constraints.
+   */
+  private <T extends ParseObject> ConstraintMatcher<T> createNotInQueryMatcher(ParseUser user,
+      Object constraint, final String key) {
+    final ConstraintMatcher<T> inQueryMatcher = createInQueryMatcher(user, constraint, key);
+    return new ConstraintMatcher<T>(user) {
+      @Override
+      public Task<Boolean> matchesAsync(T object, ParseSQLiteDatabase db) {
+        return inQueryMatcher.matchesAsync(object, db).onSuccess(new Continuation<Boolean, Boolean>() {
+          @Override
+          public Boolean then(Task<Boolean> task) throws Exception {
+            return !task.getResult();
+          }
+        });
+      }
+    };
+  }
+
+  /**
+   * The values of a key across the results of a $select subquery, arranged so that an object's
+   * value can be looked up the same way {@link #matchesEqualConstraint(Object, Object)} would
+   * compare it against each of them.
+   */
+  private static class SelectedValues {
+    /*
+     * Values that are compared with equals(), including the items of array values since an equal
+     * item is enough to match.
+     */
+    private final Set<Object> values = new HashSet<>();
+    // Numbers and ParseGeoPoints aren't compared with equals(), so they have to be scanned.
+    private final List<Object> numbers = new ArrayList<>();
+    private final List<Object> geoPoints = new ArrayList<>();
+    private boolean hasNull = false;
+
+    public void add(Object value) {
+      if (value == null) {
+        hasNull = true;
+      } else if (value instanceof Number) {
+        numbers.add(value);
+      } else if (value instanceof ParseGeoPoint) {
+        geoPoints.add(value);
+      } else if (value instanceof List) {
+        for (Object item : (List<?>) value) {
+          addItem(item);
+        }
+      } else if (value instanceof JSONArray) {
+        JSONArray array = (JSONArray) value;
+        for (int i = 0; i < array.length(); i++) {
+          addItem(array.opt(i));
+        }
+      } else {
+        values.add(value);
+      }
+    }
+
+    private void addItem(Object item) {
+      if (item != null) {
+        values.add(item);
+      }
+    }
+
+    public boolean contains(Object value) {
+      if (value == null) {
+        return hasNull;
+      }
+      if (values.contains(value)) {
+        return true;
+      }
+      if (value instanceof Number) {
+        for (Object number : numbers) {
+          if (matchesEqualConstraint(value, number)) {
+            return true;
+          }
+        }
+      } else if (value instanceof ParseGeoPoint) {
+        for (Object geoPoint : geoPoints) {
+          if (matchesEqualConstraint(value, geoPoint)) {
+            return true;
+          }
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Creates a matcher that handles $select constraints.
+   */
+  private <T extends ParseObject> ConstraintMatcher<T> createSelectMatcher(ParseUser user,
+      Object constraint, final String key) {
+    Map<?, ?> constraintMap = (Map<?, ?>) constraint;
+    // TODO(grantland): Convert builder to state t6941155
+    @SuppressWarnings("unchecked")
+    ParseQuery.State<T> query = ((ParseQuery.State.Builder<T>) constraintMap.get("query")).build();
+    final String resultKey = (String) constraintMap.get("key");
+    return new SubQueryMatcher<T>(user, query) {
+      private final SelectedValues selectedValues = new SelectedValues();
+
+      @Override
+      protected void index(List<T> results) throws ParseException {
+        for (T result : results) {
+          selectedValues.add(getValue(result, resultKey));
+        }
+      }
+
+      @Override
+      protected boolean matches(T object) throws ParseException {
+        return selectedValues.contains(getValue(object, key));
+      }
+    };
+  }
+
+  /**
+   * Creates a matcher that handles $dontSelect constraints.
+   */
+  private <T extends ParseObject> ConstraintMatcher<T> createDontSelectMatcher(ParseUser user,
+      Object constraint, final String key) {
+    final ConstraintMatcher<T> selectMatcher = createSelectMatcher(user, constraint, key);
+    return new ConstraintMatcher<T>(user) {
+      @Override
+      public Task<Boolean> matchesAsync(T object, ParseSQLiteDatabase db) {
+        return selectMatcher.matchesAsync(object, db).onSuccess(new Continuation<Boolean, Boolean>() {
+          @Override
+          public Boolean then(Task<Boolean> task) throws Exception {
+            return !task.getResult();
+          }
+        });
       }
     };
   }
@@ -650,213 +1035,843 @@ import bolts.Task;
 
       default:
       /*
-       * All of the other operators we know about are stateless, so return a simple matcher.
+       * All of the other operators we know about are stateless, so compile them into a simple
+       * matcher.
        */
-        return new ConstraintMatcher<T>(user) {
+        final ValueMatcher valueMatcher =
+            compileConstraint(operator, constraint, allKeyConstraints);
+        return new StatelessMatcher<T>(user) {
           @Override
-          public Task<Boolean> matchesAsync(T object, ParseSQLiteDatabase db) {
-            try {
-              Object value = getValue(object, key);
-              return Task.forResult(matchesStatelessConstraint(operator, constraint, value,
-                  allKeyConstraints));
-            } catch (ParseException e) {
-              return Task.forError(e);
+          /* package */ boolean matches(T object) throws ParseException {
+            if (valueMatcher == MATCHES_ANYTHING) {
+              return true;
             }
+            return valueMatcher.matches(getValue(object, key));
           }
         };
     }
   }
 
   /**
-   * Handles $or queries.
+   * Handles $or queries.
+   */
+  private <T extends ParseObject> ConstraintMatcher<T> createOrMatcher(ParseUser user,
+      ArrayList<QueryConstraints> queries) {
+    // Make a list of all the matchers to OR together.
+    final ArrayList<ConstraintMatcher<T>> matchers = new ArrayList<>();
+    for (QueryConstraints constraints : queries) {
+      ConstraintMatcher<T> matcher = createMatcher(user, constraints);
+      matchers.add(matcher);
+    }
+    /*
+     * Now OR together the constraints for each query.
+     */
+    return new ConstraintMatcher<T>(user) {
+      @Override
+      public Task<Boolean> matchesAsync(final T object, final ParseSQLiteDatabase db) {
+        return runMatchersAsync(matchers, 0, true, object, db);
+      }
+    };
+
+  }
+
+  /**
+   * Returns a ConstraintMatcher that return true iff the object matches QueryConstraints. This
+   * takes in a SQLiteDatabase connection because SQLite is finicky about nesting connections, so we
+   * want to reuse them whenever possible.
+   */
+  private <T extends ParseObject> ConstraintMatcher<T> createMatcher(ParseUser user,
+      QueryConstraints queryConstraints) {
+    // Make a list of all the matchers to AND together.
+    final ArrayList<ConstraintMatcher<T>> matchers = new ArrayList<>();
+    for (final String key : queryConstraints.keySet()) {
+      final Object queryConstraintValue = queryConstraints.get(key);
+
+      if (key.equals("$or")) {
+        /*
+         * A set of queries to be OR-ed together.
+         */
+        @SuppressWarnings("unchecked")
+        ConstraintMatcher<T> matcher =
+            createOrMatcher(user, (ArrayList<QueryConstraints>) queryConstraintValue);
+        matchers.add(matcher);
+
+      } else if (queryConstraintValue instanceof KeyConstraints) {
+        /*
+         * It's a set of constraints that should be AND-ed together.
+         */
+        KeyConstraints keyConstraints = (KeyConstraints) queryConstraintValue;
+        for (String operator : keyConstraints.keySet()) {
+          final Object keyConstraintValue = keyConstraints.get(operator);
+          ConstraintMatcher<T> matcher =
+              createMatcher(user, operator, keyConstraintValue, key, keyConstraints);
+          matchers.add(matcher);
+        }
+
+      } else if (queryConstraintValue instanceof RelationConstraint) {
+        /*
+         * It's a $relatedTo constraint.
+         */
+        final RelationConstraint relation = (RelationConstraint) queryConstraintValue;
+        matchers.add(new StatelessMatcher<T>(user) {
+          @Override
+          /* package */ boolean matches(T object) {
+            return relation.getRelation().hasKnownObject(object);
+          }
+        });
+
+      } else {
+        /*
+         * It's not a set of constraints, so it's just a value to compare against.
+         */
+        matchers.add(new StatelessMatcher<T>(user) {
+          @Override
+          /* package */ boolean matches(T object) throws ParseException {
+            return matchesEqualConstraint(queryConstraintValue, getValue(object, key));
+          }
+        });
+      }
+    }
+
+    /*
+     * Now AND together the constraints for each key.
+     */
+    return new ConstraintMatcher<T>(user) {
+      @Override
+      public Task<Boolean> matchesAsync(final T object, final ParseSQLiteDatabase db) {
+        return runMatchersAsync(matchers, 0, false, object, db);
+      }
+    };
+  }
+
+  /**
+   * Runs {@code matchers} in order, starting at {@code start}, until one of them returns
+   * {@code shortCircuit}, which makes it an OR if {@code shortCircuit} is true, and an AND if it's
+   * false. Matchers that finish right away are run in a plain loop, and only the ones after a
+   * matcher that has to wait are chained.
+   */
+  private <T extends ParseObject> Task<Boolean> runMatchersAsync(
+      final List<ConstraintMatcher<T>> matchers, int start, final boolean shortCircuit,
+      final T object, final ParseSQLiteDatabase db) {
+    for (int i = start; i < matchers.size(); i++) {
+      ConstraintMatcher<T> matcher = matchers.get(i);
+      if (matcher instanceof StatelessMatcher) {
+        boolean matches;
+        try {
+          matches = ((StatelessMatcher<T>) matcher).matches(object);
+        } catch (ParseException e) {
+          return Task.forError(e);
+        }
+        if (matches == shortCircuit) {
+          return shortCircuit ? TASK_TRUE : TASK_FALSE;
+        }
+        continue;
+      }
+
+      Task<Boolean> task = matcher.matchesAsync(object, db);
+      if (!task.isCompleted()) {
+        final int next = i + 1;
+        return task.onSuccessTask(new Continuation<Boolean, Task<Boolean>>() {
+          @Override
+          public Task<Boolean> then(Task<Boolean> task) throws Exception {
+            if (task.getResult() == shortCircuit) {
+              return task;
+            }
+            return runMatchersAsync(matchers, next, shortCircuit, object, db);
+          }
+        });
+      }
+      if (task.isFaulted() || task.isCancelled() || task.getResult() == shortCircuit) {
+        return task;
+      }
+    }
+    return shortCircuit ? TASK_FALSE : TASK_TRUE;
+  }
+
+  /**
+   * Returns true iff the object is visible based on its read ACL and the given user objectId.
+   */
+  /* package */ static <T extends ParseObject> boolean hasReadAccess(ParseUser user, T object) {
+    if (user == object) {
+      return true;
+    }
+
+    ParseACL acl = object.getACL();
+    if (acl == null) {
+      return true;
+    }
+    if (acl.getPublicReadAccess()) {
+      return true;
+    }
+    if (user != null && acl.getReadAccess(user)) {
+      return true;
+    }
+    // TODO: Implement roles.
+    return false;
+  }
+
+  /**
+   * Returns true iff the object is visible based on its read ACL and the given user objectId.
+   */
+  /* package */ static <T extends ParseObject> boolean hasWriteAccess(ParseUser user, T object) {
+    if (user == object) {
+      return true;
+    }
+
+    ParseACL acl = object.getACL();
+    if (acl == null) {
+      return true;
+    }
+    if (acl.getPublicWriteAccess()) {
+      return true;
+    }
+    if (user != null && acl.getWriteAccess(user)) {
+      return true;
+    }
+    // TODO: Implement roles.
+    return false;
+  }
+
+  /**
+   * Returns a ConstraintMatcher that return true iff the object matches the given query's
+   * constraints. This takes in a SQLiteDatabase connection because SQLite is finicky about nesting
+   * connections, so we want to reuse them whenever possible.
+   *
+   * @param state The query.
+   * @param user The user we are testing ACL access for.
+   * @param <T> Subclass of ParseObject.
+   * @return A new instance of ConstraintMatcher.
+   */
+  /* package */ <T extends ParseObject> ConstraintMatcher<T> createMatcher(
+      ParseQuery.State<T> state, final ParseUser user) {
+    final boolean ignoreACLs = state.ignoreACLs();
+    final ConstraintMatcher<T> constraintMatcher = createMatcher(user, state.constraints());
+
+    return new ConstraintMatcher<T>(user) {
+      @Override
+      public Task<Boolean> matchesAsync(T object, ParseSQLiteDatabase db) {
+        if (!ignoreACLs && !hasReadAccess(user, object)) {
+          return TASK_FALSE;
+        }
+        return constraintMatcher.matchesAsync(object, db);
+      }
+    };
+  }
+
+  /**
+   * The largest magnitude at which every integer can still be represented exactly by a double, so
+   * that SQLite and {@link Numbers#compare(Number, Number)} agree on ordering.
+   */
+  private static final long MAX_INDEXABLE_NUMBER = 1L << 53;
+
+  /**
+   * Returns a SQL expression that narrows down the rows of the objects table that can possibly
+   * match the given constraints, using the secondary indexes in {@link OfflineIndexes}.
+   *
+   * The expression only ever excludes rows that can't match, so every row it selects must still be
+   * run through the {@link ConstraintMatcher}. Constraints that can't be answered by the indexes are
+   * simply left out.
+   *
+   * @param table The name or alias of the objects table in the enclosing query.
+   * @param className The class being queried.
+   * @param constraints The where clause of the query.
+   * @param indexedKeys The keys that are indexed for {@code className}.
+   * @param args The list to append the arguments of the expression to.
+   * @return The expression, or {@code null} if none of the constraints can use an index.
+   */
+  /* package */ static String createIndexFilter(String table, String className,
+      QueryConstraints constraints, Set<String> indexedKeys, List<String> args) {
+    return createIndexFilter(table, className, constraints, indexedKeys,
+        Collections.<String>emptySet(), null, args);
+  }
+
+  /**
+   * What {@link #createIndexFilter} needs to know about the classes of subqueries in order to turn
+   * $inQuery constraints into semi-joins.
+   */
+  /* package */ interface SubQueryIndexes {
+    /**
+     * @return The keys that are indexed for {@code className}.
+     */
+    Set<String> getIndexedKeys(String className);
+
+    /**
+     * @return The keys that are indexed for full-text search for {@code className}.
+     */
+    Set<String> getFullTextKeys(String className);
+
+    /**
+     * @return The UUIDs of the objects of {@code className} whose in-memory state may differ from
+     * what's stored, and so may match the subquery regardless of the indexes.
+     */
+    Set<String> getDirtyUUIDs(String className);
+  }
+
+  /**
+   * The same as {@link #createIndexFilter(String, String, QueryConstraints, Set, List)}, but also
+   * looks up $text constraints on the keys in {@code fullTextKeys} in the full-text index, and
+   * turns $inQuery constraints on indexed pointer keys into semi-joins against the objects table
+   * when {@code subQueries} is set.
+   */
+  /* package */ static String createIndexFilter(String table, String className,
+      QueryConstraints constraints, Set<String> indexedKeys, Set<String> fullTextKeys,
+      SubQueryIndexes subQueries, List<String> args) {
+    List<String> clauses = new ArrayList<>();
+    for (String key : constraints.keySet()) {
+      Object value = constraints.get(key);
+
+      if (key.equals("$or")) {
+        @SuppressWarnings("unchecked")
+        List<QueryConstraints> queries = (List<QueryConstraints>) value;
+        List<String> orArgs = new ArrayList<>();
+        List<String> orClauses = new ArrayList<>();
+        for (QueryConstraints query : queries) {
+          String clause = createIndexFilter(
+              table, className, query, indexedKeys, fullTextKeys, subQueries, orArgs);
+          if (clause == null) {
+            // One of the branches could match anything, so the whole $or can.
+            orClauses = null;
+            break;
+          }
+          orClauses.add(clause);
+        }
+        if (orClauses != null && !orClauses.isEmpty()) {
+          clauses.add("(" + ParseTextUtils.join(" OR ", orClauses) + ")");
+          args.addAll(orArgs);
+        }
+
+      } else if (value instanceof KeyConstraints) {
+        KeyConstraints keyConstraints = (KeyConstraints) value;
+        for (String operator : keyConstraints.keySet()) {
+          String clause = createIndexFilter(table, className, key, operator,
+              keyConstraints.get(operator), keyConstraints, indexedKeys, fullTextKeys, subQueries,
+              args);
+          if (clause != null) {
+            clauses.add(clause);
+          }
+        }
+
+      } else if (!(value instanceof RelationConstraint)) {
+        String clause = createIndexFilter(table, className, key, "$eq", value, null, indexedKeys,
+            fullTextKeys, subQueries, args);
+        if (clause != null) {
+          clauses.add(clause);
+        }
+      }
+    }
+
+    if (clauses.isEmpty()) {
+      return null;
+    }
+    return "(" + ParseTextUtils.join(" AND ", clauses) + ")";
+  }
+
+  /**
+   * Returns whether the expression {@link #createIndexFilter} builds for {@code constraints}
+   * selects exactly the stored objects the {@link ConstraintMatcher} would accept, rather than a
+   * superset of them, so that the rows it selects can be counted without looking at the objects.
+   *
+   * This only holds for equality on values SQLite compares the same way Java does, and assumes
+   * there are no rows of {@link OfflineIndexes#TYPE_UNKNOWN} for the class. Numbers are left out
+   * since an array holding an equal number of a different type isn't matched in memory.
+   */
+  /* package */ static boolean isIndexFilterExact(QueryConstraints constraints,
+      Set<String> indexedKeys) {
+    for (String key : constraints.keySet()) {
+      Object value = constraints.get(key);
+
+      if (key.equals("$or")) {
+        @SuppressWarnings("unchecked")
+        List<QueryConstraints> queries = (List<QueryConstraints>) value;
+        for (QueryConstraints query : queries) {
+          if (!isIndexFilterExact(query, indexedKeys)) {
+            return false;
+          }
+        }
+
+      } else if (value instanceof KeyConstraints) {
+        KeyConstraints keyConstraints = (KeyConstraints) value;
+        if (keyConstraints.isEmpty()) {
+          return false;
+        }
+        for (String operator : keyConstraints.keySet()) {
+          if (!isIndexFilterExact(key, operator, keyConstraints.get(operator), indexedKeys)) {
+            return false;
+          }
+        }
+
+      } else if (value instanceof RelationConstraint
+          || !isIndexFilterExact(key, "$eq", value, indexedKeys)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isIndexFilterExact(String key, String operator, Object constraint,
+      Set<String> indexedKeys) {
+    if (!key.equals("objectId") && !indexedKeys.contains(key)) {
+      return false;
+    }
+    switch (operator) {
+      case "$eq":
+        return isExactlyIndexable(key, constraint);
+
+      case "$in":
+        if (!(constraint instanceof Collection) || ((Collection<?>) constraint).isEmpty()) {
+          return false;
+        }
+        for (Object item : (Collection<?>) constraint) {
+          if (!isExactlyIndexable(key, item)) {
+            return false;
+          }
+        }
+        return true;
+
+      default:
+        return false;
+    }
+  }
+
+  private static boolean isExactlyIndexable(String key, Object value) {
+    if (key.equals("objectId")) {
+      return value instanceof String;
+    }
+    return value instanceof String || value instanceof Boolean || value instanceof Date;
+  }
+
+  /**
+   * Returns a SQL expression for a single constraint operator, or {@code null} if the operator
+   * can't use an index. {@code $eq} is used for plain equality constraints.
+   */
+  private static String createIndexFilter(String table, String className, String key,
+      String operator, Object constraint, KeyConstraints allKeyConstraints,
+      Set<String> indexedKeys, Set<String> fullTextKeys, SubQueryIndexes subQueries,
+      List<String> args) {
+    if (key.equals("objectId")) {
+      return createObjectIdFilter(table, operator, constraint, args);
+    }
+    if (!indexedKeys.contains(key)) {
+      return null;
+    }
+
+    List<String> conditionArgs = new ArrayList<>();
+    switch (operator) {
+      case "$eq":
+      case "$lt":
+      case "$lte":
+      case "$gt":
+      case "$gte": {
+        String condition = createIndexCondition(operator, constraint, conditionArgs);
+        if (condition == null) {
+          return null;
+        }
+        return createIndexSubquery(table, className, key, condition, conditionArgs, args);
+      }
+
+      case "$in": {
+        if (!(constraint instanceof Collection) || ((Collection<?>) constraint).isEmpty()) {
+          return null;
+        }
+        List<String> conditions = new ArrayList<>();
+        for (Object item : (Collection<?>) constraint) {
+          String condition = createIndexCondition("$eq", item, conditionArgs);
+          if (condition == null) {
+            return null;
+          }
+          conditions.add(condition);
+        }
+        String condition = "(" + ParseTextUtils.join(" OR ", conditions) + ")";
+        return createIndexSubquery(table, className, key, condition, conditionArgs, args);
+      }
+
+      case "$all": {
+        if (!(constraint instanceof Collection) || ((Collection<?>) constraint).isEmpty()) {
+          return null;
+        }
+        // Every item has to be in the array, which is an intersection of equality lookups.
+        List<String> subqueries = new ArrayList<>();
+        List<String> allArgs = new ArrayList<>();
+        for (Object item : (Collection<?>) constraint) {
+          conditionArgs.clear();
+          String condition = createIndexCondition("$eq", item, conditionArgs);
+          if (condition == null) {
+            return null;
+          }
+          subqueries.add(
+              createIndexSubquery(table, className, key, condition, conditionArgs, allArgs));
+        }
+        args.addAll(allArgs);
+        return "(" + ParseTextUtils.join(" AND ", subqueries) + ")";
+      }
+
+      case "$exists": {
+        if (!(constraint instanceof Boolean)) {
+          return null;
+        }
+        String subquery = "SELECT " + OfflineSQLiteOpenHelper.KEY_UUID +
+            " FROM " + OfflineSQLiteOpenHelper.TABLE_INDEXES +
+            " WHERE " + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + " = ?" +
+            " AND " + OfflineSQLiteOpenHelper.KEY_KEY + " = ?";
+        args.add(className);
+        args.add(key);
+        if ((Boolean) constraint) {
+          return table + "." + OfflineSQLiteOpenHelper.KEY_UUID + " IN (" + subquery + ")";
+        }
+        // Keys with pending operations might not exist anymore, so they have to be checked.
+        return table + "." + OfflineSQLiteOpenHelper.KEY_UUID + " NOT IN (" + subquery +
+            " AND " + OfflineSQLiteOpenHelper.KEY_TYPE + " != " + OfflineIndexes.TYPE_UNKNOWN + ")";
+      }
+
+      case "$within": {
+        String condition = createWithinCondition(constraint, conditionArgs);
+        if (condition == null) {
+          return null;
+        }
+        return createIndexSubquery(table, className, key, condition, conditionArgs, args);
+      }
+
+      case "$nearSphere": {
+        Object maxDistance =
+            allKeyConstraints != null ? allKeyConstraints.get("$maxDistance") : null;
+        if (!(constraint instanceof ParseGeoPoint) || !(maxDistance instanceof Number)) {
+          // Without a maximum distance, any value matches as long as there is one.
+          return createIndexFilter(table, className, key, "$exists", true, null, indexedKeys,
+              fullTextKeys, subQueries, args);
+        }
+        String condition = createNearSphereCondition(
+            (ParseGeoPoint) constraint, ((Number) maxDistance).doubleValue(), conditionArgs);
+        return createIndexSubquery(table, className, key, condition, conditionArgs, args);
+      }
+
+      case "$text": {
+        if (!fullTextKeys.contains(key)) {
+          return null;
+        }
+        String condition = createFullTextCondition(constraint, conditionArgs);
+        if (condition == null) {
+          return null;
+        }
+        return createIndexSubquery(table, className, key, condition, conditionArgs, args);
+      }
+
+      case "$inQuery": {
+        if (subQueries == null) {
+          return null;
+        }
+        // TODO(grantland): Convert builder to state t6941155
+        ParseQuery.State<?> subQuery = ((ParseQuery.State.Builder<?>) constraint).build();
+        String condition = createSemiJoinCondition(table, subQuery, subQueries, conditionArgs);
+        return createIndexSubquery(table, className, key, condition, conditionArgs, args);
+      }
+
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Returns a SQL condition on a single index row that holds if the row points to an object that
+   * may be in the results of {@code subQuery}, so that only the outer objects that point into the
+   * subquery's candidates are read, rather than all of them being matched against its results.
+   *
+   * Like every other index lookup, the candidates are a superset of the subquery's results: its
+   * own index filter narrows them down where it can, and objects that are dirty in memory are
+   * always candidates.
+   */
+  private static String createSemiJoinCondition(String table, ParseQuery.State<?> subQuery,
+      SubQueryIndexes subQueries, List<String> args) {
+    // Nested subqueries need aliases of their own.
+    String alias = table + "_";
+    String subClassName = subQuery.className();
+    String sql = "SELECT " + alias + "." + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + " || ':' || " +
+        alias + "." + OfflineSQLiteOpenHelper.KEY_OBJECT_ID +
+        " FROM " + OfflineSQLiteOpenHelper.TABLE_OBJECTS + " " + alias +
+        " WHERE " + alias + "." + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + " = ?" +
+        " AND " + alias + "." + OfflineSQLiteOpenHelper.KEY_OBJECT_ID + " IS NOT NULL";
+    args.add(subClassName);
+
+    List<String> filterArgs = new ArrayList<>();
+    String filter = createIndexFilter(alias, subClassName, subQuery.constraints(),
+        subQueries.getIndexedKeys(subClassName), subQueries.getFullTextKeys(subClassName),
+        subQueries, filterArgs);
+    if (filter != null) {
+      Set<String> dirtyUuids = subQueries.getDirtyUUIDs(subClassName);
+      args.addAll(filterArgs);
+      if (dirtyUuids.isEmpty()) {
+        sql += " AND " + filter;
+      } else {
+        args.addAll(dirtyUuids);
+        sql += " AND (" + filter + " OR " + alias + "." + OfflineSQLiteOpenHelper.KEY_UUID +
+            " IN (" + ParseTextUtils.join(", ", Collections.nCopies(dirtyUuids.size(), "?")) +
+            "))";
+      }
+    }
+
+    return "(" + OfflineSQLiteOpenHelper.KEY_TYPE + " = " + OfflineIndexes.TYPE_POINTER +
+        " AND " + OfflineSQLiteOpenHelper.KEY_VALUE + " IN (" + sql + "))";
+  }
+
+  /**
+   * Geo points are only compared against boxes that are a little larger than needed, so that
+   * rounding in SQL can never leave out a point the matcher would accept.
+   */
+  private static final double GEO_SLACK_DEGREES = 1e-6;
+
+  /**
+   * Returns a SQL condition on a single index row that holds if the row is a geo point inside the
+   * box, or {@code null} if the box is one that {@link #createWithinMatcher(Object)} rejects.
+   */
+  private static String createWithinCondition(Object constraint, List<String> args) {
+    if (!(constraint instanceof Map)) {
+      return null;
+    }
+    Object box = ((Map<?, ?>) constraint).get("$box");
+    if (!(box instanceof List) || ((List<?>) box).size() != 2) {
+      return null;
+    }
+    Object southwestValue = ((List<?>) box).get(0);
+    Object northeastValue = ((List<?>) box).get(1);
+    if (!(southwestValue instanceof ParseGeoPoint) || !(northeastValue instanceof ParseGeoPoint)) {
+      return null;
+    }
+    ParseGeoPoint southwest = (ParseGeoPoint) southwestValue;
+    ParseGeoPoint northeast = (ParseGeoPoint) northeastValue;
+    if (northeast.getLongitude() < southwest.getLongitude()
+        || northeast.getLatitude() < southwest.getLatitude()
+        || northeast.getLongitude() - southwest.getLongitude() > 180) {
+      // The matcher reports these as errors, which it can only do if it gets to see the objects.
+      return null;
+    }
+    return createGeoCondition(southwest.getLatitude(), northeast.getLatitude(),
+        southwest.getLongitude(), northeast.getLongitude(), args);
+  }
+
+  /**
+   * Returns a SQL condition on a single index row that holds if the row is a geo point that may be
+   * within {@code distance} radians of {@code point}, using the bounding box of the circle.
    */
-  private <T extends ParseObject> ConstraintMatcher<T> createOrMatcher(ParseUser user,
-      ArrayList<QueryConstraints> queries) {
-    // Make a list of all the matchers to OR together.
-    final ArrayList<ConstraintMatcher<T>> matchers = new ArrayList<>();
-    for (QueryConstraints constraints : queries) {
-      ConstraintMatcher<T> matcher = createMatcher(user, constraints);
-      matchers.add(matcher);
+  private static String createNearSphereCondition(ParseGeoPoint point, double distance,
+      List<String> args) {
+    double latitudeDelta = Math.toDegrees(distance) + GEO_SLACK_DEGREES;
+    double south = point.getLatitude() - latitudeDelta;
+    double north = point.getLatitude() + latitudeDelta;
+    if (south <= -90 || north >= 90) {
+      // The circle covers a pole, so it covers every longitude.
+      return createGeoCondition(south, north, null, null, args);
     }
-    /*
-     * Now OR together the constraints for each query.
-     */
-    return new ConstraintMatcher<T>(user) {
-      @Override
-      public Task<Boolean> matchesAsync(final T object, final ParseSQLiteDatabase db) {
-        Task<Boolean> task = Task.forResult(false);
-        for (final ConstraintMatcher<T> matcher : matchers) {
-          task = task.onSuccessTask(new Continuation<Boolean, Task<Boolean>>() {
-            @Override
-            public Task<Boolean> then(Task<Boolean> task) throws Exception {
-              if (task.getResult()) {
-                return task;
-              }
-              return matcher.matchesAsync(object, db);
-            }
-          });
-        }
-        return task;
-      }
-    };
 
+    // The furthest a point within the circle can be in longitude, which is furthest from the poles.
+    double longitudeDelta = Math.toDegrees(Math.asin(
+        Math.sin(distance) / Math.cos(Math.toRadians(point.getLatitude())))) + GEO_SLACK_DEGREES;
+    double west = point.getLongitude() - longitudeDelta;
+    double east = point.getLongitude() + longitudeDelta;
+    if (west < -180 || east > 180) {
+      // Don't bother splitting boxes that cross the International Date Line.
+      return createGeoCondition(south, north, null, null, args);
+    }
+    return createGeoCondition(south, north, west, east, args);
+  }
+
+  private static String createGeoCondition(double south, double north, Double west, Double east,
+      List<String> args) {
+    String condition = "(" + OfflineSQLiteOpenHelper.KEY_TYPE + " = " +
+        OfflineIndexes.TYPE_GEO_POINT +
+        " AND " + OfflineSQLiteOpenHelper.KEY_VALUE +
+        " BETWEEN CAST(? AS REAL) AND CAST(? AS REAL)";
+    args.add(Double.toString(south));
+    args.add(Double.toString(north));
+    if (west != null && east != null) {
+      condition += " AND " + OfflineSQLiteOpenHelper.KEY_LONGITUDE +
+          " BETWEEN CAST(? AS REAL) AND CAST(? AS REAL)";
+      args.add(Double.toString(west));
+      args.add(Double.toString(east));
+    }
+    return condition + ")";
   }
 
   /**
-   * Returns a ConstraintMatcher that return true iff the object matches QueryConstraints. This
-   * takes in a SQLiteDatabase connection because SQLite is finicky about nesting connections, so we
-   * want to reuse them whenever possible.
+   * objectId is a column of the objects table, so it doesn't need a secondary index.
    */
-  private <T extends ParseObject> ConstraintMatcher<T> createMatcher(ParseUser user,
-      QueryConstraints queryConstraints) {
-    // Make a list of all the matchers to AND together.
-    final ArrayList<ConstraintMatcher<T>> matchers = new ArrayList<>();
-    for (final String key : queryConstraints.keySet()) {
-      final Object queryConstraintValue = queryConstraints.get(key);
-
-      if (key.equals("$or")) {
-        /*
-         * A set of queries to be OR-ed together.
-         */
-        @SuppressWarnings("unchecked")
-        ConstraintMatcher<T> matcher =
-            createOrMatcher(user, (ArrayList<QueryConstraints>) queryConstraintValue);
-        matchers.add(matcher);
-
-      } else if (queryConstraintValue instanceof KeyConstraints) {
-        /*
-         * It's a set of constraints that should be AND-ed together.
-         */
-        KeyConstraints keyConstraints = (KeyConstraints) queryConstraintValue;
-        for (String operator : keyConstraints.keySet()) {
-          final Object keyConstraintValue = keyConstraints.get(operator);
-          ConstraintMatcher<T> matcher =
-              createMatcher(user, operator, keyConstraintValue, key, keyConstraints);
-          matchers.add(matcher);
+  private static String createObjectIdFilter(String table, String operator, Object constraint,
+      List<String> args) {
+    String column = table + "." + OfflineSQLiteOpenHelper.KEY_OBJECT_ID;
+    switch (operator) {
+      case "$eq":
+        if (!(constraint instanceof String)) {
+          return null;
         }
+        args.add((String) constraint);
+        return column + " = ?";
 
-      } else if (queryConstraintValue instanceof RelationConstraint) {
-        /*
-         * It's a $relatedTo constraint.
-         */
-        final RelationConstraint relation = (RelationConstraint) queryConstraintValue;
-        matchers.add(new ConstraintMatcher<T>(user) {
-          @Override
-          public Task<Boolean> matchesAsync(T object, ParseSQLiteDatabase db) {
-            return Task.forResult(relation.getRelation().hasKnownObject(object));
-          }
-        });
-
-      } else {
-        /*
-         * It's not a set of constraints, so it's just a value to compare against.
-         */
-        matchers.add(new ConstraintMatcher<T>(user) {
-          @Override
-          public Task<Boolean> matchesAsync(T object, ParseSQLiteDatabase db) {
-            Object objectValue;
-            try {
-              objectValue = getValue(object, key);
-            } catch (ParseException e) {
-              return Task.forError(e);
-            }
-            return Task.forResult(matchesEqualConstraint(queryConstraintValue, objectValue));
+      case "$in": {
+        if (!(constraint instanceof Collection) || ((Collection<?>) constraint).isEmpty()) {
+          return null;
+        }
+        List<String> placeholders = new ArrayList<>();
+        List<String> inArgs = new ArrayList<>();
+        for (Object item : (Collection<?>) constraint) {
+          if (!(item instanceof String)) {
+            return null;
           }
-        });
+          placeholders.add("?");
+          inArgs.add((String) item);
+        }
+        args.addAll(inArgs);
+        return column + " IN (" + ParseTextUtils.join(", ", placeholders) + ")";
       }
-    }
 
-    /*
-     * Now AND together the constraints for each key.
-     */
-    return new ConstraintMatcher<T>(user) {
-      @Override
-      public Task<Boolean> matchesAsync(final T object, final ParseSQLiteDatabase db) {
-        Task<Boolean> task = Task.forResult(true);
-        for (final ConstraintMatcher<T> matcher : matchers) {
-          task = task.onSuccessTask(new Continuation<Boolean, Task<Boolean>>() {
-            @Override
-            public Task<Boolean> then(Task<Boolean> task) throws Exception {
-              if (!task.getResult()) {
-                return task;
-              }
-              return matcher.matchesAsync(object, db);
-            }
-          });
+      case "$exists":
+        if (!(constraint instanceof Boolean)) {
+          return null;
         }
-        return task;
-      }
-    };
+        return column + ((Boolean) constraint ? " IS NOT NULL" : " IS NULL");
+
+      default:
+        return null;
+    }
   }
 
   /**
-   * Returns true iff the object is visible based on its read ACL and the given user objectId.
+   * Returns a SQL condition on a single index row that holds if the row's string contains every
+   * word of a $text constraint according to {@link OfflineSQLiteOpenHelper#TABLE_FULL_TEXT}, or
+   * {@code null} if the constraint has no words to look up.
    */
-  /* package */ static <T extends ParseObject> boolean hasReadAccess(ParseUser user, T object) {
-    if (user == object) {
-      return true;
-    }
-
-    ParseACL acl = object.getACL();
-    if (acl == null) {
-      return true;
+  private static String createFullTextCondition(Object constraint, List<String> args) {
+    String term = getFullTextTerm(constraint);
+    if (term == null) {
+      return null;
     }
-    if (acl.getPublicReadAccess()) {
-      return true;
+    List<String> tokens = OfflineIndexes.tokenize(term);
+    if (tokens.isEmpty()) {
+      return null;
     }
-    if (user != null && acl.getReadAccess(user)) {
-      return true;
+    // Quoting every token keeps words like OR and NEAR from being read as operators.
+    List<String> phrases = new ArrayList<>();
+    for (String token : tokens) {
+      phrases.add("\"" + token + "\"");
     }
-    // TODO: Implement roles.
-    return false;
+    args.add(ParseTextUtils.join(" ", phrases));
+    return "(" + OfflineSQLiteOpenHelper.KEY_TYPE + " = " + OfflineIndexes.TYPE_FULL_TEXT +
+        " AND rowid IN (SELECT docid FROM " + OfflineSQLiteOpenHelper.TABLE_FULL_TEXT +
+        " WHERE " + OfflineSQLiteOpenHelper.KEY_VALUE + " MATCH ?))";
   }
 
   /**
-   * Returns true iff the object is visible based on its read ACL and the given user objectId.
+   * Returns a SQL expression selecting the objects that have an index row for {@code key} which
+   * matches {@code condition}. Rows whose value isn't known are always selected.
    */
-  /* package */ static <T extends ParseObject> boolean hasWriteAccess(ParseUser user, T object) {
-    if (user == object) {
-      return true;
-    }
+  private static String createIndexSubquery(String table, String className, String key,
+      String condition, List<String> conditionArgs, List<String> args) {
+    args.add(className);
+    args.add(key);
+    args.addAll(conditionArgs);
+    return table + "." + OfflineSQLiteOpenHelper.KEY_UUID + " IN (" +
+        "SELECT " + OfflineSQLiteOpenHelper.KEY_UUID +
+        " FROM " + OfflineSQLiteOpenHelper.TABLE_INDEXES +
+        " WHERE " + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + " = ?" +
+        " AND " + OfflineSQLiteOpenHelper.KEY_KEY + " = ?" +
+        " AND (" + OfflineSQLiteOpenHelper.KEY_TYPE + " = " + OfflineIndexes.TYPE_UNKNOWN +
+        " OR " + condition + "))";
+  }
 
-    ParseACL acl = object.getACL();
-    if (acl == null) {
-      return true;
-    }
-    if (acl.getPublicWriteAccess()) {
-      return true;
+  /**
+   * Returns a SQL condition on a single index row that holds if the row's value compares to
+   * {@code constraint} according to {@code operator}, or {@code null} if SQLite can't reproduce
+   * the way {@link #compareTo(Object, Object)} and {@link #matchesEqualConstraint(Object, Object)}
+   * treat the constraint.
+   */
+  private static String createIndexCondition(String operator, Object constraint,
+      List<String> args) {
+    String comparison;
+    switch (operator) {
+      case "$eq":
+        comparison = "=";
+        break;
+      case "$lt":
+        comparison = "<";
+        break;
+      case "$lte":
+        comparison = "<=";
+        break;
+      case "$gt":
+        comparison = ">";
+        break;
+      case "$gte":
+        comparison = ">=";
+        break;
+      default:
+        return null;
     }
-    if (user != null && acl.getWriteAccess(user)) {
-      return true;
+    boolean isEquality = operator.equals("$eq");
+
+    int type;
+    String placeholder;
+    String arg;
+    if (constraint instanceof String) {
+      // SQLite orders strings by their UTF-8 bytes while Java uses UTF-16, so only equality is safe.
+      if (!isEquality) {
+        return null;
+      }
+      type = OfflineIndexes.TYPE_STRING;
+      placeholder = "?";
+      arg = (String) constraint;
+    } else if (constraint instanceof Number) {
+      arg = toIndexableNumber((Number) constraint);
+      if (arg == null) {
+        return null;
+      }
+      type = OfflineIndexes.TYPE_NUMBER;
+      placeholder = "CAST(? AS NUMERIC)";
+    } else if (constraint instanceof Date) {
+      type = OfflineIndexes.TYPE_DATE;
+      placeholder = "CAST(? AS INTEGER)";
+      arg = Long.toString(((Date) constraint).getTime());
+    } else if (constraint instanceof Boolean) {
+      if (!isEquality) {
+        return null;
+      }
+      type = OfflineIndexes.TYPE_BOOLEAN;
+      placeholder = "CAST(? AS INTEGER)";
+      arg = (Boolean) constraint ? "1" : "0";
+    } else if (constraint instanceof ParseObject) {
+      ParseObject object = (ParseObject) constraint;
+      if (!isEquality || object.getObjectId() == null) {
+        return null;
+      }
+      type = OfflineIndexes.TYPE_POINTER;
+      placeholder = "?";
+      arg = OfflineIndexes.pointerValue(object.getClassName(), object.getObjectId());
+    } else {
+      return null;
     }
-    // TODO: Implement roles.
-    return false;
+
+    args.add(arg);
+    return "(" + OfflineSQLiteOpenHelper.KEY_TYPE + " = " + type +
+        " AND " + OfflineSQLiteOpenHelper.KEY_VALUE + " " + comparison + " " + placeholder + ")";
   }
 
   /**
-   * Returns a ConstraintMatcher that return true iff the object matches the given query's
-   * constraints. This takes in a SQLiteDatabase connection because SQLite is finicky about nesting
-   * connections, so we want to reuse them whenever possible.
-   *
-   * @param state The query.
-   * @param user The user we are testing ACL access for.
-   * @param <T> Subclass of ParseObject.
-   * @return A new instance of ConstraintMatcher.
+   * Returns the number as a string SQLite can cast to the same value, or {@code null} if it can't
+   * be compared exactly.
    */
-  /* package */ <T extends ParseObject> ConstraintMatcher<T> createMatcher(
-      ParseQuery.State<T> state, final ParseUser user) {
-    final boolean ignoreACLs = state.ignoreACLs();
-    final ConstraintMatcher<T> constraintMatcher = createMatcher(user, state.constraints());
-
-    return new ConstraintMatcher<T>(user) {
-      @Override
-      public Task<Boolean> matchesAsync(T object, ParseSQLiteDatabase db) {
-        if (!ignoreACLs && !hasReadAccess(user, object)) {
-          return Task.forResult(false);
-        }
-        return constraintMatcher.matchesAsync(object, db);
+  private static String toIndexableNumber(Number number) {
+    if (number instanceof Double) {
+      double value = number.doubleValue();
+      if (Double.isNaN(value) || Math.abs(value) > MAX_INDEXABLE_NUMBER) {
+        return null;
       }
-    };
+      return Double.toString(value);
+    } else if (number instanceof Long || number instanceof Integer
+        || number instanceof Short || number instanceof Byte) {
+      long value = number.longValue();
+      if (value > MAX_INDEXABLE_NUMBER || value < -MAX_INDEXABLE_NUMBER) {
+        return null;
+      }
+      return Long.toString(value);
+    }
+    // Floats are compared at float precision and anything else isn't supported by Numbers.
+    return null;
   }
 
   /**
@@ -864,6 +1879,18 @@ import bolts.Task;
    */
   /* package */ static <T extends ParseObject> void sort(List<T> results, ParseQuery.State<T> state)
       throws ParseException {
+    Comparator<T> comparator = createComparator(state);
+    if (comparator != null) {
+      Collections.sort(results, comparator);
+    }
+  }
+
+  /**
+   * Returns a Comparator that orders objects based on the parameters of the given query, or
+   * {@code null} if the query doesn't specify an order.
+   */
+  /* package */ static <T extends ParseObject> Comparator<T> createComparator(
+      ParseQuery.State<T> state) throws ParseException {
     final List<String> keys = state.order();
     // Do some error checking just for maximum compatibility with the server.
     for (String key : state.order()) {
@@ -893,29 +1920,41 @@ import bolts.Task;
 
     // If there's nothing to sort based on, then don't do anything.
     if (keys.size() == 0 && mutableNearSphereKey == null) {
-      return;
+      return null;
     }
 
     /*
      * TODO(klimt): Test whether we allow dotting into objects for sorting.
      */
 
-    Collections.sort(results, new Comparator<T>() {
-      @Override
-      public int compare(T lhs, T rhs) {
-        if (nearSphereKey != null) {
-          ParseGeoPoint lhsPoint;
-          ParseGeoPoint rhsPoint;
+    return new Comparator<T>() {
+      /*
+       * Each object is compared many times while sorting, so only work out its distance once. The
+       * comparator lives as long as a single query, and objects are compared by identity.
+       */
+      private final Map<T, Double> distances = new IdentityHashMap<>();
+
+      private double getDistance(T object) {
+        Double distance = distances.get(object);
+        if (distance == null) {
+          ParseGeoPoint point;
           try {
-            lhsPoint = (ParseGeoPoint) getValue(lhs, nearSphereKey);
-            rhsPoint = (ParseGeoPoint) getValue(rhs, nearSphereKey);
+            point = (ParseGeoPoint) getValue(object, nearSphereKey);
           } catch (ParseException e) {
             throw new RuntimeException(e);
           }
-
           // GeoPoints can't be null if there's a $nearSphere.
-          double lhsDistance = lhsPoint.distanceInRadiansTo(nearSphereValue);
-          double rhsDistance = rhsPoint.distanceInRadiansTo(nearSphereValue);
+          distance = point.distanceInRadiansTo(nearSphereValue);
+          distances.put(object, distance);
+        }
+        return distance;
+      }
+
+      @Override
+      public int compare(T lhs, T rhs) {
+        if (nearSphereKey != null) {
+          double lhsDistance = getDistance(lhs);
+          double rhsDistance = getDistance(rhs);
           if (lhsDistance != rhsDistance) {
             return (lhsDistance - rhsDistance > 0) ? 1 : -1;
           }
@@ -949,106 +1988,195 @@ import bolts.Task;
         }
         return 0;
       }
-    });
+    };
   }
 
   /**
-   * Makes sure that the object specified by path, relative to container, is fetched.
+   * The parts of a SQL query that order the rows of the objects table the same way
+   * {@link #createComparator(ParseQuery.State)} orders the objects, using the secondary indexes in
+   * {@link OfflineIndexes}.
    */
-  private static Task<Void> fetchIncludeAsync(
-      final OfflineStore store,
-      final Object container,
-      final String path,
-      final ParseSQLiteDatabase db)
-      throws ParseException {
-    // If there's no object to include, that's fine.
-    if (container == null) {
-      return Task.forResult(null);
-    }
-
-    // If the container is a list or array, fetch all the sub-items.
-    if (container instanceof Collection) {
-      Collection<?> collection = (Collection<?>) container;
-      // We do the fetches in series because it makes it easier to fail on the first error.
-      Task<Void> task = Task.forResult(null);
-      for (final Object item : collection) {
-        task = task.onSuccessTask(new Continuation<Void, Task<Void>>() {
-          @Override
-          public Task<Void> then(Task<Void> task) throws Exception {
-            return fetchIncludeAsync(store, item, path, db);
-          }
-        });
+  /* package */ static class IndexOrder {
+    /**
+     * An expression that is true for rows whose position in {@link #orderBy} is the position the
+     * object has when sorted in memory. Other rows, such as the ones with arrays or pending
+     * operations for a sort key, are in no particular position and have to be sorted in memory.
+     */
+    /* package */ final String sortable;
+    /* package */ final List<String> sortableArgs;
+    /* package */ final String orderBy;
+    /* package */ final List<String> orderByArgs;
+
+    private IndexOrder(String sortable, List<String> sortableArgs, String orderBy,
+        List<String> orderByArgs) {
+      this.sortable = sortable;
+      this.sortableArgs = sortableArgs;
+      this.orderBy = orderBy;
+      this.orderByArgs = orderByArgs;
+    }
+  }
+
+  /**
+   * Returns how to order the rows of the objects table in SQL for the given query, or {@code null}
+   * if the query has no order or any of its sort keys can't be ordered in SQL.
+   *
+   * Only numbers and dates are ordered in SQL, since those are the only values SQLite orders the
+   * same way {@link #compareTo(Object, Object)} does. objectId is a column of the objects table, and
+   * is always ordered in SQL.
+   *
+   * @param table The name or alias of the objects table in the enclosing query.
+   * @param className The class being queried.
+   * @param state The query.
+   * @param indexedKeys The keys that are indexed for {@code className}.
+   */
+  /* package */ static IndexOrder createIndexOrder(String table, String className,
+      ParseQuery.State<?> state, Set<String> indexedKeys) {
+    List<String> keys = state.order();
+    if (keys.isEmpty()) {
+      return null;
+    }
+    for (Object constraint : state.constraints().values()) {
+      if (constraint instanceof KeyConstraints
+          && ((KeyConstraints) constraint).containsKey("$nearSphere")) {
+        // Distance takes precedence over the order.
+        return null;
       }
-      return task;
-    } else if (container instanceof JSONArray) {
-      final JSONArray array = (JSONArray) container;
-      // We do the fetches in series because it makes it easier to fail on the first error.
-      Task<Void> task = Task.forResult(null);
-      for (int i = 0; i < array.length(); ++i) {
-        final int index = i;
-        task = task.onSuccessTask(new Continuation<Void, Task<Void>>() {
-          @Override
-          public Task<Void> then(Task<Void> task) throws Exception {
-            return fetchIncludeAsync(store, array.get(index), path, db);
-          }
-        });
+    }
+
+    String sortableTypes = "(" + OfflineIndexes.TYPE_NUMBER + ", " + OfflineIndexes.TYPE_DATE + ")";
+    List<String> sortables = new ArrayList<>();
+    List<String> sortableArgs = new ArrayList<>();
+    List<String> orders = new ArrayList<>();
+    List<String> orderArgs = new ArrayList<>();
+    for (String key : keys) {
+      String direction = " ASC";
+      if (key.startsWith("-")) {
+        direction = " DESC";
+        key = key.substring(1);
+      }
+      if (key.equals("_created_at")) {
+        key = ParseObject.KEY_CREATED_AT;
+      } else if (key.equals("_updated_at")) {
+        key = ParseObject.KEY_UPDATED_AT;
+      }
+
+      if (key.equals("objectId")) {
+        // objectIds are always ASCII, so SQLite and Java agree on their order.
+        orders.add(table + "." + OfflineSQLiteOpenHelper.KEY_OBJECT_ID + direction);
+        continue;
       }
-      return task;
+      if (!indexedKeys.contains(key)) {
+        return null;
+      }
+
+      String rows = " FROM " + OfflineSQLiteOpenHelper.TABLE_INDEXES +
+          " WHERE " + OfflineSQLiteOpenHelper.KEY_UUID + " = " +
+          table + "." + OfflineSQLiteOpenHelper.KEY_UUID +
+          " AND " + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + " = ?" +
+          " AND " + OfflineSQLiteOpenHelper.KEY_KEY + " = ?" +
+          " AND " + OfflineSQLiteOpenHelper.KEY_TYPE;
+      // Missing and null values have no rows, so they are NULL and sort first, just like in memory.
+      orders.add("(SELECT " + OfflineSQLiteOpenHelper.KEY_VALUE + rows + " IN " + sortableTypes +
+          ")" + direction);
+      orderArgs.add(className);
+      orderArgs.add(key);
+      sortables.add("NOT EXISTS (SELECT 1" + rows + " NOT IN " + sortableTypes + ")");
+      sortableArgs.add(className);
+      sortableArgs.add(key);
     }
 
-    // If we've reached the end of the path, then actually do the fetch.
-    if (path == null) {
-      if (JSONObject.NULL.equals(container)) {
+    String sortable = sortables.isEmpty() ? "1" : ParseTextUtils.join(" AND ", sortables);
+    return new IndexOrder(sortable, sortableArgs, ParseTextUtils.join(", ", orders), orderArgs);
+  }
+
+  /**
+   * Makes sure that the objects specified by path, relative to each of the containers, are fetched.
+   * The containers are walked one level of the path at a time, so that all of the objects at a
+   * level are fetched together.
+   */
+  private static Task<Void> fetchIncludeAsync(
+      final OfflineStore store,
+      List<?> containers,
+      final String path,
+      final ParseSQLiteDatabase db) {
+    // If the containers are lists or arrays, look at all the sub-items.
+    final List<Object> items = new ArrayList<>();
+    flattenIncludes(containers, items);
+
+    // ParseObjects compare by identity, so a set drops the objects that are included repeatedly.
+    Set<ParseObject> unique = new HashSet<>();
+    List<ParseObject> objects = new ArrayList<>();
+    for (Object item : items) {
+      if (item instanceof ParseObject) {
+        if (unique.add((ParseObject) item)) {
+          objects.add((ParseObject) item);
+        }
+      } else if (JSONObject.NULL.equals(item)) {
         // Accept JSONObject.NULL value in included field. We swallow it silently instead of
         // throwing an exception.
-        return Task.forResult(null);
-      } else if (container instanceof ParseObject) {
-        ParseObject object = (ParseObject) container;
-        return store.fetchLocallyAsync(object, db).makeVoid();
-      } else {
+      } else if (path == null) {
         return Task.forError(new ParseException(
             ParseException.INVALID_NESTED_KEY, "include is invalid for non-ParseObjects"));
+      } else if (!(item instanceof Map) && !(item instanceof JSONObject)) {
+        return Task.forError(new IllegalStateException("include is invalid"));
       }
     }
 
-    // Descend into the container and try again.
+    // If we've reached the end of the path, then actually do the fetch.
+    Task<Void> fetchTask = objects.isEmpty()
+        ? Task.<Void>forResult(null)
+        : store.fetchAllLocallyAsync(objects, db);
+    if (path == null) {
+      return fetchTask;
+    }
 
+    // Make sure the containers are fetched before descending into them.
     String[] parts = path.split("\\.", 2);
     final String key = parts[0];
     final String rest = (parts.length > 1 ? parts[1] : null);
-
-    // Make sure the container is fetched.
-    return Task.<Void> forResult(null).continueWithTask(new Continuation<Void, Task<Object>>() {
+    return fetchTask.onSuccessTask(new Continuation<Void, Task<Void>>() {
       @Override
-      public Task<Object> then(Task<Void> task) throws Exception {
-        if (container instanceof ParseObject) {
-          // Make sure this object is fetched before descending into it.
-          return fetchIncludeAsync(store, container, null, db).onSuccess(new Continuation<Void, Object>() {
-            @Override
-            public Object then(Task<Void> task) throws Exception {
-              return ((ParseObject) container).get(key);
-            }
-          });
-        } else if (container instanceof Map) {
-          return Task.forResult(((Map) container).get(key));
-        } else if (container instanceof JSONObject) {
-          return Task.forResult(((JSONObject) container).opt(key));
-        } else if (JSONObject.NULL.equals(container)) {
-          // Accept JSONObject.NULL value in included field. We swallow it silently instead of
-          // throwing an exception.
-          return null;
-        } else {
-          return Task.forError(new IllegalStateException("include is invalid"));
+      public Task<Void> then(Task<Void> task) throws Exception {
+        List<Object> children = new ArrayList<>();
+        for (Object item : items) {
+          if (item instanceof ParseObject) {
+            children.add(((ParseObject) item).get(key));
+          } else if (item instanceof Map) {
+            children.add(((Map) item).get(key));
+          } else if (item instanceof JSONObject) {
+            children.add(((JSONObject) item).opt(key));
+          }
         }
-      }
-    }).onSuccessTask(new Continuation<Object, Task<Void>>() {
-      @Override
-      public Task<Void> then(Task<Object> task) throws Exception {
-        return fetchIncludeAsync(store, task.getResult(), rest, db);
+        return fetchIncludeAsync(store, children, rest, db);
       }
     });
   }
 
+  /**
+   * Adds the items of {@code containers} to {@code items}, replacing lists and arrays with their
+   * items and leaving out missing values.
+   */
+  private static void flattenIncludes(Collection<?> containers, List<Object> items) {
+    for (Object container : containers) {
+      if (container == null) {
+        // If there's no object to include, that's fine.
+        continue;
+      }
+      if (container instanceof Collection) {
+        flattenIncludes((Collection<?>) container, items);
+      } else if (container instanceof JSONArray) {
+        JSONArray array = (JSONArray) container;
+        List<Object> arrayItems = new ArrayList<>(array.length());
+        for (int i = 0; i < array.length(); ++i) {
+          arrayItems.add(array.opt(i));
+        }
+        flattenIncludes(arrayItems, items);
+      } else {
+        items.add(container);
+      }
+    }
+  }
+
   /**
    * Makes sure all of the objects included by the given query get fetched.
    */
@@ -1057,6 +2185,19 @@ import bolts.Task;
       final T object,
       ParseQuery.State<T> state,
       final ParseSQLiteDatabase db) {
+    return fetchIncludesAsync(store, Collections.singletonList(object), state, db);
+  }
+
+  /**
+   * Makes sure all of the objects included by the given query get fetched for each of the results.
+   * Each include is resolved for all of the results at once, with the objects at each level of its
+   * path fetched in bulk rather than one at a time.
+   */
+  /* package */ static <T extends ParseObject> Task<Void> fetchIncludesAsync(
+      final OfflineStore store,
+      final List<T> objects,
+      ParseQuery.State<T> state,
+      final ParseSQLiteDatabase db) {
     Set<String> includes = state.includes();
     // We do the fetches in series because it makes it easier to fail on the first error.
     Task<Void> task = Task.forResult(null);
@@ -1064,7 +2205,7 @@ import bolts.Task;
       task = task.onSuccessTask(new Continuation<Void, Task<Void>>() {
         @Override
         public Task<Void> then(Task<Void> task) throws Exception {
-          return fetchIncludeAsync(store, object, include, db);
+          return fetchIncludeAsync(store, objects, include, db);
         }
       });
     }
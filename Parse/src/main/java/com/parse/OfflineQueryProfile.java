@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Where the time of a single query against {@link OfflineStore} went, for tuning indexes and pins.
+ *
+ * Rows are counted as they come out of the database, and each stage is timed separately:
+ * <ul>
+ *   <li>query: running the query's statement until the first rows are available.</li>
+ *   <li>match: decoding the rows and running them through the constraints.</li>
+ *   <li>sort: keeping the matches in order and trimming them to the limit.</li>
+ *   <li>include: fetching the objects that the results include.</li>
+ * </ul>
+ * Every statement that the query's connection ran is listed, along with SQLite's plan for the
+ * query's main statement.
+ */
+/** package */ class OfflineQueryProfile {
+
+  private final String className;
+  private final String pinName;
+
+  private final List<String> statements = new ArrayList<>();
+  private final List<String> plan = new ArrayList<>();
+
+  private int rowsScanned = 0;
+  private int rowsDecoded = 0;
+  private int rowsMatched = 0;
+  private int resultCount = 0;
+
+  private long queryNanos = 0;
+  private long matchNanos = 0;
+  private long sortNanos = 0;
+  private long includeNanos = 0;
+  private long totalNanos = 0;
+
+  /* package */ OfflineQueryProfile(String className, String pinName) {
+    this.className = className;
+    this.pinName = pinName;
+  }
+
+  /* package */ synchronized void addStatement(String sql) {
+    statements.add(sql);
+  }
+
+  /* package */ synchronized void addPlan(String detail) {
+    plan.add(detail);
+  }
+
+  /* package */ synchronized void addRowsScanned(int count) {
+    rowsScanned += count;
+  }
+
+  /* package */ synchronized void addRowsDecoded(int count) {
+    rowsDecoded += count;
+  }
+
+  /* package */ synchronized void addRowsMatched(int count) {
+    rowsMatched += count;
+  }
+
+  /* package */ synchronized void setResultCount(int count) {
+    resultCount = count;
+  }
+
+  /* package */ synchronized void addQueryNanos(long nanos) {
+    queryNanos += nanos;
+  }
+
+  /* package */ synchronized void addMatchNanos(long nanos) {
+    matchNanos += nanos;
+  }
+
+  /* package */ synchronized void addSortNanos(long nanos) {
+    sortNanos += nanos;
+  }
+
+  /* package */ synchronized void addIncludeNanos(long nanos) {
+    includeNanos += nanos;
+  }
+
+  /* package */ synchronized void setTotalNanos(long nanos) {
+    totalNanos = nanos;
+  }
+
+  /* package */ synchronized List<String> getStatements() {
+    return Collections.unmodifiableList(new ArrayList<>(statements));
+  }
+
+  /* package */ synchronized List<String> getPlan() {
+    return Collections.unmodifiableList(new ArrayList<>(plan));
+  }
+
+  /* package */ synchronized int getRowsScanned() {
+    return rowsScanned;
+  }
+
+  /* package */ synchronized int getRowsDecoded() {
+    return rowsDecoded;
+  }
+
+  /* package */ synchronized int getRowsMatched() {
+    return rowsMatched;
+  }
+
+  /* package */ synchronized int getResultCount() {
+    return resultCount;
+  }
+
+  /* package */ synchronized long getQueryNanos() {
+    return queryNanos;
+  }
+
+  /* package */ synchronized long getMatchNanos() {
+    return matchNanos;
+  }
+
+  /* package */ synchronized long getSortNanos() {
+    return sortNanos;
+  }
+
+  /* package */ synchronized long getIncludeNanos() {
+    return includeNanos;
+  }
+
+  /* package */ synchronized long getTotalNanos() {
+    return totalNanos;
+  }
+
+  private static String millis(long nanos) {
+    return String.format(Locale.US, "%.3f ms", nanos / 1e6);
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder builder = new StringBuilder();
+    builder.append("Query on ").append(className);
+    if (pinName != null) {
+      builder.append(" in pin ").append(pinName);
+    }
+    builder.append('\n');
+    builder.append(String.format(Locale.US,
+        "rows: %d scanned, %d decoded, %d matched, %d returned\n",
+        rowsScanned, rowsDecoded, rowsMatched, resultCount));
+    builder.append("time: ").append(millis(totalNanos))
+        .append(" (query ").append(millis(queryNanos))
+        .append(", match ").append(millis(matchNanos))
+        .append(", sort ").append(millis(sortNanos))
+        .append(", include ").append(millis(includeNanos))
+        .append(")\n");
+    builder.append("plan:\n");
+    for (String detail : plan) {
+      builder.append("  ").append(detail).append('\n');
+    }
+    builder.append("statements (").append(statements.size()).append("):\n");
+    for (String sql : statements) {
+      builder.append("  ").append(sql).append('\n');
+    }
+    return builder.toString();
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The pointers between objects in the local datastore.
+ *
+ * An object points to another object that hasn't been saved yet by the other object's uuid. Each
+ * of those pointers gets a row in {@link OfflineSQLiteOpenHelper#TABLE_REFERENCES}, so that finding
+ * whether anything still points to an object is an index lookup rather than a search through every
+ * stored object. The rows are written together with the objects that hold the pointers, and are
+ * deleted along with them.
+ */
+/** package */ class OfflineReferences {
+
+  /**
+   * How many rows {@link #build} inserts at a time.
+   */
+  private static final int ROWS_PER_WRITE = 500;
+
+  /* package */ static final String[] COLUMNS = {
+      OfflineSQLiteOpenHelper.KEY_UUID,
+      OfflineSQLiteOpenHelper.KEY_REFERENCED_UUID
+  };
+
+  /**
+   * @return the uuids of the OfflineObjects that {@code json} points to, at any depth.
+   */
+  /* package */ static List<String> extract(JSONObject json) {
+    final List<String> uuids = new ArrayList<>();
+    (new ParseTraverser() {
+      @Override
+      protected boolean visit(Object object) {
+        if (object instanceof JSONObject
+            && ((JSONObject) object).optString("__type").equals("OfflineObject")) {
+          uuids.add(((JSONObject) object).optString("uuid"));
+        }
+        return true;
+      }
+    }).setTraverseParseObjects(false).setYieldRoot(false).traverse(json);
+    return uuids;
+  }
+
+  /**
+   * @return the uuids of the OfflineObjects that a row of the objects table points to, whether it
+   * holds JSON text or an object encoded with {@link OfflineObjectCodec}.
+   */
+  /* package */ static List<String> extract(String json, byte[] data) throws JSONException {
+    if (data != null) {
+      return OfflineObjectCodec.decode(data).getReferencedUUIDs();
+    }
+    if (json != null) {
+      return extract(new JSONObject(json));
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * Adds a row to {@code rows} for each object that the object with {@code uuid} points to.
+   */
+  /* package */ static void addRows(String uuid, Collection<String> referencedUuids,
+      List<Object[]> rows) {
+    for (String referencedUuid : referencedUuids) {
+      rows.add(new Object[] { uuid, referencedUuid });
+    }
+  }
+
+  /**
+   * Replaces what the objects with {@code uuids} point to with {@code rows}.
+   *
+   * This must be run on the database thread.
+   */
+  /* package */ static void write(SQLiteDatabase db, List<String> uuids, List<Object[]> rows) {
+    OfflineBulkWriter.deleteIn(db, OfflineSQLiteOpenHelper.TABLE_REFERENCES,
+        OfflineSQLiteOpenHelper.KEY_UUID, uuids);
+    OfflineBulkWriter.insert(db, OfflineSQLiteOpenHelper.TABLE_REFERENCES, "OR IGNORE", COLUMNS,
+        rows);
+  }
+
+  /**
+   * Records the pointers of every object that is already in the database, such as after the table
+   * was added. Objects that can't be decoded can't be read either, so they're skipped.
+   *
+   * This must be run on the database thread.
+   */
+  /* package */ static void build(SQLiteDatabase db) {
+    List<Object[]> rows = new ArrayList<>();
+    Cursor cursor = db.query(OfflineSQLiteOpenHelper.TABLE_OBJECTS,
+        new String[] { OfflineSQLiteOpenHelper.KEY_UUID, OfflineSQLiteOpenHelper.KEY_JSON,
+            OfflineSQLiteOpenHelper.KEY_DATA },
+        OfflineSQLiteOpenHelper.KEY_JSON + " IS NOT NULL OR "
+            + OfflineSQLiteOpenHelper.KEY_DATA + " IS NOT NULL",
+        null, null, null, null);
+    try {
+      for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+        try {
+          addRows(cursor.getString(0), extract(cursor.getString(1), cursor.getBlob(2)), rows);
+        } catch (JSONException e) {
+          continue;
+        }
+        if (rows.size() >= ROWS_PER_WRITE) {
+          OfflineBulkWriter.insert(db, OfflineSQLiteOpenHelper.TABLE_REFERENCES, "OR IGNORE",
+              COLUMNS, rows);
+          rows.clear();
+        }
+      }
+      OfflineBulkWriter.insert(db, OfflineSQLiteOpenHelper.TABLE_REFERENCES, "OR IGNORE", COLUMNS,
+          rows);
+    } finally {
+      cursor.close();
+    }
+  }
+}
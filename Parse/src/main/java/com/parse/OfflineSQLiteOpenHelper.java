@@ -33,6 +33,11 @@ import android.database.sqlite.SQLiteDatabase;
   /* package */ static final String KEY_CLASS_NAME = "className";
   /* package */ static final String KEY_OBJECT_ID = "objectId";
   /* package */ static final String KEY_JSON = "json";
+  /**
+   * The object encoded with {@link OfflineObjectCodec}, added in version 6. A row holds either this
+   * or {@link #KEY_JSON}, and the other one is null.
+   */
+  /* package */ static final String KEY_DATA = "data";
   /* package */ static final String KEY_IS_DELETING_EVENTUALLY = "isDeletingEventually";
 
   /**
@@ -47,17 +52,142 @@ import android.database.sqlite.SQLiteDatabase;
   /* package */ static final String KEY_KEY = "key";
   // static final String KEY_UUID = "uuid";
 
+  /**
+   * The table that stores the secondary indexes of ParseObjects.
+   *
+   * @see OfflineIndexes
+   */
+  /* package */ static final String TABLE_INDEXES = "ParseObjectIndexes";
+
+  /**
+   * Various keys in the table of indexes.
+   */
+  // static final String KEY_UUID = "uuid";
+  // static final String KEY_CLASS_NAME = "className";
+  // static final String KEY_KEY = "key";
+  /* package */ static final String KEY_TYPE = "type";
+  /* package */ static final String KEY_VALUE = "value";
+  /**
+   * The longitude of a geo point, whose latitude is the value. Added in version 7.
+   */
+  /* package */ static final String KEY_LONGITUDE = "longitude";
+
+  /**
+   * The table that stores which (className, key) pairs have been indexed.
+   */
+  /* package */ static final String TABLE_INDEXED_KEYS = "IndexedKeys";
+
+  /**
+   * Various keys in the table of indexed keys.
+   */
+  // static final String KEY_CLASS_NAME = "className";
+  // static final String KEY_KEY = "key";
+  /**
+   * Whether the key's strings are also in {@link #TABLE_FULL_TEXT}. Added in version 9.
+   */
+  /* package */ static final String KEY_IS_FULL_TEXT = "isFullText";
+
+  /**
+   * The FTS3 table that holds the strings of full-text indexed keys, added in version 9. The docid
+   * of each row is the rowid of the {@link OfflineIndexes#TYPE_FULL_TEXT} row of
+   * {@link #TABLE_INDEXES} it was copied from, and triggers keep the two in sync, so anything that
+   * writes or deletes index rows keeps the full-text index up to date as well.
+   */
+  /* package */ static final String TABLE_FULL_TEXT = "ParseObjectFullText";
+
+  /**
+   * Various keys in the full-text table.
+   */
+  // static final String KEY_VALUE = "value";
+
+  /**
+   * The table that stores which objects point to which unsaved objects, added in version 10.
+   *
+   * @see OfflineReferences
+   */
+  /* package */ static final String TABLE_REFERENCES = "ParseObjectReferences";
+
+  /**
+   * Various keys in the table of references.
+   */
+  // static final String KEY_UUID = "uuid";
+  /* package */ static final String KEY_REFERENCED_UUID = "referencedUuid";
+
+  /**
+   * The table that stores the objects that syncs added to pins, added in version 11. A sync only
+   * adds rows here instead of storing the whole pin again, and the rows are moved into the pin's
+   * list of objects the next time the pin itself is stored.
+   */
+  /* package */ static final String TABLE_SYNCED_OBJECTS = "ParsePinSyncedObjects";
+
+  /**
+   * Various keys in the table of synced objects.
+   */
+  // static final String KEY_KEY = "key";
+  // static final String KEY_UUID = "uuid";
+
+  /**
+   * The table that stores how far each sync of a pin got, added in version 11. Like
+   * {@link #TABLE_SYNCED_OBJECTS}, its rows are moved into the pin the next time it's stored.
+   */
+  /* package */ static final String TABLE_SYNC_WATERMARKS = "ParsePinSyncWatermarks";
+
+  /**
+   * Various keys in the table of sync watermarks.
+   */
+  // static final String KEY_KEY = "key";
+  /* package */ static final String KEY_SYNC_KEY = "syncKey";
+  /* package */ static final String KEY_UPDATED_AT = "updatedAt";
+  // static final String KEY_OBJECT_ID = "objectId";
+
   /**
    * The SQLite Database name.
    */
   private static final String DATABASE_NAME = "ParseOfflineStore";
-  private static final int DATABASE_VERSION = 4;
+  private static final int DATABASE_VERSION = 11;
+
+  private final OfflineIndexes indexes;
+  private boolean isBinaryStorageEnabled = false;
+  // Whether the index tables were brought in line with the declared indexes since this helper was
+  // created or the database was created or upgraded. Guarded by this.
+  private boolean areIndexesSynced = false;
 
   /**
    * Creates a new helper for the database.
    */
   public OfflineSQLiteOpenHelper(Context context) {
+    this(context, new OfflineIndexes());
+  }
+
+  /**
+   * Creates a new helper for the database that maintains the given secondary indexes.
+   */
+  public OfflineSQLiteOpenHelper(Context context, OfflineIndexes indexes) {
     super(context, DATABASE_NAME, null, DATABASE_VERSION);
+    this.indexes = indexes;
+  }
+
+  /**
+   * @return the secondary indexes this database maintains.
+   */
+  /* package */ OfflineIndexes getIndexes() {
+    return indexes;
+  }
+
+  /**
+   * Store objects with {@link OfflineObjectCodec} instead of as JSON text from now on. Rows that
+   * were already stored as JSON are still read as such, and are converted the next time they're
+   * written.
+   */
+  /* package */ void enableBinaryStorage() {
+    isBinaryStorageEnabled = true;
+  }
+
+  /**
+   * @return whether objects are stored with {@link OfflineObjectCodec}.
+   */
+  /* package */ boolean isBinaryStorageEnabled() {
+    return isBinaryStorageEnabled;
   }
 
   /**
@@ -71,6 +201,7 @@ import android.database.sqlite.SQLiteDatabase;
         KEY_CLASS_NAME + " TEXT NOT NULL, " +
         KEY_OBJECT_ID + " TEXT, " +
         KEY_JSON + " TEXT, " +
+        KEY_DATA + " BLOB, " +
         KEY_IS_DELETING_EVENTUALLY + " INTEGER DEFAULT 0, " +
         "UNIQUE(" + KEY_CLASS_NAME + ", " + KEY_OBJECT_ID + ")" +
         ");";
@@ -82,6 +213,139 @@ import android.database.sqlite.SQLiteDatabase;
         "PRIMARY KEY(" + KEY_KEY + ", " + KEY_UUID + ")" +
         ");";
     db.execSQL(sql);
+
+    createDependencyIndex(db);
+    createIndexSchema(db);
+    createFullTextSchema(db);
+    createReferenceSchema(db);
+    createSyncSchema(db);
+  }
+
+  /**
+   * Indexes the dependencies by uuid, added in version 8, so that finding whether anything still
+   * depends on an object doesn't scan every dependency.
+   */
+  private void createDependencyIndex(SQLiteDatabase db) {
+    String sql = "CREATE INDEX " + TABLE_DEPENDENCIES + "_uuid ON " + TABLE_DEPENDENCIES + " (" +
+        KEY_UUID +
+        ");";
+    db.execSQL(sql);
+  }
+
+  /**
+   * Initializes the tables for secondary indexes, added in version 5.
+   */
+  private void createIndexSchema(SQLiteDatabase db) {
+    String sql;
+
+    // value is intentionally declared without a type so that SQLite doesn't apply any affinity and
+    // numbers compare as numbers while strings compare as strings.
+    sql = "CREATE TABLE " + TABLE_INDEXES + " (" +
+        KEY_UUID + " TEXT NOT NULL, " +
+        KEY_CLASS_NAME + " TEXT NOT NULL, " +
+        KEY_KEY + " TEXT NOT NULL, " +
+        KEY_TYPE + " INTEGER NOT NULL, " +
+        KEY_VALUE + ", " +
+        KEY_LONGITUDE + " REAL" +
+        ");";
+    db.execSQL(sql);
+
+    sql = "CREATE INDEX " + TABLE_INDEXES + "_lookup ON " + TABLE_INDEXES + " (" +
+        KEY_CLASS_NAME + ", " + KEY_KEY + ", " + KEY_TYPE + ", " + KEY_VALUE +
+        ");";
+    db.execSQL(sql);
+
+    sql = "CREATE INDEX " + TABLE_INDEXES + "_uuid ON " + TABLE_INDEXES + " (" +
+        KEY_UUID +
+        ");";
+    db.execSQL(sql);
+
+    sql = "CREATE TABLE " + TABLE_INDEXED_KEYS + " (" +
+        KEY_CLASS_NAME + " TEXT NOT NULL, " +
+        KEY_KEY + " TEXT NOT NULL, " +
+        KEY_IS_FULL_TEXT + " INTEGER NOT NULL DEFAULT 0, " +
+        "PRIMARY KEY(" + KEY_CLASS_NAME + ", " + KEY_KEY + ")" +
+        ");";
+    db.execSQL(sql);
+
+    // Index rows can never outlive the object they describe.
+    sql = "CREATE TRIGGER " + TABLE_INDEXES + "_cleanup AFTER DELETE ON " + TABLE_OBJECTS +
+        " BEGIN DELETE FROM " + TABLE_INDEXES + " WHERE " + KEY_UUID + " = OLD." + KEY_UUID + ";" +
+        " END;";
+    db.execSQL(sql);
+  }
+
+  /**
+   * Initializes the full-text index, added in version 9.
+   */
+  private void createFullTextSchema(SQLiteDatabase db) {
+    String sql;
+
+    // FTS3 is the only full-text module every version of Android ships with.
+    sql = "CREATE VIRTUAL TABLE " + TABLE_FULL_TEXT + " USING fts3(" + KEY_VALUE + ");";
+    db.execSQL(sql);
+
+    sql = "CREATE TRIGGER " + TABLE_FULL_TEXT + "_insert AFTER INSERT ON " + TABLE_INDEXES +
+        " WHEN NEW." + KEY_TYPE + " = " + OfflineIndexes.TYPE_FULL_TEXT +
+        " BEGIN INSERT INTO " + TABLE_FULL_TEXT + " (docid, " + KEY_VALUE + ")" +
+        " VALUES (NEW.rowid, NEW." + KEY_VALUE + ");" +
+        " END;";
+    db.execSQL(sql);
+
+    sql = "CREATE TRIGGER " + TABLE_FULL_TEXT + "_delete AFTER DELETE ON " + TABLE_INDEXES +
+        " WHEN OLD." + KEY_TYPE + " = " + OfflineIndexes.TYPE_FULL_TEXT +
+        " BEGIN DELETE FROM " + TABLE_FULL_TEXT + " WHERE docid = OLD.rowid;" +
+        " END;";
+    db.execSQL(sql);
+  }
+
+  /**
+   * Initializes the table of references, added in version 10.
+   */
+  private void createReferenceSchema(SQLiteDatabase db) {
+    String sql;
+
+    sql = "CREATE TABLE " + TABLE_REFERENCES + " (" +
+        KEY_UUID + " TEXT NOT NULL, " +
+        KEY_REFERENCED_UUID + " TEXT NOT NULL, " +
+        "PRIMARY KEY(" + KEY_UUID + ", " + KEY_REFERENCED_UUID + ")" +
+        ");";
+    db.execSQL(sql);
+
+    sql = "CREATE INDEX " + TABLE_REFERENCES + "_referenced ON " + TABLE_REFERENCES + " (" +
+        KEY_REFERENCED_UUID +
+        ");";
+    db.execSQL(sql);
+
+    // An object that's gone doesn't point to anything.
+    sql = "CREATE TRIGGER " + TABLE_REFERENCES + "_cleanup AFTER DELETE ON " + TABLE_OBJECTS +
+        " BEGIN DELETE FROM " + TABLE_REFERENCES + " WHERE " + KEY_UUID + " = OLD." + KEY_UUID +
+        ";" +
+        " END;";
+    db.execSQL(sql);
+  }
+
+  /**
+   * Initializes the tables of what syncs added to pins, added in version 11.
+   */
+  private void createSyncSchema(SQLiteDatabase db) {
+    String sql;
+
+    sql = "CREATE TABLE " + TABLE_SYNCED_OBJECTS + " (" +
+        KEY_KEY + " TEXT NOT NULL, " +
+        KEY_UUID + " TEXT NOT NULL, " +
+        "PRIMARY KEY(" + KEY_KEY + ", " + KEY_UUID + ")" +
+        ");";
+    db.execSQL(sql);
+
+    sql = "CREATE TABLE " + TABLE_SYNC_WATERMARKS + " (" +
+        KEY_KEY + " TEXT NOT NULL, " +
+        KEY_SYNC_KEY + " TEXT NOT NULL, " +
+        KEY_UPDATED_AT + " INTEGER, " +
+        KEY_OBJECT_ID + " TEXT, " +
+        "PRIMARY KEY(" + KEY_KEY + ", " + KEY_SYNC_KEY + ")" +
+        ");";
+    db.execSQL(sql);
   }
 
   /**
@@ -90,6 +354,9 @@ import android.database.sqlite.SQLiteDatabase;
   @Override
   public void onCreate(SQLiteDatabase db) {
     createSchema(db);
+    synchronized (this) {
+      areIndexesSynced = false;
+    }
   }
 
   /**
@@ -97,7 +364,60 @@ import android.database.sqlite.SQLiteDatabase;
    */
   @Override
   public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-    // do nothing
+    if (oldVersion < 5) {
+      createIndexSchema(db);
+    }
+    if (oldVersion < 6) {
+      db.execSQL("ALTER TABLE " + TABLE_OBJECTS + " ADD COLUMN " + KEY_DATA + " BLOB");
+    }
+    if (oldVersion == 5 || oldVersion == 6) {
+      /*
+       * Geo points used to be indexed as opaque values. Dropping the built indexes makes onOpen
+       * build them again, this time with the coordinates.
+       */
+      db.execSQL("ALTER TABLE " + TABLE_INDEXES + " ADD COLUMN " + KEY_LONGITUDE + " REAL");
+      db.execSQL("DELETE FROM " + TABLE_INDEXES);
+      db.execSQL("DELETE FROM " + TABLE_INDEXED_KEYS);
+    }
+    if (oldVersion < 8) {
+      createDependencyIndex(db);
+    }
+    if (oldVersion >= 5 && oldVersion < 9) {
+      db.execSQL("ALTER TABLE " + TABLE_INDEXED_KEYS + " ADD COLUMN " + KEY_IS_FULL_TEXT +
+          " INTEGER NOT NULL DEFAULT 0");
+    }
+    if (oldVersion < 9) {
+      createFullTextSchema(db);
+    }
+    if (oldVersion < 10) {
+      createReferenceSchema(db);
+      OfflineReferences.build(db);
+    }
+    if (oldVersion < 11) {
+      createSyncSchema(db);
+    }
+    synchronized (this) {
+      areIndexesSynced = false;
+    }
+  }
+
+  /**
+   * Called every time the database is opened. The declared indexes can't change for the lifetime
+   * of this helper, so the index tables only need to be synced the first time.
+   */
+  @Override
+  public void onOpen(SQLiteDatabase db) {
+    super.onOpen(db);
+    if (db.isReadOnly()) {
+      return;
+    }
+    synchronized (this) {
+      if (areIndexesSynced) {
+        return;
+      }
+      indexes.sync(db);
+      areIndexesSynced = true;
+    }
   }
 
   /**
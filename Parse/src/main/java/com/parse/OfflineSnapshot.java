@@ -0,0 +1,416 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteConstraintException;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Copies pins of the local datastore, along with every object they depend on, to and from a
+ * standalone SQLite file, so that an application can ship a prebuilt local datastore instead of
+ * pinning the same query results on every first launch.
+ *
+ * A snapshot holds the {@link OfflineSQLiteOpenHelper#TABLE_OBJECTS} and
+ * {@link OfflineSQLiteOpenHelper#TABLE_DEPENDENCIES} rows of its pins exactly as they are stored,
+ * along with what syncs added to them, so importing one is a copy of rows rather than a save of
+ * every object. Secondary indexes aren't
+ * part of a snapshot, since they depend on what the importing application declares, and are built
+ * after the rows are copied.
+ *
+ * Every method must be called on the database thread, which usually means from a
+ * {@link ParseSQLiteDatabase.Batch}.
+ */
+/** package */ class OfflineSnapshot {
+
+  /**
+   * The version of the snapshot format, stored as the snapshot's user_version. Version 2 added
+   * {@link OfflineSQLiteOpenHelper#TABLE_SYNCED_OBJECTS} and
+   * {@link OfflineSQLiteOpenHelper#TABLE_SYNC_WATERMARKS}.
+   */
+  private static final int VERSION = 2;
+
+  /**
+   * Pins the SDK keeps for itself. These describe the device they were made on, so they're never
+   * exported.
+   */
+  private static final Set<String> INTERNAL_PINS = Collections.unmodifiableSet(new HashSet<>(
+      Arrays.asList(ParseCorePlugins.PIN_CURRENT_USER, ParseCorePlugins.PIN_CURRENT_INSTALLATION,
+          EventuallyPin.PIN_NAME)));
+
+  /**
+   * How many rows are read into memory before they're written out.
+   */
+  private static final int ROWS_PER_WRITE = 500;
+
+  private static final String[] OBJECT_COLUMNS = {
+      OfflineSQLiteOpenHelper.KEY_UUID,
+      OfflineSQLiteOpenHelper.KEY_CLASS_NAME,
+      OfflineSQLiteOpenHelper.KEY_OBJECT_ID,
+      OfflineSQLiteOpenHelper.KEY_JSON,
+      OfflineSQLiteOpenHelper.KEY_DATA,
+      OfflineSQLiteOpenHelper.KEY_IS_DELETING_EVENTUALLY
+  };
+
+  private static final String[] DEPENDENCY_COLUMNS = {
+      OfflineSQLiteOpenHelper.KEY_KEY,
+      OfflineSQLiteOpenHelper.KEY_UUID
+  };
+
+  private static final String[] SYNCED_OBJECT_COLUMNS = DEPENDENCY_COLUMNS;
+
+  private static final String[] SYNC_WATERMARK_COLUMNS = {
+      OfflineSQLiteOpenHelper.KEY_KEY,
+      OfflineSQLiteOpenHelper.KEY_SYNC_KEY,
+      OfflineSQLiteOpenHelper.KEY_UPDATED_AT,
+      OfflineSQLiteOpenHelper.KEY_OBJECT_ID
+  };
+
+  private static final String SQL_SELECT_PINNED_OBJECTS =
+      "SELECT " + ParseTextUtils.join(", ", Arrays.asList(OBJECT_COLUMNS)) +
+      " FROM " + OfflineSQLiteOpenHelper.TABLE_OBJECTS +
+      " WHERE " + OfflineSQLiteOpenHelper.KEY_UUID + " IN (" +
+      "SELECT " + OfflineSQLiteOpenHelper.KEY_UUID +
+      " FROM " + OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES +
+      " WHERE " + OfflineSQLiteOpenHelper.KEY_KEY + " = ?)";
+
+  /**
+   * Writes every pin of {@code db} other than the SDK's own, and the objects they depend on, to a
+   * new snapshot at {@code file}. An existing file is only replaced once the snapshot is complete.
+   *
+   * @return The number of objects in the snapshot.
+   */
+  /* package */ static int export(SQLiteDatabase db, File file) throws JSONException {
+    File temp = new File(file.getPath() + ".tmp");
+    ParseFileUtils.deleteQuietly(temp);
+
+    int count;
+    SQLiteDatabase snapshot = SQLiteDatabase.openOrCreateDatabase(temp, null);
+    try {
+      createSchema(snapshot);
+      snapshot.beginTransaction();
+      try {
+        count = copyPins(db, snapshot);
+        snapshot.setVersion(VERSION);
+        snapshot.setTransactionSuccessful();
+      } finally {
+        snapshot.endTransaction();
+      }
+    } finally {
+      snapshot.close();
+    }
+
+    ParseFileUtils.deleteQuietly(file);
+    if (!temp.renameTo(file)) {
+      ParseFileUtils.deleteQuietly(temp);
+      throw new IllegalStateException("Unable to write snapshot to " + file);
+    }
+    return count;
+  }
+
+  private static void createSchema(SQLiteDatabase snapshot) {
+    snapshot.execSQL("CREATE TABLE " + OfflineSQLiteOpenHelper.TABLE_OBJECTS + " (" +
+        OfflineSQLiteOpenHelper.KEY_UUID + " TEXT PRIMARY KEY, " +
+        OfflineSQLiteOpenHelper.KEY_CLASS_NAME + " TEXT NOT NULL, " +
+        OfflineSQLiteOpenHelper.KEY_OBJECT_ID + " TEXT, " +
+        OfflineSQLiteOpenHelper.KEY_JSON + " TEXT, " +
+        OfflineSQLiteOpenHelper.KEY_DATA + " BLOB, " +
+        OfflineSQLiteOpenHelper.KEY_IS_DELETING_EVENTUALLY + " INTEGER DEFAULT 0" +
+        ");");
+    snapshot.execSQL("CREATE TABLE " + OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES + " (" +
+        OfflineSQLiteOpenHelper.KEY_KEY + " TEXT NOT NULL, " +
+        OfflineSQLiteOpenHelper.KEY_UUID + " TEXT NOT NULL, " +
+        "PRIMARY KEY(" + OfflineSQLiteOpenHelper.KEY_KEY + ", " +
+        OfflineSQLiteOpenHelper.KEY_UUID + ")" +
+        ");");
+    snapshot.execSQL("CREATE TABLE " + OfflineSQLiteOpenHelper.TABLE_SYNCED_OBJECTS + " (" +
+        OfflineSQLiteOpenHelper.KEY_KEY + " TEXT NOT NULL, " +
+        OfflineSQLiteOpenHelper.KEY_UUID + " TEXT NOT NULL" +
+        ");");
+    snapshot.execSQL("CREATE TABLE " + OfflineSQLiteOpenHelper.TABLE_SYNC_WATERMARKS + " (" +
+        OfflineSQLiteOpenHelper.KEY_KEY + " TEXT NOT NULL, " +
+        OfflineSQLiteOpenHelper.KEY_SYNC_KEY + " TEXT NOT NULL, " +
+        OfflineSQLiteOpenHelper.KEY_UPDATED_AT + " INTEGER, " +
+        OfflineSQLiteOpenHelper.KEY_OBJECT_ID + " TEXT" +
+        ");");
+  }
+
+  private static int copyPins(SQLiteDatabase db, SQLiteDatabase snapshot) throws JSONException {
+    Set<String> copied = new HashSet<>();
+    for (Map.Entry<String, String> pin : getPins(db).entrySet()) {
+      if (INTERNAL_PINS.contains(pin.getKey())) {
+        continue;
+      }
+      String key = pin.getValue();
+      String[] args = { key };
+
+      // Objects that are in more than one pin are only copied once.
+      List<Object[]> rows = new ArrayList<>();
+      Cursor cursor = db.rawQuery(SQL_SELECT_PINNED_OBJECTS, args);
+      try {
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+          if (!copied.add(cursor.getString(0))) {
+            continue;
+          }
+          rows.add(readObjectRow(cursor));
+          if (rows.size() == ROWS_PER_WRITE) {
+            OfflineBulkWriter.insert(snapshot, OfflineSQLiteOpenHelper.TABLE_OBJECTS, "",
+                OBJECT_COLUMNS, rows);
+            rows.clear();
+          }
+        }
+      } finally {
+        cursor.close();
+      }
+      OfflineBulkWriter.insert(snapshot, OfflineSQLiteOpenHelper.TABLE_OBJECTS, "",
+          OBJECT_COLUMNS, rows);
+
+      rows.clear();
+      cursor = db.query(OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES, DEPENDENCY_COLUMNS,
+          OfflineSQLiteOpenHelper.KEY_KEY + " = ?", args, null, null, null);
+      try {
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+          rows.add(new Object[] { cursor.getString(0), cursor.getString(1) });
+        }
+      } finally {
+        cursor.close();
+      }
+      OfflineBulkWriter.insert(snapshot, OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES, "",
+          DEPENDENCY_COLUMNS, rows);
+
+      copyRows(db, snapshot, OfflineSQLiteOpenHelper.TABLE_SYNCED_OBJECTS, SYNCED_OBJECT_COLUMNS,
+          OfflineSQLiteOpenHelper.KEY_KEY + " = ?", args);
+      copyRows(db, snapshot, OfflineSQLiteOpenHelper.TABLE_SYNC_WATERMARKS,
+          SYNC_WATERMARK_COLUMNS, OfflineSQLiteOpenHelper.KEY_KEY + " = ?", args);
+    }
+    return copied.size();
+  }
+
+  /**
+   * Copies the rows of {@code table} that match {@code where} from {@code from} to {@code to} as
+   * they are, in the order they were written.
+   */
+  private static void copyRows(SQLiteDatabase from, SQLiteDatabase to, String table,
+      String[] columns, String where, String[] args) {
+    List<Object[]> rows = new ArrayList<>();
+    Cursor cursor = from.query(table, columns, where, args, null, null, "rowid");
+    try {
+      for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+        Object[] row = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+          row[i] = cursor.isNull(i) ? null : cursor.getString(i);
+        }
+        rows.add(row);
+        if (rows.size() == ROWS_PER_WRITE) {
+          OfflineBulkWriter.insert(to, table, "OR IGNORE", columns, rows);
+          rows.clear();
+        }
+      }
+      OfflineBulkWriter.insert(to, table, "OR IGNORE", columns, rows);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  /**
+   * Copies the snapshot at {@code file} into {@code db} and builds the secondary indexes of the
+   * classes it has objects of, along with the references of its objects. This should be run in a
+   * transaction, so that a snapshot that can't be imported leaves nothing behind.
+   *
+   * A snapshot can't be imported if it has a pin with the same name as a pin that's already in
+   * {@code db}, or an object that's already in {@code db}, since there would be no telling which
+   * of the two should win.
+   *
+   * @return The number of objects that were imported.
+   */
+  /* package */ static int importInto(SQLiteDatabase db, OfflineIndexes indexes, File file)
+      throws JSONException {
+    SQLiteDatabase snapshot = SQLiteDatabase.openDatabase(
+        file.getPath(), null, SQLiteDatabase.OPEN_READONLY);
+    try {
+      int version = snapshot.getVersion();
+      if (version < 1 || version > VERSION) {
+        throw new IllegalArgumentException(
+            "Unsupported local datastore snapshot version " + version);
+      }
+
+      Map<String, String> existing = getPins(db);
+      for (String name : getPins(snapshot).keySet()) {
+        if (existing.containsKey(name)) {
+          throw new IllegalStateException(String.format(
+              "Unable to import a snapshot with pin \"%s\", which already exists.", name));
+        }
+      }
+
+      Set<String> classNames = new HashSet<>();
+      List<Object[]> rows = new ArrayList<>();
+      List<Object[]> referenceRows = new ArrayList<>();
+      Cursor cursor = snapshot.query(OfflineSQLiteOpenHelper.TABLE_OBJECTS, OBJECT_COLUMNS,
+          null, null, null, null, null);
+      int count = 0;
+      try {
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+          Object[] row = readObjectRow(cursor);
+          rows.add(row);
+          OfflineReferences.addRows((String) row[0],
+              OfflineReferences.extract((String) row[3], (byte[]) row[4]), referenceRows);
+          classNames.add(cursor.getString(1));
+          count++;
+          if (rows.size() == ROWS_PER_WRITE) {
+            insertObjects(db, rows, referenceRows);
+            rows.clear();
+            referenceRows.clear();
+          }
+        }
+        insertObjects(db, rows, referenceRows);
+      } finally {
+        cursor.close();
+      }
+
+      rows.clear();
+      cursor = snapshot.query(OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES, DEPENDENCY_COLUMNS,
+          null, null, null, null, null);
+      try {
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+          rows.add(new Object[] { cursor.getString(0), cursor.getString(1) });
+          if (rows.size() == ROWS_PER_WRITE) {
+            OfflineBulkWriter.insert(db, OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES, "OR IGNORE",
+                DEPENDENCY_COLUMNS, rows);
+            rows.clear();
+          }
+        }
+        OfflineBulkWriter.insert(db, OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES, "OR IGNORE",
+            DEPENDENCY_COLUMNS, rows);
+      } finally {
+        cursor.close();
+      }
+
+      if (version >= 2) {
+        copyRows(snapshot, db, OfflineSQLiteOpenHelper.TABLE_SYNCED_OBJECTS,
+            SYNCED_OBJECT_COLUMNS, null, null);
+        copyRows(snapshot, db, OfflineSQLiteOpenHelper.TABLE_SYNC_WATERMARKS,
+            SYNC_WATERMARK_COLUMNS, null, null);
+      }
+
+      for (String className : classNames) {
+        indexes.rebuild(db, className);
+      }
+      return count;
+    } finally {
+      snapshot.close();
+    }
+  }
+
+  private static void insertObjects(SQLiteDatabase db, List<Object[]> rows,
+      List<Object[]> referenceRows) {
+    try {
+      OfflineBulkWriter.insert(db, OfflineSQLiteOpenHelper.TABLE_OBJECTS, "", OBJECT_COLUMNS,
+          rows);
+    } catch (SQLiteConstraintException e) {
+      throw new IllegalStateException(
+          "Unable to import a snapshot with objects that are already in the local datastore.", e);
+    }
+    OfflineBulkWriter.insert(db, OfflineSQLiteOpenHelper.TABLE_REFERENCES, "OR IGNORE",
+        OfflineReferences.COLUMNS, referenceRows);
+  }
+
+  /**
+   * Reads a row of the objects table, as an object that isn't being deleted eventually. Only the
+   * eventually queue of the device that made the snapshot would ever finish deleting it, and that
+   * queue isn't part of the snapshot.
+   */
+  private static Object[] readObjectRow(Cursor cursor) throws JSONException {
+    String json = cursor.getString(3);
+    byte[] data = cursor.getBlob(4);
+    if (data != null) {
+      OfflineObjectCodec.EncodedObject encoded = OfflineObjectCodec.decode(data);
+      if (isDeletingEventually(encoded.opt(ParseObject.KEY_IS_DELETING_EVENTUALLY),
+          encoded.opt(ParseObject.KEY_IS_DELETING_EVENTUALLY_OLD))) {
+        JSONObject object = encoded.toJSONObject();
+        clearDeletingEventually(object);
+        data = OfflineObjectCodec.encode(object);
+      }
+    } else if (json != null) {
+      JSONObject object = new JSONObject(json);
+      if (isDeletingEventually(object.opt(ParseObject.KEY_IS_DELETING_EVENTUALLY),
+          object.opt(ParseObject.KEY_IS_DELETING_EVENTUALLY_OLD))) {
+        clearDeletingEventually(object);
+        json = object.toString();
+      }
+    }
+    return new Object[] {
+        cursor.getString(0),
+        cursor.getString(1),
+        cursor.getString(2),
+        json,
+        data,
+        0L
+    };
+  }
+
+  /**
+   * @return Whether the stored count of pending deletes, under its current or its old key, isn't 0.
+   */
+  private static boolean isDeletingEventually(Object value, Object oldValue) {
+    Object count = value != null ? value : oldValue;
+    return count instanceof Number && ((Number) count).intValue() != 0;
+  }
+
+  private static void clearDeletingEventually(JSONObject object) throws JSONException {
+    object.remove(ParseObject.KEY_IS_DELETING_EVENTUALLY_OLD);
+    // ParseObject expects the count to be there, so it's reset rather than removed.
+    object.put(ParseObject.KEY_IS_DELETING_EVENTUALLY, 0);
+  }
+
+  /**
+   * @return The name of every pin in {@code db}, mapped to the key of its dependencies, which is
+   * the pin's own UUID.
+   */
+  private static Map<String, String> getPins(SQLiteDatabase db) throws JSONException {
+    Map<String, String> pins = new HashMap<>();
+    Cursor cursor = db.query(OfflineSQLiteOpenHelper.TABLE_OBJECTS,
+        new String[] { OfflineSQLiteOpenHelper.KEY_UUID, OfflineSQLiteOpenHelper.KEY_JSON,
+            OfflineSQLiteOpenHelper.KEY_DATA },
+        OfflineSQLiteOpenHelper.KEY_CLASS_NAME + " = ?", new String[] { "_Pin" },
+        null, null, null);
+    try {
+      for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+        byte[] data = cursor.getBlob(2);
+        String json = cursor.getString(1);
+        Object name;
+        if (data != null) {
+          name = OfflineObjectCodec.decode(data).opt(ParsePin.KEY_NAME);
+        } else if (json != null) {
+          name = new JSONObject(json).opt(ParsePin.KEY_NAME);
+        } else {
+          continue;
+        }
+        if (name instanceof String) {
+          pins.put((String) name, cursor.getString(0));
+        }
+      }
+    } finally {
+      cursor.close();
+    }
+    return pins;
+  }
+}
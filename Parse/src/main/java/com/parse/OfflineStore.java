@@ -12,6 +12,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.text.TextUtils;
 import android.util.Pair;
 
@@ -20,13 +21,20 @@ import com.parse.OfflineQueryLogic.ConstraintMatcher;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.WeakHashMap;
+import java.util.concurrent.CancellationException;
 
 import bolts.Capture;
 import bolts.Continuation;
@@ -39,6 +47,37 @@ import bolts.Task;
    */
   private static final int MAX_SQL_VARIABLES = 999;
 
+  /*
+   * The lookups of a single object, which are run for nearly every object the store touches. Their
+   * SQL is only built once, so that the database can keep them compiled.
+   */
+  private static final String SQL_SELECT_POINTER_BY_UUID =
+      "SELECT " + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + ", " + OfflineSQLiteOpenHelper.KEY_OBJECT_ID +
+      " FROM " + OfflineSQLiteOpenHelper.TABLE_OBJECTS +
+      " WHERE " + OfflineSQLiteOpenHelper.KEY_UUID + " = ?";
+  private static final String SQL_SELECT_ROW_BY_UUID =
+      "SELECT " + OfflineSQLiteOpenHelper.KEY_UUID + ", " + OfflineSQLiteOpenHelper.KEY_JSON +
+      ", " + OfflineSQLiteOpenHelper.KEY_DATA +
+      " FROM " + OfflineSQLiteOpenHelper.TABLE_OBJECTS +
+      " WHERE " + OfflineSQLiteOpenHelper.KEY_UUID + " = ?";
+  private static final String SQL_SELECT_ROW_BY_OBJECT_ID =
+      "SELECT " + OfflineSQLiteOpenHelper.KEY_UUID + ", " + OfflineSQLiteOpenHelper.KEY_JSON +
+      ", " + OfflineSQLiteOpenHelper.KEY_DATA +
+      " FROM " + OfflineSQLiteOpenHelper.TABLE_OBJECTS +
+      " WHERE " + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + " = ?" +
+      " AND " + OfflineSQLiteOpenHelper.KEY_OBJECT_ID + " = ?";
+  private static final String SQL_INSERT_UUID =
+      "INSERT INTO " + OfflineSQLiteOpenHelper.TABLE_OBJECTS +
+      " (" + OfflineSQLiteOpenHelper.KEY_UUID + ", " + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + ")" +
+      " VALUES (?, ?)";
+
+  private static final String TAG = "com.parse.OfflineStore";
+
+  /**
+   * The number of rows of a query that are fetched and matched at a time.
+   */
+  private static final int QUERY_PAGE_SIZE = 100;
+
   /**
    * Extends the normal JSON -> ParseObject decoding to also deal with placeholders for new objects
    * that have been saved offline.
@@ -144,6 +183,90 @@ import bolts.Task;
     }
   }
 
+  /**
+   * The stored object of a row of the objects table, either as JSON text or encoded with
+   * {@link OfflineObjectCodec}.
+   */
+  private static class ObjectRow {
+    private final String uuid;
+    private final String jsonString;
+    private final byte[] data;
+    // The decoded JSON, if whoever read the row needed to look inside it already.
+    private JSONObject json;
+    // The UUIDs of the OfflineObjects the JSON references.
+    private List<String> referencedUuids;
+
+    private ObjectRow(String uuid, String jsonString, byte[] data) {
+      this.uuid = uuid;
+      this.jsonString = jsonString;
+      this.data = data;
+    }
+
+    private boolean isEmpty() {
+      return jsonString == null && data == null;
+    }
+
+    /**
+     * @return roughly how much memory the stored object takes up.
+     */
+    private long getSize() {
+      return data != null ? data.length : (jsonString != null ? 2L * jsonString.length() : 0);
+    }
+
+    /**
+     * Decodes the JSON and finds the OfflineObjects it references, unless that was done already.
+     * Encoded rows list their references up front, JSON text has to be walked to find them.
+     */
+    private void decode() throws JSONException {
+      if (json != null) {
+        return;
+      }
+      if (data != null) {
+        OfflineObjectCodec.EncodedObject encoded = OfflineObjectCodec.decode(data);
+        json = encoded.toJSONObject();
+        referencedUuids = encoded.getReferencedUUIDs();
+        return;
+      }
+
+      json = new JSONObject(jsonString);
+      referencedUuids = OfflineReferences.extract(json);
+    }
+  }
+
+  /**
+   * A row of the objects table that a query is looking at.
+   */
+  private static class QueryRow {
+    private final String uuid;
+    private final String className;
+    private final String objectId;
+    private final String json;
+    private final byte[] data;
+    // Whether the row came out of the database in the same order as the results are sorted.
+    private final boolean isInOrder;
+
+    private QueryRow(String uuid, String className, String objectId, String json, byte[] data,
+        boolean isInOrder) {
+      this.uuid = uuid;
+      this.className = className;
+      this.objectId = objectId;
+      this.json = json;
+      this.data = data;
+      this.isInOrder = isInOrder;
+    }
+  }
+
+  /**
+   * Rows of the objects table that were read in bulk, along with pointers for the objects that they
+   * reference, so that fetching their objects doesn't need any queries of its own.
+   */
+  private static class PrefetchedRows {
+    // (className, objectId) -> row
+    private final Map<Pair<String, String>, ObjectRow> rows = new HashMap<>();
+    // uuid -> pointer
+    private final Map<String, ParseObject> pointers = new HashMap<>();
+  }
+
   // Lock for all members of the store.
   final private Object lock = new Object();
 
@@ -171,6 +294,23 @@ import bolts.Task;
    */
   final private WeakHashMap<ParseObject, Task<ParseObject>> fetchedObjects = new WeakHashMap<>();
 
+  /**
+   * Strong references to the objects that were fetched most recently, so that they stay in the maps
+   * above and don't need to be fetched again. Empty unless a size was configured.
+   */
+  final private OfflineObjectCache objectCache;
+
+  /**
+   * The listeners that are told about every change once it's committed.
+   */
+  final private Set<ChangeListener> changeListeners = new HashSet<>();
+
+  /**
+   * The changes made so far with each open connection, which are published once it's done. Empty
+   * unless there are listeners.
+   */
+  final private Map<ParseSQLiteDatabase, OfflineChange> pendingChanges = new HashMap<>();
+
   /**
    * Used by the static method to create the singleton.
    */
@@ -179,7 +319,19 @@ import bolts.Task;
   }
 
   /* package */ OfflineStore(OfflineSQLiteOpenHelper helper) {
+    this(helper, new OfflineObjectCache(0, 0));
+  }
+
+  /* package */ OfflineStore(OfflineSQLiteOpenHelper helper, OfflineObjectCache objectCache) {
     this.helper = helper;
+    this.objectCache = objectCache;
+  }
+
+  /**
+   * @return the cache of recently fetched objects, with its hit and miss counts.
+   */
+  /* package */ OfflineObjectCache getObjectCache() {
+    return objectCache;
   }
 
   /**
@@ -212,13 +364,11 @@ import bolts.Task;
      * update. This could be a pointer to an object that itself never gets saved offline, in which
      * case the consumer will just have to deal with that.
      */
-    ContentValues values = new ContentValues();
-    values.put(OfflineSQLiteOpenHelper.KEY_UUID, newUUID);
-    values.put(OfflineSQLiteOpenHelper.KEY_CLASS_NAME, object.getClassName());
-    db.insertOrThrowAsync(OfflineSQLiteOpenHelper.TABLE_OBJECTS, values).continueWith(
-        new Continuation<Void, Void>() {
+    String[] args = { newUUID, object.getClassName() };
+    db.executeInsertAsync(SQL_INSERT_UUID, args).continueWith(
+        new Continuation<Long, Void>() {
           @Override
-          public Void then(Task<Void> task) throws Exception {
+          public Void then(Task<Long> task) throws Exception {
             // This will signal that the UUID does represent a row in the database.
             tcs.setResult(newUUID);
             return null;
@@ -228,6 +378,79 @@ import bolts.Task;
     return tcs.getTask();
   }
 
+  /**
+   * Gets the UUIDs for the given objects, the same as {@link #getOrCreateUUIDAsync}, but adds the
+   * rows for all of the objects that don't have one yet with as few statements as possible.
+   *
+   * @return A task that resolves to the UUIDs, in the same order as {@code objects}.
+   */
+  private Task<List<String>> getOrCreateUUIDsAsync(
+      final List<ParseObject> objects, ParseSQLiteDatabase db) {
+    final List<Task<String>> uuidTasks = new ArrayList<>();
+    final List<String> newUUIDs = new ArrayList<>();
+    final List<Task<String>.TaskCompletionSource> tcss = new ArrayList<>();
+    final List<Object[]> rows = new ArrayList<>();
+
+    synchronized (lock) {
+      for (final ParseObject object : objects) {
+        Task<String> uuidTask = objectToUuidMap.get(object);
+        if (uuidTask != null) {
+          uuidTasks.add(uuidTask);
+          continue;
+        }
+
+        // The object doesn't have a UUID yet, so we're gonna have to make one.
+        String newUUID = UUID.randomUUID().toString();
+        Task<String>.TaskCompletionSource tcs = Task.create();
+        objectToUuidMap.put(object, tcs.getTask());
+        uuidToObjectMap.put(newUUID, object);
+        fetchedObjects.put(object, tcs.getTask().onSuccess(new Continuation<String, ParseObject>() {
+          @Override
+          public ParseObject then(Task<String> task) throws Exception {
+            return object;
+          }
+        }));
+        uuidTasks.add(tcs.getTask());
+        newUUIDs.add(newUUID);
+        tcss.add(tcs);
+        rows.add(new Object[] { newUUID, object.getClassName() });
+      }
+    }
+
+    if (!rows.isEmpty()) {
+      // Put placeholder rows in the database, just like getOrCreateUUIDAsync.
+      db.runBatchAsync(new ParseSQLiteDatabase.Batch<Void>() {
+        @Override
+        public Void run(SQLiteDatabase sqlDb) {
+          OfflineBulkWriter.insert(sqlDb, OfflineSQLiteOpenHelper.TABLE_OBJECTS, "",
+              new String[] { OfflineSQLiteOpenHelper.KEY_UUID,
+                  OfflineSQLiteOpenHelper.KEY_CLASS_NAME }, rows);
+          return null;
+        }
+      }).continueWith(new Continuation<Void, Void>() {
+        @Override
+        public Void then(Task<Void> task) throws Exception {
+          // This will signal that the UUIDs do represent rows in the database.
+          for (int i = 0; i < tcss.size(); i++) {
+            tcss.get(i).setResult(newUUIDs.get(i));
+          }
+          return null;
+        }
+      });
+    }
+
+    return Task.whenAll(uuidTasks).onSuccess(new Continuation<Void, List<String>>() {
+      @Override
+      public List<String> then(Task<Void> task) throws Exception {
+        List<String> uuids = new ArrayList<>(uuidTasks.size());
+        for (Task<String> uuidTask : uuidTasks) {
+          uuids.add(uuidTask.getResult());
+        }
+        return uuids;
+      }
+    });
+  }
+
   /**
    * Gets an unfetched pointer to an object in the db, based on its uuid. The object may or may not
    * be in memory, but it must be in the database. If it is already in memory, that instance will be
@@ -255,219 +478,895 @@ import bolts.Task;
      * something with this classname and object id already.
      */
 
-    String[] select = { OfflineSQLiteOpenHelper.KEY_CLASS_NAME, OfflineSQLiteOpenHelper.KEY_OBJECT_ID };
-    String where = OfflineSQLiteOpenHelper.KEY_UUID + " = ?";
     String[] args = { uuid };
-    return db.queryAsync(OfflineSQLiteOpenHelper.TABLE_OBJECTS, select, where, args).onSuccess(
-        new Continuation<Cursor, T>() {
+    return db.queryStringsAsync(SQL_SELECT_POINTER_BY_UUID, args).onSuccess(
+        new Continuation<List<String[]>, T>() {
           @Override
-          public T then(Task<Cursor> task) throws Exception {
-            Cursor cursor = task.getResult();
-            cursor.moveToFirst();
-            if (cursor.isAfterLast()) {
-              cursor.close();
+          public T then(Task<List<String[]>> task) throws Exception {
+            List<String[]> rows = task.getResult();
+            if (rows.isEmpty()) {
               throw new IllegalStateException("Attempted to find non-existent uuid " + uuid);
             }
+            String className = rows.get(0)[0];
+            String objectId = rows.get(0)[1];
 
             synchronized (lock) {
               // We need to check again since another task might have come around and added it to
               // the map.
               //TODO (grantland): Maybe we should insert a Task that is resolved when the query
               // completes like we do in getOrCreateUUIDAsync?
-              @SuppressWarnings("unchecked")
-              T existing = (T) uuidToObjectMap.get(uuid);
-              if (existing != null) {
-                return existing;
-              }
-
-              String className = cursor.getString(0);
-              String objectId = cursor.getString(1);
-              cursor.close();
-              @SuppressWarnings("unchecked")
-              T pointer = (T) ParseObject.createWithoutData(className, objectId);
-              /*
-               * If it doesn't have an objectId, we don't really need the UUID, and this simplifies
-               * some other logic elsewhere if we only update the map for new objects.
-               */
-              if (objectId == null) {
-                uuidToObjectMap.put(uuid, pointer);
-                objectToUuidMap.put(pointer, Task.forResult(uuid));
-              }
-              return pointer;
+              return getPointer(uuid, className, objectId);
             }
           }
         });
   }
 
   /**
-   * Runs a ParseQuery against the store's contents.
+   * Gets pointers for many objects at once, the same as {@link #getPointerAsync}, but looks up the
+   * objects that aren't in memory with as few queries as possible.
    *
-   * @return The objects that match the query's constraints.
+   * @param pointers
+   *          A map of uuid -> pointer to add the pointers to.
    */
-  /* package for OfflineQueryLogic */ <T extends ParseObject> Task<List<T>> findAsync(
-      ParseQuery.State<T> query,
-      ParseUser user,
-      ParsePin pin,
-      ParseSQLiteDatabase db) {
-    return findAsync(query, user, pin, false, db);
+  private Task<Void> getPointersAsync(Set<String> uuids, final Map<String, ParseObject> pointers,
+      final ParseSQLiteDatabase db) {
+    final List<String> missing = new ArrayList<>();
+    synchronized (lock) {
+      for (String uuid : uuids) {
+        ParseObject existing = uuidToObjectMap.get(uuid);
+        if (existing != null) {
+          pointers.put(uuid, existing);
+        } else {
+          missing.add(uuid);
+        }
+      }
+    }
+    if (missing.isEmpty()) {
+      return Task.forResult(null);
+    }
+
+    return db.runBatchAsync(new ParseSQLiteDatabase.Batch<List<String[]>>() {
+      @Override
+      public List<String[]> run(SQLiteDatabase sqlDb) {
+        String[] select = { OfflineSQLiteOpenHelper.KEY_UUID,
+            OfflineSQLiteOpenHelper.KEY_CLASS_NAME, OfflineSQLiteOpenHelper.KEY_OBJECT_ID };
+        List<String[]> rows = new ArrayList<>();
+        for (int start = 0; start < missing.size(); start += MAX_SQL_VARIABLES) {
+          List<String> chunk =
+              missing.subList(start, Math.min(start + MAX_SQL_VARIABLES, missing.size()));
+          String where = OfflineSQLiteOpenHelper.KEY_UUID + " IN ("
+              + TextUtils.join(",", Collections.nCopies(chunk.size(), "?")) + ")";
+          rows.addAll(ParseSQLiteDatabase.readStrings(db.query(
+              OfflineSQLiteOpenHelper.TABLE_OBJECTS, select, where,
+              chunk.toArray(new String[chunk.size()]))));
+        }
+        return rows;
+      }
+    }).onSuccess(new Continuation<List<String[]>, Void>() {
+      @Override
+      public Void then(Task<List<String[]>> task) throws Exception {
+        /*
+         * Any uuids that weren't found are left out, so that getPointerAsync runs into them and
+         * fails the same way it always has.
+         */
+        synchronized (lock) {
+          for (String[] row : task.getResult()) {
+            pointers.put(row[0], getPointer(row[0], row[1], row[2]));
+          }
+        }
+        return null;
+      }
+    });
   }
 
   /**
-   * Runs a ParseQuery against the store's contents. May cause any instances of T to get fetched
-   * from the offline database. TODO(klimt): Should the query consider objects that are in memory,
-   * but not in the offline store?
-   *
-   * @param query The query.
-   * @param user The user making the query.
-   * @param pin (Optional) The pin we are querying across. If null, all pins.
-   * @param isCount True if we are doing a count.
-   * @param db The SQLiteDatabase.
-   * @param <T> Subclass of ParseObject.
-   * @return The objects that match the query's constraints.
+   * Gets the in-memory instance of the object with the given UUID, or creates a pointer for it if
+   * there isn't one. This must be called while holding {@link #lock}.
    */
-  private <T extends ParseObject> Task<List<T>> findAsync(
-      final ParseQuery.State<T> query,
-      final ParseUser user,
-      final ParsePin pin,
-      final boolean isCount,
-      final ParseSQLiteDatabase db) {
+  private <T extends ParseObject> T getPointer(String uuid, String className, String objectId) {
+    @SuppressWarnings("unchecked")
+    T existing = (T) uuidToObjectMap.get(uuid);
+    if (existing != null) {
+      return existing;
+    }
+
+    @SuppressWarnings("unchecked")
+    T pointer = (T) ParseObject.createWithoutData(className, objectId);
     /*
-     * This is currently unused, but is here to allow future querying across objects that are in the
-     * process of being deleted eventually.
+     * If it doesn't have an objectId, we don't really need the UUID, and this simplifies
+     * some other logic elsewhere if we only update the map for new objects.
      */
-    final boolean includeIsDeletingEventually = false;
+    if (objectId == null) {
+      uuidToObjectMap.put(uuid, pointer);
+      objectToUuidMap.put(pointer, Task.forResult(uuid));
+    }
+    return pointer;
+  }
 
-    final OfflineQueryLogic queryLogic = new OfflineQueryLogic(this);
+  /**
+   * Returns the UUIDs of the objects of the given class that have changes in memory. Objects that
+   * are in memory are matched with their in-memory state, which neither the secondary indexes nor
+   * the JSON in the database know about until they're saved to the database.
+   */
+  private Set<String> getDirtyUUIDs(String className) {
+    List<Pair<ParseObject, String>> candidates = new ArrayList<>();
+    synchronized (lock) {
+      for (Map.Entry<ParseObject, Task<String>> entry : objectToUuidMap.entrySet()) {
+        ParseObject object = entry.getKey();
+        Task<String> uuidTask = entry.getValue();
+        if (object != null && className.equals(object.getClassName())
+            && uuidTask.isCompleted() && !uuidTask.isFaulted() && !uuidTask.isCancelled()) {
+          candidates.add(Pair.create(object, uuidTask.getResult()));
+        }
+      }
+    }
+    Set<String> dirtyUuids = new HashSet<>();
+    for (Pair<ParseObject, String> candidate : candidates) {
+      if (candidate.first.hasChanges() || candidate.first.hasOutstandingOperations()) {
+        dirtyUuids.add(candidate.second);
+      }
+    }
+    return dirtyUuids;
+  }
 
-    final List<T> results = new ArrayList<>();
+  /**
+   * Returns a condition to append to the where clause of a query over the objects table, aliased as
+   * {@code A}, that uses the secondary indexes to skip objects that can't match the query. The
+   * arguments of the condition are appended to {@code args}.
+   *
+   * @param reserved The number of arguments that will be added to the query after the condition.
+   * @return The condition, starting with {@code " AND "}, or an empty string.
+   */
+  private String createIndexFilter(ParseQuery.State<?> query, Set<String> dirtyUuids,
+      List<String> args, int reserved) {
+    String className = query.className();
+    Set<String> indexedKeys = helper.getIndexes().getIndexedKeys(className);
+    Set<String> fullTextKeys = helper.getIndexes().getFullTextKeys(className);
+    List<String> filterArgs = new ArrayList<>();
+    OfflineQueryLogic.SubQueryIndexes subQueries = new OfflineQueryLogic.SubQueryIndexes() {
+      @Override
+      public Set<String> getIndexedKeys(String className) {
+        return helper.getIndexes().getIndexedKeys(className);
+      }
 
-    Task<Cursor> queryTask;
-    if (pin == null) {
-      String table = OfflineSQLiteOpenHelper.TABLE_OBJECTS;
-      String[] select = { OfflineSQLiteOpenHelper.KEY_UUID };
-      String where = OfflineSQLiteOpenHelper.KEY_CLASS_NAME + "=?";
-      if (!includeIsDeletingEventually) {
-        where += " AND " + OfflineSQLiteOpenHelper.KEY_IS_DELETING_EVENTUALLY + "=0";
+      @Override
+      public Set<String> getFullTextKeys(String className) {
+        return helper.getIndexes().getFullTextKeys(className);
       }
-      String[] args = { query.className() };
 
-      queryTask = db.queryAsync(table, select, where, args);
-    } else {
-      Task<String> uuidTask = objectToUuidMap.get(pin);
-      if (uuidTask == null) {
-        // Pin was never saved locally, therefore there won't be any results.
-        return Task.forResult(results);
+      @Override
+      public Set<String> getDirtyUUIDs(String className) {
+        return OfflineStore.this.getDirtyUUIDs(className);
       }
+    };
+    String filter = OfflineQueryLogic.createIndexFilter(
+        "A", className, query.constraints(), indexedKeys, fullTextKeys, subQueries, filterArgs);
+    if (filter == null) {
+      return "";
+    }
 
-      queryTask = uuidTask.onSuccessTask(new Continuation<String, Task<Cursor>>() {
-        @Override
-        public Task<Cursor> then(Task<String> task) throws Exception {
-          String uuid = task.getResult();
+    if (args.size() + filterArgs.size() + dirtyUuids.size() + reserved > MAX_SQL_VARIABLES) {
+      // Scanning the whole class is still correct, just slower.
+      return "";
+    }
 
-          String table = OfflineSQLiteOpenHelper.TABLE_OBJECTS + " A " +
-              " INNER JOIN " + OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES + " B " +
-              " ON A." + OfflineSQLiteOpenHelper.KEY_UUID + "=B." + OfflineSQLiteOpenHelper.KEY_UUID;
-          String[] select = {"A." + OfflineSQLiteOpenHelper.KEY_UUID};
-          String where = OfflineSQLiteOpenHelper.KEY_CLASS_NAME + "=?" +
-              " AND " + OfflineSQLiteOpenHelper.KEY_KEY + "=?";
-          if (!includeIsDeletingEventually) {
-            where += " AND " + OfflineSQLiteOpenHelper.KEY_IS_DELETING_EVENTUALLY + "=0";
-          }
-          String[] args = { query.className(), uuid };
+    args.addAll(filterArgs);
+    if (dirtyUuids.isEmpty()) {
+      return " AND " + filter;
+    }
+    args.addAll(dirtyUuids);
+    return " AND (" + filter + " OR A." + OfflineSQLiteOpenHelper.KEY_UUID + " IN (" +
+        TextUtils.join(", ", Collections.nCopies(dirtyUuids.size(), "?")) + "))";
+  }
+
+  /**
+   * Fetches and matches the rows of a query a page at a time. Within a page, objects are decoded
+   * from the rows that were already read and matched in a plain loop, so that a query only goes
+   * async between pages, or when a constraint such as $inQuery actually has to wait on something.
+   */
+  private class QueryPager<T extends ParseObject> {
+    private final Cursor cursor;
+    private final ConstraintMatcher<T> matcher;
+    private final BoundedSortedList<T> results;
+    private final int bound;
+    private final boolean isOrdered;
+    private final boolean hasSortableColumn;
+    private final Set<String> dirtyUuids;
+    private final OfflineQueryProfile profile;
+    private final OfflineAggregation aggregation;
+    private final ParseSQLiteDatabase db;
+
+    // The number of results we've found in rows that came out of the database in order.
+    private int orderedCount = 0;
+    // The number of objects that matched.
+    private int matchCount = 0;
+
+    /**
+     * @param cursor
+     *          The rows to look at, with the uuid, className, objectId, json and data columns,
+     *          followed by whether the row is sortable if {@code hasSortableColumn}.
+     * @param results
+     *          (Optional) The list to add the objects that match to. If null, they're only
+     *          counted.
+     * @param isOrdered
+     *          Whether the rows come out of the database in the same order as the results are
+     *          sorted, so that we can stop looking at them as soon as we have {@code bound}
+     *          results.
+     * @param profile
+     *          (Optional) Where to count the rows, and time matching and sorting them.
+     * @param aggregation
+     *          (Optional) Where to reduce the objects that match as they're found.
+     */
+    private QueryPager(Cursor cursor, ConstraintMatcher<T> matcher, BoundedSortedList<T> results,
+        int bound, boolean isOrdered, boolean hasSortableColumn, Set<String> dirtyUuids,
+        OfflineQueryProfile profile, OfflineAggregation aggregation, ParseSQLiteDatabase db) {
+      this.cursor = cursor;
+      this.matcher = matcher;
+      this.results = results;
+      this.bound = bound;
+      this.isOrdered = isOrdered;
+      this.hasSortableColumn = hasSortableColumn;
+      this.dirtyUuids = dirtyUuids;
+      this.profile = profile;
+      this.aggregation = aggregation;
+      this.db = db;
+      cursor.moveToFirst();
+    }
 
-          return db.queryAsync(table, select, where, args);
+    /**
+     * Fetches and matches every remaining row.
+     */
+    private Task<Void> runAsync() {
+      if (isOrdered && !hasSortableColumn && orderedCount >= bound) {
+        // Every row is in order, so none of the remaining rows can be in the results.
+        return Task.forResult(null);
+      }
+      List<QueryRow> page = readPage();
+      if (page == null) {
+        return Task.forResult(null);
+      }
+      return runPageAsync(page).onSuccessTask(new Continuation<Void, Task<Void>>() {
+        @Override
+        public Task<Void> then(Task<Void> task) throws Exception {
+          return runAsync();
         }
       });
     }
 
-    return queryTask.onSuccessTask(new Continuation<Cursor, Task<Void>>() {
-      @Override
-      public Task<Void> then(Task<Cursor> task) throws Exception {
-        Cursor cursor = task.getResult();
-        List<String> uuids = new ArrayList<>();
-        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-          uuids.add(cursor.getString(0));
+    /**
+     * Reads up to {@link #QUERY_PAGE_SIZE} rows that still need to be looked at.
+     *
+     * @return The rows, or {@code null} if there aren't any left.
+     */
+    private List<QueryRow> readPage() {
+      if (cursor.isAfterLast()) {
+        return null;
+      }
+      List<QueryRow> page = new ArrayList<>(QUERY_PAGE_SIZE);
+      int scanned = 0;
+      for (; page.size() < QUERY_PAGE_SIZE && !cursor.isAfterLast(); cursor.moveToNext()) {
+        scanned++;
+        String uuid = cursor.getString(0);
+        // Rows that the database couldn't put in order have to be sorted in memory.
+        boolean isInOrder = isOrdered && !(hasSortableColumn
+            && (cursor.getInt(5) == 0 || dirtyUuids.contains(uuid)));
+        if (isInOrder && orderedCount >= bound) {
+          // This and every following ordered row sort after the results we already have.
+          continue;
         }
-        cursor.close();
+        page.add(new QueryRow(uuid, cursor.getString(1), cursor.getString(2),
+            cursor.getString(3), cursor.getBlob(4), isInOrder));
+      }
+      if (profile != null) {
+        profile.addRowsScanned(scanned);
+      }
+      return page;
+    }
 
-        // Find objects that match the where clause.
-        final ConstraintMatcher<T> matcher = queryLogic.createMatcher(query, user);
+    private Task<Void> runPageAsync(final List<QueryRow> page) {
+      final long matchStart = System.nanoTime();
+      final List<T> objects = new ArrayList<>(page.size());
+      synchronized (lock) {
+        for (QueryRow row : page) {
+          objects.add(OfflineStore.this.<T>getPointer(row.uuid, row.className, row.objectId));
+        }
+      }
 
-        Task<Void> checkedAllObjects = Task.forResult(null);
-        for (final String uuid : uuids) {
-          final Capture<T> object = new Capture<>();
+      /*
+       * Parse the rows of the objects that still need to be fetched, and look up every object that
+       * they point to in one go.
+       */
+      final PrefetchedRows prefetched = new PrefetchedRows();
+      for (int i = 0; i < page.size(); i++) {
+        QueryRow row = page.get(i);
+        boolean needsFetch;
+        synchronized (lock) {
+          needsFetch = row.objectId != null && !fetchedObjects.containsKey(objects.get(i))
+              && !objectToUuidMap.containsKey(objects.get(i));
+        }
+        if (!needsFetch) {
+          continue;
+        }
+        prefetched.rows.put(Pair.create(row.className, row.objectId),
+            new ObjectRow(row.uuid, row.json, row.data));
+      }
+      if (profile != null) {
+        profile.addRowsDecoded(prefetched.rows.size());
+      }
 
-          checkedAllObjects = checkedAllObjects.onSuccessTask(new Continuation<Void, Task<T>>() {
-            @Override
-            public Task<T> then(Task<Void> task) throws Exception {
-              return getPointerAsync(uuid, db);
-            }
-          }).onSuccessTask(new Continuation<T, Task<T>>() {
-            @Override
-            public Task<T> then(Task<T> task) throws Exception {
-              object.set(task.getResult());
-              return fetchLocallyAsync(object.get(), db);
-            }
-          }).onSuccessTask(new Continuation<T, Task<Boolean>>() {
+      Task<Void> task = prefetchPointersAsync(prefetched, db).onSuccessTask(
+          new Continuation<Void, Task<Void>>() {
+        @Override
+        public Task<Void> then(Task<Void> task) throws Exception {
+          return matchPageAsync(page, objects, prefetched);
+        }
+      });
+      if (profile == null) {
+        return task;
+      }
+      final int matchedBefore = matchCount;
+      final long sortedBefore = profile.getSortNanos();
+      return task.onSuccess(new Continuation<Void, Void>() {
+        @Override
+        public Void then(Task<Void> task) throws Exception {
+          // Adding the matches to the results is counted as sorting rather than matching.
+          long sortNanos = profile.getSortNanos() - sortedBefore;
+          profile.addMatchNanos(System.nanoTime() - matchStart - sortNanos);
+          profile.addRowsMatched(matchCount - matchedBefore);
+          return null;
+        }
+      });
+    }
+
+    private Task<Void> matchPageAsync(final List<QueryRow> page, final List<T> objects,
+        PrefetchedRows prefetched) {
+      final List<Task<Boolean>> matches = new ArrayList<>(objects.size());
+      boolean isCompleted = true;
+      for (final T object : objects) {
+        Task<T> fetchTask = fetchLocallyAsync(object, prefetched, db);
+        Task<Boolean> matchTask;
+        if (fetchTask.isCompleted() && !fetchTask.isFaulted() && !fetchTask.isCancelled()) {
+          matchTask = object.isDataAvailable()
+              ? matcher.matchesAsync(object, db)
+              : Task.forResult(false);
+        } else {
+          matchTask = fetchTask.onSuccessTask(new Continuation<T, Task<Boolean>>() {
             @Override
             public Task<Boolean> then(Task<T> task) throws Exception {
-              if (!object.get().isDataAvailable()) {
+              if (!object.isDataAvailable()) {
                 return Task.forResult(false);
               }
-              return matcher.matchesAsync(object.get(), db);
-            }
-          }).onSuccess(new Continuation<Boolean, Void>() {
-            @Override
-            public Void then(Task<Boolean> task) {
-              if (task.getResult()) {
-                results.add(object.get());
-              }
-              return null;
+              return matcher.matchesAsync(object, db);
             }
           });
         }
-
-        return checkedAllObjects;
+        matches.add(matchTask);
+        isCompleted = isCompleted && matchTask.isCompleted();
       }
-    }).onSuccessTask(new Continuation<Void, Task<List<T>>>() {
-      @Override
-      public Task<List<T>> then(Task<Void> task) throws Exception {
-        // Sort by any sort operators.
-        OfflineQueryLogic.sort(results, query);
 
-        // Apply the skip.
-        List<T> trimmedResults = results;
-        int skip = query.skip();
-        if (!isCount && skip >= 0) {
-          skip = Math.min(query.skip(), trimmedResults.size());
-          trimmedResults = trimmedResults.subList(skip, trimmedResults.size());
+      if (isCompleted) {
+        try {
+          collect(page, objects, matches);
+        } catch (Exception e) {
+          return Task.forError(e);
         }
-
-        // Trim to the limit.
-        int limit = query.limit();
-        if (!isCount && limit >= 0 && trimmedResults.size() > limit) {
-          trimmedResults = trimmedResults.subList(0, limit);
+        return Task.forResult(null);
+      }
+      return Task.whenAll(matches).onSuccess(new Continuation<Void, Void>() {
+        @Override
+        public Void then(Task<Void> task) throws Exception {
+          collect(page, objects, matches);
+          return null;
         }
+      });
+    }
 
-        // Fetch the includes.
-        Task<Void> fetchedIncludesTask = Task.forResult(null);
-        for (final T object : trimmedResults) {
-          fetchedIncludesTask = fetchedIncludesTask.onSuccessTask(new Continuation<Void, Task<Void>>() {
-            @Override
-            public Task<Void> then(Task<Void> task) throws Exception {
-              return OfflineQueryLogic.fetchIncludesAsync(OfflineStore.this, object, query, db);
-            }
-          });
+    /**
+     * Adds the objects that matched to the results, in the order of the rows.
+     */
+    private void collect(List<QueryRow> page, List<T> objects, List<Task<Boolean>> matches)
+        throws Exception {
+      for (int i = 0; i < matches.size(); i++) {
+        Task<Boolean> match = matches.get(i);
+        if (match.isFaulted()) {
+          throw match.getError();
         }
-
-        final List<T> finalTrimmedResults = trimmedResults;
-        return fetchedIncludesTask.onSuccess(new Continuation<Void, List<T>>() {
-          @Override
-          public List<T> then(Task<Void> task) throws Exception {
-            return finalTrimmedResults;
-          }
-        });
-      }
+        if (match.isCancelled()) {
+          throw new CancellationException();
+        }
+        if (!match.getResult()) {
+          continue;
+        }
+        matchCount++;
+        if (aggregation != null) {
+          aggregation.add(objects.get(i));
+        }
+        if (results == null) {
+          continue;
+        }
+        boolean isInOrder = page.get(i).isInOrder;
+        if (isInOrder && orderedCount >= bound) {
+          continue;
+        }
+        long sortStart = profile != null ? System.nanoTime() : 0;
+        results.add(objects.get(i));
+        if (profile != null) {
+          profile.addSortNanos(System.nanoTime() - sortStart);
+        }
+        if (isInOrder) {
+          orderedCount++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs a ParseQuery against the store's contents. May cause any instances of T to get fetched
+   * from the offline database. TODO(klimt): Should the query consider objects that are in memory,
+   * but not in the offline store?
+   *
+   * @param query The query.
+   * @param user The user making the query.
+   * @param pin (Optional) The pin we are querying across. If null, all pins.
+   * @param db The SQLiteDatabase.
+   * @param <T> Subclass of ParseObject.
+   * @return The objects that match the query's constraints.
+   */
+  /* package for OfflineQueryLogic */ <T extends ParseObject> Task<List<T>> findAsync(
+      final ParseQuery.State<T> query,
+      final ParseUser user,
+      final ParsePin pin,
+      final ParseSQLiteDatabase db) {
+    return findAsync(query, user, pin, null, db);
+  }
+
+  /**
+   * The same as {@link #findAsync(ParseQuery.State, ParseUser, ParsePin, ParseSQLiteDatabase)},
+   * but if {@code profile} is non-null, what the query did and how long each stage took is
+   * recorded in it.
+   */
+  private <T extends ParseObject> Task<List<T>> findAsync(
+      final ParseQuery.State<T> query,
+      final ParseUser user,
+      final ParsePin pin,
+      final OfflineQueryProfile profile,
+      final ParseSQLiteDatabase db) {
+    final Comparator<T> comparator;
+    try {
+      comparator = OfflineQueryLogic.createComparator(query);
+    } catch (ParseException e) {
+      return Task.forError(e);
+    }
+
+    /*
+     * Only the first skip + limit results are returned, so that's all we ever need to hold on to.
+     */
+    int bound = query.limit() >= 0
+        ? query.limit() + Math.max(query.skip(), 0)
+        : -1;
+    final BoundedSortedList<T> results = new BoundedSortedList<>(bound, comparator);
+
+    return matchAsync(
+        query, user, pin, results, bound, comparator, profile, null, db).onSuccessTask(
+        new Continuation<Integer, Task<List<T>>>() {
+      @Override
+      public Task<List<T>> then(Task<Integer> task) throws Exception {
+        long sortStart = System.nanoTime();
+        // The results are already sorted by any sort operators.
+        List<T> trimmedResults = results.toList();
+
+        // Apply the skip.
+        int skip = query.skip();
+        if (skip >= 0) {
+          skip = Math.min(query.skip(), trimmedResults.size());
+          trimmedResults = trimmedResults.subList(skip, trimmedResults.size());
+        }
+
+        // Trim to the limit.
+        int limit = query.limit();
+        if (limit >= 0 && trimmedResults.size() > limit) {
+          trimmedResults = trimmedResults.subList(0, limit);
+        }
+
+        // Fetch the includes of every result together.
+        final List<T> finalTrimmedResults = trimmedResults;
+        final long includeStart = System.nanoTime();
+        if (profile != null) {
+          profile.addSortNanos(includeStart - sortStart);
+        }
+        return OfflineQueryLogic.fetchIncludesAsync(
+            OfflineStore.this, finalTrimmedResults, query, db).onSuccess(new Continuation<Void, List<T>>() {
+          @Override
+          public List<T> then(Task<Void> task) throws Exception {
+            if (profile != null) {
+              profile.addIncludeNanos(System.nanoTime() - includeStart);
+              profile.setResultCount(finalTrimmedResults.size());
+            }
+            return finalTrimmedResults;
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Counts the objects that match a ParseQuery. When the secondary indexes can tell exactly which
+   * objects match, they're counted in SQL. Otherwise the objects are matched the same way
+   * {@link #findAsync} does, but nothing is kept and no includes are fetched.
+   */
+  private <T extends ParseObject> Task<Integer> countAsync(
+      final ParseQuery.State<T> query,
+      final ParseUser user,
+      final ParsePin pin,
+      final ParseSQLiteDatabase db) {
+    return countFromIndexesAsync(query, pin, db).onSuccessTask(
+        new Continuation<Integer, Task<Integer>>() {
+      @Override
+      public Task<Integer> then(Task<Integer> task) throws Exception {
+        Integer count = task.getResult();
+        if (count != null) {
+          return Task.forResult(count);
+        }
+        // The order doesn't matter when we're counting, and there's no limit.
+        return matchAsync(query, user, pin, null, -1, null, null, null, db);
+      }
+    });
+  }
+
+  /**
+   * Answers a count with {@code SELECT COUNT(*)} if every constraint of the query can be answered
+   * exactly by the secondary indexes.
+   *
+   * @return The count, or {@code null} if the objects have to be matched one by one.
+   */
+  private Task<Integer> countFromIndexesAsync(final ParseQuery.State<?> query, ParsePin pin,
+      final ParseSQLiteDatabase db) {
+    final String className = query.className();
+    final Set<String> indexedKeys = helper.getIndexes().getIndexedKeys(className);
+    /*
+     * ACLs can only be checked on the objects themselves, and objects with changes in memory may
+     * not match what's stored.
+     */
+    if (!query.ignoreACLs()
+        || !OfflineQueryLogic.isIndexFilterExact(query.constraints(), indexedKeys)
+        || !getDirtyUUIDs(className).isEmpty()) {
+      return Task.forResult(null);
+    }
+
+    Task<String> pinUuidTask;
+    if (pin == null) {
+      pinUuidTask = Task.forResult(null);
+    } else {
+      pinUuidTask = objectToUuidMap.get(pin);
+      if (pinUuidTask == null) {
+        // Pin was never saved locally, therefore there won't be any results.
+        return Task.forResult(0);
+      }
+    }
+
+    return pinUuidTask.onSuccessTask(new Continuation<String, Task<Integer>>() {
+      @Override
+      public Task<Integer> then(Task<String> task) throws Exception {
+        String pinUuid = task.getResult();
+
+        final List<String> args = new ArrayList<>();
+        final String countSql = "SELECT COUNT(*) FROM " + OfflineSQLiteOpenHelper.TABLE_OBJECTS +
+            " A" + createIndexedWhere(query, indexedKeys, pinUuid, args);
+        if (args.size() > MAX_SQL_VARIABLES) {
+          return Task.forResult(null);
+        }
+
+        return db.runBatchAsync(new ParseSQLiteDatabase.Batch<Integer>() {
+          @Override
+          public Integer run(SQLiteDatabase sqlDb) {
+            // Rows whose value isn't known match every lookup, so they'd be counted regardless.
+            if (hasUnknownIndexValues(className, db)) {
+              return null;
+            }
+            return (int) db.longForQuery(countSql, args.toArray(new String[args.size()]));
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Builds the rest of a FROM clause on the objects table, aliased as {@code A}, and the WHERE
+   * clause that picks out the stored objects of {@code query} with the secondary indexes. Its
+   * arguments are added to {@code args}, after any that came before it.
+   *
+   * @param pinUuid
+   *          The uuid of the pin to look in, or {@code null} to look at every object.
+   */
+  private static String createIndexedWhere(ParseQuery.State<?> query, Set<String> indexedKeys,
+      String pinUuid, List<String> args) {
+    String sql = "";
+    if (pinUuid != null) {
+      sql += " INNER JOIN " + OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES + " B" +
+          " ON A." + OfflineSQLiteOpenHelper.KEY_UUID + "=B." + OfflineSQLiteOpenHelper.KEY_UUID;
+    }
+    sql += " WHERE A." + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + "=?";
+    args.add(query.className());
+    if (pinUuid != null) {
+      sql += " AND B." + OfflineSQLiteOpenHelper.KEY_KEY + "=?";
+      args.add(pinUuid);
+    }
+    sql += " AND A." + OfflineSQLiteOpenHelper.KEY_IS_DELETING_EVENTUALLY + "=0";
+    // Objects without any data are never matched.
+    sql += " AND (A." + OfflineSQLiteOpenHelper.KEY_JSON + " IS NOT NULL" +
+        " OR A." + OfflineSQLiteOpenHelper.KEY_DATA + " IS NOT NULL)";
+    String filter = OfflineQueryLogic.createIndexFilter(
+        "A", query.className(), query.constraints(), indexedKeys, args);
+    if (filter != null) {
+      sql += " AND " + filter;
+    }
+    return sql;
+  }
+
+  /**
+   * @return Whether any of the indexed values of {@code className} couldn't be read. This must be
+   * run from a {@link ParseSQLiteDatabase.Batch}.
+   */
+  private static boolean hasUnknownIndexValues(String className, ParseSQLiteDatabase db) {
+    return db.longForQuery(
+        "SELECT COUNT(*) FROM " + OfflineSQLiteOpenHelper.TABLE_INDEXES +
+        " WHERE " + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + "=?" +
+        " AND " + OfflineSQLiteOpenHelper.KEY_TYPE + "=" + OfflineIndexes.TYPE_UNKNOWN,
+        new String[] { className }) > 0;
+  }
+
+  /**
+   * Groups and reduces the objects that match a ParseQuery. When the secondary indexes can tell
+   * exactly which objects match and hold every key the aggregation looks at, it's all done in SQL.
+   * Otherwise the objects are matched the same way {@link #countAsync} does, and reduced as they
+   * match, so none of them are kept.
+   */
+  private <T extends ParseObject> Task<Map<Object, Map<String, Number>>> aggregateAsync(
+      final ParseQuery.State<T> query,
+      final ParseUser user,
+      final ParsePin pin,
+      final OfflineAggregation aggregation,
+      final ParseSQLiteDatabase db) {
+    return aggregateFromIndexesAsync(query, pin, aggregation, db).onSuccessTask(
+        new Continuation<Boolean, Task<Integer>>() {
+      @Override
+      public Task<Integer> then(Task<Boolean> task) throws Exception {
+        if (task.getResult()) {
+          return Task.forResult(null);
+        }
+        aggregation.clear();
+        return matchAsync(query, user, pin, null, -1, null, null, aggregation, db);
+      }
+    }).onSuccess(new Continuation<Integer, Map<Object, Map<String, Number>>>() {
+      @Override
+      public Map<Object, Map<String, Number>> then(Task<Integer> task) throws Exception {
+        return aggregation.getResults();
+      }
+    });
+  }
+
+  /**
+   * Computes an aggregation in SQL, under the same conditions as {@link #countFromIndexesAsync},
+   * if every key it groups by or reduces is indexed.
+   *
+   * @return Whether the results were computed, or {@code false} if the objects have to be matched
+   * one by one.
+   */
+  private Task<Boolean> aggregateFromIndexesAsync(final ParseQuery.State<?> query, ParsePin pin,
+      final OfflineAggregation aggregation, final ParseSQLiteDatabase db) {
+    final String className = query.className();
+    final Set<String> indexedKeys = helper.getIndexes().getIndexedKeys(className);
+    if (!query.ignoreACLs()
+        || !aggregation.isIndexed(indexedKeys)
+        || !OfflineQueryLogic.isIndexFilterExact(query.constraints(), indexedKeys)
+        || !getDirtyUUIDs(className).isEmpty()) {
+      return Task.forResult(false);
+    }
+
+    Task<String> pinUuidTask;
+    if (pin == null) {
+      pinUuidTask = Task.forResult(null);
+    } else {
+      pinUuidTask = objectToUuidMap.get(pin);
+      if (pinUuidTask == null) {
+        // Pin was never saved locally, therefore there won't be any results.
+        return Task.forResult(true);
+      }
+    }
+
+    return pinUuidTask.onSuccessTask(new Continuation<String, Task<Boolean>>() {
+      @Override
+      public Task<Boolean> then(Task<String> task) throws Exception {
+        String pinUuid = task.getResult();
+
+        final List<String> args = new ArrayList<>();
+        String select = aggregation.createSelect(OfflineSQLiteOpenHelper.TABLE_OBJECTS, args);
+        final String aggregateSql = "SELECT " + select +
+            createIndexedWhere(query, indexedKeys, pinUuid, args) + aggregation.createGroupBy();
+        if (args.size() > MAX_SQL_VARIABLES) {
+          return Task.forResult(false);
+        }
+
+        return db.runBatchAsync(new ParseSQLiteDatabase.Batch<Boolean>() {
+          @Override
+          public Boolean run(SQLiteDatabase sqlDb) {
+            // Rows whose value isn't known match every lookup, so they'd be reduced regardless.
+            if (hasUnknownIndexValues(className, db)) {
+              return false;
+            }
+            List<String[]> rows = ParseSQLiteDatabase.readStrings(
+                db.rawQuery(aggregateSql, args.toArray(new String[args.size()])));
+            for (String[] row : rows) {
+              if (!aggregation.readRow(row)) {
+                return false;
+              }
+            }
+            return true;
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Records SQLite's plan for running {@code sql} in {@code profile}.
+   */
+  private Task<Void> explainAsync(String sql, String[] args, final OfflineQueryProfile profile,
+      ParseSQLiteDatabase db) {
+    return db.queryStringsAsync("EXPLAIN QUERY PLAN " + sql, args).onSuccess(
+        new Continuation<List<String[]>, Void>() {
+      @Override
+      public Void then(Task<List<String[]>> task) throws Exception {
+        // The last column describes each step, whichever version of SQLite this is.
+        for (String[] row : task.getResult()) {
+          profile.addPlan(row[row.length - 1]);
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Runs the constraints of a ParseQuery against the store's contents. May cause any instances of
+   * T to get fetched from the offline database.
+   *
+   * @param results
+   *          (Optional) The list to add the objects that match to. If null, they're only counted.
+   * @param bound
+   *          The number of results that are needed, or -1 for all of them.
+   * @param comparator
+   *          (Optional) The order of the results.
+   * @param profile
+   *          (Optional) Where to record the plan of the query, and the rows it looked at.
+   * @param aggregation
+   *          (Optional) Where to reduce the objects that match, one at a time.
+   * @return The number of objects that matched.
+   */
+  private <T extends ParseObject> Task<Integer> matchAsync(
+      final ParseQuery.State<T> query,
+      final ParseUser user,
+      final ParsePin pin,
+      final BoundedSortedList<T> results,
+      final int bound,
+      final Comparator<T> comparator,
+      final OfflineQueryProfile profile,
+      final OfflineAggregation aggregation,
+      final ParseSQLiteDatabase db) {
+    /*
+     * This is currently unused, but is here to allow future querying across objects that are in the
+     * process of being deleted eventually.
+     */
+    final boolean includeIsDeletingEventually = false;
+
+    final OfflineQueryLogic queryLogic = new OfflineQueryLogic(this);
+
+    final String className = query.className();
+    final Set<String> dirtyUuids = getDirtyUUIDs(className);
+    final OfflineQueryLogic.IndexOrder order = bound >= 0 && comparator != null
+        ? OfflineQueryLogic.createIndexOrder(
+            "A", className, query, helper.getIndexes().getIndexedKeys(className))
+        : null;
+    /*
+     * If the rows come out of the database in the same order as the results are sorted, we can
+     * stop looking at them as soon as we have enough results.
+     */
+    final boolean isOrdered = bound >= 0 && (comparator == null || order != null);
+
+    Task<String> pinUuidTask;
+    if (pin == null) {
+      pinUuidTask = Task.forResult(null);
+    } else {
+      pinUuidTask = objectToUuidMap.get(pin);
+      if (pinUuidTask == null) {
+        // Pin was never saved locally, therefore there won't be any results.
+        return Task.forResult(0);
+      }
+    }
+
+    Task<Cursor> queryTask = pinUuidTask.onSuccessTask(new Continuation<String, Task<Cursor>>() {
+      @Override
+      public Task<Cursor> then(Task<String> task) throws Exception {
+        String pinUuid = task.getResult();
+
+        List<String> args = new ArrayList<>();
+        // Everything needed to fetch the objects, so that they don't need queries of their own.
+        String sql = "SELECT A." + OfflineSQLiteOpenHelper.KEY_UUID +
+            ", A." + OfflineSQLiteOpenHelper.KEY_CLASS_NAME +
+            ", A." + OfflineSQLiteOpenHelper.KEY_OBJECT_ID +
+            ", A." + OfflineSQLiteOpenHelper.KEY_JSON +
+            ", A." + OfflineSQLiteOpenHelper.KEY_DATA;
+        if (order != null) {
+          sql += ", " + order.sortable;
+          args.addAll(order.sortableArgs);
+        }
+        sql += " FROM " + OfflineSQLiteOpenHelper.TABLE_OBJECTS + " A";
+        if (pinUuid != null) {
+          sql += " INNER JOIN " + OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES + " B" +
+              " ON A." + OfflineSQLiteOpenHelper.KEY_UUID + "=B." + OfflineSQLiteOpenHelper.KEY_UUID;
+        }
+        sql += " WHERE A." + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + "=?";
+        args.add(className);
+        if (pinUuid != null) {
+          sql += " AND B." + OfflineSQLiteOpenHelper.KEY_KEY + "=?";
+          args.add(pinUuid);
+        }
+        if (!includeIsDeletingEventually) {
+          sql += " AND A." + OfflineSQLiteOpenHelper.KEY_IS_DELETING_EVENTUALLY + "=0";
+        }
+        int reserved = order != null ? order.orderByArgs.size() : 0;
+        sql += createIndexFilter(query, dirtyUuids, args, reserved);
+        if (order != null) {
+          sql += " ORDER BY " + order.orderBy;
+          args.addAll(order.orderByArgs);
+        }
+
+        final String[] sqlArgs = args.toArray(new String[args.size()]);
+        if (profile == null) {
+          return db.rawQueryAsync(sql, sqlArgs);
+        }
+        final String querySql = sql;
+        return explainAsync(querySql, sqlArgs, profile, db).onSuccessTask(
+            new Continuation<Void, Task<Cursor>>() {
+          @Override
+          public Task<Cursor> then(Task<Void> task) throws Exception {
+            final long queryStart = System.nanoTime();
+            return db.rawQueryAsync(querySql, sqlArgs).onSuccess(
+                new Continuation<Cursor, Cursor>() {
+              @Override
+              public Cursor then(Task<Cursor> task) throws Exception {
+                profile.addQueryNanos(System.nanoTime() - queryStart);
+                return task.getResult();
+              }
+            });
+          }
+        });
+      }
+    });
+
+    return queryTask.onSuccessTask(new Continuation<Cursor, Task<Integer>>() {
+      @Override
+      public Task<Integer> then(Task<Cursor> task) throws Exception {
+        final Cursor cursor = task.getResult();
+
+        // Find objects that match the where clause.
+        final ConstraintMatcher<T> matcher = queryLogic.createMatcher(query, user);
+        final QueryPager<T> pager = new QueryPager<>(cursor, matcher, results, bound, isOrdered,
+            order != null, dirtyUuids, profile, aggregation, db);
+
+        // A continueWithTask that ends with "return task" is essentially a try-finally.
+        return pager.runAsync().continueWithTask(new Continuation<Void, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<Void> task) throws Exception {
+            cursor.close();
+            return task;
+          }
+        }).onSuccess(new Continuation<Void, Integer>() {
+          @Override
+          public Integer then(Task<Void> task) throws Exception {
+            return pager.matchCount;
+          }
+        });
+      }
     });
   }
 
@@ -484,6 +1383,21 @@ import bolts.Task;
   /* package for OfflineQueryLogic */ <T extends ParseObject> Task<T> fetchLocallyAsync(
       final T object,
       final ParseSQLiteDatabase db) {
+    return fetchLocallyAsync(object, null, db);
+  }
+
+  /**
+   * Gets the data for the given object from the offline database, the same as
+   * {@link #fetchLocallyAsync(ParseObject, ParseSQLiteDatabase)}.
+   *
+   * @param prefetched
+   *          If non-null, rows that were read in bulk, so that a pointer to an existing ParseObject
+   *          doesn't need a query of its own.
+   */
+  private <T extends ParseObject> Task<T> fetchLocallyAsync(
+      final T object,
+      final PrefetchedRows prefetched,
+      final ParseSQLiteDatabase db) {
     final Task<T>.TaskCompletionSource tcs = Task.create();
     Task<String> uuidTask;
 
@@ -493,9 +1407,11 @@ import bolts.Task;
          * The object has already been fetched from the offline store, so any data that's in there
          * is already reflected in the in-memory version. There's nothing more to do.
          */
+        objectCache.hit(object);
         //noinspection unchecked
         return (Task<T>) fetchedObjects.get(object);
       }
+      objectCache.miss();
 
       /*
        * Put a placeholder so that anyone else who attempts to fetch this object will just wait for
@@ -513,7 +1429,7 @@ import bolts.Task;
      * If this gets set, then it will contain data from the offline store that needs to be merged
      * into the existing object in memory.
      */
-    Task<String> jsonStringTask = Task.forResult(null);
+    Task<ObjectRow> rowTask = Task.forResult(null);
 
     if (objectId == null) {
       // This Object has never been saved to Parse.
@@ -532,29 +1448,22 @@ import bolts.Task;
          * a object with a pointer to it was fetched, so we only created the pointer. We need to
          * pull the data out of the database using the UUID.
          */
-        final String[] select = { OfflineSQLiteOpenHelper.KEY_JSON };
-        final String where = OfflineSQLiteOpenHelper.KEY_UUID + " = ?";
         final Capture<String> uuid = new Capture<>();
-        jsonStringTask = uuidTask.onSuccessTask(new Continuation<String, Task<Cursor>>() {
+        rowTask = uuidTask.onSuccessTask(new Continuation<String, Task<ObjectRow>>() {
           @Override
-          public Task<Cursor> then(Task<String> task) throws Exception {
+          public Task<ObjectRow> then(Task<String> task) throws Exception {
             uuid.set(task.getResult());
             String[] args = { uuid.get() };
-            return db.queryAsync(OfflineSQLiteOpenHelper.TABLE_OBJECTS, select, where, args);
+            return queryObjectRowAsync(SQL_SELECT_ROW_BY_UUID, args, db);
           }
-        }).onSuccess(new Continuation<Cursor, String>() {
+        }).onSuccess(new Continuation<ObjectRow, ObjectRow>() {
           @Override
-          public String then(Task<Cursor> task) throws Exception {
-            Cursor cursor = task.getResult();
-            cursor.moveToFirst();
-            if (cursor.isAfterLast()) {
-              cursor.close();
+          public ObjectRow then(Task<ObjectRow> task) throws Exception {
+            ObjectRow row = task.getResult();
+            if (row == null) {
               throw new IllegalStateException("Attempted to find non-existent uuid " + uuid.get());
             }
-            String json = cursor.getString(0);
-            cursor.close();
-
-            return json;
+            return row;
           }
         });
       }
@@ -579,33 +1488,31 @@ import bolts.Task;
        * means this is a pointer. We need to try to find any existing entry for this object in the
        * database.
        */
-      String[] select = { OfflineSQLiteOpenHelper.KEY_JSON, OfflineSQLiteOpenHelper.KEY_UUID  };
-      String where =
-          String.format("%s = ? AND %s = ?", OfflineSQLiteOpenHelper.KEY_CLASS_NAME,
-              OfflineSQLiteOpenHelper.KEY_OBJECT_ID);
-      String[] args = { className, objectId };
-      jsonStringTask =
-          db.queryAsync(OfflineSQLiteOpenHelper.TABLE_OBJECTS, select, where, args).onSuccess(
-              new Continuation<Cursor, String>() {
+      Task<ObjectRow> prefetchedRowTask;
+      if (prefetched != null) {
+        prefetchedRowTask = Task.forResult(prefetched.rows.get(Pair.create(className, objectId)));
+      } else {
+        String[] args = { className, objectId };
+        prefetchedRowTask = queryObjectRowAsync(SQL_SELECT_ROW_BY_OBJECT_ID, args, db);
+      }
+      rowTask =
+          prefetchedRowTask.onSuccess(
+              new Continuation<ObjectRow, ObjectRow>() {
                 @Override
-                public String then(Task<Cursor> task) throws Exception {
-                  Cursor cursor = task.getResult();
-                  cursor.moveToFirst();
-                  if (cursor.isAfterLast()) {
+                public ObjectRow then(Task<ObjectRow> task) throws Exception {
+                  ObjectRow row = task.getResult();
+                  if (row == null) {
                     /*
                      * This is a pointer that came from Parse that references an object that has
                      * never been saved in the offline store before. This just means there's no data
                      * in the store that needs to be merged into the object.
                      */
-                    cursor.close();
                     throw new ParseException(ParseException.CACHE_MISS,
                         "This object is not available in the offline cache.");
                   }
 
                   // we should fetch its data and record its UUID for future reference.
-                  String jsonString = cursor.getString(0);
-                  String newUUID = cursor.getString(1);
-                  cursor.close();
+                  String newUUID = row.uuid;
 
                   synchronized (lock) {
                     /*
@@ -617,16 +1524,16 @@ import bolts.Task;
                     uuidToObjectMap.put(newUUID, object);
                   }
 
-                  return jsonString;
+                  return row;
                 }
               });
     }
 
-    return jsonStringTask.onSuccessTask(new Continuation<String, Task<Void>>() {
+    return rowTask.onSuccessTask(new Continuation<ObjectRow, Task<Void>>() {
       @Override
-      public Task<Void> then(Task<String> task) throws Exception {
-        String jsonString = task.getResult();
-        if (jsonString == null) {
+      public Task<Void> then(Task<ObjectRow> task) throws Exception {
+        final ObjectRow row = task.getResult();
+        if (row == null || row.isEmpty()) {
           /*
            * This means we tried to fetch an object from the database that was never actually saved
            * locally. This probably means that its parent object was saved locally and we just
@@ -642,30 +1549,36 @@ import bolts.Task;
            * things to maintain from the in-memory object are any changes since the object was last
            * put in the database.
            */
-          json = new JSONObject(jsonString);
+          row.decode();
+          json = row.json;
         } catch (JSONException e) {
           return Task.forError(e);
         }
 
         // Fetch all the offline objects before we decode.
         final Map<String, Task<ParseObject>> offlineObjects = new HashMap<>();
-
-        (new ParseTraverser() {
-          @Override
-          protected boolean visit(Object object) {
-            if (object instanceof JSONObject
-                && ((JSONObject) object).optString("__type").equals("OfflineObject")) {
-              String uuid = ((JSONObject) object).optString("uuid");
-              offlineObjects.put(uuid, getPointerAsync(uuid, db));
-            }
-            return true;
-          }
-        }).setTraverseParseObjects(false).setYieldRoot(false).traverse(json);
+        for (String uuid : row.referencedUuids) {
+          ParseObject pointer = prefetched != null ? prefetched.pointers.get(uuid) : null;
+          offlineObjects.put(uuid, pointer != null
+              ? Task.forResult(pointer)
+              : OfflineStore.this.<ParseObject>getPointerAsync(uuid, db));
+        }
 
         return Task.whenAll(offlineObjects.values()).onSuccess(new Continuation<Void, Void>() {
           @Override
           public Void then(Task<Void> task) throws Exception {
+            synchronized (lock) {
+              /*
+               * Read-only sessions don't wait for writers when the connection is pooled, so the
+               * object may have been deleted or stored again while the row was being read. The row
+               * is stale then, and merging it would undo whatever was done to the object since.
+               */
+              if (fetchedObjects.get(object) != tcs.getTask()) {
+                return null;
+              }
+            }
             object.mergeREST(object.getState(), json, new OfflineDecoder(offlineObjects));
+            objectCache.put(object, row.getSize());
             return null;
           }
         });
@@ -686,15 +1599,39 @@ import bolts.Task;
   }
 
   /**
-   * Gets the data for the given object from the offline database. Returns a task that will be
-   * completed if data for the object was available. If the object is not in the cache, the task
-   * will be faulted, with a CACHE_MISS error.
+   * Reads a single row of the objects table on the database thread.
    *
-   * @param object
-   *          The object to fetch.
+   * @param sql A query for the uuid, json and data columns.
+   * @return A task that resolves to the first row, or {@code null} if there isn't one.
    */
-  /* package */ <T extends ParseObject> Task<T> fetchLocallyAsync(final T object) {
-    return runWithManagedConnection(new SQLiteDatabaseCallable<Task<T>>() {
+  private Task<ObjectRow> queryObjectRowAsync(final String sql, final String[] args,
+      final ParseSQLiteDatabase db) {
+    return db.runBatchAsync(new ParseSQLiteDatabase.Batch<ObjectRow>() {
+      @Override
+      public ObjectRow run(SQLiteDatabase sqlDb) {
+        Cursor cursor = db.rawQuery(sql, args);
+        try {
+          if (!cursor.moveToFirst()) {
+            return null;
+          }
+          return new ObjectRow(cursor.getString(0), cursor.getString(1), cursor.getBlob(2));
+        } finally {
+          cursor.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * Gets the data for the given object from the offline database. Returns a task that will be
+   * completed if data for the object was available. If the object is not in the cache, the task
+   * will be faulted, with a CACHE_MISS error.
+   *
+   * @param object
+   *          The object to fetch.
+   */
+  /* package */ <T extends ParseObject> Task<T> fetchLocallyAsync(final T object) {
+    return runWithManagedReadOnlyConnection(new SQLiteDatabaseCallable<Task<T>>() {
       @Override
       public Task<T> call(ParseSQLiteDatabase db) {
         return fetchLocallyAsync(object, db);
@@ -703,40 +1640,135 @@ import bolts.Task;
   }
 
   /**
-   * Stores a single object in the local database. If the object is a pointer, isn't dirty, and has
-   * an objectId already, it may not be saved, since it would provide no useful data.
+   * Looks up the rows of every object in {@code objects} that is a pointer to an existing
+   * ParseObject which hasn't been fetched from the offline store yet, with one query for each class
+   * instead of one query for each object.
    *
-   * @param object
-   *          The object to save.
-   * @param db
-   *          A database connection to use.
+   * @return A task that resolves to the rows that were found.
    */
-  private Task<Void> saveLocallyAsync(
-      final String key, final ParseObject object, final ParseSQLiteDatabase db) {
-    // If this is just a clean, unfetched pointer known to Parse, then there is nothing to save.
-    if (object.getObjectId() != null && !object.isDataAvailable() && !object.hasChanges()
-        && !object.hasOutstandingOperations()) {
-      return Task.forResult(null);
+  private Task<PrefetchedRows> prefetchRowsAsync(
+      List<ParseObject> objects, final ParseSQLiteDatabase db) {
+    final Map<String, List<String>> objectIdsByClassName = new HashMap<>();
+    synchronized (lock) {
+      for (ParseObject object : objects) {
+        String objectId = object.getObjectId();
+        if (objectId == null || fetchedObjects.containsKey(object)
+            || objectToUuidMap.containsKey(object)) {
+          continue;
+        }
+        List<String> objectIds = objectIdsByClassName.get(object.getClassName());
+        if (objectIds == null) {
+          objectIds = new ArrayList<>();
+          objectIdsByClassName.put(object.getClassName(), objectIds);
+        }
+        objectIds.add(objectId);
+      }
     }
 
-    final Capture<String> uuidCapture = new Capture<>();
-
-    // Make sure we have a UUID for the object to be saved.
-    return getOrCreateUUIDAsync(object, db).onSuccessTask(new Continuation<String, Task<Void>>() {
+    final PrefetchedRows prefetched = new PrefetchedRows();
+    if (objectIdsByClassName.isEmpty()) {
+      return Task.forResult(prefetched);
+    }
+    return db.runBatchAsync(new ParseSQLiteDatabase.Batch<PrefetchedRows>() {
       @Override
-      public Task<Void> then(Task<String> task) throws Exception {
-        String uuid = task.getResult();
-        uuidCapture.set(uuid);
-        return updateDataForObjectAsync(uuid, object, db);
+      public PrefetchedRows run(SQLiteDatabase sqlDb) {
+        String[] select = { OfflineSQLiteOpenHelper.KEY_OBJECT_ID,
+            OfflineSQLiteOpenHelper.KEY_JSON, OfflineSQLiteOpenHelper.KEY_UUID,
+            OfflineSQLiteOpenHelper.KEY_DATA };
+        // Leave room for the className argument.
+        int chunkSize = MAX_SQL_VARIABLES - 1;
+        for (Map.Entry<String, List<String>> entry : objectIdsByClassName.entrySet()) {
+          String className = entry.getKey();
+          List<String> objectIds = entry.getValue();
+          for (int start = 0; start < objectIds.size(); start += chunkSize) {
+            List<String> chunk =
+                objectIds.subList(start, Math.min(start + chunkSize, objectIds.size()));
+            List<String> args = new ArrayList<>();
+            args.add(className);
+            args.addAll(chunk);
+            String where = OfflineSQLiteOpenHelper.KEY_CLASS_NAME + " = ? AND "
+                + OfflineSQLiteOpenHelper.KEY_OBJECT_ID + " IN ("
+                + TextUtils.join(",", Collections.nCopies(chunk.size(), "?")) + ")";
+            Cursor cursor = db.query(OfflineSQLiteOpenHelper.TABLE_OBJECTS, select, where,
+                args.toArray(new String[args.size()]));
+            try {
+              for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+                Pair<String, String> key = Pair.create(className, cursor.getString(0));
+                if (!prefetched.rows.containsKey(key)) {
+                  prefetched.rows.put(key,
+                      new ObjectRow(cursor.getString(2), cursor.getString(1), cursor.getBlob(3)));
+                }
+              }
+            } finally {
+              cursor.close();
+            }
+          }
+        }
+        return prefetched;
       }
-    }).onSuccessTask(new Continuation<Void, Task<Void>>() {
+    });
+  }
+
+  /**
+   * Decodes the prefetched rows and looks up pointers for every object they reference in one go,
+   * so that fetching the objects of the rows doesn't need to look up each pointer on its own.
+   */
+  private Task<Void> prefetchPointersAsync(PrefetchedRows prefetched, ParseSQLiteDatabase db) {
+    Set<String> referencedUuids = new HashSet<>();
+    for (ObjectRow row : prefetched.rows.values()) {
+      if (row.isEmpty()) {
+        continue;
+      }
+      try {
+        row.decode();
+      } catch (JSONException e) {
+        // fetchLocallyAsync will run into this as well and fail.
+        continue;
+      }
+      referencedUuids.addAll(row.referencedUuids);
+    }
+    return getPointersAsync(referencedUuids, prefetched.pointers, db);
+  }
+
+  /**
+   * Gets the data for each of the given objects from the offline database, the same as calling
+   * {@link #fetchLocallyAsync(ParseObject, ParseSQLiteDatabase)} for each of them in turn, but with
+   * one query for each class instead of one query for each object.
+   *
+   * @return A task that fails with the error of the first object that couldn't be fetched.
+   */
+  /* package for OfflineQueryLogic */ Task<Void> fetchAllLocallyAsync(
+      final List<ParseObject> objects,
+      final ParseSQLiteDatabase db) {
+    return prefetchRowsAsync(objects, db).onSuccessTask(
+        new Continuation<PrefetchedRows, Task<Void>>() {
       @Override
-      public Task<Void> then(Task<Void> task) throws Exception {
-        final ContentValues values = new ContentValues();
-        values.put(OfflineSQLiteOpenHelper.KEY_KEY, key);
-        values.put(OfflineSQLiteOpenHelper.KEY_UUID, uuidCapture.get());
-        return db.insertWithOnConflict(OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES, values,
-            SQLiteDatabase.CONFLICT_IGNORE);
+      public Task<Void> then(Task<PrefetchedRows> task) throws Exception {
+        final PrefetchedRows prefetched = task.getResult();
+        return prefetchPointersAsync(prefetched, db).onSuccessTask(
+            new Continuation<Void, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<Void> task) throws Exception {
+            final List<Task<ParseObject>> fetches = new ArrayList<>(objects.size());
+            for (ParseObject object : objects) {
+              fetches.add(fetchLocallyAsync(object, prefetched, db));
+            }
+            return Task.whenAll(fetches).continueWithTask(new Continuation<Void, Task<Void>>() {
+              @Override
+              public Task<Void> then(Task<Void> task) throws Exception {
+                for (Task<ParseObject> fetch : fetches) {
+                  if (fetch.isFaulted()) {
+                    return Task.forError(fetch.getError());
+                  }
+                  if (fetch.isCancelled()) {
+                    return Task.cancelled();
+                  }
+                }
+                return Task.forResult(null);
+              }
+            });
+          }
+        });
       }
     });
   }
@@ -781,20 +1813,44 @@ import bolts.Task;
 
   private Task<Void> saveLocallyAsync(
       final ParseObject object, List<ParseObject> children, final ParseSQLiteDatabase db) {
-    final List<ParseObject> objects = children != null
-        ? new ArrayList<>(children)
-        : new ArrayList<ParseObject>();
-    if (!objects.contains(object)) {
-      objects.add(object);
-    }
+    return saveLocallyAsync(object, children, true, db);
+  }
 
-    // Call saveLocallyAsync for each of them individually.
-    final List<Task<Void>> tasks = new ArrayList<>();
-    for (ParseObject obj : objects) {
-      tasks.add(fetchLocallyAsync(obj, db).makeVoid());
+  /**
+   * The same as {@link #saveLocallyAsync(ParseObject, List, ParseSQLiteDatabase)}, but if
+   * {@code overwrite} is {@code false}, the objects are added to the ones previously stored with
+   * the same key instead of replacing them, so that the ones that didn't change aren't written
+   * again.
+   */
+  private Task<Void> saveLocallyAsync(final ParseObject object, List<ParseObject> children,
+      final boolean overwrite, final ParseSQLiteDatabase db) {
+    // ParseObjects compare by identity, so a set drops duplicates without a linear search each.
+    final Set<ParseObject> unique = new HashSet<>();
+    final List<ParseObject> objects = new ArrayList<>();
+    if (children != null) {
+      for (ParseObject child : children) {
+        if (unique.add(child)) {
+          objects.add(child);
+        }
+      }
+    }
+    if (unique.add(object)) {
+      objects.add(object);
     }
 
-    return Task.whenAll(tasks).continueWithTask(new Continuation<Void, Task<String>>() {
+    // Fetch all objects locally in case they are being re-added, looking up their rows in bulk.
+    return prefetchRowsAsync(objects, db).onSuccessTask(
+        new Continuation<PrefetchedRows, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<PrefetchedRows> task) throws Exception {
+        PrefetchedRows prefetched = task.getResult();
+        final List<Task<Void>> tasks = new ArrayList<>();
+        for (ParseObject obj : objects) {
+          tasks.add(fetchLocallyAsync(obj, prefetched, db).makeVoid());
+        }
+        return Task.whenAll(tasks);
+      }
+    }).continueWithTask(new Continuation<Void, Task<String>>() {
       @Override
       public Task<String> then(Task<Void> task) throws Exception {
         return objectToUuidMap.get(object);
@@ -807,6 +1863,9 @@ import bolts.Task;
           // The root object was never stored in the offline store, so nothing to unpin.
           return null;
         }
+        if (!overwrite) {
+          return null;
+        }
 
         // Delete all objects locally corresponding to the key we're trying to use in case it was
         // used before (overwrite)
@@ -821,18 +1880,148 @@ import bolts.Task;
       @Override
       public Task<Void> then(Task<String> task) throws Exception {
         String uuid = task.getResult();
-
-        // Call saveLocallyAsync for each of them individually.
-        final List<Task<Void>> tasks = new ArrayList<>();
-        for (ParseObject obj : objects) {
-          tasks.add(saveLocallyAsync(uuid, obj, db));
+        return saveLocallyAsync(uuid, objects, db);
+      }
+    }).onSuccess(new Continuation<Void, Void>() {
+      @Override
+      public Void then(Task<Void> task) throws Exception {
+        OfflineChange change = getPendingChange(db);
+        if (change != null) {
+          if (object instanceof ParsePin) {
+            change.addPinName(((ParsePin) object).getName());
+          }
+          for (ParseObject obj : objects) {
+            change.addObject(obj);
+          }
         }
+        return null;
+      }
+    });
+  }
 
-        return Task.whenAll(tasks);
+  /**
+   * Stores objects in the local database under {@code key}. Objects that are pointers, aren't dirty,
+   * and have an objectId already aren't saved, since they would provide no useful data.
+   *
+   * All of the objects are encoded up front and then written with compiled statements in a single
+   * operation, rather than one operation per row.
+   *
+   * @param key
+   *          The UUID of the object that the objects are saved under.
+   * @param objects
+   *          The objects to save.
+   * @param db
+   *          A database connection to use.
+   */
+  private Task<Void> saveLocallyAsync(
+      final String key, List<ParseObject> objects, final ParseSQLiteDatabase db) {
+    final List<ParseObject> toSave = new ArrayList<>();
+    for (ParseObject object : objects) {
+      // If this is just a clean, unfetched pointer known to Parse, then there is nothing to save.
+      if (object.getObjectId() != null && !object.isDataAvailable() && !object.hasChanges()
+          && !object.hasOutstandingOperations()) {
+        continue;
+      }
+      toSave.add(object);
+    }
+
+    final List<String> uuids = new ArrayList<>();
+    final List<JSONObject> jsons = new ArrayList<>();
+    final OfflineEncoder encoder = new OfflineEncoder(db);
+
+    // Make sure we have a UUID for each of the objects to be saved.
+    return getOrCreateUUIDsAsync(toSave, db).onSuccessTask(
+        new Continuation<List<String>, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<List<String>> task) throws Exception {
+        uuids.addAll(task.getResult());
+
+        // Now actually encode the objects as JSON.
+        for (ParseObject object : toSave) {
+          jsons.add(object.toRest(encoder));
+        }
+        return encoder.whenFinished();
+      }
+    }).onSuccessTask(new Continuation<Void, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Void> task) throws Exception {
+        return db.runBatchAsync(new ParseSQLiteDatabase.Batch<Void>() {
+          @Override
+          public Void run(SQLiteDatabase sqlDb) throws Exception {
+            writeObjects(sqlDb, key, toSave, uuids, jsons);
+            return null;
+          }
+        });
       }
     });
   }
 
+  /**
+   * Writes the JSON of already encoded objects, their secondary index rows, the objects they point
+   * to and their dependencies on {@code key}. This must be run on the database thread.
+   */
+  private void writeObjects(SQLiteDatabase db, String key, List<ParseObject> objects,
+      List<String> uuids, List<JSONObject> jsons) throws JSONException {
+    // Put the JSON in the database, keeping any existing objectId if the object doesn't have one.
+    String sql = "UPDATE " + OfflineSQLiteOpenHelper.TABLE_OBJECTS + " SET " +
+        OfflineSQLiteOpenHelper.KEY_CLASS_NAME + " = ?, " +
+        OfflineSQLiteOpenHelper.KEY_JSON + " = ?, " +
+        OfflineSQLiteOpenHelper.KEY_DATA + " = ?, " +
+        OfflineSQLiteOpenHelper.KEY_OBJECT_ID + " = COALESCE(?, " +
+            OfflineSQLiteOpenHelper.KEY_OBJECT_ID + "), " +
+        OfflineSQLiteOpenHelper.KEY_IS_DELETING_EVENTUALLY + " = ?" +
+        " WHERE " + OfflineSQLiteOpenHelper.KEY_UUID + " = ?";
+    SQLiteStatement update = db.compileStatement(sql);
+    List<String> indexedUuids = new ArrayList<>();
+    List<Object[]> indexRows = new ArrayList<>();
+    List<Object[]> referenceRows = new ArrayList<>();
+    List<Object[]> dependencyRows = new ArrayList<>();
+    boolean isBinary = helper.isBinaryStorageEnabled();
+    try {
+      for (int i = 0; i < objects.size(); i++) {
+        ParseObject object = objects.get(i);
+        String uuid = uuids.get(i);
+        JSONObject json = jsons.get(i);
+        String className = object.getClassName();
+
+        update.clearBindings();
+        OfflineBulkWriter.bind(update, 1, className);
+        OfflineBulkWriter.bind(update, 2, isBinary ? null : json.toString());
+        OfflineBulkWriter.bind(update, 3, isBinary ? OfflineObjectCodec.encode(json) : null);
+        OfflineBulkWriter.bind(update, 4, object.getObjectId());
+        OfflineBulkWriter.bind(update, 5, json.getInt(ParseObject.KEY_IS_DELETING_EVENTUALLY));
+        OfflineBulkWriter.bind(update, 6, uuid);
+        update.execute();
+
+        // Keep the secondary indexes in sync with the JSON.
+        Set<String> indexedKeys = helper.getIndexes().getIndexedKeys(className);
+        if (!indexedKeys.isEmpty()) {
+          indexedUuids.add(uuid);
+          Set<String> fullTextKeys = helper.getIndexes().getFullTextKeys(className);
+          List<OfflineIndexes.Entry> entries =
+              OfflineIndexes.extract(json, indexedKeys, fullTextKeys);
+          for (OfflineIndexes.Entry entry : entries) {
+            indexRows.add(OfflineIndexes.toRow(uuid, className, entry));
+          }
+        }
+
+        OfflineReferences.addRows(uuid, OfflineReferences.extract(json), referenceRows);
+        dependencyRows.add(new Object[] { key, uuid });
+      }
+    } finally {
+      update.close();
+    }
+
+    OfflineBulkWriter.deleteIn(db, OfflineSQLiteOpenHelper.TABLE_INDEXES,
+        OfflineSQLiteOpenHelper.KEY_UUID, indexedUuids);
+    OfflineBulkWriter.insert(db, OfflineSQLiteOpenHelper.TABLE_INDEXES, "",
+        OfflineIndexes.COLUMNS, indexRows);
+    OfflineReferences.write(db, uuids, referenceRows);
+    OfflineBulkWriter.insert(db, OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES, "OR IGNORE",
+        new String[] { OfflineSQLiteOpenHelper.KEY_KEY, OfflineSQLiteOpenHelper.KEY_UUID },
+        dependencyRows);
+  }
+
   private Task<Void> unpinAsync(final ParseObject object, final ParseSQLiteDatabase db) {
     Task<String> uuidTask = objectToUuidMap.get(object);
     if (uuidTask == null) {
@@ -852,87 +2041,314 @@ import bolts.Task;
     });
   }
 
+  /**
+   * Selects the uuids of the objects that only {@code key} depends on, which are the objects that
+   * are no longer needed once it's gone.
+   */
+  private static final String SQL_SELECT_UNPINNED_UUIDS =
+      "SELECT D." + OfflineSQLiteOpenHelper.KEY_UUID +
+      " FROM " + OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES + " D" +
+      " WHERE D." + OfflineSQLiteOpenHelper.KEY_KEY + " = ?" +
+      " AND NOT EXISTS (SELECT 1 FROM " + OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES + " E" +
+      " WHERE E." + OfflineSQLiteOpenHelper.KEY_UUID + " = D." + OfflineSQLiteOpenHelper.KEY_UUID +
+      " AND E." + OfflineSQLiteOpenHelper.KEY_KEY + " != D." + OfflineSQLiteOpenHelper.KEY_KEY +
+      ")";
+
+  /**
+   * Selects the uuids and classes of the objects that {@code key} depends on.
+   */
+  private static final String SQL_SELECT_DEPENDENCIES =
+      "SELECT A." + OfflineSQLiteOpenHelper.KEY_UUID + ", A." +
+      OfflineSQLiteOpenHelper.KEY_CLASS_NAME +
+      " FROM " + OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES + " D" +
+      " INNER JOIN " + OfflineSQLiteOpenHelper.TABLE_OBJECTS + " A" +
+      " ON A." + OfflineSQLiteOpenHelper.KEY_UUID + " = D." + OfflineSQLiteOpenHelper.KEY_UUID +
+      " WHERE D." + OfflineSQLiteOpenHelper.KEY_KEY + " = ?";
+
+  /**
+   * Selects the uuids of the objects that the objects that only {@code key} depends on point to.
+   */
+  private static final String SQL_SELECT_UNPINNED_REFERENCES =
+      "SELECT " + OfflineSQLiteOpenHelper.KEY_REFERENCED_UUID +
+      " FROM " + OfflineSQLiteOpenHelper.TABLE_REFERENCES +
+      " WHERE " + OfflineSQLiteOpenHelper.KEY_UUID + " IN (" + SQL_SELECT_UNPINNED_UUIDS + ")";
+
   private Task<Void> unpinAsync(final String key, final ParseSQLiteDatabase db) {
-    final List<String> uuidsToDelete = new LinkedList<>();
-    // A continueWithTask that ends with "return task" is essentially a try-finally.
-    return Task.forResult((Void) null).continueWithTask(new Continuation<Void, Task<Cursor>>() {
-      @Override
-      public Task<Cursor> then(Task<Void> task) throws Exception {
-        // Fetch all uuids from Dependencies for key=? grouped by uuid having a count of 1
-        String sql = "SELECT " + OfflineSQLiteOpenHelper.KEY_UUID + " FROM " + OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES +
-            " WHERE " + OfflineSQLiteOpenHelper.KEY_KEY + "=? AND " + OfflineSQLiteOpenHelper.KEY_UUID + " IN (" +
-            " SELECT " + OfflineSQLiteOpenHelper.KEY_UUID + " FROM " + OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES +
-            " GROUP BY " + OfflineSQLiteOpenHelper.KEY_UUID +
-            " HAVING COUNT(" + OfflineSQLiteOpenHelper.KEY_UUID + ")=1" +
-            ")";
-        String[] args = {key};
-        return db.rawQueryAsync(sql, args);
+    final String[] args = { key };
+    final OfflineChange change = getPendingChange(db);
+    // The objects that the deleted objects point to, which may not be needed anymore either.
+    final Set<String> references = new HashSet<>();
+    /*
+     * Every statement works on the whole set of objects at once, so the unpin is a handful of
+     * statements on the database thread no matter how many objects the pin holds.
+     */
+    return db.runBatchAsync(new ParseSQLiteDatabase.Batch<List<String>>() {
+      @Override
+      public List<String> run(SQLiteDatabase sqlDb) {
+        if (change != null) {
+          recordUnpin(change, key, ParseSQLiteDatabase.readStrings(
+              db.rawQuery(SQL_SELECT_DEPENDENCIES, args)));
+        }
+
+        List<String> uuids = new ArrayList<>();
+        for (String[] row : ParseSQLiteDatabase.readStrings(
+            db.rawQuery(SQL_SELECT_UNPINNED_UUIDS, args))) {
+          uuids.add(row[0]);
+        }
+        if (!uuids.isEmpty()) {
+          readReferences(db.rawQuery(SQL_SELECT_UNPINNED_REFERENCES, args), references);
+          sqlDb.delete(OfflineSQLiteOpenHelper.TABLE_OBJECTS,
+              OfflineSQLiteOpenHelper.KEY_UUID + " IN (" + SQL_SELECT_UNPINNED_UUIDS + ")", args);
+        }
+        sqlDb.delete(OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES,
+            OfflineSQLiteOpenHelper.KEY_KEY + " = ?", args);
+        // What syncs added is either gone with the pin, or in the pin that's about to replace it.
+        sqlDb.delete(OfflineSQLiteOpenHelper.TABLE_SYNCED_OBJECTS,
+            OfflineSQLiteOpenHelper.KEY_KEY + " = ?", args);
+        sqlDb.delete(OfflineSQLiteOpenHelper.TABLE_SYNC_WATERMARKS,
+            OfflineSQLiteOpenHelper.KEY_KEY + " = ?", args);
+        references.removeAll(uuids);
+        return uuids;
       }
-    }).onSuccessTask(new Continuation<Cursor, Task<Void>>() {
+    }).onSuccess(new Continuation<List<String>, Void>() {
       @Override
-      public Task<Void> then(Task<Cursor> task) throws Exception {
-        // DELETE FROM Objects
+      public Void then(Task<List<String>> task) throws Exception {
+        forgetUUIDs(task.getResult());
+        synchronized (lock) {
+          orphanCandidates.addAll(references);
+        }
+        return null;
+      }
+    });
+  }
 
-        Cursor cursor = task.getResult();
-        while (cursor.moveToNext()) {
-          uuidsToDelete.add(cursor.getString(0));
+  /**
+   * Records that the objects in {@code rows} of uuids and class names no longer depend on
+   * {@code key}.
+   */
+  private void recordUnpin(OfflineChange change, String key, List<String[]> rows) {
+    synchronized (lock) {
+      ParseObject root = uuidToObjectMap.get(key);
+      if (root instanceof ParsePin) {
+        change.addPinName(((ParsePin) root).getName());
+      }
+      for (String[] row : rows) {
+        ParseObject object = uuidToObjectMap.get(row[0]);
+        if (object != null) {
+          change.addObject(object);
+        } else {
+          change.addClassName(row[1]);
         }
-        cursor.close();
+      }
+    }
+  }
 
-        return deleteObjects(uuidsToDelete, db);
+  /**
+   * Removes the objects whose rows were deleted from memory.
+   */
+  private void forgetUUIDs(Collection<String> uuids) {
+    synchronized (lock) {
+      for (String uuid : uuids) {
+        ParseObject object = uuidToObjectMap.get(uuid);
+        if (object != null) {
+          objectToUuidMap.remove(object);
+          uuidToObjectMap.remove(uuid);
+          objectCache.remove(object);
+        }
       }
-    }).onSuccessTask(new Continuation<Void, Task<Void>>() {
+    }
+  }
+
+  //region Orphan Collection
+
+  /**
+   * The most orphans the collector looks at in one transaction, so that other sessions get a turn
+   * in between.
+   */
+  private static final int ORPHAN_SLICE_SIZE = 64;
+
+  /**
+   * How long the collection that follows an unpin may take.
+   */
+  private static final long ORPHAN_COLLECTION_MILLIS = 50;
+
+  /**
+   * Selects a row if nothing depends on the object and no other row points to it. Both are lookups
+   * in an index.
+   */
+  private static final String SQL_SELECT_IS_ORPHAN =
+      "SELECT 1 WHERE NOT EXISTS (SELECT 1 FROM " + OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES +
+      " WHERE " + OfflineSQLiteOpenHelper.KEY_UUID + " = ?)" +
+      " AND NOT EXISTS (SELECT 1 FROM " + OfflineSQLiteOpenHelper.TABLE_REFERENCES +
+      " WHERE " + OfflineSQLiteOpenHelper.KEY_REFERENCED_UUID + " = ?" +
+      " AND " + OfflineSQLiteOpenHelper.KEY_UUID + " != ?)";
+
+  /**
+   * Selects the uuids of the objects that an object points to.
+   */
+  private static final String SQL_SELECT_REFERENCES_BY_UUID =
+      "SELECT " + OfflineSQLiteOpenHelper.KEY_REFERENCED_UUID +
+      " FROM " + OfflineSQLiteOpenHelper.TABLE_REFERENCES +
+      " WHERE " + OfflineSQLiteOpenHelper.KEY_UUID + " = ?";
+
+  /**
+   * The uuids of the objects that unpins deleted the last row pointing to, which the next
+   * collection deletes unless something still needs them. Guarded by {@link #lock}.
+   */
+  private final Set<String> orphanCandidates = new HashSet<>();
+
+  // Runs one collection at a time.
+  private final TaskQueue orphanCollectionQueue = new TaskQueue();
+
+  /**
+   * Deletes the rows of objects that were only kept around because an object that has since been
+   * unpinned pointed to them, such as unsaved children of an object that was pinned without its
+   * children. Rows that anything still depends on or points to are left alone, and so are objects
+   * that are still in memory, since they may be about to be pinned.
+   * <p/>
+   * The orphans are collected a slice at a time, each in its own transaction, until there are none
+   * left or {@code maxMillis} have passed, so that the collector can run in the background without
+   * stalling the store. The time is checked after every candidate, so a slice ends early once it's
+   * up. Whatever is left is looked at by the next collection. Collections run one after the other.
+   *
+   * @return A task that resolves to the number of rows that were deleted.
+   */
+  /* package */ Task<Integer> collectOrphansAsync(final long maxMillis) {
+    return orphanCollectionQueue.enqueue(new Continuation<Void, Task<Integer>>() {
       @Override
-      public Task<Void> then(Task<Void> task) throws Exception {
-        // DELETE FROM Dependencies
-        String where = OfflineSQLiteOpenHelper.KEY_KEY + "=?";
-        String[] args = {key};
-        return db.deleteAsync(OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES, where, args);
+      public Task<Integer> then(Task<Void> toAwait) throws Exception {
+        return toAwait.continueWithTask(new Continuation<Void, Task<Integer>>() {
+          @Override
+          public Task<Integer> then(Task<Void> task) throws Exception {
+            final List<String> candidates;
+            synchronized (lock) {
+              candidates = new ArrayList<>(orphanCandidates);
+              orphanCandidates.clear();
+            }
+            if (candidates.isEmpty()) {
+              return Task.forResult(0);
+            }
+            final List<String> kept = new ArrayList<>();
+            long now = System.currentTimeMillis();
+            long deadline = maxMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + maxMillis;
+            return collectOrphansAsync(deadline, candidates, kept, 0)
+                .continueWithTask(new Continuation<Integer, Task<Integer>>() {
+              @Override
+              public Task<Integer> then(Task<Integer> task) throws Exception {
+                synchronized (lock) {
+                  orphanCandidates.addAll(candidates);
+                  orphanCandidates.addAll(kept);
+                }
+                return task;
+              }
+            });
+          }
+        });
       }
-    }).onSuccess(new Continuation<Void, Void>() {
+    });
+  }
+
+  /**
+   * Collects the orphans in {@code candidates} a slice at a time. Each slice is taken off the front
+   * of {@code candidates}, and the objects that its orphans pointed to are added to the end.
+   * Candidates that are still in memory are moved to {@code kept}.
+   */
+  private Task<Integer> collectOrphansAsync(final long deadline, final List<String> candidates,
+      final List<String> kept, final int deleted) {
+    final List<String> slice = new ArrayList<>(
+        candidates.subList(0, Math.min(ORPHAN_SLICE_SIZE, candidates.size())));
+    final Set<String> references = new HashSet<>();
+    final Capture<Integer> looked = new Capture<>(0);
+    final Capture<Integer> count = new Capture<>();
+    return runWithManagedTransaction(new SQLiteDatabaseCallable<Task<Void>>() {
       @Override
-      public Void then(Task<Void> task) throws Exception {
-        synchronized (lock) {
-          // Remove uuids from memory
-          for (String uuid : uuidsToDelete) {
-            ParseObject object = uuidToObjectMap.get(uuid);
-            if (object != null) {
-              objectToUuidMap.remove(object);
-              uuidToObjectMap.remove(uuid);
+      public Task<Void> call(final ParseSQLiteDatabase db) {
+        return db.runBatchAsync(new ParseSQLiteDatabase.Batch<Void>() {
+          @Override
+          public Void run(SQLiteDatabase sqlDb) {
+            List<String> orphans = new ArrayList<>();
+            for (String uuid : slice) {
+              looked.set(looked.get() + 1);
+              boolean isInMemory;
+              synchronized (lock) {
+                isInMemory = uuidToObjectMap.get(uuid) != null;
+              }
+              if (isInMemory) {
+                kept.add(uuid);
+              } else if (isOrphan(db, uuid)) {
+                orphans.add(uuid);
+                readReferences(db.rawQuery(SQL_SELECT_REFERENCES_BY_UUID, new String[] { uuid }),
+                    references);
+              }
+              if (System.currentTimeMillis() >= deadline) {
+                break;
+              }
             }
+            OfflineBulkWriter.deleteIn(sqlDb, OfflineSQLiteOpenHelper.TABLE_OBJECTS,
+                OfflineSQLiteOpenHelper.KEY_UUID, orphans);
+            references.removeAll(orphans);
+            count.set(orphans.size());
+            return null;
           }
+        });
+      }
+    }).onSuccessTask(new Continuation<Void, Task<Integer>>() {
+      @Override
+      public Task<Integer> then(Task<Void> task) throws Exception {
+        candidates.subList(0, looked.get()).clear();
+        candidates.addAll(references);
+        int total = deleted + count.get();
+        if (candidates.isEmpty() || System.currentTimeMillis() >= deadline) {
+          return Task.forResult(total);
         }
-        return null;
+        return collectOrphansAsync(deadline, candidates, kept, total);
       }
     });
   }
 
-  private Task<Void> deleteObjects(final List<String> uuids, final ParseSQLiteDatabase db) {
-    if (uuids.size() <= 0) {
-      return Task.forResult(null);
+  /**
+   * @return Whether nothing depends on the object with {@code uuid} and no other row points to it.
+   */
+  private static boolean isOrphan(ParseSQLiteDatabase db, String uuid) {
+    String[] args = { uuid, uuid, uuid };
+    Cursor cursor = db.rawQuery(SQL_SELECT_IS_ORPHAN, args);
+    try {
+      return cursor.moveToFirst();
+    } finally {
+      cursor.close();
     }
+  }
 
-    // SQLite has a max 999 SQL variables in a statement, so we need to split it up into manageable
-    // chunks. We can do this because we're already in a transaction.
-    if (uuids.size() > MAX_SQL_VARIABLES) {
-      return deleteObjects(uuids.subList(0, MAX_SQL_VARIABLES), db).onSuccessTask(new Continuation<Void, Task<Void>>() {
-        @Override
-        public Task<Void> then(Task<Void> task) throws Exception {
-          return deleteObjects(uuids.subList(MAX_SQL_VARIABLES, uuids.size()), db);
-        }
-      });
+  /**
+   * Adds the uuids of the objects that {@code cursor} selected from the references, and closes it.
+   */
+  private static void readReferences(Cursor cursor, Collection<String> references) {
+    try {
+      while (cursor.moveToNext()) {
+        references.add(cursor.getString(0));
+      }
+    } finally {
+      cursor.close();
     }
+  }
 
-    String[] placeholders = new String[uuids.size()];
-    for (int i = 0; i < placeholders.length; i++) {
-      placeholders[i] = "?";
-    }
-    String where = OfflineSQLiteOpenHelper.KEY_UUID + " IN (" + TextUtils.join(",", placeholders) + ")";
-    // dynamic args
-    String[] args = uuids.toArray(new String[uuids.size()]);
-    return db.deleteAsync(OfflineSQLiteOpenHelper.TABLE_OBJECTS, where, args);
+  /**
+   * Starts a short orphan collection without making the caller wait for it.
+   */
+  private void collectOrphansInBackground() {
+    collectOrphansAsync(ORPHAN_COLLECTION_MILLIS).continueWith(new Continuation<Integer, Void>() {
+      @Override
+      public Void then(Task<Integer> task) throws Exception {
+        if (task.isFaulted()) {
+          PLog.w(TAG, "Failed to delete orphaned objects", task.getError());
+        }
+        return null;
+      }
+    });
   }
 
+  //endregion
+
   /**
    * Takes an object that has been fetched from the database before and updates it with whatever
    * data is in memory. This will only be used when data comes back from the server after a fetch or
@@ -977,7 +2393,7 @@ import bolts.Task;
                   // } finally {
                   @Override
                   public Task<Void> then(Task<Void> task) throws Exception {
-                    db.endTransactionAsync();
+                    publishChangesAfter(db.endTransactionAsync(), db, task);
                     db.closeAsync();
                     return task;
                   }
@@ -1022,45 +2438,631 @@ import bolts.Task;
     return encoder.whenFinished().onSuccessTask(new Continuation<Void, Task<Void>>() {
       @Override
       public Task<Void> then(Task<Void> task) throws Exception {
-        // Put the JSON in the database.
-        String className = object.getClassName();
-        String objectId = object.getObjectId();
-        int isDeletingEventually = json.getInt(ParseObject.KEY_IS_DELETING_EVENTUALLY);
+        // Put the JSON in the database.
+        String className = object.getClassName();
+        String objectId = object.getObjectId();
+        int isDeletingEventually = json.getInt(ParseObject.KEY_IS_DELETING_EVENTUALLY);
+
+        final ContentValues values = new ContentValues();
+        values.put(OfflineSQLiteOpenHelper.KEY_CLASS_NAME, className);
+        if (helper.isBinaryStorageEnabled()) {
+          values.putNull(OfflineSQLiteOpenHelper.KEY_JSON);
+          values.put(OfflineSQLiteOpenHelper.KEY_DATA, OfflineObjectCodec.encode(json));
+        } else {
+          values.put(OfflineSQLiteOpenHelper.KEY_JSON, json.toString());
+          values.putNull(OfflineSQLiteOpenHelper.KEY_DATA);
+        }
+        if (objectId != null) {
+          values.put(OfflineSQLiteOpenHelper.KEY_OBJECT_ID, objectId);
+        }
+        values.put(OfflineSQLiteOpenHelper.KEY_IS_DELETING_EVENTUALLY, isDeletingEventually);
+        String where = OfflineSQLiteOpenHelper.KEY_UUID + " = ?";
+        String[] args = {uuid};
+        Task<Void> updateTask =
+            db.updateAsync(OfflineSQLiteOpenHelper.TABLE_OBJECTS, values, where, args).makeVoid();
+        OfflineChange change = getPendingChange(db);
+        if (change != null) {
+          change.addObject(object);
+        }
+
+        List<Task<Void>> tasks = new ArrayList<>();
+        tasks.add(updateTask);
+        tasks.add(db.deleteAsync(OfflineSQLiteOpenHelper.TABLE_REFERENCES, where, args));
+        for (String referencedUuid : new HashSet<>(OfflineReferences.extract(json))) {
+          ContentValues reference = new ContentValues();
+          reference.put(OfflineSQLiteOpenHelper.KEY_UUID, uuid);
+          reference.put(OfflineSQLiteOpenHelper.KEY_REFERENCED_UUID, referencedUuid);
+          tasks.add(db.insertOrThrowAsync(OfflineSQLiteOpenHelper.TABLE_REFERENCES, reference));
+        }
+
+        // Keep the secondary indexes in sync with the JSON.
+        Set<String> indexedKeys = helper.getIndexes().getIndexedKeys(className);
+        if (indexedKeys.isEmpty()) {
+          return Task.whenAll(tasks);
+        }
+        tasks.add(db.deleteAsync(OfflineSQLiteOpenHelper.TABLE_INDEXES, where, args));
+        Set<String> fullTextKeys = helper.getIndexes().getFullTextKeys(className);
+        List<OfflineIndexes.Entry> entries =
+            OfflineIndexes.extract(json, indexedKeys, fullTextKeys);
+        for (OfflineIndexes.Entry entry : entries) {
+          tasks.add(db.insertOrThrowAsync(OfflineSQLiteOpenHelper.TABLE_INDEXES,
+              OfflineIndexes.toContentValues(uuid, className, entry)));
+        }
+        return Task.whenAll(tasks);
+      }
+    });
+  }
+
+  /* package */ Task<Void> deleteDataForObjectAsync(final ParseObject object) {
+    return helper.getWritableDatabaseAsync().continueWithTask(new Continuation<ParseSQLiteDatabase, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<ParseSQLiteDatabase> task) throws Exception {
+        final ParseSQLiteDatabase db = task.getResult();
+        return db.beginTransactionAsync().onSuccessTask(new Continuation<Void, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<Void> task) throws Exception {
+            return deleteDataForObjectAsync(object, db).onSuccessTask(new Continuation<Void, Task<Void>>() {
+              @Override
+              public Task<Void> then(Task<Void> task) throws Exception {
+                return db.setTransactionSuccessfulAsync();
+              }
+            }).continueWithTask(new Continuation<Void, Task<Void>>() {
+              // } finally {
+              @Override
+              public Task<Void> then(Task<Void> task) throws Exception {
+                publishChangesAfter(db.endTransactionAsync(), db, task);
+                db.closeAsync();
+                return task;
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+  private Task<Void> deleteDataForObjectAsync(final ParseObject object, final ParseSQLiteDatabase db) {
+    final Capture<String> uuid = new Capture<>();
+
+    // Make sure the object has a UUID.
+    Task<String> uuidTask;
+    synchronized (lock) {
+      uuidTask = objectToUuidMap.get(object);
+      if (uuidTask == null) {
+        // It was fetched, but it has no UUID. That must mean it isn't actually in the database.
+        return Task.forResult(null);
+      }
+    }
+    uuidTask = uuidTask.onSuccessTask(new Continuation<String, Task<String>>() {
+      @Override
+      public Task<String> then(Task<String> task) throws Exception {
+        uuid.set(task.getResult());
+        return task;
+      }
+    });
+
+    // If the object was the root of a pin, unpin it.
+    Task<Void> unpinTask = uuidTask.onSuccessTask(new Continuation<String, Task<Cursor>>() {
+      @Override
+      public Task<Cursor> then(Task<String> task) throws Exception {
+        // Find all the roots for this object.
+        String[] select = { OfflineSQLiteOpenHelper.KEY_KEY };
+        String where = OfflineSQLiteOpenHelper.KEY_UUID + "=?";
+        String[] args = { uuid.get() };
+        return db.queryAsync(OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES, select, where, args);
+      }
+    }).onSuccessTask(new Continuation<Cursor, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Cursor> task) throws Exception {
+        // Try to unpin this object from the pin label if it's a root of the ParsePin.
+        Cursor cursor = task.getResult();
+        List<String> uuids = new ArrayList<>();
+        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+          uuids.add(cursor.getString(0));
+        }
+        cursor.close();
+
+        List<Task<Void>> tasks = new ArrayList<>();
+        for (final String uuid : uuids) {
+          Task<Void> unpinTask = getPointerAsync(uuid, db).onSuccessTask(new Continuation<ParseObject, Task<ParsePin>>() {
+            @Override
+            public Task<ParsePin> then(Task<ParseObject> task) throws Exception {
+              ParsePin pin = (ParsePin) task.getResult();
+              return fetchLocallyAsync(pin, db);
+            }
+          }).onSuccessTask(new Continuation<ParsePin, Task<ParsePin>>() {
+            @Override
+            public Task<ParsePin> then(Task<ParsePin> task) throws Exception {
+              return addSyncsAsync(task.getResult(), db);
+            }
+          }).continueWithTask(new Continuation<ParsePin, Task<Void>>() {
+            @Override
+            public Task<Void> then(Task<ParsePin> task) throws Exception {
+              ParsePin pin = task.getResult();
+
+              List<ParseObject> modified = pin.getObjects();
+              if (modified == null || !modified.contains(object)) {
+                return task.makeVoid();
+              }
+
+              modified.remove(object);
+              if (modified.size() == 0) {
+                return unpinAsync(uuid, db);
+              }
+
+              pin.setObjects(modified);
+              return saveLocallyAsync(pin, true, db);
+            }
+          });
+          tasks.add(unpinTask);
+        }
+
+        return Task.whenAll(tasks);
+      }
+    });
+
+    // Delete the object from the Local Datastore in case it wasn't the root of a pin.
+    return unpinTask.onSuccessTask(new Continuation<Void, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Void> task) throws Exception {
+        String where = OfflineSQLiteOpenHelper.KEY_UUID + "=?";
+        String[] args = {uuid.get()};
+        return db.deleteAsync(OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES, where, args);
+      }
+    }).onSuccessTask(new Continuation<Void, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Void> task) throws Exception {
+        String where = OfflineSQLiteOpenHelper.KEY_UUID + "=?";
+        String[] args = {uuid.get()};
+        return db.deleteAsync(OfflineSQLiteOpenHelper.TABLE_OBJECTS, where, args);
+      }
+    }).onSuccessTask(new Continuation<Void, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Void> task) throws Exception {
+        synchronized (lock) {
+          // Clean up
+          //TODO (grantland): we should probably clean up uuidToObjectMap and objectToUuidMap, but
+          // getting the uuid requires a task and things might get a little funky...
+          fetchedObjects.remove(object);
+          objectCache.remove(object);
+        }
+        OfflineChange change = getPendingChange(db);
+        if (change != null) {
+          change.addObject(object);
+        }
+        return task;
+      }
+    });
+  }
+
+  //region Change Notifications
+
+  /**
+   * Is told about the changes made to the store once they're committed. Listeners are called on a
+   * background thread, and shouldn't block it.
+   */
+  /* package */ interface ChangeListener {
+    void onChange(OfflineChange change);
+  }
+
+  /* package */ void addChangeListener(ChangeListener listener) {
+    synchronized (lock) {
+      changeListeners.add(listener);
+    }
+  }
+
+  /* package */ void removeChangeListener(ChangeListener listener) {
+    synchronized (lock) {
+      changeListeners.remove(listener);
+    }
+  }
+
+  /**
+   * @return The changes made so far with {@code db}, to add to, or {@code null} if there are no
+   * listeners and nothing needs to be recorded.
+   */
+  private OfflineChange getPendingChange(ParseSQLiteDatabase db) {
+    synchronized (lock) {
+      if (changeListeners.isEmpty()) {
+        return null;
+      }
+      OfflineChange change = pendingChanges.get(db);
+      if (change == null) {
+        change = new OfflineChange();
+        pendingChanges.put(db, change);
+      }
+      return change;
+    }
+  }
+
+  /**
+   * Once {@code endTask} finishes, tells the listeners about the changes made with {@code db} if
+   * both it and {@code task}, which did the work, succeeded. Otherwise they're dropped.
+   */
+  private void publishChangesAfter(Task<Void> endTask, final ParseSQLiteDatabase db,
+      final Task<?> task) {
+    endTask.continueWith(new Continuation<Void, Void>() {
+      @Override
+      public Void then(Task<Void> endTask) throws Exception {
+        OfflineChange change;
+        List<ChangeListener> listeners;
+        synchronized (lock) {
+          change = pendingChanges.remove(db);
+          if (change == null || task.isFaulted() || task.isCancelled() || endTask.isFaulted()) {
+            return null;
+          }
+          listeners = new ArrayList<>(changeListeners);
+        }
+        for (ChangeListener listener : listeners) {
+          listener.onChange(change);
+        }
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Finds which of the given objects a query would return, such as the objects that a change
+   * touched. Rather than running the query, only these objects are checked for whether they're
+   * still stored, are in the query's pin, and match its constraints. Limit, skip and order are
+   * ignored.
+   *
+   * @return A task that resolves to the objects that match, in no particular order.
+   */
+  /* package */ <T extends ParseObject> Task<List<T>> matchObjectsAsync(
+      final ParseQuery.State<T> query, final ParseUser user, final Collection<T> objects) {
+    if (objects.isEmpty()) {
+      return Task.forResult((List<T>) new ArrayList<T>());
+    }
+    return runWithManagedReadOnlyConnection(new SQLiteDatabaseCallable<Task<List<T>>>() {
+      @Override
+      public Task<List<T>> call(ParseSQLiteDatabase db) {
+        return matchObjectsAsync(query, user, objects, db);
+      }
+    });
+  }
+
+  private <T extends ParseObject> Task<List<T>> matchObjectsAsync(
+      final ParseQuery.State<T> query, final ParseUser user, Collection<T> objects,
+      final ParseSQLiteDatabase db) {
+    final Map<String, T> uuids = new HashMap<>();
+    synchronized (lock) {
+      for (T object : objects) {
+        Task<String> uuidTask = objectToUuidMap.get(object);
+        // Only objects whose rows already exist can match.
+        if (uuidTask != null && uuidTask.isCompleted() && uuidTask.getResult() != null) {
+          uuids.put(uuidTask.getResult(), object);
+        }
+      }
+    }
+
+    final String pinName = query.pinName();
+    Task<String> pinUuidTask;
+    if (pinName == null) {
+      pinUuidTask = Task.forResult(null);
+    } else {
+      pinUuidTask = getParsePin(pinName, db).onSuccessTask(
+          new Continuation<ParsePin, Task<String>>() {
+        @Override
+        public Task<String> then(Task<ParsePin> task) throws Exception {
+          Task<String> uuidTask;
+          synchronized (lock) {
+            uuidTask = objectToUuidMap.get(task.getResult());
+          }
+          // A pin that was never saved locally holds nothing.
+          return uuidTask != null ? uuidTask : Task.<String>forResult(null);
+        }
+      });
+    }
+
+    return pinUuidTask.onSuccessTask(new Continuation<String, Task<List<String>>>() {
+      @Override
+      public Task<List<String>> then(Task<String> task) throws Exception {
+        final String pinUuid = task.getResult();
+        if (uuids.isEmpty() || (pinName != null && pinUuid == null)) {
+          return Task.forResult((List<String>) new ArrayList<String>());
+        }
+        return db.runBatchAsync(new ParseSQLiteDatabase.Batch<List<String>>() {
+          @Override
+          public List<String> run(SQLiteDatabase sqlDb) {
+            String sql;
+            List<String> args = new ArrayList<>();
+            if (pinUuid == null) {
+              sql = "SELECT " + OfflineSQLiteOpenHelper.KEY_UUID +
+                  " FROM " + OfflineSQLiteOpenHelper.TABLE_OBJECTS + " WHERE ";
+            } else {
+              sql = "SELECT " + OfflineSQLiteOpenHelper.KEY_UUID +
+                  " FROM " + OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES +
+                  " WHERE " + OfflineSQLiteOpenHelper.KEY_KEY + " = ? AND ";
+              args.add(pinUuid);
+            }
+            sql += OfflineSQLiteOpenHelper.KEY_UUID + " IN (";
+
+            List<String> all = new ArrayList<>(uuids.keySet());
+            int chunkSize = MAX_SQL_VARIABLES - args.size();
+            List<String> stored = new ArrayList<>();
+            for (int start = 0; start < all.size(); start += chunkSize) {
+              List<String> chunk = all.subList(start, Math.min(start + chunkSize, all.size()));
+              List<String> chunkArgs = new ArrayList<>(args);
+              chunkArgs.addAll(chunk);
+              String chunkSql =
+                  sql + TextUtils.join(",", Collections.nCopies(chunk.size(), "?")) + ")";
+              for (String[] row : ParseSQLiteDatabase.readStrings(db.rawQuery(
+                  chunkSql, chunkArgs.toArray(new String[chunkArgs.size()])))) {
+                stored.add(row[0]);
+              }
+            }
+            return stored;
+          }
+        });
+      }
+    }).onSuccessTask(new Continuation<List<String>, Task<List<T>>>() {
+      @Override
+      public Task<List<T>> then(Task<List<String>> task) throws Exception {
+        ConstraintMatcher<T> matcher =
+            new OfflineQueryLogic(OfflineStore.this).createMatcher(query, user);
+        final List<T> candidates = new ArrayList<>();
+        final List<Task<Boolean>> matches = new ArrayList<>();
+        for (String uuid : task.getResult()) {
+          T object = uuids.get(uuid);
+          candidates.add(object);
+          matches.add(matcher.matchesAsync(object, db));
+        }
+        return Task.whenAll(matches).onSuccess(new Continuation<Void, List<T>>() {
+          @Override
+          public List<T> then(Task<Void> task) throws Exception {
+            List<T> results = new ArrayList<>();
+            for (int i = 0; i < candidates.size(); i++) {
+              if (matches.get(i).getResult()) {
+                results.add(candidates.get(i));
+              }
+            }
+            return results;
+          }
+        });
+      }
+    });
+  }
+
+  //endregion
+
+  //region Sync
+
+  /**
+   * @return A task that resolves to the pin with the given name, which is only stored once objects
+   * are added to it.
+   */
+  /* package */ Task<ParsePin> getParsePinAsync(final String name) {
+    return runWithManagedReadOnlyConnection(new SQLiteDatabaseCallable<Task<ParsePin>>() {
+      @Override
+      public Task<ParsePin> call(ParseSQLiteDatabase db) {
+        return getParsePinWithSyncs(name, db);
+      }
+    });
+  }
+
+  /**
+   * Selects the uuids of the objects that syncs added to a pin since it was last stored, in the
+   * order they were added.
+   */
+  private static final String SQL_SELECT_SYNCED_UUIDS =
+      "SELECT " + OfflineSQLiteOpenHelper.KEY_UUID +
+      " FROM " + OfflineSQLiteOpenHelper.TABLE_SYNCED_OBJECTS +
+      " WHERE " + OfflineSQLiteOpenHelper.KEY_KEY + " = ?" +
+      " ORDER BY rowid";
+
+  /**
+   * Selects the watermarks that syncs recorded for a pin since it was last stored.
+   */
+  private static final String SQL_SELECT_SYNC_WATERMARKS =
+      "SELECT " + OfflineSQLiteOpenHelper.KEY_SYNC_KEY +
+      ", " + OfflineSQLiteOpenHelper.KEY_UPDATED_AT +
+      ", " + OfflineSQLiteOpenHelper.KEY_OBJECT_ID +
+      " FROM " + OfflineSQLiteOpenHelper.TABLE_SYNC_WATERMARKS +
+      " WHERE " + OfflineSQLiteOpenHelper.KEY_KEY + " = ?";
+
+  /**
+   * The same as {@link #getParsePin(String, ParseSQLiteDatabase)}, but with what syncs added to the
+   * pin since it was last stored, for callers that need the pin's objects or watermarks rather than
+   * just its uuid.
+   */
+  private Task<ParsePin> getParsePinWithSyncs(String name, final ParseSQLiteDatabase db) {
+    return getParsePin(name, db).onSuccessTask(new Continuation<ParsePin, Task<ParsePin>>() {
+      @Override
+      public Task<ParsePin> then(Task<ParsePin> task) throws Exception {
+        return addSyncsAsync(task.getResult(), db);
+      }
+    });
+  }
+
+  /**
+   * Adds the objects and watermarks that syncs stored for {@code pin} since it was last stored to
+   * it. Objects that it already holds aren't added again, so this can be called on a pin that
+   * already had them added.
+   *
+   * @see #mergeSyncedObjectsAsync
+   */
+  private Task<ParsePin> addSyncsAsync(final ParsePin pin, final ParseSQLiteDatabase db) {
+    Task<String> uuidTask;
+    synchronized (lock) {
+      uuidTask = objectToUuidMap.get(pin);
+    }
+    if (uuidTask == null) {
+      // The pin was never stored, so nothing was synced into it.
+      return Task.forResult(pin);
+    }
+
+    final List<String> uuids = new ArrayList<>();
+    final List<String[]> watermarks = new ArrayList<>();
+    final Map<String, ParseObject> pointers = new HashMap<>();
+    return uuidTask.onSuccessTask(new Continuation<String, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<String> task) throws Exception {
+        final String[] args = { task.getResult() };
+        return db.runBatchAsync(new ParseSQLiteDatabase.Batch<Void>() {
+          @Override
+          public Void run(SQLiteDatabase sqlDb) {
+            for (String[] row : ParseSQLiteDatabase.readStrings(
+                db.rawQuery(SQL_SELECT_SYNCED_UUIDS, args))) {
+              uuids.add(row[0]);
+            }
+            watermarks.addAll(ParseSQLiteDatabase.readStrings(
+                db.rawQuery(SQL_SELECT_SYNC_WATERMARKS, args)));
+            return null;
+          }
+        });
+      }
+    }).onSuccessTask(new Continuation<Void, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Void> task) throws Exception {
+        return getPointersAsync(new HashSet<>(uuids), pointers, db);
+      }
+    }).onSuccess(new Continuation<Void, ParsePin>() {
+      @Override
+      public ParsePin then(Task<Void> task) throws Exception {
+        // ParseObjects compare by identity, so a set finds the ones the pin holds in one pass.
+        Set<ParseObject> existing = new HashSet<>();
+        List<ParseObject> objects = pin.getObjects();
+        if (objects != null) {
+          existing.addAll(objects);
+        }
+        List<ParseObject> added = new ArrayList<>();
+        for (String uuid : uuids) {
+          ParseObject object = pointers.get(uuid);
+          if (object != null && existing.add(object)) {
+            added.add(object);
+          }
+        }
+        if (!added.isEmpty()) {
+          pin.addObjects(added);
+        }
 
-        final ContentValues values = new ContentValues();
-        values.put(OfflineSQLiteOpenHelper.KEY_CLASS_NAME, className);
-        values.put(OfflineSQLiteOpenHelper.KEY_JSON, json.toString());
-        if (objectId != null) {
-          values.put(OfflineSQLiteOpenHelper.KEY_OBJECT_ID, objectId);
+        for (String[] watermark : watermarks) {
+          Date updatedAt = watermark[1] != null ? new Date(Long.parseLong(watermark[1])) : null;
+          if (!ParseTextUtils.equals(watermark[2], pin.getSyncedObjectId(watermark[0]))
+              || (updatedAt != null
+                  ? !updatedAt.equals(pin.getSyncedUpdatedAt(watermark[0]))
+                  : pin.getSyncedUpdatedAt(watermark[0]) != null)) {
+            pin.setSynced(watermark[0], updatedAt, watermark[2]);
+          }
         }
-        values.put(OfflineSQLiteOpenHelper.KEY_IS_DELETING_EVENTUALLY, isDeletingEventually);
-        String where = OfflineSQLiteOpenHelper.KEY_UUID + " = ?";
-        String[] args = {uuid};
-        return db.updateAsync(OfflineSQLiteOpenHelper.TABLE_OBJECTS, values, where, args).makeVoid();
+        return pin;
       }
     });
   }
 
-  /* package */ Task<Void> deleteDataForObjectAsync(final ParseObject object) {
-    return helper.getWritableDatabaseAsync().continueWithTask(new Continuation<ParseSQLiteDatabase, Task<Void>>() {
+  /**
+   * Selects the objectIds of the objects of a class that a pin depends on, out of a list of them.
+   * The list's placeholders are appended.
+   */
+  private static final String SQL_SELECT_PINNED_OBJECT_IDS =
+      "SELECT A." + OfflineSQLiteOpenHelper.KEY_OBJECT_ID +
+      " FROM " + OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES + " D" +
+      " INNER JOIN " + OfflineSQLiteOpenHelper.TABLE_OBJECTS + " A" +
+      " ON A." + OfflineSQLiteOpenHelper.KEY_UUID + " = D." + OfflineSQLiteOpenHelper.KEY_UUID +
+      " WHERE D." + OfflineSQLiteOpenHelper.KEY_KEY + " = ?" +
+      " AND A." + OfflineSQLiteOpenHelper.KEY_CLASS_NAME + " = ?" +
+      " AND A." + OfflineSQLiteOpenHelper.KEY_OBJECT_ID + " IN ";
+
+  /**
+   * Merges a page of synced objects of {@code className} into a pin, and records the updatedAt and
+   * objectId of the last one under {@code syncKey} so that the next sync starts after it. Unlike
+   * pinning, only the synced objects are written. The pin itself is only stored the first time:
+   * after that, the objects that aren't in the pin yet and the watermark are written to tables of
+   * their own, which are added to the pin when it's loaded. So each page writes rows for its own
+   * objects, no matter how many the pin already holds.
+   *
+   * @see ParsePin#setSynced(String, Date, String)
+   * @see #addSyncsAsync(ParsePin, ParseSQLiteDatabase)
+   */
+  /* package */ <T extends ParseObject> Task<Void> mergeSyncedObjectsAsync(final String name,
+      final String className, final String syncKey, final List<T> objects, final Date updatedAt,
+      final String objectId) {
+    return runWithManagedTransaction(new SQLiteDatabaseCallable<Task<Void>>() {
       @Override
-      public Task<Void> then(Task<ParseSQLiteDatabase> task) throws Exception {
-        final ParseSQLiteDatabase db = task.getResult();
-        return db.beginTransactionAsync().onSuccessTask(new Continuation<Void, Task<Void>>() {
+      public Task<Void> call(final ParseSQLiteDatabase db) {
+        final Capture<String> key = new Capture<>();
+        final List<ParseObject> added = new ArrayList<>();
+        return getParsePin(name, db).onSuccessTask(new Continuation<ParsePin, Task<String>>() {
           @Override
-          public Task<Void> then(Task<Void> task) throws Exception {
-            return deleteDataForObjectAsync(object, db).onSuccessTask(new Continuation<Void, Task<Void>>() {
+          public Task<String> then(Task<ParsePin> task) throws Exception {
+            final ParsePin pin = task.getResult();
+            Task<String> uuidTask;
+            synchronized (lock) {
+              uuidTask = objectToUuidMap.get(pin);
+            }
+            if (uuidTask != null) {
+              return uuidTask;
+            }
+            return saveLocallyAsync(pin, null, false, db).onSuccessTask(
+                new Continuation<Void, Task<String>>() {
               @Override
-              public Task<Void> then(Task<Void> task) throws Exception {
-                return db.setTransactionSuccessfulAsync();
+              public Task<String> then(Task<Void> task) throws Exception {
+                synchronized (lock) {
+                  return objectToUuidMap.get(pin);
+                }
               }
-            }).continueWithTask(new Continuation<Void, Task<Void>>() {
-              // } finally {
+            });
+          }
+        }).onSuccessTask(new Continuation<String, Task<Set<String>>>() {
+          @Override
+          public Task<Set<String>> then(Task<String> task) throws Exception {
+            key.set(task.getResult());
+            return getPinnedObjectIdsAsync(key.get(), className, objects, db);
+          }
+        }).onSuccessTask(new Continuation<Set<String>, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<Set<String>> task) throws Exception {
+            Set<String> pinnedObjectIds = task.getResult();
+            for (T object : objects) {
+              if (!pinnedObjectIds.contains(object.getObjectId())) {
+                added.add(object);
+              }
+            }
+            final List<ParseObject> children = new ArrayList<>();
+            new ParseTraverser() {
               @Override
-              public Task<Void> then(Task<Void> task) throws Exception {
-                db.endTransactionAsync();
-                db.closeAsync();
-                return task;
+              protected boolean visit(Object object) {
+                if (object instanceof ParseObject) {
+                  children.add((ParseObject) object);
+                }
+                return true;
+              }
+            }.setYieldRoot(true).setTraverseParseObjects(true).traverse(objects);
+            return saveChildrenLocallyAsync(key.get(), children, db);
+          }
+        }).onSuccessTask(new Continuation<Void, Task<List<String>>>() {
+          @Override
+          public Task<List<String>> then(Task<Void> task) throws Exception {
+            OfflineChange change = getPendingChange(db);
+            if (change != null) {
+              change.addPinName(name);
+            }
+            return getOrCreateUUIDsAsync(added, db);
+          }
+        }).onSuccessTask(new Continuation<List<String>, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<List<String>> task) throws Exception {
+            final List<Object[]> rows = new ArrayList<>();
+            for (String uuid : task.getResult()) {
+              rows.add(new Object[] { key.get(), uuid });
+            }
+            return db.runBatchAsync(new ParseSQLiteDatabase.Batch<Void>() {
+              @Override
+              public Void run(SQLiteDatabase sqlDb) {
+                OfflineBulkWriter.insert(sqlDb, OfflineSQLiteOpenHelper.TABLE_SYNCED_OBJECTS,
+                    "OR IGNORE", new String[] {
+                        OfflineSQLiteOpenHelper.KEY_KEY, OfflineSQLiteOpenHelper.KEY_UUID },
+                    rows);
+                ContentValues values = new ContentValues();
+                values.put(OfflineSQLiteOpenHelper.KEY_KEY, key.get());
+                values.put(OfflineSQLiteOpenHelper.KEY_SYNC_KEY, syncKey);
+                values.put(OfflineSQLiteOpenHelper.KEY_UPDATED_AT,
+                    updatedAt != null ? updatedAt.getTime() : null);
+                values.put(OfflineSQLiteOpenHelper.KEY_OBJECT_ID, objectId);
+                sqlDb.insertWithOnConflict(OfflineSQLiteOpenHelper.TABLE_SYNC_WATERMARKS, null,
+                    values, SQLiteDatabase.CONFLICT_REPLACE);
+                return null;
               }
             });
           }
@@ -1069,110 +3071,142 @@ import bolts.Task;
     });
   }
 
-  private Task<Void> deleteDataForObjectAsync(final ParseObject object, final ParseSQLiteDatabase db) {
-    final Capture<String> uuid = new Capture<>();
-
-    // Make sure the object has a UUID.
-    Task<String> uuidTask;
-    synchronized (lock) {
-      uuidTask = objectToUuidMap.get(object);
-      if (uuidTask == null) {
-        // It was fetched, but it has no UUID. That must mean it isn't actually in the database.
-        return Task.forResult(null);
+  /**
+   * Stores {@code objects} under {@code key} without storing the object that {@code key} belongs
+   * to. Like {@link #saveLocallyAsync(ParseObject, List, boolean, ParseSQLiteDatabase)}, the
+   * objects are fetched locally first in case they're already stored.
+   */
+  private Task<Void> saveChildrenLocallyAsync(final String key, final List<ParseObject> objects,
+      final ParseSQLiteDatabase db) {
+    return prefetchRowsAsync(objects, db).onSuccessTask(
+        new Continuation<PrefetchedRows, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<PrefetchedRows> task) throws Exception {
+        PrefetchedRows prefetched = task.getResult();
+        final List<Task<Void>> tasks = new ArrayList<>();
+        for (ParseObject obj : objects) {
+          tasks.add(fetchLocallyAsync(obj, prefetched, db).makeVoid());
+        }
+        return Task.whenAll(tasks);
       }
-    }
-    uuidTask = uuidTask.onSuccessTask(new Continuation<String, Task<String>>() {
+    }).continueWithTask(new Continuation<Void, Task<Void>>() {
       @Override
-      public Task<String> then(Task<String> task) throws Exception {
-        uuid.set(task.getResult());
-        return task;
+      public Task<Void> then(Task<Void> task) throws Exception {
+        return saveLocallyAsync(key, objects, db);
+      }
+    }).onSuccess(new Continuation<Void, Void>() {
+      @Override
+      public Void then(Task<Void> task) throws Exception {
+        OfflineChange change = getPendingChange(db);
+        if (change != null) {
+          for (ParseObject obj : objects) {
+            change.addObject(obj);
+          }
+        }
+        return null;
       }
     });
+  }
 
-    // If the object was the root of a pin, unpin it.
-    Task<Void> unpinTask = uuidTask.onSuccessTask(new Continuation<String, Task<Cursor>>() {
-      @Override
-      public Task<Cursor> then(Task<String> task) throws Exception {
-        // Find all the roots for this object.
-        String[] select = { OfflineSQLiteOpenHelper.KEY_KEY };
-        String where = OfflineSQLiteOpenHelper.KEY_UUID + "=?";
-        String[] args = { uuid.get() };
-        return db.queryAsync(OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES, select, where, args);
+  /**
+   * @return A task that resolves to the objectIds of the {@code objects} of {@code className} that
+   * the pin with uuid {@code key} already depends on, found without loading the rest of the pin's
+   * objects.
+   */
+  private Task<Set<String>> getPinnedObjectIdsAsync(final String key, final String className,
+      List<? extends ParseObject> objects, final ParseSQLiteDatabase db) {
+    final List<String> objectIds = new ArrayList<>();
+    for (ParseObject object : objects) {
+      if (object.getObjectId() != null) {
+        objectIds.add(object.getObjectId());
       }
-    }).onSuccessTask(new Continuation<Cursor, Task<Void>>() {
+    }
+    return db.runBatchAsync(new ParseSQLiteDatabase.Batch<Set<String>>() {
       @Override
-      public Task<Void> then(Task<Cursor> task) throws Exception {
-        // Try to unpin this object from the pin label if it's a root of the ParsePin.
-        Cursor cursor = task.getResult();
-        List<String> uuids = new ArrayList<>();
-        for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
-          uuids.add(cursor.getString(0));
+      public Set<String> run(SQLiteDatabase sqlDb) {
+        Set<String> pinned = new HashSet<>();
+        // Two of the variables are taken by the key and class name.
+        int chunkSize = MAX_SQL_VARIABLES - 2;
+        for (int start = 0; start < objectIds.size(); start += chunkSize) {
+          List<String> chunk =
+              objectIds.subList(start, Math.min(start + chunkSize, objectIds.size()));
+          List<String> args = new ArrayList<>(chunk.size() + 2);
+          args.add(key);
+          args.add(className);
+          args.addAll(chunk);
+          String sql = SQL_SELECT_PINNED_OBJECT_IDS +
+              "(" + TextUtils.join(",", Collections.nCopies(chunk.size(), "?")) + ")";
+          for (String[] row : ParseSQLiteDatabase.readStrings(
+              db.rawQuery(sql, args.toArray(new String[args.size()])))) {
+            pinned.add(row[0]);
+          }
         }
-        cursor.close();
-
-        List<Task<Void>> tasks = new ArrayList<>();
-        for (final String uuid : uuids) {
-          Task<Void> unpinTask = getPointerAsync(uuid, db).onSuccessTask(new Continuation<ParseObject, Task<ParsePin>>() {
-            @Override
-            public Task<ParsePin> then(Task<ParseObject> task) throws Exception {
-              ParsePin pin = (ParsePin) task.getResult();
-              return fetchLocallyAsync(pin, db);
-            }
-          }).continueWithTask(new Continuation<ParsePin, Task<Void>>() {
-            @Override
-            public Task<Void> then(Task<ParsePin> task) throws Exception {
-              ParsePin pin = task.getResult();
-
-              List<ParseObject> modified = pin.getObjects();
-              if (modified == null || !modified.contains(object)) {
-                return task.makeVoid();
-              }
+        return pinned;
+      }
+    });
+  }
 
-              modified.remove(object);
-              if (modified.size() == 0) {
-                return unpinAsync(uuid, db);
-              }
+  //endregion
 
-              pin.setObjects(modified);
-              return saveLocallyAsync(pin, true, db);
-            }
-          });
-          tasks.add(unpinTask);
-        }
+  //region Snapshots
 
-        return Task.whenAll(tasks);
+  /**
+   * Writes the pins of the local datastore and the objects they depend on to a snapshot file.
+   *
+   * @return A task that resolves to the number of objects in the snapshot.
+   * @see OfflineSnapshot#export(SQLiteDatabase, File)
+   */
+  /* package */ Task<Integer> exportSnapshotAsync(final File file) {
+    final Capture<Integer> count = new Capture<>();
+    // The transaction keeps pins from changing while they're being copied.
+    return runWithManagedTransaction(new SQLiteDatabaseCallable<Task<Void>>() {
+      @Override
+      public Task<Void> call(ParseSQLiteDatabase db) {
+        return db.runBatchAsync(new ParseSQLiteDatabase.Batch<Void>() {
+          @Override
+          public Void run(SQLiteDatabase sqlDb) throws Exception {
+            count.set(OfflineSnapshot.export(sqlDb, file));
+            return null;
+          }
+        });
       }
-    });
-
-    // Delete the object from the Local Datastore in case it wasn't the root of a pin.
-    return unpinTask.onSuccessTask(new Continuation<Void, Task<Void>>() {
+    }).onSuccess(new Continuation<Void, Integer>() {
       @Override
-      public Task<Void> then(Task<Void> task) throws Exception {
-        String where = OfflineSQLiteOpenHelper.KEY_UUID + "=?";
-        String[] args = {uuid.get()};
-        return db.deleteAsync(OfflineSQLiteOpenHelper.TABLE_DEPENDENCIES, where, args);
+      public Integer then(Task<Void> task) throws Exception {
+        return count.get();
       }
-    }).onSuccessTask(new Continuation<Void, Task<Void>>() {
+    });
+  }
+
+  /**
+   * Copies the pins and objects of a snapshot file into the local datastore, all at once.
+   *
+   * @return A task that resolves to the number of objects that were imported.
+   * @see OfflineSnapshot#importInto(SQLiteDatabase, OfflineIndexes, File)
+   */
+  /* package */ Task<Integer> importSnapshotAsync(final File file) {
+    final Capture<Integer> count = new Capture<>();
+    return runWithManagedTransaction(new SQLiteDatabaseCallable<Task<Void>>() {
       @Override
-      public Task<Void> then(Task<Void> task) throws Exception {
-        String where = OfflineSQLiteOpenHelper.KEY_UUID + "=?";
-        String[] args = {uuid.get()};
-        return db.deleteAsync(OfflineSQLiteOpenHelper.TABLE_OBJECTS, where, args);
+      public Task<Void> call(ParseSQLiteDatabase db) {
+        return db.runBatchAsync(new ParseSQLiteDatabase.Batch<Void>() {
+          @Override
+          public Void run(SQLiteDatabase sqlDb) throws Exception {
+            count.set(OfflineSnapshot.importInto(sqlDb, helper.getIndexes(), file));
+            return null;
+          }
+        });
       }
-    }).onSuccessTask(new Continuation<Void, Task<Void>>() {
+    }).onSuccess(new Continuation<Void, Integer>() {
       @Override
-      public Task<Void> then(Task<Void> task) throws Exception {
-        synchronized (lock) {
-          // Clean up
-          //TODO (grantland): we should probably clean up uuidToObjectMap and objectToUuidMap, but
-          // getting the uuid requires a task and things might get a little funky...
-          fetchedObjects.remove(object);
-        }
-        return task;
+      public Integer then(Task<Void> task) throws Exception {
+        return count.get();
       }
     });
   }
 
+  //endregion
+
   //region ParsePin
 
   private Task<ParsePin> getParsePin(final String name, ParseSQLiteDatabase db) {
@@ -1223,7 +3257,8 @@ import bolts.Task;
       return Task.forResult(null);
     }
 
-    return getParsePin(name, db).onSuccessTask(new Continuation<ParsePin, Task<Void>>() {
+    return getParsePinWithSyncs(name, db).onSuccessTask(
+        new Continuation<ParsePin, Task<Void>>() {
       @Override
       public Task<Void> then(Task<ParsePin> task) throws Exception {
         ParsePin pin = task.getResult();
@@ -1262,6 +3297,12 @@ import bolts.Task;
       public Task<Void> call(ParseSQLiteDatabase db) {
         return unpinAllObjectsAsync(name, objects, db);
       }
+    }).onSuccess(new Continuation<Void, Void>() {
+      @Override
+      public Void then(Task<Void> task) throws Exception {
+        collectOrphansInBackground();
+        return null;
+      }
     });
   }
 
@@ -1273,7 +3314,8 @@ import bolts.Task;
       return Task.forResult(null);
     }
 
-    return getParsePin(name, db).onSuccessTask(new Continuation<ParsePin, Task<Void>>() {
+    return getParsePinWithSyncs(name, db).onSuccessTask(
+        new Continuation<ParsePin, Task<Void>>() {
       @Override
       public Task<Void> then(Task<ParsePin> task) throws Exception {
         ParsePin pin = task.getResult();
@@ -1307,6 +3349,12 @@ import bolts.Task;
       public Task<Void> call(ParseSQLiteDatabase db) {
         return unpinAllObjectsAsync(name, db);
       }
+    }).onSuccess(new Continuation<Void, Void>() {
+      @Override
+      public Void then(Task<Void> task) throws Exception {
+        collectOrphansInBackground();
+        return null;
+      }
     });
   }
 
@@ -1327,7 +3375,7 @@ import bolts.Task;
       final String name,
       final ParseQuery.State<T> state,
       final ParseUser user) {
-    return runWithManagedConnection(new SQLiteDatabaseCallable<Task<List<T>>>() {
+    return runWithManagedReadOnlyConnection(new SQLiteDatabaseCallable<Task<List<T>>>() {
       @Override
       public Task<List<T>> call(ParseSQLiteDatabase db) {
         return findFromPinAsync(name, state, user, db);
@@ -1340,6 +3388,15 @@ import bolts.Task;
       final ParseQuery.State<T> state,
       final ParseUser user,
       final ParseSQLiteDatabase db) {
+    return findFromPinAsync(name, state, user, null, db);
+  }
+
+  private <T extends ParseObject> Task<List<T>> findFromPinAsync(
+      final String name,
+      final ParseQuery.State<T> state,
+      final ParseUser user,
+      final OfflineQueryProfile profile,
+      final ParseSQLiteDatabase db) {
     Task<ParsePin> task;
     if (name != null) {
       task = getParsePin(name, db);
@@ -1350,7 +3407,40 @@ import bolts.Task;
       @Override
       public Task<List<T>> then(Task<ParsePin> task) throws Exception {
         ParsePin pin = task.getResult();
-        return findAsync(state, user, pin, false, db);
+        return findAsync(state, user, pin, profile, db);
+      }
+    });
+  }
+
+  /**
+   * Runs a query the same way {@link #findFromPinAsync(String, ParseQuery.State, ParseUser)} does,
+   * and reports what it did and where its time went.
+   */
+  /* package */ <T extends ParseObject> Task<OfflineQueryProfile> profileFromPinAsync(
+      final String name,
+      final ParseQuery.State<T> state,
+      final ParseUser user) {
+    final OfflineQueryProfile profile = new OfflineQueryProfile(state.className(), name);
+    final Capture<Long> startTime = new Capture<>();
+    return runWithManagedReadOnlyConnection(new SQLiteDatabaseCallable<Task<List<T>>>() {
+      @Override
+      public Task<List<T>> call(final ParseSQLiteDatabase db) {
+        startTime.set(System.nanoTime());
+        db.setProfile(profile);
+        return findFromPinAsync(name, state, user, profile, db).continueWithTask(
+            new Continuation<List<T>, Task<List<T>>>() {
+          @Override
+          public Task<List<T>> then(Task<List<T>> task) throws Exception {
+            db.setProfile(null);
+            return task;
+          }
+        });
+      }
+    }).onSuccess(new Continuation<List<T>, OfflineQueryProfile>() {
+      @Override
+      public OfflineQueryProfile then(Task<List<T>> task) throws Exception {
+        profile.setTotalNanos(System.nanoTime() - startTime.get());
+        return profile;
       }
     });
   }
@@ -1359,7 +3449,7 @@ import bolts.Task;
       final String name,
       final ParseQuery.State<T> state,
       final ParseUser user) {
-    return runWithManagedConnection(new SQLiteDatabaseCallable<Task<Integer>>() {
+    return runWithManagedReadOnlyConnection(new SQLiteDatabaseCallable<Task<Integer>>() {
       @Override
       public Task<Integer> call(ParseSQLiteDatabase db) {
         return countFromPinAsync(name, state, user, db);
@@ -1382,10 +3472,39 @@ import bolts.Task;
       @Override
       public Task<Integer> then(Task<ParsePin> task) throws Exception {
         ParsePin pin = task.getResult();
-        return findAsync(state, user, pin, true, db).onSuccess(new Continuation<List<T>, Integer>() {
+        return countAsync(state, user, pin, db);
+      }
+    });
+  }
+
+  /**
+   * Groups and reduces the objects that match a query into {@code aggregation}.
+   *
+   * @return The results of {@code aggregation}.
+   */
+  /* package */ <T extends ParseObject> Task<Map<Object, Map<String, Number>>>
+      aggregateFromPinAsync(
+      final String name,
+      final ParseQuery.State<T> state,
+      final ParseUser user,
+      final OfflineAggregation aggregation) {
+    return runWithManagedReadOnlyConnection(
+        new SQLiteDatabaseCallable<Task<Map<Object, Map<String, Number>>>>() {
+      @Override
+      public Task<Map<Object, Map<String, Number>>> call(final ParseSQLiteDatabase db) {
+        Task<ParsePin> task;
+        if (name != null) {
+          task = getParsePin(name, db);
+        } else {
+          task = Task.forResult(null);
+        }
+        return task.onSuccessTask(
+            new Continuation<ParsePin, Task<Map<Object, Map<String, Number>>>>() {
           @Override
-          public Integer then(Task<List<T>> task) throws Exception {
-            return task.getResult().size();
+          public Task<Map<Object, Map<String, Number>>> then(Task<ParsePin> task)
+              throws Exception {
+            ParsePin pin = task.getResult();
+            return aggregateAsync(state, user, pin, aggregation, db);
           }
         });
       }
@@ -1480,14 +3599,30 @@ import bolts.Task;
    * Wraps SQLite operations with a managed SQLite connection.
    */
   private <T> Task<T> runWithManagedConnection(final SQLiteDatabaseCallable<Task<T>> callable) {
-    return helper.getWritableDatabaseAsync().onSuccessTask(new Continuation<ParseSQLiteDatabase, Task<T>>() {
+    return runWithManagedConnection(helper.getWritableDatabaseAsync(), callable);
+  }
+
+  /**
+   * Wraps SQLite operations that don't write to the database with a managed SQLite connection. If
+   * the connection is pooled, these don't have to wait for other operations to finish.
+   *
+   * @see ParseSQLiteOpenHelper#enableConnectionPool(int)
+   */
+  private <T> Task<T> runWithManagedReadOnlyConnection(
+      final SQLiteDatabaseCallable<Task<T>> callable) {
+    return runWithManagedConnection(helper.getReadableDatabaseAsync(), callable);
+  }
+
+  private <T> Task<T> runWithManagedConnection(Task<ParseSQLiteDatabase> dbTask,
+      final SQLiteDatabaseCallable<Task<T>> callable) {
+    return dbTask.onSuccessTask(new Continuation<ParseSQLiteDatabase, Task<T>>() {
       @Override
       public Task<T> then(Task<ParseSQLiteDatabase> task) throws Exception {
         final ParseSQLiteDatabase db = task.getResult();
         return callable.call(db).continueWithTask(new Continuation<T, Task<T>>() {
           @Override
           public Task<T> then(Task<T> task) throws Exception {
-            db.closeAsync();
+            publishChangesAfter(db.closeAsync(), db, task);
             return task;
           }
         });
@@ -1514,7 +3649,7 @@ import bolts.Task;
             }).continueWithTask(new Continuation<Void, Task<Void>>() {
               @Override
               public Task<Void> then(Task<Void> task) throws Exception {
-                db.endTransactionAsync();
+                publishChangesAfter(db.endTransactionAsync(), db, task);
                 db.closeAsync();
                 return task;
               }
@@ -1542,9 +3677,17 @@ import bolts.Task;
       objectToUuidMap.clear();
       classNameAndObjectIdToObjectMap.clear();
       fetchedObjects.clear();
+      objectCache.clear();
     }
   }
 
+  /**
+   * Closes the database. This must only be called once nothing uses the store anymore.
+   */
+  /* package */ void close() {
+    helper.close();
+  }
+
   /**
    * Clears the database on disk.
    */
@@ -23,8 +23,10 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import bolts.Continuation;
@@ -45,6 +47,12 @@ public class Parse {
 
   private static boolean isLocalDatastoreEnabled;
   private static OfflineStore offlineStore;
+  private static final Map<String, Set<String>> localDatastoreIndexes = new HashMap<>();
+  private static final Map<String, Set<String>> localDatastoreFullTextIndexes = new HashMap<>();
+  private static int localDatastoreMaxReaders = 0;
+  private static boolean isLocalDatastoreBinaryStorageEnabled = false;
+  private static int localDatastoreCacheMaxObjects = 0;
+  private static long localDatastoreCacheMaxBytes = 0;
 
   /**
    * Enable pinning in your application. This must be called before your application can use
@@ -71,6 +79,199 @@ public class Parse {
     isLocalDatastoreEnabled = true;
   }
 
+  /**
+   * Index a key of a class in the local datastore. Queries from the local datastore that constrain
+   * an indexed key with equality, {@code $in}, {@code $all}, ranges or {@code $exists} only have to
+   * look at the objects that can match instead of every object of the class. Indexes take up space
+   * and make pinning slower, so only index keys that you query on. {@code objectId} never needs to
+   * be indexed. You must invoke {@code addLocalDatastoreIndex(String, String)} before
+   * {@link #initialize(Context)}:
+   * <p/>
+   * <pre>
+   * public class MyApplication extends Application {
+   *   public void onCreate() {
+   *     Parse.enableLocalDatastore(this);
+   *     Parse.addLocalDatastoreIndex("GameScore", "playerName");
+   *     Parse.initialize(this);
+   *   }
+   * }
+   * </pre>
+   *
+   * Indexes that were added in a previous launch of the application but aren't added anymore are
+   * dropped when the local datastore is opened.
+   *
+   * @param className
+   *          The class to index.
+   * @param key
+   *          The top level key to index.
+   */
+  public static void addLocalDatastoreIndex(String className, String key) {
+    if (isInitialized()) {
+      throw new IllegalStateException("`Parse#addLocalDatastoreIndex(String, String)` must be " +
+          "invoked before `Parse#initialize(Context)`");
+    }
+    if (className == null || className.length() == 0) {
+      throw new IllegalArgumentException("className may not be null or empty.");
+    }
+    if (key == null || key.length() == 0) {
+      throw new IllegalArgumentException("key may not be null or empty.");
+    }
+    if (key.equals("objectId")) {
+      // objectId is always indexed.
+      return;
+    }
+    if (!OfflineIndexes.isIndexableKey(key)) {
+      throw new IllegalArgumentException(String.format("Key %s can't be indexed.", key));
+    }
+    synchronized (MUTEX) {
+      Set<String> keys = localDatastoreIndexes.get(className);
+      if (keys == null) {
+        keys = new HashSet<>();
+        localDatastoreIndexes.put(className, keys);
+      }
+      keys.add(key);
+    }
+  }
+
+  /**
+   * Index the words of a string key of a class in the local datastore, so that queries from the
+   * local datastore that use {@link ParseQuery#whereFullText(String, String)} on it only have to
+   * look at the objects that contain the words instead of every object of the class. The key is
+   * also indexed as if by {@link #addLocalDatastoreIndex(String, String)}. You must invoke
+   * {@code addLocalDatastoreFullTextIndex(String, String)} before {@link #initialize(Context)}:
+   * <p/>
+   * <pre>
+   * public class MyApplication extends Application {
+   *   public void onCreate() {
+   *     Parse.enableLocalDatastore(this);
+   *     Parse.addLocalDatastoreFullTextIndex("Note", "body");
+   *     Parse.initialize(this);
+   *   }
+   * }
+   * </pre>
+   *
+   * @param className
+   *          The class to index.
+   * @param key
+   *          The top level key to index.
+   */
+  public static void addLocalDatastoreFullTextIndex(String className, String key) {
+    if (isInitialized()) {
+      throw new IllegalStateException("`Parse#addLocalDatastoreFullTextIndex(String, String)` " +
+          "must be invoked before `Parse#initialize(Context)`");
+    }
+    if (className == null || className.length() == 0) {
+      throw new IllegalArgumentException("className may not be null or empty.");
+    }
+    if (key == null || !OfflineIndexes.isIndexableKey(key)) {
+      throw new IllegalArgumentException(String.format("Key %s can't be indexed.", key));
+    }
+    synchronized (MUTEX) {
+      Set<String> keys = localDatastoreFullTextIndexes.get(className);
+      if (keys == null) {
+        keys = new HashSet<>();
+        localDatastoreFullTextIndexes.put(className, keys);
+      }
+      keys.add(key);
+    }
+  }
+
+  /**
+   * Let queries on the local datastore run concurrently with each other and with pinning, instead
+   * of waiting for every other local datastore operation to finish. The database is kept open with
+   * write-ahead logging, so queries see the last completed pin or unpin, while pins and unpins are
+   * still run one at a time. You must invoke
+   * {@code enableLocalDatastoreConnectionPool(int)} before {@link #initialize(Context)}:
+   * <p/>
+   * <pre>
+   * public class MyApplication extends Application {
+   *   public void onCreate() {
+   *     Parse.enableLocalDatastore(this);
+   *     Parse.enableLocalDatastoreConnectionPool(4);
+   *     Parse.initialize(this);
+   *   }
+   * }
+   * </pre>
+   *
+   * This has no effect before Android 4.1 (Jelly Bean).
+   *
+   * @param maxReaders
+   *          The maximum number of queries to run at the same time.
+   */
+  public static void enableLocalDatastoreConnectionPool(int maxReaders) {
+    if (isInitialized()) {
+      throw new IllegalStateException("`Parse#enableLocalDatastoreConnectionPool(int)` must be " +
+          "invoked before `Parse#initialize(Context)`");
+    }
+    if (maxReaders < 1) {
+      throw new IllegalArgumentException("maxReaders must be at least 1.");
+    }
+    localDatastoreMaxReaders = maxReaders;
+  }
+
+  /**
+   * Store objects in the local datastore in a compact binary format instead of as JSON text, which
+   * makes reading them back faster. Objects that were stored before are converted the next time
+   * they're saved. You must invoke {@code enableLocalDatastoreBinaryStorage()} before
+   * {@link #initialize(Context)}:
+   * <p/>
+   * <pre>
+   * public class MyApplication extends Application {
+   *   public void onCreate() {
+   *     Parse.enableLocalDatastore(this);
+   *     Parse.enableLocalDatastoreBinaryStorage();
+   *     Parse.initialize(this);
+   *   }
+   * }
+   * </pre>
+   *
+   * Objects stored in the binary format can't be read by versions of this SDK that don't support
+   * it.
+   */
+  public static void enableLocalDatastoreBinaryStorage() {
+    if (isInitialized()) {
+      throw new IllegalStateException("`Parse#enableLocalDatastoreBinaryStorage()` must be " +
+          "invoked before `Parse#initialize(Context)`");
+    }
+    isLocalDatastoreBinaryStorageEnabled = true;
+  }
+
+  /**
+   * Keep the objects most recently read from the local datastore in memory, so that reading them
+   * again doesn't go to disk. Objects that are in use are always kept in memory, this only affects
+   * objects nothing references anymore. You must invoke
+   * {@code enableLocalDatastoreObjectCache(int, long)} before {@link #initialize(Context)}:
+   * <p/>
+   * <pre>
+   * public class MyApplication extends Application {
+   *   public void onCreate() {
+   *     Parse.enableLocalDatastore(this);
+   *     Parse.enableLocalDatastoreObjectCache(500, 4 * 1024 * 1024);
+   *     Parse.initialize(this);
+   *   }
+   * }
+   * </pre>
+   *
+   * @param maxObjects
+   *          The most objects to keep in memory.
+   * @param maxBytes
+   *          The most memory, roughly, for the objects to take up, or 0 for no limit.
+   */
+  public static void enableLocalDatastoreObjectCache(int maxObjects, long maxBytes) {
+    if (isInitialized()) {
+      throw new IllegalStateException("`Parse#enableLocalDatastoreObjectCache(int, long)` must be " +
+          "invoked before `Parse#initialize(Context)`");
+    }
+    if (maxObjects < 1) {
+      throw new IllegalArgumentException("maxObjects must be at least 1.");
+    }
+    if (maxBytes < 0) {
+      throw new IllegalArgumentException("maxBytes can't be negative.");
+    }
+    localDatastoreCacheMaxObjects = maxObjects;
+    localDatastoreCacheMaxBytes = maxBytes;
+  }
+
   /* package for tests */ static void disableLocalDatastore() {
     setLocalDatastore(null);
     // We need to re-register ParseCurrentInstallationController otherwise it is still offline
@@ -91,6 +292,46 @@ public class Parse {
     return isLocalDatastoreEnabled;
   }
 
+  /**
+   * Writes every pin of the local datastore, and every object the pins hold, to a snapshot file
+   * that can later be imported with {@link #importLocalDatastoreInBackground(File)}. The pins the
+   * SDK uses for the current user, the current installation and saveEventually are left out. An
+   * existing file is replaced.
+   *
+   * @param file
+   *          The file to write the snapshot to.
+   * @return A {@link bolts.Task} that resolves to the number of objects in the snapshot.
+   */
+  public static Task<Integer> exportLocalDatastoreInBackground(File file) {
+    if (!isLocalDatastoreEnabled()) {
+      throw new IllegalStateException("Method requires Local Datastore. " +
+          "Please refer to `Parse#enableLocalDatastore(Context)`.");
+    }
+    return offlineStore.exportSnapshotAsync(file);
+  }
+
+  /**
+   * Imports a snapshot written by {@link #exportLocalDatastoreInBackground(File)}, such as one
+   * that's shipped with the application, so that its pins can be queried right away instead of
+   * being fetched and pinned on first launch. The rows are copied as they were exported, which is
+   * much faster than pinning the same objects.
+   * <p/>
+   * The import fails, without changing the local datastore, if the snapshot has a pin with the
+   * same name as a pin that already exists, or an object that's already in the local datastore.
+   * Snapshots in an application's assets have to be copied to a file first.
+   *
+   * @param file
+   *          The snapshot to import.
+   * @return A {@link bolts.Task} that resolves to the number of objects that were imported.
+   */
+  public static Task<Integer> importLocalDatastoreInBackground(File file) {
+    if (!isLocalDatastoreEnabled()) {
+      throw new IllegalStateException("Method requires Local Datastore. " +
+          "Please refer to `Parse#enableLocalDatastore(Context)`.");
+    }
+    return offlineStore.importSnapshotAsync(file);
+  }
+
   //endregion
 
   /**
@@ -201,7 +442,19 @@ public class Parse {
     ParseObject.registerParseSubclasses();
 
     if (isLocalDatastoreEnabled()) {
-      offlineStore = new OfflineStore(context);
+      OfflineIndexes indexes;
+      synchronized (MUTEX) {
+        indexes = new OfflineIndexes(localDatastoreIndexes, localDatastoreFullTextIndexes);
+      }
+      OfflineSQLiteOpenHelper helper = new OfflineSQLiteOpenHelper(context, indexes);
+      if (localDatastoreMaxReaders > 0) {
+        helper.enableConnectionPool(localDatastoreMaxReaders);
+      }
+      if (isLocalDatastoreBinaryStorageEnabled) {
+        helper.enableBinaryStorage();
+      }
+      offlineStore = new OfflineStore(helper,
+          new OfflineObjectCache(localDatastoreCacheMaxObjects, localDatastoreCacheMaxBytes));
     } else {
       ParseKeyValueCache.initialize(context);
     }
@@ -265,6 +518,11 @@ public class Parse {
       queue.onDestroy();
     }
 
+    OfflineStore store = offlineStore;
+    if (store != null) {
+      store.close();
+    }
+
     ParseCorePlugins.getInstance().reset();
     ParsePlugins.reset();
   }
@@ -581,6 +839,7 @@ public class Parse {
   }
 
   private static List<ParseNetworkInterceptor> interceptors;
+  private static long objectBatchWindowMillis = 0;
 
   // Initialize all necessary http clients and add interceptors to these http clients
   private static void initializeParseHttpClientsWithParseNetworkInterceptors() {
@@ -611,6 +870,102 @@ public class Parse {
   }
 
 
+  /**
+   * Send {@link ParseObject#saveInBackground()} and {@link ParseObject#deleteInBackground()} calls
+   * that are made within a short window of each other together in a single request, the same way
+   * {@link ParseObject#saveAllInBackground(List)} does. Each call still completes with its own
+   * result. You must invoke {@code enableObjectBatching(long)} before
+   * {@link #initialize(Context)}:
+   * <p/>
+   * <pre>
+   * public class MyApplication extends Application {
+   *   public void onCreate() {
+   *     Parse.enableObjectBatching(20);
+   *     Parse.initialize(this);
+   *   }
+   * }
+   * </pre>
+   *
+   * Every save and delete waits up to the window before it's sent, so keep it short.
+   *
+   * @param windowMillis
+   *          How long to wait for other saves and deletes after each one, in milliseconds.
+   */
+  public static void enableObjectBatching(long windowMillis) {
+    if (isInitialized()) {
+      throw new IllegalStateException("`Parse#enableObjectBatching(long)` must be " +
+          "invoked before `Parse#initialize(Context)`");
+    }
+    if (windowMillis < 1) {
+      throw new IllegalArgumentException("windowMillis must be at least 1.");
+    }
+    objectBatchWindowMillis = windowMillis;
+  }
+
+  /* package */ static long getObjectBatchWindowMillis() {
+    return objectBatchWindowMillis;
+  }
+
+  /**
+   * Sets how many requests {@link ParseObject#saveAllInBackground(List)} and
+   * {@link ParseObject#deleteAllInBackground(List)} send at the same time when they're given more
+   * objects than fit in a single request. The rest of the requests wait for one of them to finish,
+   * so that large imports don't flood the network or the server's request limit. Defaults to 2.
+   *
+   * @param maxBatchesInFlight
+   *          The most requests to send at the same time.
+   */
+  public static void setObjectBatchConcurrency(int maxBatchesInFlight) {
+    if (maxBatchesInFlight < 1) {
+      throw new IllegalArgumentException("maxBatchesInFlight must be at least 1.");
+    }
+    ParseRESTObjectBatchCommand.setMaxBatchesInFlight(maxBatchesInFlight);
+  }
+
+  /**
+   * Sets how many network requests with the given priority are sent at the same time. Each
+   * priority has a queue of its own, so the limit of one never holds up requests of another.
+   * {@link ParseRequestPriority#BULK} requests are sent one at a time by default.
+   *
+   * @param priority
+   *          The priority to set the limit of.
+   * @param maxConcurrentRequests
+   *          The most requests with {@code priority} to send at the same time.
+   *
+   * @see ParseQuery#setPriority(ParseRequestPriority)
+   * @see ParseObject#setSavePriority(ParseRequestPriority)
+   * @see ParseFile#setPriority(ParseRequestPriority)
+   */
+  public static void setRequestConcurrency(ParseRequestPriority priority,
+      int maxConcurrentRequests) {
+    if (priority == null) {
+      throw new IllegalArgumentException("priority may not be null.");
+    }
+    if (maxConcurrentRequests < 1) {
+      throw new IllegalArgumentException("maxConcurrentRequests must be at least 1.");
+    }
+    ParseRequest.setConcurrency(priority, maxConcurrentRequests);
+  }
+
+  /**
+   * Returns how many queries, counts and fetches have been made since the app started. Identical
+   * ones that are made while one is already in flight share its request, and are counted by
+   * {@link #getCoalescedRequestCount()} as well.
+   */
+  public static long getCoalescableRequestCount() {
+    return ParseRESTCommand.getCoalescer().getRequestCount();
+  }
+
+  /**
+   * Returns how many queries, counts and fetches have shared the request of an identical one that
+   * was already in flight since the app started, rather than being sent on their own.
+   *
+   * @see #getCoalescableRequestCount()
+   */
+  public static long getCoalescedRequestCount() {
+    return ParseRESTCommand.getCoalescer().getCoalescedCount();
+  }
+
   /**
    * Add a {@link ParseNetworkInterceptor}. You must invoke
    * {@code addParseNetworkInterceptor(ParseNetworkInterceptor)} before
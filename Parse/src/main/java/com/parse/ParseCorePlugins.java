@@ -80,7 +80,8 @@ import java.util.concurrent.atomic.AtomicReference;
     if (objectController.get() == null) {
       // TODO(grantland): Do not rely on Parse global
       objectController.compareAndSet(
-          null, new NetworkObjectController(ParsePlugins.get().restClient()));
+          null, new NetworkObjectController(
+              ParsePlugins.get().restClient(), Parse.getObjectBatchWindowMillis()));
     }
     return objectController.get();
   }
@@ -75,6 +75,7 @@ public class ParseFile {
       private String name;
       private String mimeType;
       private String url;
+      private ParseRequestPriority priority = ParseRequestPriority.NORMAL;
 
       public Builder() {
         // do nothing
@@ -84,6 +85,7 @@ public class ParseFile {
         name = state.name();
         mimeType = state.mimeType();
         url = state.url();
+        priority = state.priority();
       }
 
       public Builder name(String name) {
@@ -101,6 +103,11 @@ public class ParseFile {
         return this;
       }
 
+      public Builder priority(ParseRequestPriority priority) {
+        this.priority = priority;
+        return this;
+      }
+
       public State build() {
         return new State(this);
       }
@@ -109,11 +116,13 @@ public class ParseFile {
     private final String name;
     private final String contentType;
     private final String url;
+    private final ParseRequestPriority priority;
 
     private State(Builder builder) {
       name = builder.name != null ? builder.name : "file";
       contentType = builder.mimeType;
       url = builder.url;
+      priority = builder.priority;
     }
 
     public String name() {
@@ -127,6 +136,10 @@ public class ParseFile {
     public String url() {
       return url;
     }
+
+    public ParseRequestPriority priority() {
+      return priority;
+    }
   }
 
   private State state;
@@ -275,6 +288,29 @@ public class ParseFile {
     return state.url();
   }
 
+  /**
+   * Sets how urgently the uploads and downloads of this file are needed. Transfers with a higher
+   * priority are sent on their own threads, without waiting behind ones with a lower priority.
+   *
+   * @param priority
+   *          The priority of the network requests of later transfers.
+   *
+   * @see Parse#setRequestConcurrency(ParseRequestPriority, int)
+   */
+  public void setPriority(ParseRequestPriority priority) {
+    if (priority == null) {
+      throw new IllegalArgumentException("priority may not be null.");
+    }
+    state = new State.Builder(state).priority(priority).build();
+  }
+
+  /**
+   * @return The priority of the network requests of transfers of this file.
+   */
+  public ParseRequestPriority getPriority() {
+    return state.priority();
+  }
+
   /**
    * Saves the file to the Parse cloud synchronously.
    */
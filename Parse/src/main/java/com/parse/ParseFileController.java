@@ -99,6 +99,7 @@ import bolts.Task;
         .sessionToken(sessionToken)
         .build();
     command.enableRetrying();
+    command.setPriority(state.priority());
 
     return command.executeAsync(
         restClient,
@@ -146,6 +147,7 @@ import bolts.Task;
         .sessionToken(sessionToken)
         .build();
     command.enableRetrying();
+    command.setPriority(state.priority());
 
     return command.executeAsync(
         restClient,
@@ -208,6 +210,7 @@ import bolts.Task;
         // network
         final ParseAWSRequest request =
             new ParseAWSRequest(ParseHttpRequest.Method.GET, state.url(), tempFile);
+        request.setPriority(state.priority());
 
         // We do not need to delete the temp file since we always try to overwrite it
         return request.executeAsync(
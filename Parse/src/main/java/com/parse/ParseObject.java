@@ -59,19 +59,19 @@ public class ParseObject {
   private static final String KEY_OBJECT_ID = "objectId";
   private static final String KEY_CLASS_NAME = "className";
   private static final String KEY_ACL = "ACL";
-  private static final String KEY_CREATED_AT = "createdAt";
-  private static final String KEY_UPDATED_AT = "updatedAt";
+  /* package */ static final String KEY_CREATED_AT = "createdAt";
+  /* package */ static final String KEY_UPDATED_AT = "updatedAt";
 
   /*
   Internal JSON Keys - Used to store internal data when persisting {@code ParseObject}s locally.
   */
   private static final String KEY_COMPLETE = "__complete";
-  private static final String KEY_OPERATIONS = "__operations";
+  /* package */ static final String KEY_OPERATIONS = "__operations";
   /* package */ static final String KEY_IS_DELETING_EVENTUALLY = "__isDeletingEventually";
   // Because Grantland messed up naming this... We'll only try to read from this for backward
   // compat, but I think we can be safe to assume any deleteEventuallys from long ago are obsolete
   // and not check after a while
-  private static final String KEY_IS_DELETING_EVENTUALLY_OLD = "isDeletingEventually";
+  /* package */ static final String KEY_IS_DELETING_EVENTUALLY_OLD = "isDeletingEventually";
 
   private static final Map<Class<? extends ParseObject>, String> classNames =
       new ConcurrentHashMap<>();
@@ -308,6 +308,7 @@ public class ParseObject {
 
   private String localId;
   private final ParseMulticastDelegate<ParseObject> saveEvent = new ParseMulticastDelegate<>();
+  private ParseRequestPriority savePriority = ParseRequestPriority.NORMAL;
 
   /* package */ boolean isDeleted;
   //TODO (grantland): Derive this off the EventuallyPins as opposed to +/- count.
@@ -675,6 +676,40 @@ public class ParseObject {
     return object;
   }
 
+  /**
+   * Decodes data from the Parse server into a {@code State} the same way
+   * {@link #fromJSON(JSONObject, String, boolean, ParseDecoder)} does, but without merging it into
+   * an object, so that it can be merged later with {@link #fromState(State)}.
+   *
+   * @return The decoded data, or {@code null} if it has no className.
+   */
+  /* package */ static State stateFromJSON(JSONObject json, String defaultClassName,
+      boolean isComplete, ParseDecoder decoder) {
+    String className = json.optString(KEY_CLASS_NAME, defaultClassName);
+    if (className == null) {
+      return null;
+    }
+    State.Init<?> builder = State.newBuilder(className).isComplete(isComplete);
+    try {
+      putFromServer(builder, json, decoder);
+    } catch (JSONException e) {
+      throw new RuntimeException(e);
+    }
+    return builder.build();
+  }
+
+  /**
+   * Merges data from the Parse server that was decoded by
+   * {@link #stateFromJSON(JSONObject, String, boolean, ParseDecoder)} into the object it belongs
+   * to.
+   */
+  /* package */ static <T extends ParseObject> T fromState(State decoded) {
+    @SuppressWarnings("unchecked")
+    T object = (T) ParseObject.createWithoutData(decoded.className(), decoded.objectId());
+    object.setState(object.mergeFromServer(object.getState(), decoded));
+    return object;
+  }
+
   /**
    * Method used by parse server webhooks implementation to convert raw JSON to Parse Object
    *
@@ -950,44 +985,64 @@ public class ParseObject {
         builder.clear();
       }
       builder.isComplete(state.isComplete() || completeData);
+      putFromServer(builder, json, decoder);
+      return builder.build();
+    } catch (JSONException e) {
+      throw new RuntimeException(e);
+    }
+  }
 
-      Iterator<?> keys = json.keys();
-      while (keys.hasNext()) {
-        String key = (String) keys.next();
-        /*
-        __type:       Returned by queries and cloud functions to designate body is a ParseObject
-        __className:  Used by fromJSON, should be stripped out by the time it gets here...
-         */
-        if (key.equals("__type") || key.equals(KEY_CLASS_NAME)) {
-          continue;
-        }
-        if (key.equals(KEY_OBJECT_ID)) {
-          String newObjectId = json.getString(key);
-          builder.objectId(newObjectId);
-          continue;
-        }
-        if (key.equals(KEY_CREATED_AT)) {
-          builder.createdAt(ParseDateFormat.getInstance().parse(json.getString(key)));
-          continue;
-        }
-        if (key.equals(KEY_UPDATED_AT)) {
-          builder.updatedAt(ParseDateFormat.getInstance().parse(json.getString(key)));
-          continue;
-        }
-        if (key.equals(KEY_ACL)) {
-          ParseACL acl = ParseACL.createACLFromJSONObject(json.getJSONObject(key), decoder);
-          builder.put(KEY_ACL, acl);
-          continue;
-        }
+  /**
+   * Merges data from the server that was decoded ahead of time by
+   * {@link #stateFromJSON(JSONObject, String, boolean, ParseDecoder)}.
+   *
+   * @see #mergeFromServer(State, JSONObject, ParseDecoder, boolean)
+   */
+  /* package */ State mergeFromServer(State state, State decoded) {
+    State.Init<?> builder = state.newBuilder();
+    if (decoded.isComplete()) {
+      builder.clear();
+    }
+    return builder.apply(decoded).build();
+  }
 
-        Object value = json.get(key);
-        Object decodedObject = decoder.decode(value);
-        builder.put(key, decodedObject);
+  /**
+   * Decodes the values in JSON in REST format into {@code builder}.
+   */
+  private static void putFromServer(State.Init<?> builder, JSONObject json, ParseDecoder decoder)
+      throws JSONException {
+    Iterator<?> keys = json.keys();
+    while (keys.hasNext()) {
+      String key = (String) keys.next();
+      /*
+      __type:       Returned by queries and cloud functions to designate body is a ParseObject
+      __className:  Used by fromJSON, should be stripped out by the time it gets here...
+       */
+      if (key.equals("__type") || key.equals(KEY_CLASS_NAME)) {
+        continue;
+      }
+      if (key.equals(KEY_OBJECT_ID)) {
+        String newObjectId = json.getString(key);
+        builder.objectId(newObjectId);
+        continue;
+      }
+      if (key.equals(KEY_CREATED_AT)) {
+        builder.createdAt(ParseDateFormat.getInstance().parse(json.getString(key)));
+        continue;
+      }
+      if (key.equals(KEY_UPDATED_AT)) {
+        builder.updatedAt(ParseDateFormat.getInstance().parse(json.getString(key)));
+        continue;
+      }
+      if (key.equals(KEY_ACL)) {
+        ParseACL acl = ParseACL.createACLFromJSONObject(json.getJSONObject(key), decoder);
+        builder.put(KEY_ACL, acl);
+        continue;
       }
 
-      return builder.build();
-    } catch (JSONException e) {
-      throw new RuntimeException(e);
+      Object value = json.get(key);
+      Object decodedObject = decoder.decode(value);
+      builder.put(key, decodedObject);
     }
   }
 
@@ -1433,6 +1488,7 @@ public class ParseObject {
   /* package */ ParseOperationSet startSave() {
     synchronized (mutex) {
       ParseOperationSet currentOperations = currentOperations();
+      currentOperations.setPriority(savePriority);
       operationSetQueue.addLast(new ParseOperationSet());
       return currentOperations;
     }
@@ -1442,6 +1498,34 @@ public class ParseObject {
     // do nothing
   }
 
+  /**
+   * Sets how urgently saves of this object are needed. Saves with a higher priority are sent on
+   * their own threads, without waiting behind ones with a lower priority. When objects with
+   * different priorities are saved together, they're sent with the highest one.
+   *
+   * @param priority
+   *          The priority of the network requests of later saves.
+   *
+   * @see Parse#setRequestConcurrency(ParseRequestPriority, int)
+   */
+  public void setSavePriority(ParseRequestPriority priority) {
+    if (priority == null) {
+      throw new IllegalArgumentException("priority may not be null.");
+    }
+    synchronized (mutex) {
+      savePriority = priority;
+    }
+  }
+
+  /**
+   * @return The priority of the network requests of saves of this object.
+   */
+  public ParseRequestPriority getSavePriority() {
+    synchronized (mutex) {
+      return savePriority;
+    }
+  }
+
   /**
    * Saves this object to the server. Typically, you should use {@link #saveInBackground} instead of
    * this, unless you are managing your own threading.
@@ -31,6 +31,9 @@ import java.util.UUID;
 
   // Does this set correspond to a call to saveEventually?
   private boolean isSaveEventually = false;
+
+  // How urgently the save is needed. This only matters while it's being sent, so it isn't stored.
+  private ParseRequestPriority priority = ParseRequestPriority.NORMAL;
   
   /**
    * Creates a new operation set with a random UUID.
@@ -43,6 +46,7 @@ import java.util.UUID;
     super(operations);
     uuid = operations.getUUID();
     isSaveEventually = operations.isSaveEventually;
+    priority = operations.priority;
   }
 
   /**
@@ -63,6 +67,14 @@ import java.util.UUID;
   public boolean isSaveEventually() {
     return isSaveEventually;
   }
+
+  public void setPriority(ParseRequestPriority priority) {
+    this.priority = priority;
+  }
+
+  public ParseRequestPriority getPriority() {
+    return priority;
+  }
   
   /**
    * Merges the changes from the given operation set into this one. Most typically, this is what
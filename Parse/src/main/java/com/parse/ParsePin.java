@@ -8,13 +8,21 @@
  */
 package com.parse;
 
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @ParseClassName("_Pin")
 /** package */ class ParsePin extends ParseObject {
 
   /* package */ static final String KEY_NAME = "_name";
   private static final String KEY_OBJECTS = "_objects";
+  // sync key -> the updatedAt and objectId of the last object synced into the pin
+  private static final String KEY_SYNCED = "_synced";
+  private static final String KEY_SYNCED_UPDATED_AT = "updatedAt";
+  private static final String KEY_SYNCED_OBJECT_ID = "objectId";
 
   public ParsePin() {
     // do nothing
@@ -40,4 +48,50 @@ import java.util.List;
   public void setObjects(List<ParseObject> objects) {
     put(KEY_OBJECTS, objects);
   }
+
+  /**
+   * Adds {@code objects} to the end of the objects of this pin, without looking at the ones that
+   * are already there. The caller has to make sure none of them are.
+   */
+  public void addObjects(Collection<? extends ParseObject> objects) {
+    addAll(KEY_OBJECTS, objects);
+  }
+
+  /**
+   * @return The updatedAt of the last object that was synced into this pin by the queries with
+   * {@code syncKey}, or {@code null} if they were never synced.
+   * @see ParseQuery#getSyncKey(ParseQuery.State.Builder)
+   */
+  public Date getSyncedUpdatedAt(String syncKey) {
+    Object value = getSynced(syncKey).get(KEY_SYNCED_UPDATED_AT);
+    return value instanceof Date ? (Date) value : null;
+  }
+
+  /**
+   * @return The objectId of the last object that was synced into this pin by the queries with
+   * {@code syncKey}, which breaks ties between objects with the same updatedAt.
+   */
+  public String getSyncedObjectId(String syncKey) {
+    Object value = getSynced(syncKey).get(KEY_SYNCED_OBJECT_ID);
+    return value instanceof String ? (String) value : null;
+  }
+
+  public void setSynced(String syncKey, Date updatedAt, String objectId) {
+    Map<String, Object> watermark = new HashMap<>();
+    watermark.put(KEY_SYNCED_UPDATED_AT, updatedAt);
+    watermark.put(KEY_SYNCED_OBJECT_ID, objectId);
+    Map<String, Object> synced = new HashMap<>();
+    Map<String, Object> existing = getMap(KEY_SYNCED);
+    if (existing != null) {
+      synced.putAll(existing);
+    }
+    synced.put(syncKey, watermark);
+    put(KEY_SYNCED, synced);
+  }
+
+  private Map<?, ?> getSynced(String syncKey) {
+    Map<String, Object> synced = getMap(KEY_SYNCED);
+    Object watermark = synced != null ? synced.get(syncKey) : null;
+    return watermark instanceof Map ? (Map<?, ?>) watermark : new HashMap<>();
+  }
 }
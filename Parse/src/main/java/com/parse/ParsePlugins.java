@@ -108,8 +108,8 @@ import java.io.IOException;
 
             // Only add the installationId if not already set
             if (request.getHeader(ParseRESTCommand.HEADER_INSTALLATION_ID) == null) {
-              // We can do this synchronously since the caller is already in a Task on the
-              // NETWORK_EXECUTOR
+              // We can do this synchronously since the caller is already in a Task on one of the
+              // network executors
               builder.addHeader(ParseRESTCommand.HEADER_INSTALLATION_ID, installationId().get());
             }
             return chain.proceed(builder.build());
@@ -12,8 +12,10 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -88,6 +90,9 @@ import bolts.Task;
  */
 public class ParseQuery<T extends ParseObject> {
 
+  // The most objects fetched in each request of a sync, which is the most the server returns.
+  /* package */ static final int SYNC_PAGE_SIZE = 1000;
+
   private static ParseQueryController getQueryController() {
     return ParseCorePlugins.getInstance().getQueryController();
   }
@@ -351,6 +356,8 @@ public class ParseQuery<T extends ParseObject> {
       private CachePolicy cachePolicy = CachePolicy.IGNORE_CACHE;
       private long maxCacheAge = Long.MAX_VALUE; // 292 million years should be enough not to cause issues
 
+      private ParseRequestPriority priority = ParseRequestPriority.NORMAL;
+
       // LDS
       private boolean isFromLocalDatastore = false;
       private String pinName;
@@ -376,6 +383,7 @@ public class ParseQuery<T extends ParseObject> {
         trace = state.isTracingEnabled();
         cachePolicy = state.cachePolicy();
         maxCacheAge = state.maxCacheAge();
+        priority = state.priority();
         isFromLocalDatastore = state.isFromLocalDatastore();
         pinName  = state.pinName();
         ignoreACLs = state.ignoreACLs();
@@ -393,6 +401,7 @@ public class ParseQuery<T extends ParseObject> {
         trace = builder.trace;
         cachePolicy = builder.cachePolicy;
         maxCacheAge = builder.maxCacheAge;
+        priority = builder.priority;
         isFromLocalDatastore = builder.isFromLocalDatastore;
         pinName  = builder.pinName;
         ignoreACLs = builder.ignoreACLs;
@@ -463,6 +472,14 @@ public class ParseQuery<T extends ParseObject> {
         return addCondition(key, "$within", dictionary);
       }
 
+      public Builder<T> whereFullText(String key, String text) {
+        Map<String, String> term = new HashMap<>();
+        term.put("$term", text);
+        Map<String, Map<String, String>> dictionary = new HashMap<>();
+        dictionary.put("$search", term);
+        return addCondition(key, "$text", dictionary);
+      }
+
       public Builder<T> addCondition(String key, String condition,
           Collection<? extends Object> value) {
         return addConditionInternal(key, condition, Collections.unmodifiableCollection(value));
@@ -678,6 +695,15 @@ public class ParseQuery<T extends ParseObject> {
         return this;
       }
 
+      public ParseRequestPriority getPriority() {
+        return priority;
+      }
+
+      public Builder<T> setPriority(ParseRequestPriority priority) {
+        this.priority = priority;
+        return this;
+      }
+
       public boolean isFromNetwork() {
         throwIfLDSDisabled();
         return !isFromLocalDatastore;
@@ -739,6 +765,8 @@ public class ParseQuery<T extends ParseObject> {
     private final CachePolicy cachePolicy;
     private final long maxCacheAge;
 
+    private final ParseRequestPriority priority;
+
     // LDS
     private final boolean isFromLocalDatastore;
     private final String pinName;
@@ -761,6 +789,8 @@ public class ParseQuery<T extends ParseObject> {
       cachePolicy = builder.cachePolicy;
       maxCacheAge = builder.maxCacheAge;
 
+      priority = builder.priority;
+
       isFromLocalDatastore = builder.isFromLocalDatastore;
       pinName = builder.pinName;
       ignoreACLs = builder.ignoreACLs;
@@ -810,6 +840,10 @@ public class ParseQuery<T extends ParseObject> {
       return maxCacheAge;
     }
 
+    public ParseRequestPriority priority() {
+      return priority;
+    }
+
     public boolean isFromLocalDatastore() {
       return isFromLocalDatastore;
     }
@@ -863,7 +897,7 @@ public class ParseQuery<T extends ParseObject> {
     public String toString() {
       return String.format(Locale.US, "%s[className=%s, where=%s, include=%s, " +
               "selectedKeys=%s, limit=%s, skip=%s, order=%s, extraOptions=%s, " +
-              "cachePolicy=%s, maxCacheAge=%s, " +
+              "cachePolicy=%s, maxCacheAge=%s, priority=%s, " +
               "trace=%s]",
           getClass().getName(),
           className,
@@ -876,6 +910,7 @@ public class ParseQuery<T extends ParseObject> {
           extraOptions,
           cachePolicy,
           maxCacheAge,
+          priority,
           trace);
     }
   }
@@ -1021,6 +1056,30 @@ public class ParseQuery<T extends ParseObject> {
     return builder.getCachePolicy();
   }
 
+  /**
+   * Change how urgently the results of this query are needed. Queries with a higher priority are
+   * sent on their own threads, without waiting behind ones with a lower priority.
+   *
+   * @return this, so you can chain this call.
+   *
+   * @see Parse#setRequestConcurrency(ParseRequestPriority, int)
+   */
+  public ParseQuery<T> setPriority(ParseRequestPriority priority) {
+    checkIfRunning();
+    if (priority == null) {
+      throw new IllegalArgumentException("priority may not be null.");
+    }
+    builder.setPriority(priority);
+    return this;
+  }
+
+  /**
+   * @return the priority of this query's network requests.
+   */
+  public ParseRequestPriority getPriority() {
+    return builder.getPriority();
+  }
+
   /**
    * Change the source of this query to the server.
    * <p/>
@@ -1208,6 +1267,284 @@ public class ParseQuery<T extends ParseObject> {
     return ParseQuery.getQueryController().findAsync(state, user, cancellationToken);
   }
 
+  /**
+   * Runs this query against the Local Datastore in a background thread, and reports how it was
+   * run: SQLite's plan for it, every SQL statement it issued, how many rows it scanned, decoded
+   * and matched, and how long it spent querying, matching, sorting and fetching includes. Use this
+   * to decide which keys to index, or how to split objects into pins.
+   * <p/>
+   * Requires Local Datastore to be enabled, and the query to be from the Local Datastore or a pin.
+   *
+   * @return A {@link Task} that will be resolved to the report.
+   *
+   * @see Parse#addLocalDatastoreIndex(String, String)
+   */
+  public Task<String> explainInBackground() {
+    final State<T> state = builder.build();
+    if (!state.isFromLocalDatastore()) {
+      throw new IllegalStateException("Only queries from the Local Datastore can be explained.");
+    }
+    return doWithRunningCheck(new Callable<Task<String>>() {
+      @Override
+      public Task<String> call() throws Exception {
+        return getUserAsync(state).onSuccessTask(new Continuation<ParseUser, Task<String>>() {
+          @Override
+          public Task<String> then(Task<ParseUser> task) throws Exception {
+            ParseUser user = task.getResult();
+            return Parse.getLocalDatastore().profileFromPinAsync(state.pinName(), state, user)
+                .onSuccess(new Continuation<OfflineQueryProfile, String>() {
+              @Override
+              public String then(Task<OfflineQueryProfile> task) throws Exception {
+                return task.getResult().toString();
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Groups the objects that satisfy this query by the value of a key, and reduces each group in a
+   * background thread, without fetching any objects into memory to return them.
+   * <p/>
+   * Each reduction is one of {@code "count"}, {@code "sum(key)"}, {@code "min(key)"} or
+   * {@code "max(key)"}, and each group's results are keyed by the same strings. Sum, min and max
+   * only look at numbers, and a group without any has a sum of 0 and no min or max. Skip, limit
+   * and order are ignored.
+   * <p/>
+   * When this query's constraints and every key it groups by or reduces are indexed, the whole
+   * aggregation runs in SQLite. Otherwise each object is reduced as soon as it matches.
+   * <p/>
+   * Requires Local Datastore to be enabled, and the query to be from the Local Datastore or a pin.
+   *
+   * @param groupByKey
+   *          The key to group by, or {@code null} to reduce every object into a single group.
+   * @param reductions
+   *          The reductions to compute for each group.
+   * @return A {@link Task} that will be resolved to the results of each group, keyed by the value
+   * of {@code groupByKey}. Objects without a value for it are grouped under {@code null}.
+   *
+   * @see Parse#addLocalDatastoreIndex(String, String)
+   */
+  public Task<Map<Object, Map<String, Number>>> aggregateInBackground(
+      String groupByKey, String... reductions) {
+    final State<T> state = builder.build();
+    if (!state.isFromLocalDatastore()) {
+      throw new IllegalStateException("Only queries from the Local Datastore can be aggregated.");
+    }
+    final OfflineAggregation aggregation =
+        new OfflineAggregation(groupByKey, Arrays.asList(reductions));
+    return doWithRunningCheck(new Callable<Task<Map<Object, Map<String, Number>>>>() {
+      @Override
+      public Task<Map<Object, Map<String, Number>>> call() throws Exception {
+        return getUserAsync(state).onSuccessTask(
+            new Continuation<ParseUser, Task<Map<Object, Map<String, Number>>>>() {
+          @Override
+          public Task<Map<Object, Map<String, Number>>> then(Task<ParseUser> task)
+              throws Exception {
+            ParseUser user = task.getResult();
+            return Parse.getLocalDatastore().aggregateFromPinAsync(
+                state.pinName(), state, user, aggregation);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Runs this query against the Local Datastore in a background thread, and keeps its results up
+   * to date as objects are saved, pinned, unpinned and deleted locally. The callback is called on
+   * the main thread with the first results, and again whenever they change.
+   * <p/>
+   * Requires Local Datastore to be enabled, and the query to be from the Local Datastore or a pin.
+   *
+   * @param callback
+   *          callback.done(objectList, e) is called whenever the results change.
+   * @return The observer, which must be stopped once the results are no longer needed.
+   *
+   * @see #fromLocalDatastore()
+   * @see #fromPin(String)
+   */
+  public ParseQueryObserver<T> observeInBackground(FindCallback<T> callback) {
+    State<T> state = builder.build();
+    if (!state.isFromLocalDatastore()) {
+      throw new IllegalStateException("Only queries from the Local Datastore can be observed.");
+    }
+    ParseQueryObserver<T> observer =
+        new ParseQueryObserver<>(Parse.getLocalDatastore(), state, callback);
+    observer.startAsync(getUserAsync(state));
+    return observer;
+  }
+
+  /**
+   * Fetches the objects that satisfy this query and were created or updated since the last sync,
+   * and adds them to the default pin in a background thread.
+   * <p/>
+   * Requires Local Datastore to be enabled.
+   *
+   * @return A {@link Task} that will be resolved to the number of objects fetched.
+   *
+   * @see #syncInBackground(String)
+   */
+  public Task<Integer> syncInBackground() {
+    return syncInBackground(ParseObject.DEFAULT_PIN);
+  }
+
+  /**
+   * Fetches the objects that satisfy this query and were created or updated since the last sync,
+   * and adds them to the pin with the given name in a background thread.
+   * <p/>
+   * The pin remembers the {@code updatedAt} and {@code objectId} of the last object fetched for
+   * this query's class and constraints, and the next sync of a query with the same class and
+   * constraints only fetches objects after it, ordered by
+   * {@code updatedAt} and then {@code objectId}. Objects are fetched in pages of up to 1000, each
+   * of which is added to the pin as soon as it arrives, so a sync that fails part way through picks
+   * up where it left off. Any order, limit or skip set on this query is ignored.
+   * <p/>
+   * Objects that were deleted on the server are not removed from the pin.
+   * <p/>
+   * Requires Local Datastore to be enabled.
+   *
+   * @param pinName
+   *          The name of the pin to add the objects to.
+   * @return A {@link Task} that will be resolved to the number of objects fetched.
+   */
+  public Task<Integer> syncInBackground(final String pinName) {
+    throwIfLDSDisabled();
+    final State.Builder<T> copy = new State.Builder<>(builder);
+    final OfflineStore store = Parse.getLocalDatastore();
+    return doWithRunningCheck(new Callable<Task<Integer>>() {
+      @Override
+      public Task<Integer> call() throws Exception {
+        final String syncKey = getSyncKey(copy);
+        return store.getParsePinAsync(pinName).onSuccessTask(
+            new Continuation<ParsePin, Task<Integer>>() {
+          @Override
+          public Task<Integer> then(Task<ParsePin> task) throws Exception {
+            ParsePin pin = task.getResult();
+            final Date updatedAt = pin.getSyncedUpdatedAt(syncKey);
+            final String objectId = pin.getSyncedObjectId(syncKey);
+            final State<T> state = createSyncState(copy, updatedAt, objectId);
+            return getUserAsync(state).onSuccessTask(new Continuation<ParseUser, Task<Integer>>() {
+              @Override
+              public Task<Integer> then(Task<ParseUser> task) throws Exception {
+                ParseUser user = task.getResult();
+                return syncAsync(
+                    store, copy, syncKey, pinName, state, user, 0, cts.getTask());
+              }
+            });
+          }
+        });
+      }
+    });
+  }
+
+  private Task<Integer> syncAsync(final OfflineStore store, final State.Builder<T> builder,
+      final String syncKey, final String pinName, State<T> state, final ParseUser user,
+      final int count, final Task<Void> cancellationToken) {
+    return findAsync(state, user, cancellationToken).onSuccessTask(
+        new Continuation<List<T>, Task<Integer>>() {
+      @Override
+      public Task<Integer> then(Task<List<T>> task) throws Exception {
+        final List<T> results = task.getResult();
+        if (results.isEmpty()) {
+          return Task.forResult(count);
+        }
+
+        T last = results.get(results.size() - 1);
+        final Date updatedAt = last.getUpdatedAt();
+        final String objectId = last.getObjectId();
+        return store.mergeSyncedObjectsAsync(
+            pinName, builder.getClassName(), syncKey, results, updatedAt, objectId).onSuccessTask(
+            new Continuation<Void, Task<Integer>>() {
+          @Override
+          public Task<Integer> then(Task<Void> task) throws Exception {
+            int total = count + results.size();
+            if (results.size() < SYNC_PAGE_SIZE) {
+              return Task.forResult(total);
+            }
+            State<T> next = createSyncState(builder, updatedAt, objectId);
+            return syncAsync(
+                store, builder, syncKey, pinName, next, user, total, cancellationToken);
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * @return The key that a pin keeps the progress of syncing {@code builder}'s query under. Queries
+   * of the same class with different constraints fetch different objects, so each has its own. A
+   * query without constraints uses the class name, as every sync did before.
+   */
+  /* package for tests */ static <T extends ParseObject> String getSyncKey(
+      State.Builder<T> builder) throws JSONException {
+    if (builder.where.isEmpty()) {
+      return builder.getClassName();
+    }
+    Object where = PointerEncoder.get().encode(builder.where);
+    return builder.getClassName() + "."
+        + ParseDigestUtils.md5(ParseRESTCommand.toDeterministicString(where));
+  }
+
+  /**
+   * Builds the query for the page of a sync after the object with the given {@code updatedAt} and
+   * {@code objectId}, or the first page if {@code updatedAt} is {@code null}.
+   * <p/>
+   * Objects with the same {@code updatedAt} as the last one are told apart by their
+   * {@code objectId}, so a page boundary never skips or repeats objects, unlike paging with skip.
+   */
+  /* package for tests */ static <T extends ParseObject> State<T> createSyncState(
+      State.Builder<T> builder, Date updatedAt, String objectId) {
+    State.Builder<T> page;
+    if (updatedAt == null) {
+      page = copyConstraints(builder);
+    } else {
+      // Any constraints on updatedAt or objectId are replaced with stricter ones, since the last
+      // object satisfied them.
+      State.Builder<T> newer = copyConstraints(builder)
+          .addCondition("updatedAt", "$gt", updatedAt);
+      State.Builder<T> same = copyConstraints(builder)
+          .addCondition("updatedAt", "$gte", updatedAt)
+          .addCondition("updatedAt", "$lte", updatedAt)
+          .addCondition("objectId", "$gt", objectId);
+      page = State.Builder.or(Arrays.asList(newer, same));
+    }
+
+    page.includes.addAll(builder.includes);
+    if (builder.selectedKeys != null) {
+      page.selectKeys(builder.selectedKeys);
+    }
+    page.extraOptions.putAll(builder.extraOptions);
+    return page.setTracingEnabled(builder.trace)
+        .setPriority(builder.priority)
+        .orderByAscending("updatedAt")
+        .addAscendingOrder("objectId")
+        .setLimit(SYNC_PAGE_SIZE)
+        .fromNetwork()
+        .build();
+  }
+
+  /**
+   * @return A builder with a copy of the where constraints of {@code builder}, which can be added
+   * to without changing the original.
+   */
+  private static <T extends ParseObject> State.Builder<T> copyConstraints(
+      State.Builder<T> builder) {
+    State.Builder<T> copy = new State.Builder<>(builder.getClassName());
+    for (Map.Entry<String, Object> entry : builder.where.entrySet()) {
+      Object value = entry.getValue();
+      if (value instanceof KeyConstraints) {
+        KeyConstraints constraints = new KeyConstraints();
+        constraints.putAll((KeyConstraints) value);
+        value = constraints;
+      }
+      copy.where.put(entry.getKey(), value);
+    }
+    return copy;
+  }
+
   /**
    * Retrieves at most one {@link ParseObject} that satisfies this query from the source in a
    * background thread.
@@ -1913,6 +2250,25 @@ public class ParseQuery<T extends ParseObject> {
     return this;
   }
 
+  /**
+   * Add a constraint for finding string values that contain every word of the provided text.
+   * <p/>
+   * When querying the local datastore, words are runs of letters and digits, and the case of ASCII
+   * letters is ignored. This is fast for keys that were indexed with
+   * {@link Parse#addLocalDatastoreFullTextIndex(String, String)}.
+   *
+   * @param key
+   *          The key that the string to match is stored in.
+   * @param text
+   *          The words that the value must contain.
+   * @return this, so you can chain this call.
+   */
+  public ParseQuery<T> whereFullText(String key, String text) {
+    checkIfRunning();
+    builder.whereFullText(key, text);
+    return this;
+  }
+
   /**
    * Add a constraint for finding string values that start with a provided string.
    * <p/>
@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import bolts.Continuation;
+import bolts.Task;
+
+/**
+ * Keeps the results of a {@link ParseQuery} on the Local Datastore up to date as objects are
+ * saved, pinned, unpinned and deleted.
+ * <p/>
+ * Rather than running the whole query again after every change, only the objects that a change
+ * touched are checked against the query, and the results are patched. The query is only run again
+ * when the results can't be patched, such as when an object leaves the results of a query with a
+ * limit, or when a change touches the class of one of its subqueries.
+ * <p/>
+ * An observer holds on to its results until it's stopped.
+ *
+ * @see ParseQuery#observeInBackground(FindCallback)
+ */
+public class ParseQueryObserver<T extends ParseObject> {
+
+  private final OfflineStore store;
+  private final ParseQuery.State<T> state;
+  private final FindCallback<T> callback;
+  // The classes of the queries that the constraints match against, such as with $inQuery.
+  private final Set<String> subqueryClassNames = new HashSet<>();
+
+  // Changes are applied one at a time, in the order they were committed.
+  private final TaskQueue taskQueue = new TaskQueue();
+
+  private final OfflineStore.ChangeListener listener = new OfflineStore.ChangeListener() {
+    @Override
+    public void onChange(OfflineChange change) {
+      ParseQueryObserver.this.onChange(change);
+    }
+  };
+
+  private final Object lock = new Object();
+  private ParseUser user;
+  private List<T> results = Collections.emptyList();
+  private boolean hasPublished = false;
+  private boolean isStopped = false;
+
+  /* package */ ParseQueryObserver(OfflineStore store, ParseQuery.State<T> state,
+      FindCallback<T> callback) {
+    this.store = store;
+    this.state = state;
+    this.callback = callback;
+    addSubqueryClassNames(state.constraints(), subqueryClassNames);
+  }
+
+  private static void addSubqueryClassNames(Map<String, Object> constraints,
+      Set<String> classNames) {
+    for (Object value : constraints.values()) {
+      if (value instanceof List) {
+        // $or
+        for (Object item : (List<?>) value) {
+          if (item instanceof Map) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> map = (Map<String, Object>) item;
+            addSubqueryClassNames(map, classNames);
+          }
+        }
+      } else if (value instanceof ParseQuery.KeyConstraints) {
+        for (Object condition : ((ParseQuery.KeyConstraints) value).values()) {
+          // $select and $dontSelect hold the query along with the key to select.
+          if (condition instanceof Map) {
+            condition = ((Map<?, ?>) condition).get("query");
+          }
+          // $inQuery and $notInQuery
+          if (condition instanceof ParseQuery.State.Builder) {
+            ParseQuery.State.Builder<?> builder = (ParseQuery.State.Builder<?>) condition;
+            classNames.add(builder.getClassName());
+            addSubqueryClassNames(builder.build().constraints(), classNames);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Starts listening for changes, and runs the query for the first results.
+   */
+  /* package */ Task<Void> startAsync(final Task<ParseUser> userTask) {
+    // Listen first, so that nothing committed while the query runs is missed.
+    store.addChangeListener(listener);
+    return enqueue(new Continuation<Void, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Void> task) throws Exception {
+        return userTask.onSuccessTask(new Continuation<ParseUser, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<ParseUser> task) throws Exception {
+            synchronized (lock) {
+              user = task.getResult();
+            }
+            return refreshAsync(Collections.<T>emptyList());
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * @return The current results of the query, in its order.
+   */
+  public List<T> getResults() {
+    synchronized (lock) {
+      return results;
+    }
+  }
+
+  /**
+   * Stops keeping the results up to date. The callback won't be called again.
+   */
+  public void stop() {
+    store.removeChangeListener(listener);
+    synchronized (lock) {
+      isStopped = true;
+    }
+  }
+
+  /* package for tests */ Task<Void> onChange(final OfflineChange change) {
+    if (!change.hasClassName(state.className()) && !touchesSubqueries(change)) {
+      return Task.forResult(null);
+    }
+    return enqueue(new Continuation<Void, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Void> task) throws Exception {
+        return applyAsync(change);
+      }
+    });
+  }
+
+  private boolean touchesSubqueries(OfflineChange change) {
+    return !Collections.disjoint(change.getClassNames(), subqueryClassNames);
+  }
+
+  private Task<Void> enqueue(final Continuation<Void, Task<Void>> continuation) {
+    return taskQueue.enqueue(new Continuation<Void, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Void> toAwait) throws Exception {
+        return toAwait.continueWithTask(new Continuation<Void, Task<Void>>() {
+          @Override
+          public Task<Void> then(Task<Void> task) throws Exception {
+            synchronized (lock) {
+              if (isStopped) {
+                return Task.forResult(null);
+              }
+            }
+            return continuation.then(task);
+          }
+        });
+      }
+    });
+  }
+
+  private Task<Void> refreshAsync(Collection<T> touched) {
+    return publish(store.findFromPinAsync(state.pinName(), state, getUser()), touched);
+  }
+
+  /**
+   * Checks the objects that a change touched against the query, and patches the results.
+   */
+  private Task<Void> applyAsync(OfflineChange change) {
+    final List<T> candidates = change.getObjects(state.className());
+    /*
+     * Objects that are included have to be fetched along with the results, any change can shift
+     * the window of a query with a skip, and a change to the results of a subquery can change
+     * whether objects that weren't touched match.
+     */
+    if (candidates.isEmpty() || !state.includes().isEmpty() || state.skip() > 0
+        || touchesSubqueries(change)) {
+      return refreshAsync(candidates);
+    }
+
+    final List<T> previous;
+    synchronized (lock) {
+      previous = results;
+    }
+    return publish(store.matchObjectsAsync(state, getUser(), candidates).onSuccessTask(
+        new Continuation<List<T>, Task<List<T>>>() {
+      @Override
+      public Task<List<T>> then(Task<List<T>> task) throws Exception {
+        // ParseObjects compare by identity.
+        Set<T> touched = new HashSet<>(candidates);
+        Set<T> matched = new HashSet<>(task.getResult());
+        List<T> patched = new ArrayList<>();
+        boolean isPreviousTouched = false;
+        for (T object : previous) {
+          if (!touched.contains(object)) {
+            patched.add(object);
+          } else {
+            isPreviousTouched = true;
+          }
+        }
+
+        /*
+         * When the limit cut the results short, the objects after them weren't loaded, so one of
+         * them may have to take the place of an object that left the results or moved back.
+         */
+        if (state.limit() >= 0 && previous.size() >= state.limit() && isPreviousTouched) {
+          return store.findFromPinAsync(state.pinName(), state, getUser());
+        }
+
+        patched.addAll(matched);
+        OfflineQueryLogic.sort(patched, state);
+        if (state.limit() >= 0 && patched.size() > state.limit()) {
+          patched = patched.subList(0, state.limit());
+        }
+        return Task.forResult(patched);
+      }
+    }), candidates);
+  }
+
+  private ParseUser getUser() {
+    synchronized (lock) {
+      return user;
+    }
+  }
+
+  /**
+   * Replaces the results with the result of {@code task}, and calls the callback if they're the
+   * first results, if they changed, if one of the {@code touched} objects is in them, or if the
+   * query failed. An object that keeps its place in the results may still have been edited.
+   */
+  private Task<Void> publish(Task<List<T>> task, final Collection<T> touched) {
+    return task.continueWithTask(new Continuation<List<T>, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<List<T>> task) throws Exception {
+        if (!task.isFaulted() && !task.isCancelled()) {
+          List<T> updated = Collections.unmodifiableList(new ArrayList<>(task.getResult()));
+          synchronized (lock) {
+            if (isStopped || (hasPublished && updated.equals(results)
+                && !containsAny(updated, touched))) {
+              return Task.forResult(null);
+            }
+            results = updated;
+            hasPublished = true;
+          }
+        }
+        return ParseTaskUtils.callbackOnMainThreadAsync(task, new FindCallback<T>() {
+          @Override
+          public void done(List<T> objects, ParseException e) {
+            synchronized (lock) {
+              if (isStopped) {
+                return;
+              }
+            }
+            callback.done(objects != null ? getResults() : null, e);
+          }
+        }).makeVoid().continueWith(new Continuation<Void, Void>() {
+          @Override
+          public Void then(Task<Void> task) throws Exception {
+            // A failed change shouldn't stop the ones after it from being applied.
+            return null;
+          }
+        });
+      }
+    });
+  }
+
+  private static <T extends ParseObject> boolean containsAny(List<T> results,
+      Collection<T> objects) {
+    if (objects.isEmpty()) {
+      return false;
+    }
+    // ParseObjects compare by identity.
+    Set<T> set = new HashSet<>(objects);
+    for (T object : results) {
+      if (set.contains(object)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -8,6 +8,10 @@
  */
 package com.parse;
 
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
 import com.parse.http.ParseHttpBody;
 import com.parse.http.ParseHttpRequest;
 import com.parse.http.ParseHttpResponse;
@@ -19,11 +23,15 @@ import org.json.JSONStringer;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
+import bolts.Continuation;
 import bolts.Task;
 
 /**
@@ -44,6 +52,34 @@ import bolts.Task;
   private static final String HEADER_MASTER_KEY = "X-Parse-Master-Key";
   private static final String PARAMETER_METHOD_OVERRIDE = "_method";
 
+  /**
+   * Decodes each element of the {@code "results"} array of a response as it's read, and merges them
+   * once the whole response has been read.
+   *
+   * @see #setResultDecoder(ResultDecoder)
+   */
+  /* package */ interface ResultDecoder {
+    /**
+     * Decodes a result as soon as it's read. This must not change anything that's already in
+     * memory, since the rest of the response may never arrive.
+     */
+    Object decode(JSONObject result) throws JSONException;
+
+    /**
+     * Merges a result returned by {@link #decode(JSONObject)}, once the whole response has been
+     * read.
+     */
+    Object merge(Object decoded);
+  }
+
+  // Identical GETs in flight at the same time share a single request.
+  private static final ParseRequestCoalescer<ParseRESTCommand> coalescer =
+      new ParseRequestCoalescer<>();
+
+  /* package */ static ParseRequestCoalescer<ParseRESTCommand> getCoalescer() {
+    return coalescer;
+  }
+
   private static LocalIdManager getLocalIdManager() {
     return ParseCorePlugins.getInstance().getLocalIdManager();
   }
@@ -125,6 +161,12 @@ import bolts.Task;
   private String operationSetUUID;
   private String localId;
 
+  private boolean isCoalescing = false;
+  private ResultDecoder resultDecoder;
+  private List<Object> decodedResults;
+  // The response of the last time this command ran, for the commands that were coalesced into it.
+  private JSONObject lastResponse;
+
   public ParseRESTCommand(
       String httpPath,
       ParseHttpRequest.Method httpMethod,
@@ -186,6 +228,15 @@ import bolts.Task;
     setMaxRetries(DEFAULT_MAX_RETRIES);
   }
 
+  /**
+   * Lets this command share a single request with identical GETs that are in flight at the same
+   * time, keyed by {@link #getCacheKey()}. Only for commands whose response doesn't depend on
+   * anything else about the request, such as queries and fetches.
+   */
+  /* package */ void enableCoalescing() {
+    isCoalescing = true;
+  }
+
   private static String createUrl(String httpPath) {
     // We send all parameters for GET/HEAD/DELETE requests in a post body,
     // so no need to worry about query parameters here.
@@ -256,13 +307,90 @@ import bolts.Task;
       final ProgressCallback downloadProgressCallback,
       final Task<Void> cancellationToken) {
     resolveLocalIds();
-    return super.executeAsync(
-        client, uploadProgressCallback, downloadProgressCallback, cancellationToken);
+    if (!isCoalescing || method != ParseHttpRequest.Method.GET || masterKey != null) {
+      return super.executeAsync(
+          client, uploadProgressCallback, downloadProgressCallback, cancellationToken);
+    }
+
+    // Results that are streamed leave them out of the response, so they can only be shared alike.
+    // Requests only join ones with the same priority, so they're never held up in a slower lane.
+    String key = getCacheKey() + "." + getPriority()
+        + (resultDecoder != null ? ".streamed" : "");
+    return coalescer.executeAsync(key, new Callable<Task<ParseRESTCommand>>() {
+      @Override
+      public Task<ParseRESTCommand> call() throws Exception {
+        /*
+         * The request is shared, so it isn't cancelled along with the caller that started it.
+         * Each caller stops waiting on its own once its token is cancelled.
+         */
+        return executeUncoalescedAsync(client, uploadProgressCallback, downloadProgressCallback);
+      }
+    }, cancellationToken).continueWithTask(new Continuation<ParseRESTCommand, Task<JSONObject>>() {
+      @Override
+      public Task<JSONObject> then(Task<ParseRESTCommand> task) throws Exception {
+        if (task.isCancelled()) {
+          return Task.cancelled();
+        }
+        if (task.isFaulted()) {
+          return Task.forError(task.getError());
+        }
+        ParseRESTCommand command = task.getResult();
+        if (command != ParseRESTCommand.this && command.decodedResults != null) {
+          // Callers own the list of results they get back.
+          decodedResults = new ArrayList<>(command.decodedResults);
+        }
+        return Task.forResult(command.lastResponse);
+      }
+    });
+  }
+
+  private Task<ParseRESTCommand> executeUncoalescedAsync(
+      ParseHttpClient client,
+      ProgressCallback uploadProgressCallback,
+      ProgressCallback downloadProgressCallback) {
+    return super.executeAsync(client, uploadProgressCallback, downloadProgressCallback, null)
+        .onSuccess(new Continuation<JSONObject, ParseRESTCommand>() {
+      @Override
+      public ParseRESTCommand then(Task<JSONObject> task) throws Exception {
+        lastResponse = task.getResult();
+        return ParseRESTCommand.this;
+      }
+    });
+  }
+
+  /**
+   * Streams the {@code "results"} of a successful response through {@code decoder} one at a time,
+   * instead of reading the whole body and parsing it into one tree. Each result is decoded as soon
+   * as it's read, so only one of them is held as JSON at a time. The response then only holds the
+   * rest of its keys, and the decoded results are available from {@link #getDecodedResults()}.
+   * <p/>
+   * Nothing is merged until the whole body has been read, so a response that fails part way
+   * through never merges some of its results into objects that are already in memory.
+   * <p/>
+   * Streaming needs {@link JsonReader}, so on older devices, or if the response isn't successful,
+   * the whole response is parsed as usual and {@link #getDecodedResults()} returns {@code null}.
+   */
+  /* package */ void setResultDecoder(ResultDecoder decoder) {
+    resultDecoder = decoder;
+  }
+
+  /**
+   * @return The results of the last response, decoded by the {@link ResultDecoder}, or
+   * {@code null} if they weren't streamed.
+   */
+  /* package */ List<Object> getDecodedResults() {
+    return decodedResults;
   }
 
   @Override
   protected Task<JSONObject> onResponseAsync(ParseHttpResponse response,
       ProgressCallback downloadProgressCallback) {
+    int statusCode = response.getStatusCode();
+    if (resultDecoder != null && statusCode >= 200 && statusCode < 300
+        && Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+      return onStreamingResponseAsync(response);
+    }
+
     String content;
     InputStream responseStream = null;
     try {
@@ -278,7 +406,6 @@ import bolts.Task;
     // encapsulated in "data" and everything was 200, but /2/ everything is in the root JSON,
     // but errors are status 4XX.
     // See https://quip.com/4pbbA9HbOPjQ
-    int statusCode = response.getStatusCode();
     if (statusCode >= 200 && statusCode < 600) { // Assume 3XX is handled by http library
       JSONObject json;
       try {
@@ -299,6 +426,102 @@ import bolts.Task;
     return Task.forError(newPermanentException(ParseException.OTHER_CAUSE, content));
   }
 
+  /**
+   * Reads a successful response a token at a time, decoding each of its results as it's read.
+   */
+  private Task<JSONObject> onStreamingResponseAsync(ParseHttpResponse response) {
+    InputStream responseStream = null;
+    JsonReader reader = null;
+    try {
+      List<Object> results = new ArrayList<>();
+      JSONObject json = new JSONObject();
+
+      responseStream = response.getContent();
+      reader = new JsonReader(new InputStreamReader(responseStream, "UTF-8"));
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if ("results".equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+          reader.beginArray();
+          while (reader.hasNext()) {
+            results.add(resultDecoder.decode(readJSONObject(reader)));
+          }
+          reader.endArray();
+        } else {
+          json.put(name, readValue(reader));
+        }
+      }
+      reader.endObject();
+
+      // A retry starts over, so only the results of a complete response are merged.
+      for (int i = 0; i < results.size(); i++) {
+        results.set(i, resultDecoder.merge(results.get(i)));
+      }
+      decodedResults = results;
+      return Task.forResult(json);
+    } catch (IllegalStateException | JSONException | ClassCastException e) {
+      // Thrown for tokens other than the ones expected, such as a result that isn't an object.
+      return Task.forError(newTemporaryException("bad json response", e));
+    } catch (IOException e) {
+      return Task.forError(e);
+    } finally {
+      // Closing the reader closes the stream under it.
+      ParseIOUtils.closeQuietly(reader != null ? reader : responseStream);
+    }
+  }
+
+  private static JSONObject readJSONObject(JsonReader reader) throws IOException, JSONException {
+    JSONObject object = new JSONObject();
+    reader.beginObject();
+    while (reader.hasNext()) {
+      object.put(reader.nextName(), readValue(reader));
+    }
+    reader.endObject();
+    return object;
+  }
+
+  private static Object readValue(JsonReader reader) throws IOException, JSONException {
+    switch (reader.peek()) {
+      case BEGIN_OBJECT:
+        return readJSONObject(reader);
+      case BEGIN_ARRAY:
+        JSONArray array = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+          array.put(readValue(reader));
+        }
+        reader.endArray();
+        return array;
+      case NUMBER:
+        return parseNumber(reader.nextString());
+      case BOOLEAN:
+        return reader.nextBoolean();
+      case NULL:
+        reader.nextNull();
+        return JSONObject.NULL;
+      default:
+        return reader.nextString();
+    }
+  }
+
+  /**
+   * Parses a number into the same type {@link JSONObject#JSONObject(String)} would.
+   */
+  private static Number parseNumber(String number) {
+    if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+      try {
+        long value = Long.parseLong(number);
+        if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) {
+          return (int) value;
+        }
+        return value;
+      } catch (NumberFormatException e) {
+        // Too big for a long.
+      }
+    }
+    return Double.valueOf(number);
+  }
+
   // Creates a somewhat-readable string that uniquely identifies this command.
   public String getCacheKey() {
     String json;
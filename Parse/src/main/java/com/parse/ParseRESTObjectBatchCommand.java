@@ -19,8 +19,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import bolts.Continuation;
 import bolts.Task;
@@ -28,8 +31,29 @@ import bolts.Task;
 /** package */ class ParseRESTObjectBatchCommand extends ParseRESTCommand {
   public final static int COMMAND_OBJECT_BATCH_MAX_SIZE = 50;
 
+  /* package */ static final int DEFAULT_MAX_BATCHES_IN_FLIGHT = 2;
+  // The number of times a command that failed on its own is sent again in a later batch.
+  /* package */ static final int MAX_COMMAND_RETRIES = 4;
+
   private static final String KEY_RESULTS = "results";
 
+  private static int maxBatchesInFlight = DEFAULT_MAX_BATCHES_IN_FLIGHT;
+
+  /**
+   * Sets how many batches of a set of commands too large for a single batch are sent at the same
+   * time. The rest wait for one of them to finish.
+   */
+  /* package */ static void setMaxBatchesInFlight(int max) {
+    if (max < 1) {
+      throw new IllegalArgumentException("At least one batch has to be in flight.");
+    }
+    maxBatchesInFlight = max;
+  }
+
+  /* package */ static int getMaxBatchesInFlight() {
+    return maxBatchesInFlight;
+  }
+
   public static List<Task<JSONObject>> executeBatch(
       ParseHttpClient client, List<ParseRESTObjectCommand> commands, String sessionToken) {
     final int batchSize = commands.size();
@@ -41,27 +65,132 @@ import bolts.Task;
       return tasks;
     }
 
+    List<Task<JSONObject>.TaskCompletionSource> tcss = new ArrayList<>(batchSize);
+    for (int i = 0; i < batchSize; i++) {
+      Task<JSONObject>.TaskCompletionSource tcs = Task.create();
+      tcss.add(tcs);
+      tasks.add(tcs.getTask());
+    }
+
     if (batchSize > COMMAND_OBJECT_BATCH_MAX_SIZE) {
       // There's more than the max, split it up into batches
-      List<List<ParseRESTObjectCommand>> batches = Lists.partition(commands,
-          COMMAND_OBJECT_BATCH_MAX_SIZE);
-      for (int i = 0, size = batches.size(); i < size; i++) {
-        List<ParseRESTObjectCommand> batch = batches.get(i);
-        tasks.addAll(executeBatch(client, batch, sessionToken));
+      return executePipelined(client, commands, tcss, sessionToken);
+    }
+
+    executeBatchAsync(client, commands, tcss, sessionToken, 0,
+        ParseRequest.getDefaultInitialRetryDelay());
+    return tasks;
+  }
+
+  /**
+   * Sends the batches of a set of commands too large for a single batch, no more than
+   * {@link #getMaxBatchesInFlight()} at a time, in order. Each batch's tasks are only completed
+   * once every batch before it is done, so that callers see the results in the same order as the
+   * commands.
+   */
+  private static List<Task<JSONObject>> executePipelined(
+      final ParseHttpClient client,
+      List<ParseRESTObjectCommand> commands,
+      List<Task<JSONObject>.TaskCompletionSource> tcss,
+      final String sessionToken) {
+    final List<List<ParseRESTObjectCommand>> batches =
+        Lists.partition(commands, COMMAND_OBJECT_BATCH_MAX_SIZE);
+    final List<List<Task<JSONObject>.TaskCompletionSource>> batchTcss =
+        Lists.partition(tcss, COMMAND_OBJECT_BATCH_MAX_SIZE);
+
+    // The tasks that the batches complete, before they're handed back in order.
+    final List<List<Task<JSONObject>.TaskCompletionSource>> sentTcss = new ArrayList<>();
+    for (List<Task<JSONObject>.TaskCompletionSource> batch : batchTcss) {
+      List<Task<JSONObject>.TaskCompletionSource> sent = new ArrayList<>(batch.size());
+      for (int i = 0; i < batch.size(); i++) {
+        Task<JSONObject>.TaskCompletionSource tcs = Task.create();
+        sent.add(tcs);
       }
-      return tasks;
+      sentTcss.add(sent);
     }
 
-    final List<Task<JSONObject>.TaskCompletionSource> tcss = new ArrayList<>(batchSize);
-    for (int i = 0; i < batchSize; i++) {
-      Task<JSONObject>.TaskCompletionSource tcs = Task.create();
-      tcss.add(tcs);
+    final AtomicInteger nextBatch = new AtomicInteger(0);
+    int lanes = Math.min(maxBatchesInFlight, batches.size());
+    for (int i = 0; i < lanes; i++) {
+      executeNextBatchAsync(client, batches, sentTcss, nextBatch, sessionToken);
+    }
+
+    Task<Void> previous = Task.forResult(null);
+    for (int i = 0; i < batches.size(); i++) {
+      List<Task<?>> toAwait = new ArrayList<>();
+      toAwait.add(previous);
+      for (Task<JSONObject>.TaskCompletionSource sent : sentTcss.get(i)) {
+        toAwait.add(sent.getTask());
+      }
+      previous = Task.whenAll(toAwait);
+
+      List<Task<JSONObject>.TaskCompletionSource> batch = batchTcss.get(i);
+      for (int j = 0; j < batch.size(); j++) {
+        final Task<JSONObject> sentTask = sentTcss.get(i).get(j).getTask();
+        final Task<JSONObject>.TaskCompletionSource tcs = batch.get(j);
+        previous.continueWith(new Continuation<Void, Void>() {
+          @Override
+          public Void then(Task<Void> task) throws Exception {
+            complete(tcs, sentTask);
+            return null;
+          }
+        });
+      }
+    }
+
+    List<Task<JSONObject>> tasks = new ArrayList<>(tcss.size());
+    for (Task<JSONObject>.TaskCompletionSource tcs : tcss) {
       tasks.add(tcs.getTask());
     }
+    return tasks;
+  }
+
+  /**
+   * Sends the next batch that no one has sent yet, and once it's done, the one after it.
+   */
+  private static Task<Void> executeNextBatchAsync(
+      final ParseHttpClient client,
+      final List<List<ParseRESTObjectCommand>> batches,
+      final List<List<Task<JSONObject>.TaskCompletionSource>> tcss,
+      final AtomicInteger nextBatch,
+      final String sessionToken) {
+    int index = nextBatch.getAndIncrement();
+    if (index >= batches.size()) {
+      return Task.forResult(null);
+    }
+    return executeBatchAsync(client, batches.get(index), tcss.get(index), sessionToken, 0,
+        ParseRequest.getDefaultInitialRetryDelay()).continueWithTask(
+        new Continuation<Void, Task<Void>>() {
+      @Override
+      public Task<Void> then(Task<Void> task) throws Exception {
+        return executeNextBatchAsync(client, batches, tcss, nextBatch, sessionToken);
+      }
+    });
+  }
 
+  /**
+   * Sends a single batch, and completes each command's task with its result. Commands that fail
+   * on their own with an error that may go away are sent again in a smaller batch after a delay,
+   * while the rest of the batch completes.
+   *
+   * @return A task that completes once every command's task is complete.
+   */
+  private static Task<Void> executeBatchAsync(
+      final ParseHttpClient client,
+      final List<ParseRESTObjectCommand> commands,
+      final List<Task<JSONObject>.TaskCompletionSource> tcss,
+      final String sessionToken,
+      final int attemptsMade,
+      final long delay) {
+    final int batchSize = commands.size();
     List<JSONObject> requests = new ArrayList<>(batchSize);
+    // The batch is as urgent as the most urgent of its commands.
+    ParseRequestPriority priority = ParseRequestPriority.BULK;
     try {
       for (ParseRESTObjectCommand command : commands) {
+        if (command.getPriority().compareTo(priority) < 0) {
+          priority = command.getPriority();
+        }
         JSONObject requestParameters = new JSONObject();
         requestParameters.put("method", command.method.toString());
         requestParameters.put("path", String.format("/1/%s", command.httpPath));
@@ -79,10 +208,12 @@ import bolts.Task;
     parameters.put("requests", requests);
     ParseRESTCommand command = new ParseRESTObjectBatchCommand(
         "batch", ParseHttpRequest.Method.POST, parameters, sessionToken);
+    command.setPriority(priority);
 
-    command.executeAsync(client).continueWith(new Continuation<JSONObject, Void>() {
+    return command.executeAsync(client).continueWithTask(
+        new Continuation<JSONObject, Task<Void>>() {
       @Override
-      public Void then(Task<JSONObject> task) throws Exception {
+      public Task<Void> then(Task<JSONObject> task) throws Exception {
         Task<JSONObject>.TaskCompletionSource tcs;
 
         if (task.isFaulted() || task.isCancelled()) {
@@ -95,6 +226,7 @@ import bolts.Task;
               tcs.setCancelled();
             }
           }
+          return Task.forResult(null);
         }
 
         JSONObject json = task.getResult();
@@ -108,8 +240,11 @@ import bolts.Task;
             tcs.setError(new IllegalStateException(
                 "Batch command result count expected: " + batchSize + " but was: " + resultLength));
           }
+          return Task.forResult(null);
         }
 
+        final List<ParseRESTObjectCommand> retryCommands = new ArrayList<>();
+        final List<Task<JSONObject>.TaskCompletionSource> retryTcss = new ArrayList<>();
         for (int i = 0; i < batchSize; i++) {
           JSONObject result = results.getJSONObject(i);
           tcs = tcss.get(i);
@@ -119,14 +254,134 @@ import bolts.Task;
             tcs.setResult(success);
           } else if (result.has("error")) {
             JSONObject error = result.getJSONObject("error");
-            tcs.setError(new ParseException(error.getInt("code"), error.getString("error")));
+            int code = error.getInt("code");
+            if (attemptsMade < MAX_COMMAND_RETRIES && isRetryable(commands.get(i), code)) {
+              retryCommands.add(commands.get(i));
+              retryTcss.add(tcs);
+            } else {
+              tcs.setError(new ParseException(code, error.getString("error")));
+            }
+          } else {
+            tcs.setError(new IllegalStateException("Batch command result has no outcome."));
+          }
+        }
+
+        if (retryCommands.isEmpty()) {
+          return Task.forResult(null);
+        }
+        PLog.i("com.parse.ParseRESTObjectBatchCommand", retryCommands.size() + " of " +
+            batchSize + " commands failed. Waiting " + delay + " milliseconds before attempt #" +
+            (attemptsMade + 1));
+        final Task<Void>.TaskCompletionSource retryTask = Task.create();
+        ParseExecutors.scheduled().schedule(new Runnable() {
+          @Override
+          public void run() {
+            executeRetryAsync(client, retryCommands, retryTcss, sessionToken, attemptsMade + 1,
+                delay * 2).continueWith(new Continuation<Void, Void>() {
+              @Override
+              public Void then(Task<Void> task) throws Exception {
+                retryTask.setResult(null);
+                return null;
+              }
+            });
+          }
+        }, delay, TimeUnit.MILLISECONDS);
+        return retryTask.getTask();
+      }
+    }).continueWith(new Continuation<Void, Void>() {
+      @Override
+      public Void then(Task<Void> task) throws Exception {
+        if (task.isFaulted()) {
+          // The response couldn't be read, so fail whatever wasn't completed.
+          for (Task<JSONObject>.TaskCompletionSource tcs : tcss) {
+            tcs.trySetError(task.getError());
           }
         }
         return null;
       }
     });
+  }
 
-    return tasks;
+  /**
+   * Sends commands that failed again, on their own if there's only one of them left.
+   */
+  private static Task<Void> executeRetryAsync(
+      ParseHttpClient client,
+      List<ParseRESTObjectCommand> commands,
+      final List<Task<JSONObject>.TaskCompletionSource> tcss,
+      String sessionToken,
+      int attemptsMade,
+      long delay) {
+    if (commands.size() > 1) {
+      return executeBatchAsync(client, commands, tcss, sessionToken, attemptsMade, delay);
+    }
+    final Task<JSONObject> task = commands.get(0).executeAsync(client);
+    return task.continueWith(new Continuation<JSONObject, Void>() {
+      @Override
+      public Void then(Task<JSONObject> ignored) throws Exception {
+        complete(tcss.get(0), task);
+        return null;
+      }
+    });
+  }
+
+  /**
+   * Returns whether {@code command}, which failed with {@code code}, may be sent again. A command
+   * that was refused for going over the request limit never ran. One that failed with an internal
+   * error or timed out may have been applied anyway, so it's only sent again if running it twice
+   * does no harm.
+   */
+  private static boolean isRetryable(ParseRESTCommand command, int code) {
+    switch (code) {
+      case ParseException.REQUEST_LIMIT_EXCEEDED:
+        return true;
+      case ParseException.INTERNAL_SERVER_ERROR:
+      case ParseException.TIMEOUT:
+        return isIdempotent(command);
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns whether running {@code command} more than once has the same effect as running it once.
+   * Creates don't, and neither do updates that increment a number or add to an array.
+   */
+  private static boolean isIdempotent(ParseRESTCommand command) {
+    switch (command.method) {
+      case GET:
+      case DELETE:
+        return true;
+      case PUT:
+        break;
+      default:
+        return false;
+    }
+
+    JSONObject body = command.jsonParameters;
+    if (body == null) {
+      return true;
+    }
+    Iterator<String> keys = body.keys();
+    while (keys.hasNext()) {
+      JSONObject operation = body.optJSONObject(keys.next());
+      String op = operation != null ? operation.optString("__op", null) : null;
+      if ("Increment".equals(op) || "Add".equals(op) || "AddUnique".equals(op)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static void complete(
+      Task<JSONObject>.TaskCompletionSource tcs, Task<JSONObject> task) {
+    if (task.isCancelled()) {
+      tcs.setCancelled();
+    } else if (task.isFaulted()) {
+      tcs.setError(task.getError());
+    } else {
+      tcs.setResult(task.getResult());
+    }
   }
 
   private ParseRESTObjectBatchCommand(
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import bolts.Continuation;
+import bolts.Task;
+
+/**
+ * Gathers object commands that are executed within a short window of each other into a single
+ * {@code /batch} request, and hands each command's result back to its caller.
+ *
+ * A window opens with the first command, and everything that comes in before it closes is sent
+ * together. A batch is sent early once it has
+ * {@link ParseRESTObjectBatchCommand#COMMAND_OBJECT_BATCH_MAX_SIZE} commands. A batch is sent with
+ * a single session token, so commands are only ever batched with others for the same one.
+ */
+/** package */ class ParseRESTObjectBatcher {
+
+  private final ParseHttpClient client;
+  private final long windowMillis;
+
+  private final Object lock = new Object();
+  // session token -> the commands waiting for the window to close
+  private final Map<String, List<Pending>> pendingBySessionToken = new HashMap<>();
+
+  private long commandCount = 0;
+  private long batchCount = 0;
+
+  private static class Pending {
+    private final ParseRESTObjectCommand command;
+    private final Task<JSONObject>.TaskCompletionSource tcs;
+
+    private Pending(ParseRESTObjectCommand command, Task<JSONObject>.TaskCompletionSource tcs) {
+      this.command = command;
+      this.tcs = tcs;
+    }
+  }
+
+  /**
+   * @param windowMillis
+   *          How long to wait for more commands after the first one, in milliseconds.
+   */
+  /* package */ ParseRESTObjectBatcher(ParseHttpClient client, long windowMillis) {
+    if (windowMillis <= 0) {
+      throw new IllegalArgumentException("The batching window must be positive.");
+    }
+    this.client = client;
+    this.windowMillis = windowMillis;
+  }
+
+  /**
+   * Executes {@code command} along with any others that come in before the window closes.
+   *
+   * @return A task that resolves to the result of {@code command} alone.
+   */
+  /* package */ Task<JSONObject> executeAsync(
+      ParseRESTObjectCommand command, final String sessionToken) {
+    Task<JSONObject>.TaskCompletionSource tcs = Task.create();
+    List<Pending> full = null;
+    synchronized (lock) {
+      commandCount++;
+      List<Pending> pending = pendingBySessionToken.get(sessionToken);
+      if (pending == null) {
+        final List<Pending> window = new ArrayList<>();
+        pending = window;
+        pendingBySessionToken.put(sessionToken, window);
+        ParseExecutors.scheduled().schedule(new Runnable() {
+          @Override
+          public void run() {
+            flush(sessionToken, window);
+          }
+        }, windowMillis, TimeUnit.MILLISECONDS);
+      }
+      pending.add(new Pending(command, tcs));
+      if (pending.size() >= ParseRESTObjectBatchCommand.COMMAND_OBJECT_BATCH_MAX_SIZE) {
+        pendingBySessionToken.remove(sessionToken);
+        full = pending;
+      }
+    }
+    if (full != null) {
+      send(full, sessionToken);
+    }
+    return tcs.getTask();
+  }
+
+  /**
+   * Sends the commands of a window, unless they were already sent because the batch filled up.
+   */
+  private void flush(String sessionToken, List<Pending> window) {
+    synchronized (lock) {
+      if (pendingBySessionToken.get(sessionToken) != window) {
+        return;
+      }
+      pendingBySessionToken.remove(sessionToken);
+    }
+    send(window, sessionToken);
+  }
+
+  private void send(List<Pending> batch, String sessionToken) {
+    synchronized (lock) {
+      batchCount++;
+    }
+    List<ParseRESTObjectCommand> commands = new ArrayList<>(batch.size());
+    for (Pending pending : batch) {
+      commands.add(pending.command);
+    }
+
+    List<Task<JSONObject>> tasks =
+        ParseRESTObjectBatchCommand.executeBatch(client, commands, sessionToken);
+    for (int i = 0; i < batch.size(); i++) {
+      final Task<JSONObject>.TaskCompletionSource tcs = batch.get(i).tcs;
+      tasks.get(i).continueWith(new Continuation<JSONObject, Void>() {
+        @Override
+        public Void then(Task<JSONObject> task) throws Exception {
+          if (task.isCancelled()) {
+            tcs.trySetCancelled();
+          } else if (task.isFaulted()) {
+            tcs.trySetError(task.getError());
+          } else {
+            tcs.trySetResult(task.getResult());
+          }
+          return null;
+        }
+      });
+    }
+  }
+
+  /**
+   * @return The number of commands that were executed through this batcher.
+   */
+  /* package */ long getCommandCount() {
+    synchronized (lock) {
+      return commandCount;
+    }
+  }
+
+  /**
+   * @return The number of requests the commands were sent in.
+   */
+  /* package */ long getBatchCount() {
+    synchronized (lock) {
+      return batchCount;
+    }
+  }
+}
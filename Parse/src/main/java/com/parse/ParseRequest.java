@@ -65,6 +65,77 @@ import bolts.Task;
       CORE_POOL_SIZE, MAX_POOL_SIZE, KEEP_ALIVE_TIME, TimeUnit.SECONDS,
       new LinkedBlockingQueue<Runnable>(MAX_QUEUE_SIZE), sThreadFactory);
 
+  private static ThreadFactory newThreadFactory(final String name, final int threadPriority) {
+    return new ThreadFactory() {
+      private final AtomicInteger mCount = new AtomicInteger(1);
+
+      public Thread newThread(Runnable r) {
+        Thread thread =
+            new Thread(r, "ParseRequest." + name + "-thread-" + mCount.getAndIncrement());
+        thread.setPriority(threadPriority);
+        return thread;
+      }
+    };
+  }
+
+  /*
+   * NETWORK_EXECUTOR is the lane for requests with normal priority. The other priorities each get a
+   * lane of their own, with a queue that never fills up so that the lane's threads are all it ever
+   * uses. Requests that aren't in a hurry get fewer threads, which run at a lower priority.
+   */
+  private static final ThreadPoolExecutor INTERACTIVE_EXECUTOR = newThreadPoolExecutor(
+      CPU_COUNT + 1, CPU_COUNT + 1, KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(),
+      newThreadFactory("INTERACTIVE_EXECUTOR", Thread.NORM_PRIORITY));
+  private static final ThreadPoolExecutor BACKGROUND_EXECUTOR = newThreadPoolExecutor(
+      2, 2, KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(),
+      newThreadFactory("BACKGROUND_EXECUTOR", Thread.NORM_PRIORITY - 1));
+  private static final ThreadPoolExecutor BULK_EXECUTOR = newThreadPoolExecutor(
+      1, 1, KEEP_ALIVE_TIME, TimeUnit.SECONDS,
+      new LinkedBlockingQueue<Runnable>(),
+      newThreadFactory("BULK_EXECUTOR", Thread.MIN_PRIORITY));
+
+  /**
+   * @return The executor that requests with {@code priority} are sent on.
+   */
+  /* package */ static ThreadPoolExecutor executorFor(ParseRequestPriority priority) {
+    switch (priority) {
+      case INTERACTIVE:
+        return INTERACTIVE_EXECUTOR;
+      case NORMAL:
+        return (ThreadPoolExecutor) NETWORK_EXECUTOR;
+      case BACKGROUND:
+        return BACKGROUND_EXECUTOR;
+      case BULK:
+        return BULK_EXECUTOR;
+      default:
+        throw new IllegalArgumentException("Invalid priority " + priority);
+    }
+  }
+
+  /**
+   * Sets the most requests with {@code priority} that are sent at the same time.
+   */
+  /* package */ static synchronized void setConcurrency(
+      ParseRequestPriority priority, int maxConcurrent) {
+    ThreadPoolExecutor executor = executorFor(priority);
+    // The normal lane's queue is bounded, and it only grows past its core threads once the queue
+    // is full.
+    int corePoolSize = priority == ParseRequestPriority.NORMAL
+        ? Math.min(CORE_POOL_SIZE, maxConcurrent)
+        : maxConcurrent;
+    // The core pool size can never be larger than the maximum, so shrink whichever is in the way
+    // first.
+    if (maxConcurrent < executor.getCorePoolSize()) {
+      executor.setCorePoolSize(corePoolSize);
+      executor.setMaximumPoolSize(maxConcurrent);
+    } else {
+      executor.setMaximumPoolSize(maxConcurrent);
+      executor.setCorePoolSize(corePoolSize);
+    }
+  }
+
   protected static final int DEFAULT_MAX_RETRIES = 4;
   /* package */ static final long DEFAULT_INITIAL_RETRY_DELAY = 1000L;
 
@@ -78,6 +149,7 @@ import bolts.Task;
   }
 
   private int maxRetries = DEFAULT_MAX_RETRIES;
+  private ParseRequestPriority priority = ParseRequestPriority.NORMAL;
 
   /* package */ ParseHttpRequest.Method method;
   /* package */ String url;
@@ -95,6 +167,14 @@ import bolts.Task;
     maxRetries = max;
   }
 
+  public void setPriority(ParseRequestPriority priority) {
+    this.priority = priority;
+  }
+
+  public ParseRequestPriority getPriority() {
+    return priority;
+  }
+
   protected ParseHttpBody newBody(ProgressCallback uploadProgressCallback) {
     // do nothing
     return null;
@@ -135,7 +215,7 @@ import bolts.Task;
         ParseHttpResponse response = client.execute(request);
         return onResponseAsync(response, downloadProgressCallback);
       }
-    }, NETWORK_EXECUTOR).continueWithTask(new Continuation<Response, Task<Response>>() {
+    }, executorFor(priority)).continueWithTask(new Continuation<Response, Task<Response>>() {
       @Override
       public Task<Response> then(Task<Response> task) throws Exception {
         if (task.isFaulted()) {
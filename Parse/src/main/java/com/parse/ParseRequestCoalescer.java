@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import bolts.Continuation;
+import bolts.Task;
+
+/**
+ * Shares a single execution between identical requests that are in flight at the same time.
+ *
+ * The first request for a key runs, and every request for the same key that comes in before it
+ * finishes gets the same task instead of running again. Once the task finishes, the next request
+ * for the key runs again, so nothing is ever cached beyond the lifetime of a request.
+ *
+ * Each caller waits on its own task, so a caller can stop waiting with its cancellation token
+ * without affecting the others.
+ *
+ * Requests and the ones that were coalesced into another are counted, so that the savings can be
+ * measured.
+ */
+/** package */ class ParseRequestCoalescer<T> {
+
+  private final Object lock = new Object();
+  private final Map<String, Task<T>> inFlight = new HashMap<>();
+
+  private long requestCount = 0;
+  private long coalescedCount = 0;
+
+  /**
+   * Runs {@code request}, unless a request with the same {@code key} is already running.
+   *
+   * @return The task of whichever request is running for {@code key}.
+   */
+  /* package */ Task<T> executeAsync(String key, Callable<Task<T>> request) {
+    return executeAsync(key, request, null);
+  }
+
+  /**
+   * Runs {@code request}, unless a request with the same {@code key} is already running.
+   *
+   * @param cancellationToken
+   *          (Optional) Cancels the returned task once it's cancelled. The request keeps running
+   *          for the other callers that are waiting on it.
+   * @return A task that completes the same way as whichever request is running for {@code key}.
+   */
+  /* package */ Task<T> executeAsync(final String key, Callable<Task<T>> request,
+      Task<Void> cancellationToken) {
+    final Task<T>.TaskCompletionSource tcs;
+    synchronized (lock) {
+      requestCount++;
+      Task<T> running = inFlight.get(key);
+      if (running != null) {
+        coalescedCount++;
+        return waitAsync(running, cancellationToken);
+      }
+      tcs = Task.create();
+      inFlight.put(key, tcs.getTask());
+    }
+
+    Task<T> task;
+    try {
+      task = request.call();
+    } catch (Exception e) {
+      task = Task.forError(e);
+    }
+    task.continueWith(new Continuation<T, Void>() {
+      @Override
+      public Void then(Task<T> task) throws Exception {
+        // Requests that come in from now on have to run again.
+        synchronized (lock) {
+          inFlight.remove(key);
+        }
+        if (task.isCancelled()) {
+          tcs.setCancelled();
+        } else if (task.isFaulted()) {
+          tcs.setError(task.getError());
+        } else {
+          tcs.setResult(task.getResult());
+        }
+        return null;
+      }
+    });
+    return waitAsync(tcs.getTask(), cancellationToken);
+  }
+
+  /**
+   * @return A task that completes the same way as {@code task}, or is cancelled as soon as
+   * {@code cancellationToken} is.
+   */
+  private static <T> Task<T> waitAsync(Task<T> task, final Task<Void> cancellationToken) {
+    if (cancellationToken == null) {
+      return task;
+    }
+    final Task<T>.TaskCompletionSource tcs = Task.create();
+    cancellationToken.continueWith(new Continuation<Void, Void>() {
+      @Override
+      public Void then(Task<Void> task) throws Exception {
+        if (task.isCancelled()) {
+          tcs.trySetCancelled();
+        }
+        return null;
+      }
+    });
+    task.continueWith(new Continuation<T, Void>() {
+      @Override
+      public Void then(Task<T> task) throws Exception {
+        if (task.isCancelled()) {
+          tcs.trySetCancelled();
+        } else if (task.isFaulted()) {
+          tcs.trySetError(task.getError());
+        } else {
+          tcs.trySetResult(task.getResult());
+        }
+        return null;
+      }
+    });
+    return tcs.getTask();
+  }
+
+  /* package */ long getRequestCount() {
+    synchronized (lock) {
+      return requestCount;
+    }
+  }
+
+  /* package */ long getCoalescedCount() {
+    synchronized (lock) {
+      return coalescedCount;
+    }
+  }
+
+  /* package */ int getInFlightCount() {
+    synchronized (lock) {
+      return inFlight.size();
+    }
+  }
+
+  @Override
+  public String toString() {
+    synchronized (lock) {
+      return String.format("ParseRequestCoalescer[requests=%d, coalesced=%d, inFlight=%d]",
+          requestCount, coalescedCount, inFlight.size());
+    }
+  }
+}
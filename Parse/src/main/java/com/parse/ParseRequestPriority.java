@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+/**
+ * {@code ParseRequestPriority} specifies how urgently the network requests of a {@link ParseQuery},
+ * {@link ParseObject} save or {@link ParseFile} transfer are needed.
+ * <p/>
+ * Each priority has its own queue and threads, so requests that aren't in a hurry, such as a large
+ * upload or an import, never keep the ones the user is waiting for from being sent.
+ *
+ * @see Parse#setRequestConcurrency(ParseRequestPriority, int)
+ */
+public enum ParseRequestPriority {
+  /**
+   * The user is waiting for the result, such as when showing a screen.
+   */
+  INTERACTIVE,
+
+  /**
+   * The default priority.
+   */
+  NORMAL,
+
+  /**
+   * The result is needed, but not right away, such as when prefetching.
+   */
+  BACKGROUND,
+
+  /**
+   * The result is not needed anytime soon, such as when importing or uploading large files. These
+   * requests run one at a time unless told otherwise.
+   */
+  BULK
+}
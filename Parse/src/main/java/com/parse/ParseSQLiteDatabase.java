@@ -10,9 +10,18 @@ package com.parse;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.text.TextUtils;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -37,8 +46,27 @@ import bolts.Task;
   //TODO (grantland): do we have to serialize sessions of different databases?
   private static final TaskQueue taskQueue = new TaskQueue();
 
+  /**
+   * The number of compiled statements each session holds on to.
+   */
+  private static final int MAX_CACHED_STATEMENTS = 16;
+
   /* protected */ static Task<ParseSQLiteDatabase> openDatabaseAsync(final SQLiteOpenHelper helper, int flags) {
-    final ParseSQLiteDatabase db = new ParseSQLiteDatabase(flags);
+    return openDatabaseAsync(helper, flags, null);
+  }
+
+  /**
+   * Opens a session on a pooled connection. The connection isn't closed when the session is closed,
+   * and read-only sessions don't wait for other sessions, but run on {@code readerExecutor} instead.
+   * This only makes sense if the database uses write-ahead logging, otherwise SQLite serializes
+   * readers and the writer anyway.
+   *
+   * @param readerExecutor (Optional) The executor for read-only sessions. If null, every session is
+   *                       serialized and the connection is closed with the session.
+   */
+  /* protected */ static Task<ParseSQLiteDatabase> openDatabaseAsync(final SQLiteOpenHelper helper,
+      int flags, Executor readerExecutor) {
+    final ParseSQLiteDatabase db = new ParseSQLiteDatabase(flags, readerExecutor);
     return db.open(helper).continueWithTask(new Continuation<Void, Task<ParseSQLiteDatabase>>() {
       @Override
       public Task<ParseSQLiteDatabase> then(Task<Void> task) throws Exception {
@@ -52,16 +80,46 @@ import bolts.Task;
   private final Object currentLock = new Object();
   private final Task<Void>.TaskCompletionSource tcs = Task.create();
 
+  // Only used on the executor.
+  private final StatementCache statements = new StatementCache(MAX_CACHED_STATEMENTS);
+
   private int openFlags;
 
+  /**
+   * The executor all database actions of this session run on.
+   */
+  private final Executor executor;
+
+  /**
+   * Whether the connection is pooled, in which case it stays open after the session is closed.
+   */
+  private final boolean isPooled;
+
+  /**
+   * (Optional) Where to list the statements this session runs, while a query is being profiled.
+   */
+  private volatile OfflineQueryProfile profile;
+
   /**
    * Creates a Session which opens a database connection and begins a transaction
    */
-  private ParseSQLiteDatabase(int flags) {
+  private ParseSQLiteDatabase(int flags, Executor readerExecutor) {
     //TODO (grantland): if (!writable) -- disable transactions?
-    //TODO (grantland): if (!writable) -- do we have to serialize everything?
     openFlags = flags;
+    isPooled = readerExecutor != null;
+
+    if (isPooled && (flags & SQLiteDatabase.OPEN_READONLY) == SQLiteDatabase.OPEN_READONLY) {
+      /*
+       * With write-ahead logging, readers see the last committed state of the database and don't
+       * block or get blocked by the writer, so they don't need to wait for other sessions. They must
+       * not use transactions, since those are locked to the thread they were started on.
+       */
+      executor = readerExecutor;
+      current = Task.forResult(null);
+      return;
+    }
 
+    executor = dbExecutor;
     taskQueue.enqueue(new Continuation<Void, Task<Void>>() {
       @Override
       public Task<Void> then(Task<Void> toAwait) throws Exception {
@@ -114,13 +172,13 @@ import bolts.Task;
                   ? helper.getReadableDatabase()
                   : helper.getWritableDatabase();
         }
-      }, dbExecutor).continueWithTask(new Continuation<SQLiteDatabase, Task<Void>>() {
+      }, executor).continueWithTask(new Continuation<SQLiteDatabase, Task<Void>>() {
         @Override
         public Task<Void> then(Task<SQLiteDatabase> task) throws Exception {
           db = task.getResult();
           return task.makeVoid();
         }
-      }, Task.BACKGROUND_EXECUTOR); // We want to jump off the dbExecutor
+      }, Task.BACKGROUND_EXECUTOR); // We want to jump off the executor
       return current;
     }
   }
@@ -137,11 +195,11 @@ import bolts.Task;
           db.beginTransaction();
           return task;
         }
-      }, dbExecutor);
+      }, executor);
       return current.continueWithTask(new Continuation<Void, Task<Void>>() {
         @Override
         public Task<Void> then(Task<Void> task) throws Exception {
-          // We want to jump off the dbExecutor
+          // We want to jump off the executor
           return task;
         }
       }, Task.BACKGROUND_EXECUTOR);
@@ -160,11 +218,11 @@ import bolts.Task;
           db.setTransactionSuccessful();
           return task;
         }
-      }, dbExecutor);
+      }, executor);
       return current.continueWithTask(new Continuation<Void, Task<Void>>() {
         @Override
         public Task<Void> then(Task<Void> task) throws Exception {
-          // We want to jump off the dbExecutor
+          // We want to jump off the executor
           return task;
         }
       }, Task.BACKGROUND_EXECUTOR);
@@ -184,11 +242,11 @@ import bolts.Task;
           // We want to swallow any exceptions from our Session task
           return null;
         }
-      }, dbExecutor);
+      }, executor);
       return current.continueWithTask(new Continuation<Void, Task<Void>>() {
         @Override
         public Task<Void> then(Task<Void> task) throws Exception {
-          // We want to jump off the dbExecutor
+          // We want to jump off the executor
           return task;
         }
       }, Task.BACKGROUND_EXECUTOR);
@@ -205,17 +263,20 @@ import bolts.Task;
         @Override
         public Task<Void> then(Task<Void> task) throws Exception {
           try {
-            db.close();
+            statements.clear();
+            if (!isPooled) {
+              db.close();
+            }
           } finally {
             tcs.setResult(null);
           }
           return tcs.getTask();
         }
-      }, dbExecutor);
+      }, executor);
       return current.continueWithTask(new Continuation<Void, Task<Void>>() {
         @Override
         public Task<Void> then(Task<Void> task) throws Exception {
-          // We want to jump off the dbExecutor
+          // We want to jump off the executor
           return task;
         }
       }, Task.BACKGROUND_EXECUTOR);
@@ -229,28 +290,31 @@ import bolts.Task;
    */
   public Task<Cursor> queryAsync(final String table, final String[] select, final String where,
       final String[] args) {
+    if (profile != null) {
+      logStatement(createSelectSql(table, select, where));
+    }
     synchronized (currentLock) {
       Task<Cursor> task = current.onSuccess(new Continuation<Void, Cursor>() {
         @Override
         public Cursor then(Task<Void> task) throws Exception {
           return db.query(table, select, where, args, null, null, null);
         }
-      }, dbExecutor).onSuccess(new Continuation<Cursor, Cursor>() {
+      }, executor).onSuccess(new Continuation<Cursor, Cursor>() {
         @Override
         public Cursor then(Task<Cursor> task) throws Exception {
-          Cursor cursor = ParseSQLiteCursor.create(task.getResult(), dbExecutor);
-          /* Ensure the cursor window is filled on the dbExecutor thread. We need to do this because
+          Cursor cursor = ParseSQLiteCursor.create(task.getResult(), executor);
+          /* Ensure the cursor window is filled on the executor thread. We need to do this because
            * the cursor cannot be filled from a different thread than it was created on.
            */
           cursor.getCount();
           return cursor;
         }
-      }, dbExecutor);
+      }, executor);
       current = task.makeVoid();
       return task.continueWithTask(new Continuation<Cursor, Task<Cursor>>() {
         @Override
         public Task<Cursor> then(Task<Cursor> task) throws Exception {
-          // We want to jump off the dbExecutor
+          // We want to jump off the executor
           return task;
         }
       }, Task.BACKGROUND_EXECUTOR);
@@ -269,12 +333,12 @@ import bolts.Task;
         public Long then(Task<Void> task) throws Exception {
           return db.insertWithOnConflict(table, null, values, conflictAlgorithm);
         }
-      }, dbExecutor);
+      }, executor);
       current = task.makeVoid();
       return task.continueWithTask(new Continuation<Long, Task<Long>>() {
         @Override
         public Task<Long> then(Task<Long> task) throws Exception {
-          // We want to jump off the dbExecutor
+          // We want to jump off the executor
           return task;
         }
       }, Task.BACKGROUND_EXECUTOR).makeVoid();
@@ -292,12 +356,12 @@ import bolts.Task;
         public Long then(Task<Void> task) throws Exception {
           return db.insertOrThrow(table, null, values);
         }
-      }, dbExecutor);
+      }, executor);
       current = task.makeVoid();
       return task.continueWithTask(new Continuation<Long, Task<Long>>() {
         @Override
         public Task<Long> then(Task<Long> task) throws Exception {
-          // We want to jump off the dbExecutor
+          // We want to jump off the executor
           return task;
         }
       }, Task.BACKGROUND_EXECUTOR).makeVoid();
@@ -316,12 +380,12 @@ import bolts.Task;
         public Integer then(Task<Void> task) throws Exception {
           return db.update(table, values, where, args);
         }
-      }, dbExecutor);
+      }, executor);
       current = task.makeVoid();
       return task.continueWithTask(new Continuation<Integer, Task<Integer>>() {
         @Override
         public Task<Integer> then(Task<Integer> task) throws Exception {
-          // We want to jump off the dbExecutor
+          // We want to jump off the executor
           return task;
         }
       }, Task.BACKGROUND_EXECUTOR);
@@ -339,48 +403,274 @@ import bolts.Task;
         public Integer then(Task<Void> task) throws Exception {
           return db.delete(table, where, args);
         }
-      }, dbExecutor);
+      }, executor);
       current = task.makeVoid();
       return task.continueWithTask(new Continuation<Integer, Task<Integer>>() {
         @Override
         public Task<Integer> then(Task<Integer> task) throws Exception {
-          // We want to jump off the dbExecutor
+          // We want to jump off the executor
           return task;
         }
       }, Task.BACKGROUND_EXECUTOR).makeVoid();
     }
   }
 
+  /**
+   * Lists every statement this session runs from now on in {@code profile}, or stops listing them
+   * if it's {@code null}.
+   */
+  /* package */ void setProfile(OfflineQueryProfile profile) {
+    this.profile = profile;
+  }
+
+  private static String createSelectSql(String table, String[] select, String where) {
+    return "SELECT " + (select != null ? TextUtils.join(", ", select) : "*") +
+        " FROM " + table + (where != null ? " WHERE " + where : "");
+  }
+
+  private void logStatement(String sql) {
+    OfflineQueryProfile profile = this.profile;
+    if (profile != null) {
+      profile.addStatement(sql);
+    }
+  }
+
+  /**
+   * A unit of work that runs directly against the {@link SQLiteDatabase} on the database thread.
+   */
+  /* package */ interface Batch<T> {
+    T run(SQLiteDatabase db) throws Exception;
+  }
+
+  /**
+   * Runs {@code batch} as a single operation of this session. Use this for large numbers of
+   * statements, such as with compiled {@link android.database.sqlite.SQLiteStatement}s, instead of
+   * scheduling each of them as a separate operation.
+   * <p/>
+   * Statements that the batch runs through {@link #rawQuery}, {@link #query},
+   * {@link #longForQuery} or {@link #getStatement} are listed in the profile one by one, but not
+   * ones that it runs directly against the {@link SQLiteDatabase}.
+   */
+  /* package */ <T> Task<T> runBatchAsync(final Batch<T> batch) {
+    synchronized (currentLock) {
+      Task<T> task = current.onSuccess(new Continuation<Void, T>() {
+        @Override
+        public T then(Task<Void> task) throws Exception {
+          return batch.run(db);
+        }
+      }, executor);
+      current = task.makeVoid();
+      return task.continueWithTask(new Continuation<T, Task<T>>() {
+        @Override
+        public Task<T> then(Task<T> task) throws Exception {
+          // We want to jump off the dbExecutor
+          return task;
+        }
+      }, Task.BACKGROUND_EXECUTOR);
+    }
+  }
+
   /**
    * Runs a raw query.
    *
    * @see SQLiteDatabase#rawQuery
    */
   public Task<Cursor> rawQueryAsync(final String sql, final String[] args) {
+    logStatement(sql);
     synchronized (currentLock) {
       Task<Cursor> task = current.onSuccess(new Continuation<Void, Cursor>() {
         @Override
         public Cursor then(Task<Void> task) throws Exception {
           return db.rawQuery(sql, args);
         }
-      }, dbExecutor).onSuccess(new Continuation<Cursor, Cursor>() {
+      }, executor).onSuccess(new Continuation<Cursor, Cursor>() {
         @Override
         public Cursor then(Task<Cursor> task) throws Exception {
-          Cursor cursor = ParseSQLiteCursor.create(task.getResult(), dbExecutor);
-          // Ensure the cursor window is filled on the dbExecutor thread. We need to do this because
+          Cursor cursor = ParseSQLiteCursor.create(task.getResult(), executor);
+          // Ensure the cursor window is filled on the executor thread. We need to do this because
           // the cursor cannot be filled from a different thread than it was created on.
           cursor.getCount();
           return cursor;
         }
-      }, dbExecutor);
+      }, executor);
       current = task.makeVoid();
       return task.continueWithTask(new Continuation<Cursor, Task<Cursor>>() {
         @Override
         public Task<Cursor> then(Task<Cursor> task) throws Exception {
-          // We want to jump off the dbExecutor
+          // We want to jump off the executor
           return task;
         }
       }, Task.BACKGROUND_EXECUTOR);
     }
   }
+
+  /**
+   * Compiled statements keyed by their SQL, so that statements that are run over and over, such as
+   * looking up a single row by its key, are only compiled once. The least recently used statement is
+   * closed once there are more than {@code maxSize} of them.
+   */
+  /* package */ static class StatementCache {
+    private final int maxSize;
+    private final LinkedHashMap<String, SQLiteStatement> statements;
+
+    /* package */ StatementCache(final int maxSize) {
+      this.maxSize = maxSize;
+      statements = new LinkedHashMap<String, SQLiteStatement>(maxSize, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SQLiteStatement> eldest) {
+          if (size() <= StatementCache.this.maxSize) {
+            return false;
+          }
+          eldest.getValue().close();
+          return true;
+        }
+      };
+    }
+
+    /**
+     * Returns the statement for {@code sql}, compiling it if needed, with {@code args} bound to it.
+     */
+    /* package */ SQLiteStatement get(SQLiteDatabase db, String sql, String[] args) {
+      SQLiteStatement statement = statements.get(sql);
+      if (statement == null) {
+        statement = db.compileStatement(sql);
+        statements.put(sql, statement);
+      }
+      statement.clearBindings();
+      if (args != null) {
+        for (int i = 0; i < args.length; i++) {
+          if (args[i] == null) {
+            statement.bindNull(i + 1);
+          } else {
+            statement.bindString(i + 1, args[i]);
+          }
+        }
+      }
+      return statement;
+    }
+
+    /* package */ int size() {
+      return statements.size();
+    }
+
+    /**
+     * Closes every statement.
+     */
+    /* package */ void clear() {
+      for (SQLiteStatement statement : statements.values()) {
+        statement.close();
+      }
+      statements.clear();
+    }
+  }
+
+  /**
+   * Returns a compiled statement for {@code sql} with {@code args} bound to it, which stays compiled
+   * for the rest of the session. This may only be called from a {@link Batch}, and the statement
+   * must not be used outside of it.
+   */
+  /* package */ SQLiteStatement getStatement(String sql, String[] args) {
+    logStatement(sql);
+    return statements.get(db, sql, args);
+  }
+
+  /**
+   * Runs a raw query. This may only be called from a {@link Batch}.
+   *
+   * @see SQLiteDatabase#rawQuery
+   */
+  /* package */ Cursor rawQuery(String sql, String[] args) {
+    logStatement(sql);
+    return db.rawQuery(sql, args);
+  }
+
+  /**
+   * Runs a SELECT query. This may only be called from a {@link Batch}.
+   *
+   * @see SQLiteDatabase#query
+   */
+  /* package */ Cursor query(String table, String[] select, String where, String[] args) {
+    if (profile != null) {
+      logStatement(createSelectSql(table, select, where));
+    }
+    return db.query(table, select, where, args, null, null, null);
+  }
+
+  /**
+   * Runs a query that returns a single number. This may only be called from a {@link Batch}.
+   *
+   * @see DatabaseUtils#longForQuery(SQLiteDatabase, String, String[])
+   */
+  /* package */ long longForQuery(String sql, String[] args) {
+    logStatement(sql);
+    return DatabaseUtils.longForQuery(db, sql, args);
+  }
+
+  /**
+   * Runs a query that returns a single value with a compiled statement.
+   *
+   * @return The value of the first column of the first row, or {@code null} if there are no rows.
+   * @see SQLiteStatement#simpleQueryForString
+   */
+  /* package */ Task<String> queryStringAsync(final String sql, final String[] args) {
+    return runBatchAsync(new Batch<String>() {
+      @Override
+      public String run(SQLiteDatabase db) {
+        try {
+          return getStatement(sql, args).simpleQueryForString();
+        } catch (SQLiteDoneException e) {
+          return null;
+        }
+      }
+    });
+  }
+
+  /**
+   * Executes an INSERT with a compiled statement.
+   *
+   * @see SQLiteStatement#executeInsert
+   */
+  /* package */ Task<Long> executeInsertAsync(final String sql, final String[] args) {
+    return runBatchAsync(new Batch<Long>() {
+      @Override
+      public Long run(SQLiteDatabase db) {
+        return getStatement(sql, args).executeInsert();
+      }
+    });
+  }
+
+  /**
+   * Runs a raw query and reads every row as strings on the database thread, so that the rows can be
+   * read without a cursor being handed to another thread and closed back on this one.
+   *
+   * @return The rows, each with a string (or {@code null}) for each column.
+   */
+  /* package */ Task<List<String[]>> queryStringsAsync(final String sql, final String[] args) {
+    return runBatchAsync(new Batch<List<String[]>>() {
+      @Override
+      public List<String[]> run(SQLiteDatabase db) {
+        return readStrings(rawQuery(sql, args));
+      }
+    });
+  }
+
+  /**
+   * Copies every row of {@code cursor} into arrays of strings, and closes it.
+   */
+  /* package */ static List<String[]> readStrings(Cursor cursor) {
+    try {
+      int columnCount = cursor.getColumnCount();
+      List<String[]> rows = new ArrayList<>(cursor.getCount());
+      for (cursor.moveToFirst(); !cursor.isAfterLast(); cursor.moveToNext()) {
+        String[] row = new String[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+          row[i] = cursor.getString(i);
+        }
+        rows.add(row);
+      }
+      return rows;
+    } finally {
+      cursor.close();
+    }
+  }
 }
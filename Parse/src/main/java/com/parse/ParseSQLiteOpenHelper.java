@@ -11,12 +11,18 @@ package com.parse;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import bolts.Task;
 
 /** package */ abstract class ParseSQLiteOpenHelper {
 
   private final SQLiteOpenHelper helper;
+  // Guarded by this.
+  private ExecutorService readerExecutor;
 
   public ParseSQLiteOpenHelper(Context context, String name, SQLiteDatabase.CursorFactory factory,
       int version) {
@@ -39,6 +45,49 @@ import bolts.Task;
     };
   }
 
+  /**
+   * Enables a pooled connection mode: the database uses write-ahead logging, its connection is kept
+   * open for the lifetime of this helper instead of being reopened for every session, and read-only
+   * sessions run concurrently on up to {@code maxReaders} threads instead of waiting for every other
+   * session. Writable sessions are still serialized, so there's a single writer.
+   *
+   * This must be called before the database is opened. It has no effect before Jelly Bean, since
+   * earlier versions of {@link SQLiteDatabase} don't reliably pool connections.
+   */
+  public void enableConnectionPool(int maxReaders) {
+    if (maxReaders < 1) {
+      throw new IllegalArgumentException("maxReaders must be at least 1.");
+    }
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+      return;
+    }
+    helper.setWriteAheadLoggingEnabled(true);
+    synchronized (this) {
+      readerExecutor = Executors.newFixedThreadPool(maxReaders);
+    }
+  }
+
+  /* package for tests */ synchronized ExecutorService getReaderExecutor() {
+    return readerExecutor;
+  }
+
+  /**
+   * Closes the database connection, and stops the reader threads if the connection is pooled.
+   * This must only be called once every session is closed. Sessions that are opened afterwards
+   * open the database again, but aren't pooled anymore.
+   */
+  public void close() {
+    ExecutorService executor;
+    synchronized (this) {
+      executor = readerExecutor;
+      readerExecutor = null;
+    }
+    if (executor != null) {
+      executor.shutdown();
+    }
+    helper.close();
+  }
+
   public Task<ParseSQLiteDatabase> getReadableDatabaseAsync() {
     return getDatabaseAsync(false);
   }
@@ -49,7 +98,8 @@ import bolts.Task;
 
   private Task<ParseSQLiteDatabase> getDatabaseAsync(final boolean writable) {
     return ParseSQLiteDatabase.openDatabaseAsync(
-        helper, !writable ? SQLiteDatabase.OPEN_READONLY : SQLiteDatabase.OPEN_READWRITE);
+        helper, !writable ? SQLiteDatabase.OPEN_READONLY : SQLiteDatabase.OPEN_READWRITE,
+        getReaderExecutor());
   }
 
   public void onOpen(SQLiteDatabase db) {
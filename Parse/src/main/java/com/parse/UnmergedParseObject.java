@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Data from the Parse server for a <code>ParseObject</code> that has been decoded, but not yet
+ * merged into the object, such as while the rest of a response is still being read. Objects that
+ * are nested in the data, such as included ones, are held back the same way, so that nothing in
+ * memory changes until {@link #merge()} is called.
+ */
+/** package */ class UnmergedParseObject {
+
+  /**
+   * Decodes {@code json} the same way {@link ParseObject#fromJSON(JSONObject, String, boolean)}
+   * does, without merging it into any object.
+   */
+  public static UnmergedParseObject decode(JSONObject json, String defaultClassName,
+      boolean isComplete) {
+    final List<ParseObject> nestedObjects = new ArrayList<>();
+    final List<ParseObject.State> nestedStates = new ArrayList<>();
+    ParseDecoder decoder = new ParseDecoder() {
+      @Override
+      public Object decode(Object object) {
+        if (!(object instanceof JSONObject)
+            || !"Object".equals(((JSONObject) object).optString("__type", null))) {
+          return super.decode(object);
+        }
+        ParseObject.State state = ParseObject.stateFromJSON((JSONObject) object, null, true, this);
+        if (state == null) {
+          return null;
+        }
+        // A pointer to the object, which is only filled in once it's merged.
+        ParseObject nested = ParseObject.createWithoutData(state.className(), state.objectId());
+        nestedObjects.add(nested);
+        nestedStates.add(state);
+        return nested;
+      }
+    };
+    ParseObject.State state =
+        ParseObject.stateFromJSON(json, defaultClassName, isComplete, decoder);
+    return new UnmergedParseObject(state, nestedObjects, nestedStates);
+  }
+
+  private final ParseObject.State state;
+  private final List<ParseObject> nestedObjects;
+  private final List<ParseObject.State> nestedStates;
+
+  private UnmergedParseObject(ParseObject.State state, List<ParseObject> nestedObjects,
+      List<ParseObject.State> nestedStates) {
+    this.state = state;
+    this.nestedObjects = nestedObjects;
+    this.nestedStates = nestedStates;
+  }
+
+  /**
+   * Merges the data into the object it belongs to, and the objects nested in it.
+   *
+   * @return The object, or {@code null} if the data has no className.
+   */
+  public <T extends ParseObject> T merge() {
+    // Nested objects are merged first, as they would be while decoding.
+    for (int i = 0; i < nestedObjects.size(); i++) {
+      ParseObject nested = nestedObjects.get(i);
+      nested.setState(nested.mergeFromServer(nested.getState(), nestedStates.get(i)));
+    }
+    return state != null ? ParseObject.<T>fromState(state) : null;
+  }
+}
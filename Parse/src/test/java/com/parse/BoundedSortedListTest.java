@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedSortedListTest {
+
+  private static final Comparator<String> BY_LENGTH = new Comparator<String>() {
+    @Override
+    public int compare(String lhs, String rhs) {
+      return lhs.length() - rhs.length();
+    }
+  };
+
+  @Test
+  public void testKeepsSmallest() {
+    BoundedSortedList<Integer> list = new BoundedSortedList<>(3, new Comparator<Integer>() {
+      @Override
+      public int compare(Integer lhs, Integer rhs) {
+        return lhs.compareTo(rhs);
+      }
+    });
+    for (int i : new int[] { 5, 1, 4, 2, 3, 0 }) {
+      list.add(i);
+    }
+
+    assertEquals(3, list.size());
+    assertEquals(Arrays.asList(0, 1, 2), list.toList());
+  }
+
+  @Test
+  public void testTiesKeepInsertionOrder() {
+    BoundedSortedList<String> list = new BoundedSortedList<>(3, BY_LENGTH);
+    assertTrue(list.add("bb"));
+    assertTrue(list.add("a1"));
+    assertTrue(list.add("a2"));
+    // Equal to the largest item, but added later, so it sorts after it.
+    assertFalse(list.add("a3"));
+    assertTrue(list.add("c"));
+
+    assertEquals(Arrays.asList("c", "bb", "a1"), list.toList());
+  }
+
+  @Test
+  public void testWithoutComparatorKeepsFirst() {
+    BoundedSortedList<String> list = new BoundedSortedList<>(2, null);
+    list.add("c");
+    list.add("a");
+    assertFalse(list.add("b"));
+
+    assertEquals(Arrays.asList("c", "a"), list.toList());
+  }
+
+  @Test
+  public void testUnbounded() {
+    BoundedSortedList<String> list = new BoundedSortedList<>(-1, BY_LENGTH);
+    list.add("ccc");
+    list.add("a");
+    list.add("bb");
+
+    assertEquals(Arrays.asList("a", "bb", "ccc"), list.toList());
+  }
+
+  @Test
+  public void testZeroBound() {
+    BoundedSortedList<String> list = new BoundedSortedList<>(0, BY_LENGTH);
+    assertFalse(list.add("a"));
+
+    assertEquals(Collections.<String>emptyList(), list.toList());
+  }
+}
@@ -20,6 +20,7 @@ import org.robolectric.annotation.Config;
 
 import java.io.ByteArrayInputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import bolts.Task;
@@ -29,6 +30,8 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 // For Uri.encode
@@ -252,4 +255,55 @@ public class NetworkObjectControllerTest {
   }
 
   //endregion
+
+  //region testBatching
+
+  @Test
+  public void testDeleteAsyncBatched() throws Exception {
+    // Make batch response
+    JSONObject objectResponse = new JSONObject();
+    objectResponse.put("success", new JSONObject());
+    JSONObject objectResponseAgain = new JSONObject();
+    JSONObject objectDeleteResultAgain = new JSONObject();
+    objectDeleteResultAgain.put("code", 101);
+    objectDeleteResultAgain.put("error", "Error");
+    objectResponseAgain.put("error", objectDeleteResultAgain);
+    JSONArray mockResponse = new JSONArray();
+    mockResponse.put(objectResponse);
+    mockResponse.put(objectResponseAgain);
+    // Make mock response
+    byte[] contentBytes = mockResponse.toString().getBytes();
+    ParseHttpResponse response = new ParseHttpResponse.Builder()
+        .setContent(new ByteArrayInputStream(contentBytes))
+        .setStatusCode(200)
+        .setTotalSize(contentBytes.length)
+        .setContentType("application/json")
+        .build();
+    // Mock http client
+    ParseHttpClient client = mock(ParseHttpClient.class);
+    when(client.execute(any(ParseHttpRequest.class))).thenReturn(response);
+    // Make test state
+    ParseObject.State state = new ParseObject.State.Builder("Test")
+        .objectId("testObjectId")
+        .build();
+    ParseObject.State stateAgain = new ParseObject.State.Builder("Test")
+        .objectId("testObjectIdAgain")
+        .build();
+
+    // Test
+    NetworkObjectController controller = new NetworkObjectController(client, 50);
+    Task<Void> deleteTask = controller.deleteAsync(state, "sessionToken");
+    Task<Void> deleteTaskAgain = controller.deleteAsync(stateAgain, "sessionToken");
+    Task.whenAll(Arrays.asList(deleteTask, deleteTaskAgain)).waitForCompletion();
+
+    // Both deletes were sent in a single request, and got their own results
+    verify(client, times(1)).execute(any(ParseHttpRequest.class));
+    assertEquals(2, controller.getBatcher().getCommandCount());
+    assertEquals(1, controller.getBatcher().getBatchCount());
+    assertFalse(deleteTask.isFaulted());
+    assertTrue(deleteTaskAgain.isFaulted());
+    assertEquals(101, ((ParseException) deleteTaskAgain.getError()).getCode());
+  }
+
+  //endregion
 }
@@ -8,19 +8,36 @@
  */
 package com.parse;
 
+import com.parse.http.ParseHttpRequest;
+import com.parse.http.ParseHttpResponse;
+
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
 
+import java.io.ByteArrayInputStream;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import bolts.Task;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+// Results are only streamed out of responses where JsonReader is available.
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
 public class NetworkQueryControllerTest {
 
   //region testConvertFindResponse
@@ -67,6 +84,56 @@ public class NetworkQueryControllerTest {
     // TODO(mengyan): Verify PLog is called
   }
 
+  @Test
+  public void testFindAsyncAddsKnownObjectsToRelationsOfCoalescedQueries() throws Exception {
+    final JSONObject mockResponse = generateBasicMockResponse();
+    final CountDownLatch respond = new CountDownLatch(1);
+    ParseHttpClient restClient = mock(ParseHttpClient.class);
+    when(restClient.execute(any(ParseHttpRequest.class))).thenAnswer(
+        new Answer<ParseHttpResponse>() {
+      @Override
+      public ParseHttpResponse answer(InvocationOnMock invocation) throws Throwable {
+        respond.await();
+        byte[] content = mockResponse.toString().getBytes();
+        return new ParseHttpResponse.Builder()
+            .setContent(new ByteArrayInputStream(content))
+            .setStatusCode(200)
+            .setTotalSize(content.length)
+            .setContentType("application/json")
+            .build();
+      }
+    });
+    // Without the local datastore, these are separate instances with relations of their own.
+    ParseObject parent = ParseObject.createWithoutData("Parent", "parentId");
+    ParseObject sameParent = ParseObject.createWithoutData("Parent", "parentId");
+
+    long requestCount = Parse.getCoalescableRequestCount();
+    long coalescedCount = Parse.getCoalescedRequestCount();
+
+    NetworkQueryController controller = new NetworkQueryController(restClient);
+    Task<List<ParseObject>> first = controller.findAsync(
+        new ParseQuery.State.Builder<>("Test").whereRelatedTo(parent, "children").build(),
+        "sessionToken", false, null);
+    Task<List<ParseObject>> second = controller.findAsync(
+        new ParseQuery.State.Builder<>("Test").whereRelatedTo(sameParent, "children").build(),
+        "sessionToken", false, null);
+    respond.countDown();
+    List<ParseObject> firstResults = ParseTaskUtils.wait(first);
+    List<ParseObject> secondResults = ParseTaskUtils.wait(second);
+
+    verify(restClient, times(1)).execute(any(ParseHttpRequest.class));
+    assertEquals(requestCount + 2, Parse.getCoalescableRequestCount());
+    assertEquals(coalescedCount + 1, Parse.getCoalescedRequestCount());
+    assertEquals(2, firstResults.size());
+    for (ParseObject object : firstResults) {
+      assertTrue(parent.getRelation("children").hasKnownObject(object));
+    }
+    assertEquals(2, secondResults.size());
+    for (ParseObject object : secondResults) {
+      assertTrue(sameParent.getRelation("children").hasKnownObject(object));
+    }
+  }
+
   // TODO(mengyan): Add testFindAsyncWithCachePolicy to verify command is added to
   // ParseKeyValueCache
 
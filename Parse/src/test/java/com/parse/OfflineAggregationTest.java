@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class OfflineAggregationTest {
+
+  private static ParseObject mockObject(String color, Object score) {
+    ParseObject object = mock(ParseObject.class);
+    when(object.isDataAvailable()).thenReturn(true);
+    when(object.get("color")).thenReturn(color);
+    when(object.get("score")).thenReturn(score);
+    return object;
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidReduction() {
+    new OfflineAggregation(null, Collections.singletonList("avg(score)"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNoReductions() {
+    new OfflineAggregation(null, Collections.<String>emptyList());
+  }
+
+  @Test
+  public void testGroupsInMemory() throws Exception {
+    OfflineAggregation aggregation = new OfflineAggregation("color",
+        Arrays.asList("count", "sum(score)", "min(score)", "max(score)"));
+    aggregation.add(mockObject("red", 3));
+    aggregation.add(mockObject("red", 5L));
+    aggregation.add(mockObject("blue", 1.5));
+    aggregation.add(mockObject("blue", "not a number"));
+    aggregation.add(mockObject(null, null));
+
+    Map<Object, Map<String, Number>> results = aggregation.getResults();
+    assertEquals(3, results.size());
+
+    Map<String, Number> red = results.get("red");
+    assertEquals(2L, red.get("count"));
+    assertEquals(8L, red.get("sum(score)"));
+    assertEquals(3L, red.get("min(score)"));
+    assertEquals(5L, red.get("max(score)"));
+
+    Map<String, Number> blue = results.get("blue");
+    assertEquals(2L, blue.get("count"));
+    assertEquals(1.5, blue.get("sum(score)"));
+
+    // A group without any numbers has a sum of 0, and no min or max.
+    Map<String, Number> none = results.get(null);
+    assertEquals(1L, none.get("count"));
+    assertEquals(0L, none.get("sum(score)"));
+    assertFalse(none.containsKey("min(score)"));
+    assertFalse(none.containsKey("max(score)"));
+  }
+
+  @Test
+  public void testCreateSelect() {
+    OfflineAggregation aggregation = new OfflineAggregation("color",
+        Arrays.asList("count", "sum(score)"));
+    List<String> args = new ArrayList<>();
+    String sql = aggregation.createSelect("ParseObjects", args);
+
+    assertEquals(Arrays.asList("color", "score"), args);
+    assertTrue(sql.startsWith("G.type, G.value, COUNT(*), SUM("));
+    assertTrue(sql.contains(" FROM ParseObjects A LEFT JOIN ParseObjectIndexes G"));
+    assertEquals(" GROUP BY G.type, G.value", aggregation.createGroupBy());
+  }
+
+  @Test
+  public void testReadRows() {
+    OfflineAggregation aggregation = new OfflineAggregation("color",
+        Arrays.asList("count", "max(score)"));
+    assertTrue(aggregation.readRow(new String[] { "2", "red", "2", "5", "0" }));
+    assertTrue(aggregation.readRow(new String[] { null, null, "1", "2.5", "0" }));
+
+    Map<Object, Map<String, Number>> results = aggregation.getResults();
+    assertEquals(2L, results.get("red").get("count"));
+    assertEquals(5L, results.get("red").get("max(score)"));
+    assertEquals(2.5, results.get(null).get("max(score)"));
+  }
+
+  @Test
+  public void testReadInexactRow() {
+    OfflineAggregation aggregation = new OfflineAggregation(null,
+        Collections.singletonList("sum(score)"));
+    // Without a GROUP BY, nothing matching still produces a row.
+    assertTrue(aggregation.readRow(new String[] { "0", null, null }));
+    assertTrue(aggregation.getResults().isEmpty());
+
+    // Arrays are indexed a row per element, so the sum in SQL would be wrong.
+    assertFalse(aggregation.readRow(new String[] { "3", "6", "1" }));
+  }
+}
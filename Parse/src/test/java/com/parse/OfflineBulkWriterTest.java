@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OfflineBulkWriterTest {
+
+  private SQLiteDatabase db;
+
+  @Before
+  public void setUp() {
+    db = SQLiteDatabase.create(null);
+    db.execSQL("CREATE TABLE Test (a TEXT, b INTEGER, UNIQUE(a))");
+  }
+
+  @After
+  public void tearDown() {
+    db.close();
+  }
+
+  @Test
+  public void testInsertMoreRowsThanFitInOneStatement() {
+    List<Object[]> rows = new ArrayList<>();
+    for (int i = 0; i < 1200; i++) {
+      rows.add(new Object[] { "row" + i, i });
+    }
+    OfflineBulkWriter.insert(db, "Test", "", new String[] { "a", "b" }, rows);
+
+    assertEquals(1200, queryLong("SELECT COUNT(*) FROM Test"));
+    assertEquals(1199 * 1200 / 2, queryLong("SELECT SUM(b) FROM Test"));
+  }
+
+  @Test
+  public void testInsertWithConflictClause() {
+    String[] columns = { "a", "b" };
+    OfflineBulkWriter.insert(db, "Test", "", columns,
+        Collections.singletonList(new Object[] { "a", 1 }));
+    OfflineBulkWriter.insert(db, "Test", "OR IGNORE", columns,
+        Arrays.asList(new Object[] { "a", 2 }, new Object[] { "b", null }));
+
+    assertEquals(2, queryLong("SELECT COUNT(*) FROM Test"));
+    assertEquals(1, queryLong("SELECT b FROM Test WHERE a = 'a'"));
+    assertEquals(1, queryLong("SELECT COUNT(*) FROM Test WHERE b IS NULL"));
+  }
+
+  @Test
+  public void testDeleteIn() {
+    List<Object[]> rows = new ArrayList<>();
+    List<String> toDelete = new ArrayList<>();
+    for (int i = 0; i < 1500; i++) {
+      rows.add(new Object[] { "row" + i, i });
+      if (i % 3 != 0) {
+        toDelete.add("row" + i);
+      }
+    }
+    OfflineBulkWriter.insert(db, "Test", "", new String[] { "a", "b" }, rows);
+    OfflineBulkWriter.deleteIn(db, "Test", "a", toDelete);
+
+    assertEquals(500, queryLong("SELECT COUNT(*) FROM Test"));
+  }
+
+  private long queryLong(String sql) {
+    Cursor cursor = db.rawQuery(sql, null);
+    try {
+      cursor.moveToFirst();
+      return cursor.getLong(0);
+    } finally {
+      cursor.close();
+    }
+  }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class OfflineChangeTest {
+
+  private static ParseObject mockObject(String className) {
+    ParseObject object = mock(ParseObject.class);
+    when(object.getClassName()).thenReturn(className);
+    return object;
+  }
+
+  @Test
+  public void testObjectsByClass() {
+    ParseObject a = mockObject("A");
+    ParseObject b = mockObject("B");
+    OfflineChange change = new OfflineChange();
+    change.addObject(a);
+    change.addObject(a);
+    change.addObject(b);
+    change.addClassName("C");
+
+    assertTrue(change.hasClassName("A"));
+    assertTrue(change.hasClassName("C"));
+    assertFalse(change.hasClassName("D"));
+
+    List<ParseObject> objects = change.getObjects("A");
+    assertEquals(1, objects.size());
+    assertSame(a, objects.get(0));
+    assertEquals(0, change.getObjects("C").size());
+  }
+
+  @Test
+  public void testPinNames() {
+    OfflineChange change = new OfflineChange();
+    change.addPinName("stuff");
+
+    assertEquals(Collections.singleton("stuff"), change.getPinNames());
+    assertTrue(change.getClassNames().isEmpty());
+  }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OfflineIndexesTest {
+
+  @Test
+  public void testIsIndexableKey() {
+    assertTrue(OfflineIndexes.isIndexableKey("foo"));
+    assertTrue(OfflineIndexes.isIndexableKey("createdAt"));
+    assertFalse(OfflineIndexes.isIndexableKey("foo.bar"));
+    assertFalse(OfflineIndexes.isIndexableKey("__complete"));
+    assertFalse(OfflineIndexes.isIndexableKey("objectId"));
+    assertFalse(OfflineIndexes.isIndexableKey(""));
+  }
+
+  @Test
+  public void testGetIndexedKeys() {
+    Map<String, Set<String>> keys = new HashMap<>();
+    keys.put("TestObject", Collections.singleton("foo"));
+    OfflineIndexes indexes = new OfflineIndexes(keys);
+
+    assertEquals(Collections.singleton("foo"), indexes.getIndexedKeys("TestObject"));
+    assertTrue(indexes.getIndexedKeys("OtherObject").isEmpty());
+  }
+
+  @Test
+  public void testGetFullTextKeys() {
+    Map<String, Set<String>> keys = new HashMap<>();
+    keys.put("TestObject", Collections.singleton("foo"));
+    Map<String, Set<String>> fullTextKeys = new HashMap<>();
+    fullTextKeys.put("TestObject", Collections.singleton("body"));
+    OfflineIndexes indexes = new OfflineIndexes(keys, fullTextKeys);
+
+    // Full-text keys are indexed like any other key as well.
+    assertEquals(new HashSet<>(Arrays.asList("foo", "body")),
+        indexes.getIndexedKeys("TestObject"));
+    assertEquals(Collections.singleton("body"), indexes.getFullTextKeys("TestObject"));
+    assertTrue(indexes.getFullTextKeys("OtherObject").isEmpty());
+  }
+
+  @Test
+  public void testTokenize() {
+    assertEquals(Arrays.asList("hello", "world", "42", "bär"),
+        OfflineIndexes.tokenize("  Hello, WORLD!\t42-bär "));
+    assertTrue(OfflineIndexes.tokenize("...").isEmpty());
+  }
+
+  @Test
+  public void testExtractFullText() throws Exception {
+    JSONObject json = new JSONObject();
+    json.put("body", "Hello world");
+    json.put("count", 5);
+
+    List<OfflineIndexes.Entry> entries = OfflineIndexes.extract(json,
+        Arrays.asList("body", "count"), Arrays.asList("body", "count"));
+    assertEquals(3, entries.size());
+    assertEntry(entries.get(0), "body", OfflineIndexes.TYPE_STRING, "Hello world");
+    assertEntry(entries.get(1), "body", OfflineIndexes.TYPE_FULL_TEXT, "Hello world");
+    assertEntry(entries.get(2), "count", OfflineIndexes.TYPE_NUMBER, 5L);
+  }
+
+  @Test
+  public void testExtractScalars() throws Exception {
+    JSONObject json = new JSONObject();
+    json.put("string", "bar");
+    json.put("int", 5);
+    json.put("double", 1.5);
+    json.put("bool", true);
+    json.put("createdAt", "1970-01-01T00:00:01.234Z");
+
+    List<OfflineIndexes.Entry> entries = OfflineIndexes.extract(json,
+        Arrays.asList("string", "int", "double", "bool", "createdAt"));
+    assertEquals(5, entries.size());
+    assertEntry(entries.get(0), "string", OfflineIndexes.TYPE_STRING, "bar");
+    assertEntry(entries.get(1), "int", OfflineIndexes.TYPE_NUMBER, 5L);
+    assertEntry(entries.get(2), "double", OfflineIndexes.TYPE_NUMBER, 1.5);
+    assertEntry(entries.get(3), "bool", OfflineIndexes.TYPE_BOOLEAN, 1L);
+    assertEntry(entries.get(4), "createdAt", OfflineIndexes.TYPE_DATE, 1234L);
+  }
+
+  @Test
+  public void testExtractEncodedValues() throws Exception {
+    JSONObject date = new JSONObject();
+    date.put("__type", "Date");
+    date.put("iso", "1970-01-01T00:00:01.234Z");
+    JSONObject pointer = new JSONObject();
+    pointer.put("__type", "Pointer");
+    pointer.put("className", "TestObject");
+    pointer.put("objectId", "abc");
+    JSONObject geoPoint = new JSONObject();
+    geoPoint.put("__type", "GeoPoint");
+    geoPoint.put("latitude", 1);
+    geoPoint.put("longitude", 2);
+
+    JSONObject json = new JSONObject();
+    json.put("date", date);
+    json.put("pointer", pointer);
+    json.put("geoPoint", geoPoint);
+
+    List<OfflineIndexes.Entry> entries = OfflineIndexes.extract(json,
+        Arrays.asList("date", "pointer", "geoPoint"));
+    assertEquals(3, entries.size());
+    assertEntry(entries.get(0), "date", OfflineIndexes.TYPE_DATE, 1234L);
+    assertEntry(entries.get(1), "pointer", OfflineIndexes.TYPE_POINTER, "TestObject:abc");
+    assertEntry(entries.get(2), "geoPoint", OfflineIndexes.TYPE_GEO_POINT, 1.0);
+    assertEquals(2.0, entries.get(2).longitude, 0);
+  }
+
+  @Test
+  public void testExtractArray() throws Exception {
+    JSONObject json = new JSONObject();
+    json.put("array", new JSONArray(Arrays.asList("a", "b")));
+    json.put("empty", new JSONArray());
+
+    List<OfflineIndexes.Entry> entries = OfflineIndexes.extract(json,
+        Arrays.asList("array", "empty"));
+    assertEquals(4, entries.size());
+    assertEntry(entries.get(0), "array", OfflineIndexes.TYPE_STRING, "a");
+    assertEntry(entries.get(1), "array", OfflineIndexes.TYPE_STRING, "b");
+    // Arrays are marked as such so that they're never sorted in SQL.
+    assertEntry(entries.get(2), "array", OfflineIndexes.TYPE_OPAQUE, null);
+    assertEntry(entries.get(3), "empty", OfflineIndexes.TYPE_OPAQUE, null);
+  }
+
+  @Test
+  public void testExtractMissingAndNull() throws Exception {
+    JSONObject json = new JSONObject();
+    json.put("null", JSONObject.NULL);
+
+    assertTrue(OfflineIndexes.extract(json, Arrays.asList("null", "missing")).isEmpty());
+  }
+
+  @Test
+  public void testExtractPendingOperations() throws Exception {
+    JSONObject operationSet = new JSONObject();
+    operationSet.put("__uuid", "uuid");
+    operationSet.put("foo", new JSONObject());
+    JSONObject json = new JSONObject();
+    json.put("foo", "bar");
+    json.put("__operations", new JSONArray(Collections.singletonList(operationSet)));
+
+    List<OfflineIndexes.Entry> entries = OfflineIndexes.extract(json,
+        Collections.singletonList("foo"));
+    assertEquals(1, entries.size());
+    assertEntry(entries.get(0), "foo", OfflineIndexes.TYPE_UNKNOWN, null);
+  }
+
+  private static void assertEntry(
+      OfflineIndexes.Entry entry, String key, int type, Object value) {
+    assertEquals(key, entry.key);
+    assertEquals(type, entry.type);
+    if (value == null) {
+      assertNull(entry.value);
+    } else {
+      assertEquals(value, entry.value);
+    }
+  }
+}
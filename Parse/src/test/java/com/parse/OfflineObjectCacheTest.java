@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+public class OfflineObjectCacheTest {
+
+  @Test
+  public void testEvictsLeastRecentlyUsedObjects() {
+    OfflineObjectCache cache = new OfflineObjectCache(2, 0);
+    ParseObject a = mock(ParseObject.class);
+    ParseObject b = mock(ParseObject.class);
+    ParseObject c = mock(ParseObject.class);
+
+    cache.put(a, 10);
+    cache.put(b, 10);
+    // Using a makes b the least recently used.
+    cache.hit(a);
+    cache.put(c, 10);
+
+    assertEquals(2, cache.size());
+    assertEquals(20, cache.getSizeInBytes());
+    assertEquals(1, cache.getEvictionCount());
+
+    // b is gone, so removing it changes nothing.
+    cache.remove(b);
+    assertEquals(2, cache.size());
+    cache.remove(a);
+    assertEquals(1, cache.size());
+    assertEquals(10, cache.getSizeInBytes());
+  }
+
+  @Test
+  public void testEvictsByBytes() {
+    OfflineObjectCache cache = new OfflineObjectCache(10, 25);
+    cache.put(mock(ParseObject.class), 10);
+    cache.put(mock(ParseObject.class), 10);
+    cache.put(mock(ParseObject.class), 10);
+
+    assertEquals(2, cache.size());
+    assertEquals(20, cache.getSizeInBytes());
+
+    ParseObject big = mock(ParseObject.class);
+    cache.put(big, 100);
+    // Even the newest object is dropped if it's too big on its own.
+    assertEquals(0, cache.size());
+    assertEquals(0, cache.getSizeInBytes());
+  }
+
+  @Test
+  public void testCountsWithoutHoldingOnToObjects() {
+    OfflineObjectCache cache = new OfflineObjectCache(0, 0);
+    ParseObject object = mock(ParseObject.class);
+    cache.miss();
+    cache.put(object, 10);
+    cache.hit(object);
+    cache.hit(object);
+
+    assertEquals(0, cache.size());
+    assertEquals(2, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testNegativeSize() {
+    new OfflineObjectCache(-1, 0);
+  }
+}
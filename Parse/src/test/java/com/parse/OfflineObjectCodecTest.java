@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.skyscreamer.jsonassert.JSONCompareMode;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.skyscreamer.jsonassert.JSONAssert.assertEquals;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OfflineObjectCodecTest {
+
+  private static JSONObject offlineObject(String uuid) throws JSONException {
+    JSONObject json = new JSONObject();
+    json.put("__type", "OfflineObject");
+    json.put("uuid", uuid);
+    return json;
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    JSONObject nested = new JSONObject();
+    nested.put("inner", offlineObject("uuid2"));
+    nested.put("empty", new JSONObject());
+
+    JSONObject json = new JSONObject();
+    json.put("string", "bär");
+    json.put("int", 5);
+    json.put("long", 12345678901L);
+    json.put("double", 1.5);
+    json.put("bool", false);
+    json.put("null", JSONObject.NULL);
+    json.put("pointer", offlineObject("uuid1"));
+    json.put("array", new JSONArray(Arrays.asList(1, "two", offlineObject("uuid1"))));
+    json.put("nested", nested);
+
+    OfflineObjectCodec.EncodedObject encoded =
+        OfflineObjectCodec.decode(OfflineObjectCodec.encode(json));
+
+    assertEquals(json, encoded.toJSONObject(), JSONCompareMode.NON_EXTENSIBLE);
+    assertEquals(Arrays.asList("uuid1", "uuid2"), encoded.getReferencedUUIDs());
+    assertEquals(5, encoded.opt("int"));
+    assertEquals(12345678901L, encoded.opt("long"));
+    assertEquals(JSONObject.NULL, encoded.opt("null"));
+  }
+
+  @Test
+  public void testDecodeSingleFields() throws Exception {
+    JSONObject json = new JSONObject();
+    json.put("foo", "bar");
+    json.put("baz", new JSONArray(Arrays.asList(1, 2, 3)));
+
+    OfflineObjectCodec.EncodedObject encoded =
+        OfflineObjectCodec.decode(OfflineObjectCodec.encode(json));
+
+    assertTrue(encoded.has("baz"));
+    assertFalse(encoded.has("qux"));
+    assertNull(encoded.opt("qux"));
+    assertEquals("bar", encoded.opt("foo"));
+
+    JSONObject partial = encoded.toJSONObject(Arrays.asList("foo", "qux"));
+    assertEquals(1, partial.length());
+    assertEquals("bar", partial.getString("foo"));
+    assertTrue(encoded.getReferencedUUIDs().isEmpty());
+  }
+
+  @Test(expected = JSONException.class)
+  public void testDecodeTruncatedData() throws Exception {
+    JSONObject json = new JSONObject();
+    json.put("foo", "bar");
+    byte[] data = OfflineObjectCodec.encode(json);
+
+    OfflineObjectCodec.decode(Arrays.copyOf(data, data.length - 2))
+        .toJSONObject(Collections.singleton("foo"));
+  }
+}
@@ -21,16 +21,20 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import bolts.Task;
 
 import static com.parse.ParseMatchers.hasParseErrorCode;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -246,6 +250,396 @@ public class OfflineQueryLogicTest {
 
   //endregion
 
+  //region createIndexFilter
+
+  @Test
+  public void testIndexFilterWithoutIndexedKeys() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereEqualTo("foo", "bar")
+        .build();
+
+    List<String> args = new ArrayList<>();
+    assertNull(OfflineQueryLogic.createIndexFilter(
+        "A", "TestObject", query.constraints(), Collections.<String>emptySet(), args));
+    assertTrue(args.isEmpty());
+  }
+
+  @Test
+  public void testIndexFilterEqualTo() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereEqualTo("foo", "bar")
+        .build();
+
+    List<String> args = new ArrayList<>();
+    String filter = OfflineQueryLogic.createIndexFilter(
+        "A", "TestObject", query.constraints(), Collections.singleton("foo"), args);
+    assertEquals("(A.uuid IN (SELECT uuid FROM ParseObjectIndexes WHERE className = ?"
+        + " AND key = ? AND (type = 0 OR (type = 2 AND value = ?))))", filter);
+    assertEquals(Arrays.asList("TestObject", "foo", "bar"), args);
+  }
+
+  @Test
+  public void testIndexFilterObjectIdDoesNotNeedIndex() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("objectId", "$in", Arrays.asList("a", "b"))
+        .build();
+
+    List<String> args = new ArrayList<>();
+    String filter = OfflineQueryLogic.createIndexFilter(
+        "A", "TestObject", query.constraints(), Collections.<String>emptySet(), args);
+    assertEquals("(A.objectId IN (?, ?))", filter);
+    assertEquals(Arrays.asList("a", "b"), args);
+  }
+
+  @Test
+  public void testIndexFilterRanges() {
+    Date date = new Date(1234);
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("score", "$gte", 5)
+        .addCondition("when", "$lt", date)
+        .build();
+
+    Set<String> indexedKeys = new HashSet<>(Arrays.asList("score", "when"));
+    List<String> args = new ArrayList<>();
+    String filter = OfflineQueryLogic.createIndexFilter(
+        "A", "TestObject", query.constraints(), indexedKeys, args);
+    assertTrue(filter.contains("(type = 3 AND value >= CAST(? AS NUMERIC))"));
+    assertTrue(filter.contains("(type = 5 AND value < CAST(? AS INTEGER))"));
+    assertTrue(args.contains("5"));
+    assertTrue(args.contains("1234"));
+    assertEquals(6, args.size());
+  }
+
+  @Test
+  public void testIndexFilterSkipsStringRanges() {
+    // SQLite doesn't order strings the same way Java does.
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("foo", "$gt", "bar")
+        .build();
+
+    List<String> args = new ArrayList<>();
+    assertNull(OfflineQueryLogic.createIndexFilter(
+        "A", "TestObject", query.constraints(), Collections.singleton("foo"), args));
+    assertTrue(args.isEmpty());
+  }
+
+  @Test
+  public void testIndexFilterSkipsInWithUnsupportedItems() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("foo", "$in", Arrays.asList("bar", new ParseGeoPoint(1, 2)))
+        .build();
+
+    List<String> args = new ArrayList<>();
+    assertNull(OfflineQueryLogic.createIndexFilter(
+        "A", "TestObject", query.constraints(), Collections.singleton("foo"), args));
+    assertTrue(args.isEmpty());
+  }
+
+  @Test
+  public void testIndexFilterDoesNotExist() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("foo", "$exists", false)
+        .build();
+
+    List<String> args = new ArrayList<>();
+    String filter = OfflineQueryLogic.createIndexFilter(
+        "A", "TestObject", query.constraints(), Collections.singleton("foo"), args);
+    assertEquals("(A.uuid NOT IN (SELECT uuid FROM ParseObjectIndexes WHERE className = ?"
+        + " AND key = ? AND type != 0))", filter);
+    assertEquals(Arrays.asList("TestObject", "foo"), args);
+  }
+
+  @Test
+  public void testIndexFilterOrRequiresEveryBranch() {
+    ParseQuery.State<ParseObject> query = ParseQuery.State.Builder.or(Arrays.asList(
+        new ParseQuery.State.Builder<>("TestObject")
+            .whereEqualTo("foo", "bar"),
+        new ParseQuery.State.Builder<>("TestObject")
+            .whereEqualTo("baz", "qux")
+    )).build();
+
+    List<String> args = new ArrayList<>();
+    assertNull(OfflineQueryLogic.createIndexFilter(
+        "A", "TestObject", query.constraints(), Collections.singleton("foo"), args));
+    assertTrue(args.isEmpty());
+
+    Set<String> indexedKeys = new HashSet<>(Arrays.asList("foo", "baz"));
+    String filter = OfflineQueryLogic.createIndexFilter(
+        "A", "TestObject", query.constraints(), indexedKeys, args);
+    assertTrue(filter.contains(" OR A.uuid IN "));
+    assertEquals(6, args.size());
+  }
+
+  @Test
+  public void testIndexFilterWithin() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereWithin("location", new ParseGeoPoint(1, 2), new ParseGeoPoint(3, 4))
+        .build();
+
+    List<String> args = new ArrayList<>();
+    String filter = OfflineQueryLogic.createIndexFilter(
+        "A", "TestObject", query.constraints(), Collections.singleton("location"), args);
+    assertEquals("(A.uuid IN (SELECT uuid FROM ParseObjectIndexes WHERE className = ?"
+        + " AND key = ? AND (type = 0 OR (type = 7"
+        + " AND value BETWEEN CAST(? AS REAL) AND CAST(? AS REAL)"
+        + " AND longitude BETWEEN CAST(? AS REAL) AND CAST(? AS REAL)))))", filter);
+    assertEquals(Arrays.asList("TestObject", "location", "1.0", "3.0", "2.0", "4.0"), args);
+  }
+
+  @Test
+  public void testIndexFilterSkipsInvalidWithin() {
+    // The matcher has to see the objects to report the error.
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereWithin("location", new ParseGeoPoint(3, 4), new ParseGeoPoint(1, 2))
+        .build();
+
+    List<String> args = new ArrayList<>();
+    assertNull(OfflineQueryLogic.createIndexFilter(
+        "A", "TestObject", query.constraints(), Collections.singleton("location"), args));
+    assertTrue(args.isEmpty());
+  }
+
+  @Test
+  public void testIndexFilterNearSphere() {
+    ParseGeoPoint point = new ParseGeoPoint(10, 20);
+    double maxDistance = 0.01;
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereNear("location", point)
+        .maxDistance("location", maxDistance)
+        .build();
+
+    List<String> args = new ArrayList<>();
+    String filter = OfflineQueryLogic.createIndexFilter(
+        "A", "TestObject", query.constraints(), Collections.singleton("location"), args);
+    assertTrue(filter.contains("(type = 7 AND value BETWEEN CAST(? AS REAL) AND CAST(? AS REAL)"
+        + " AND longitude BETWEEN CAST(? AS REAL) AND CAST(? AS REAL))"));
+    assertEquals(6, args.size());
+
+    // Every point on the circle has to be inside the box.
+    double south = Double.parseDouble(args.get(2));
+    double north = Double.parseDouble(args.get(3));
+    double west = Double.parseDouble(args.get(4));
+    double east = Double.parseDouble(args.get(5));
+    for (int i = 0; i < 360; i++) {
+      double bearing = Math.toRadians(i);
+      double lat = Math.asin(Math.sin(Math.toRadians(10)) * Math.cos(maxDistance)
+          + Math.cos(Math.toRadians(10)) * Math.sin(maxDistance) * Math.cos(bearing));
+      double lng = Math.toRadians(20) + Math.atan2(
+          Math.sin(bearing) * Math.sin(maxDistance) * Math.cos(Math.toRadians(10)),
+          Math.cos(maxDistance) - Math.sin(Math.toRadians(10)) * Math.sin(lat));
+      assertTrue(Math.toDegrees(lat) >= south && Math.toDegrees(lat) <= north);
+      assertTrue(Math.toDegrees(lng) >= west && Math.toDegrees(lng) <= east);
+    }
+
+    // Without a maximum distance, any object with a value may match.
+    query = new ParseQuery.State.Builder<>("TestObject")
+        .whereNear("location", point)
+        .build();
+    args.clear();
+    filter = OfflineQueryLogic.createIndexFilter(
+        "A", "TestObject", query.constraints(), Collections.singleton("location"), args);
+    assertEquals("(A.uuid IN (SELECT uuid FROM ParseObjectIndexes WHERE className = ?"
+        + " AND key = ?))", filter);
+  }
+
+  @Test
+  public void testIndexFilterInQuery() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("pointer", "$inQuery", new ParseQuery.State.Builder<>("Subclass")
+            .whereEqualTo("name", "bar"))
+        .build();
+
+    // Without anything to resolve the subquery with, the constraint can't use the index.
+    List<String> args = new ArrayList<>();
+    assertNull(OfflineQueryLogic.createIndexFilter(
+        "A", "TestObject", query.constraints(), Collections.singleton("pointer"), args));
+
+    OfflineQueryLogic.SubQueryIndexes subQueries = new OfflineQueryLogic.SubQueryIndexes() {
+      @Override
+      public Set<String> getIndexedKeys(String className) {
+        return "Subclass".equals(className)
+            ? Collections.singleton("name")
+            : Collections.<String>emptySet();
+      }
+
+      @Override
+      public Set<String> getFullTextKeys(String className) {
+        return Collections.emptySet();
+      }
+
+      @Override
+      public Set<String> getDirtyUUIDs(String className) {
+        return Collections.singleton("dirty");
+      }
+    };
+    String filter = OfflineQueryLogic.createIndexFilter("A", "TestObject", query.constraints(),
+        Collections.singleton("pointer"), Collections.<String>emptySet(), subQueries, args);
+    assertEquals("(A.uuid IN (SELECT uuid FROM ParseObjectIndexes WHERE className = ?"
+        + " AND key = ? AND (type = 0 OR (type = 6 AND value IN ("
+        + "SELECT A_.className || ':' || A_.objectId FROM ParseObjects A_"
+        + " WHERE A_.className = ? AND A_.objectId IS NOT NULL"
+        + " AND ((A_.uuid IN (SELECT uuid FROM ParseObjectIndexes WHERE className = ?"
+        + " AND key = ? AND (type = 0 OR (type = 2 AND value = ?))))"
+        + " OR A_.uuid IN (?)))))))", filter);
+    assertEquals(Arrays.asList(
+        "TestObject", "pointer", "Subclass", "Subclass", "name", "bar", "dirty"), args);
+  }
+
+  @Test
+  public void testIndexFilterFullText() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereFullText("body", "Hello, OR world")
+        .build();
+
+    // Keys that are only indexed like any other can't look up words.
+    List<String> args = new ArrayList<>();
+    assertNull(OfflineQueryLogic.createIndexFilter(
+        "A", "TestObject", query.constraints(), Collections.singleton("body"), args));
+
+    String filter = OfflineQueryLogic.createIndexFilter("A", "TestObject", query.constraints(),
+        Collections.singleton("body"), Collections.singleton("body"), null, args);
+    assertEquals("(A.uuid IN (SELECT uuid FROM ParseObjectIndexes WHERE className = ?"
+        + " AND key = ? AND (type = 0 OR (type = 8 AND rowid IN ("
+        + "SELECT docid FROM ParseObjectFullText WHERE value MATCH ?)))))", filter);
+    assertEquals(Arrays.asList("TestObject", "body", "\"hello\" \"or\" \"world\""), args);
+
+    // Without any words, there's nothing to look up.
+    query = new ParseQuery.State.Builder<>("TestObject")
+        .whereFullText("body", " ... ")
+        .build();
+    args.clear();
+    assertNull(OfflineQueryLogic.createIndexFilter("A", "TestObject", query.constraints(),
+        Collections.singleton("body"), Collections.singleton("body"), null, args));
+    assertTrue(args.isEmpty());
+  }
+
+  @Test
+  public void testIndexFilterExactForEquality() {
+    Set<String> indexedKeys = new HashSet<>(Arrays.asList("foo", "flag", "when"));
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereEqualTo("foo", "bar")
+        .addCondition("flag", "$in", Arrays.asList(true, false))
+        .whereEqualTo("when", new Date(1234))
+        .addCondition("objectId", "$in", Arrays.asList("a", "b"))
+        .build();
+    assertTrue(OfflineQueryLogic.isIndexFilterExact(query.constraints(), indexedKeys));
+
+    ParseQuery.State<ParseObject> or = ParseQuery.State.Builder.or(Arrays.asList(
+        new ParseQuery.State.Builder<>("TestObject")
+            .whereEqualTo("foo", "bar"),
+        new ParseQuery.State.Builder<>("TestObject")
+            .whereEqualTo("flag", true)
+    )).build();
+    assertTrue(OfflineQueryLogic.isIndexFilterExact(or.constraints(), indexedKeys));
+
+    ParseQuery.State<ParseObject> all = new ParseQuery.State.Builder<>("TestObject").build();
+    assertTrue(OfflineQueryLogic.isIndexFilterExact(all.constraints(), indexedKeys));
+  }
+
+  @Test
+  public void testIndexFilterNotExact() {
+    Set<String> indexedKeys = new HashSet<>(Arrays.asList("foo", "score"));
+
+    // Not indexed.
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereEqualTo("bar", "baz")
+        .build();
+    assertFalse(OfflineQueryLogic.isIndexFilterExact(query.constraints(), indexedKeys));
+
+    // Numbers in arrays are only matched by strict equality in memory.
+    query = new ParseQuery.State.Builder<>("TestObject")
+        .whereEqualTo("score", 5)
+        .build();
+    assertFalse(OfflineQueryLogic.isIndexFilterExact(query.constraints(), indexedKeys));
+
+    // Ranges and existence still need to be matched in memory.
+    query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("score", "$gt", 5)
+        .build();
+    assertFalse(OfflineQueryLogic.isIndexFilterExact(query.constraints(), indexedKeys));
+    query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("foo", "$exists", true)
+        .build();
+    assertFalse(OfflineQueryLogic.isIndexFilterExact(query.constraints(), indexedKeys));
+
+    // Every branch of an $or has to be exact.
+    query = ParseQuery.State.Builder.or(Arrays.asList(
+        new ParseQuery.State.Builder<>("TestObject")
+            .whereEqualTo("foo", "bar"),
+        new ParseQuery.State.Builder<>("TestObject")
+            .addCondition("foo", "$ne", "bar")
+    )).build();
+    assertFalse(OfflineQueryLogic.isIndexFilterExact(query.constraints(), indexedKeys));
+  }
+
+  //endregion
+
+  //region createIndexOrder
+
+  @Test
+  public void testIndexOrderWithoutOrder() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .build();
+
+    assertNull(OfflineQueryLogic.createIndexOrder(
+        "A", "TestObject", query, Collections.singleton("score")));
+  }
+
+  @Test
+  public void testIndexOrderWithUnindexedKey() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .orderByAscending("score")
+        .addDescendingOrder("name")
+        .build();
+
+    assertNull(OfflineQueryLogic.createIndexOrder(
+        "A", "TestObject", query, Collections.singleton("score")));
+  }
+
+  @Test
+  public void testIndexOrderWithNearSphere() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereNear("location", new ParseGeoPoint(1, 2))
+        .orderByAscending("score")
+        .build();
+
+    assertNull(OfflineQueryLogic.createIndexOrder(
+        "A", "TestObject", query, Collections.singleton("score")));
+  }
+
+  @Test
+  public void testIndexOrder() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .orderByDescending("_created_at")
+        .addAscendingOrder("objectId")
+        .build();
+
+    OfflineQueryLogic.IndexOrder order = OfflineQueryLogic.createIndexOrder(
+        "A", "TestObject", query, Collections.singleton("createdAt"));
+    assertEquals("(SELECT value FROM ParseObjectIndexes WHERE uuid = A.uuid AND className = ?"
+        + " AND key = ? AND type IN (3, 5)) DESC, A.objectId ASC", order.orderBy);
+    assertEquals(Arrays.asList("TestObject", "createdAt"), order.orderByArgs);
+    assertEquals("NOT EXISTS (SELECT 1 FROM ParseObjectIndexes WHERE uuid = A.uuid"
+        + " AND className = ? AND key = ? AND type NOT IN (3, 5))", order.sortable);
+    assertEquals(Arrays.asList("TestObject", "createdAt"), order.sortableArgs);
+  }
+
+  @Test
+  public void testIndexOrderObjectIdDoesNotNeedIndex() {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .orderByAscending("objectId")
+        .build();
+
+    OfflineQueryLogic.IndexOrder order = OfflineQueryLogic.createIndexOrder(
+        "A", "TestObject", query, Collections.<String>emptySet());
+    assertEquals("A.objectId ASC", order.orderBy);
+    assertEquals("1", order.sortable);
+    assertTrue(order.sortableArgs.isEmpty());
+  }
+
+  //endregion
+
   //region matchesEquals
 
   @Test
@@ -414,6 +808,231 @@ public class OfflineQueryLogicTest {
     assertFalse(matches(logic, query, object));
   }
 
+  //region matchesIn
+
+  @Test
+  public void testMatchesInWithStringsAndOtherValues() throws Exception {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("foo", "$in", Arrays.asList("bar", 5, null))
+        .build();
+    OfflineQueryLogic logic = new OfflineQueryLogic(null);
+
+    ParseObject object = new ParseObject("TestObject");
+    object.put("foo", "bar");
+    assertTrue(matches(logic, query, object));
+    object.put("foo", "baz");
+    assertFalse(matches(logic, query, object));
+    object.put("foo", 5.0);
+    assertTrue(matches(logic, query, object));
+    object.put("foo", Arrays.asList("baz", "bar"));
+    assertTrue(matches(logic, query, object));
+    object.put("foo", new JSONArray(Arrays.asList("baz", "qux")));
+    assertFalse(matches(logic, query, object));
+    object.remove("foo");
+    assertTrue(matches(logic, query, object));
+
+    query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("foo", "$nin", Arrays.asList("bar", "baz"))
+        .build();
+    object.put("foo", "bar");
+    assertFalse(matches(logic, query, object));
+    object.put("foo", "qux");
+    assertTrue(matches(logic, query, object));
+  }
+
+  //endregion
+
+  //region subqueries
+
+  @SuppressWarnings("unchecked")
+  private static OfflineStore mockStoreWithResults(List<ParseObject> results) {
+    OfflineStore store = mock(OfflineStore.class);
+    when(store.findAsync(any(ParseQuery.State.class), any(ParseUser.class), any(ParsePin.class),
+        any(ParseSQLiteDatabase.class))).thenReturn(Task.forResult(results));
+    return store;
+  }
+
+  @Test
+  public void testInQueryMatcher() throws Exception {
+    ParseObject resultA = new ParseObject("Subclass");
+    ParseObject resultB = new ParseObject("Subclass");
+    ParseObject other = new ParseObject("Subclass");
+    OfflineStore store = mockStoreWithResults(Arrays.asList(resultA, resultB));
+    OfflineQueryLogic logic = new OfflineQueryLogic(store);
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("pointer", "$inQuery", new ParseQuery.State.Builder<>("Subclass"))
+        .build();
+    OfflineQueryLogic.ConstraintMatcher<ParseObject> matcher = logic.createMatcher(query, null);
+
+    ParseObject object = new ParseObject("TestObject");
+    object.put("pointer", resultB);
+    assertTrue(ParseTaskUtils.wait(matcher.matchesAsync(object, null)));
+    object.put("pointer", other);
+    assertFalse(ParseTaskUtils.wait(matcher.matchesAsync(object, null)));
+    object.put("pointer", Arrays.asList(other, resultA));
+    assertTrue(ParseTaskUtils.wait(matcher.matchesAsync(object, null)));
+    object.remove("pointer");
+    assertFalse(ParseTaskUtils.wait(matcher.matchesAsync(object, null)));
+
+    // The subquery only runs once for all of the objects.
+    verify(store, times(1)).findAsync(any(ParseQuery.State.class), any(ParseUser.class),
+        any(ParsePin.class), any(ParseSQLiteDatabase.class));
+  }
+
+  @Test
+  public void testSelectMatcher() throws Exception {
+    ParseObject resultA = new ParseObject("Subclass");
+    resultA.put("name", "bar");
+    ParseObject resultB = new ParseObject("Subclass");
+    resultB.put("name", 5);
+    ParseObject resultC = new ParseObject("Subclass");
+    resultC.put("name", Arrays.asList("baz", "qux"));
+    OfflineStore store = mockStoreWithResults(Arrays.asList(resultA, resultB, resultC));
+    OfflineQueryLogic logic = new OfflineQueryLogic(store);
+
+    Map<String, Object> select = new HashMap<>();
+    select.put("query", new ParseQuery.State.Builder<>("Subclass"));
+    select.put("key", "name");
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("foo", "$select", select)
+        .build();
+    OfflineQueryLogic.ConstraintMatcher<ParseObject> matcher = logic.createMatcher(query, null);
+
+    ParseObject object = new ParseObject("TestObject");
+    object.put("foo", "bar");
+    assertTrue(ParseTaskUtils.wait(matcher.matchesAsync(object, null)));
+    object.put("foo", 5.0);
+    assertTrue(ParseTaskUtils.wait(matcher.matchesAsync(object, null)));
+    object.put("foo", "qux");
+    assertTrue(ParseTaskUtils.wait(matcher.matchesAsync(object, null)));
+    object.put("foo", "nope");
+    assertFalse(ParseTaskUtils.wait(matcher.matchesAsync(object, null)));
+    object.remove("foo");
+    assertFalse(ParseTaskUtils.wait(matcher.matchesAsync(object, null)));
+
+    query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("foo", "$dontSelect", select)
+        .build();
+    object.put("foo", "bar");
+    assertFalse(matches(logic, query, object));
+    object.put("foo", "nope");
+    assertTrue(matches(logic, query, object));
+  }
+
+  //endregion
+
+  //region matchesRegex
+
+  @Test
+  public void testMatchesRegex() throws Exception {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("foo", "$regex", "^b.r$")
+        .addCondition("foo", "$options", "i")
+        .build();
+    OfflineQueryLogic logic = new OfflineQueryLogic(null);
+
+    ParseObject object = new ParseObject("TestObject");
+    object.put("foo", "BAR");
+    assertTrue(matches(logic, query, object));
+    object.put("foo", "bars");
+    assertFalse(matches(logic, query, object));
+    object.remove("foo");
+    assertFalse(matches(logic, query, object));
+
+    // The same query again reuses the compiled pattern.
+    query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("foo", "$regex", "^b.r$")
+        .addCondition("foo", "$options", "i")
+        .build();
+    object.put("foo", "bIr");
+    assertTrue(matches(logic, query, object));
+  }
+
+  @Test
+  public void testMatchesRegexInvalidOptions() throws Exception {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("foo", "$regex", "bar")
+        .addCondition("foo", "$options", "q")
+        .build();
+    OfflineQueryLogic logic = new OfflineQueryLogic(null);
+
+    // Invalid options only fail once there is a value to match.
+    ParseObject object = new ParseObject("TestObject");
+    assertFalse(matches(logic, query, object));
+
+    object.put("foo", "bar");
+    thrown.expect(ParseException.class);
+    thrown.expect(hasParseErrorCode(ParseException.INVALID_QUERY));
+    thrown.expectMessage("Invalid regex options: q");
+    matches(logic, query, object);
+  }
+
+  //endregion
+
+  //region compiled constraints
+
+  @Test
+  public void testCachesConstraintsWithEqualValues() throws Exception {
+    OfflineQueryLogic.clearCompiledConstraints();
+    OfflineQueryLogic logic = new OfflineQueryLogic(null);
+    ParseObject object = new ParseObject("TestObject");
+    object.put("foo", "bar");
+
+    for (int i = 0; i < 2; i++) {
+      ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+          .addCondition("foo", "$in", Arrays.asList("bar", "baz"))
+          .build();
+      assertTrue(matches(logic, query, object));
+    }
+    assertEquals(1, OfflineQueryLogic.getCompiledConstraintCount());
+  }
+
+  @Test
+  public void testDoesNotCacheConstraintsWithoutEqualValues() throws Exception {
+    OfflineQueryLogic.clearCompiledConstraints();
+    OfflineQueryLogic logic = new OfflineQueryLogic(null);
+    ParseObject object = new ParseObject("TestObject");
+    object.put("location", new ParseGeoPoint(3, 4));
+
+    // Equal geo points are different keys, so each of these would stay in the cache for good.
+    for (int i = 0; i < 2; i++) {
+      ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+          .addCondition("location", "$in", Arrays.asList("bar", new ParseGeoPoint(1, 2)))
+          .addCondition("location", "$ne", new Date(i))
+          .build();
+      assertFalse(matches(logic, query, object));
+    }
+    assertEquals(0, OfflineQueryLogic.getCompiledConstraintCount());
+  }
+
+  //endregion
+
+  //region matchesFullText
+
+  @Test
+  public void testMatchesFullText() throws Exception {
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .whereFullText("body", "quick FOX")
+        .build();
+    OfflineQueryLogic logic = new OfflineQueryLogic(null);
+
+    ParseObject object = new ParseObject("TestObject");
+    object.put("body", "The fox was quick.");
+    assertTrue(matches(logic, query, object));
+    // Words have to match whole.
+    object.put("body", "The foxes were quick.");
+    assertFalse(matches(logic, query, object));
+    object.put("body", "A quick dog");
+    assertFalse(matches(logic, query, object));
+    object.put("body", 5);
+    assertFalse(matches(logic, query, object));
+    object.remove("body");
+    assertFalse(matches(logic, query, object));
+  }
+
+  //endregion
+
   //region matchesWithin
 
   @Test
@@ -825,8 +1444,8 @@ public class OfflineQueryLogicTest {
   @Test
   public void testFetchIncludesParseObject() throws ParseException {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     ParseSQLiteDatabase db = mock(ParseSQLiteDatabase.class);
 
@@ -839,16 +1458,16 @@ public class OfflineQueryLogicTest {
     object.put("foo", unfetchedObject);
 
     ParseTaskUtils.wait(OfflineQueryLogic.fetchIncludesAsync(store, object, query, db));
-    verify(store).fetchLocallyAsync(object, db);
-    verify(store).fetchLocallyAsync(unfetchedObject, db);
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(object), db);
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(unfetchedObject), db);
     verifyNoMoreInteractions(store);
   }
 
   @Test
   public void testFetchIncludesCollection() throws ParseException {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     ParseSQLiteDatabase db = mock(ParseSQLiteDatabase.class);
 
@@ -863,16 +1482,16 @@ public class OfflineQueryLogicTest {
     when(object.get("foo")).thenReturn(objects);
 
     ParseTaskUtils.wait(OfflineQueryLogic.fetchIncludesAsync(store, object, query, db));
-    verify(store).fetchLocallyAsync(object, db);
-    verify(store).fetchLocallyAsync(unfetchedObject, db);
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(object), db);
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(unfetchedObject), db);
     verifyNoMoreInteractions(store);
   }
 
   @Test
   public void testFetchIncludesJSONArray() throws ParseException {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     ParseSQLiteDatabase db = mock(ParseSQLiteDatabase.class);
 
@@ -887,16 +1506,16 @@ public class OfflineQueryLogicTest {
     when(object.get("foo")).thenReturn(objects);
 
     ParseTaskUtils.wait(OfflineQueryLogic.fetchIncludesAsync(store, object, query, db));
-    verify(store).fetchLocallyAsync(object, db);
-    verify(store).fetchLocallyAsync(unfetchedObject, db);
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(object), db);
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(unfetchedObject), db);
     verifyNoMoreInteractions(store);
   }
 
   @Test
   public void testFetchIncludesMap() throws ParseException {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     ParseSQLiteDatabase db = mock(ParseSQLiteDatabase.class);
 
@@ -911,16 +1530,16 @@ public class OfflineQueryLogicTest {
     when(object.get("foo")).thenReturn(objects);
 
     ParseTaskUtils.wait(OfflineQueryLogic.fetchIncludesAsync(store, object, query, db));
-    verify(store).fetchLocallyAsync(object, db);
-    verify(store).fetchLocallyAsync(unfetchedObject, db);
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(object), db);
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(unfetchedObject), db);
     verifyNoMoreInteractions(store);
   }
 
   @Test
   public void testFetchIncludesJSONObject() throws Exception {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     ParseSQLiteDatabase db = mock(ParseSQLiteDatabase.class);
 
@@ -935,16 +1554,16 @@ public class OfflineQueryLogicTest {
     when(object.get("foo")).thenReturn(objects);
 
     ParseTaskUtils.wait(OfflineQueryLogic.fetchIncludesAsync(store, object, query, db));
-    verify(store).fetchLocallyAsync(object, db);
-    verify(store).fetchLocallyAsync(unfetchedObject, db);
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(object), db);
+    verify(store).fetchAllLocallyAsync(Collections.singletonList(unfetchedObject), db);
     verifyNoMoreInteractions(store);
   }
 
   @Test
   public void testFetchIncludesNull() throws ParseException {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
         .include("foo")
@@ -956,14 +1575,14 @@ public class OfflineQueryLogicTest {
     ParseTaskUtils.wait(OfflineQueryLogic.fetchIncludesAsync(store, object, query, null));
     // only itself
     verify(store, times(1))
-        .fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class));
+        .fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class));
   }
 
   @Test
   public void testFetchIncludesNonParseObject() throws ParseException {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
         .include("foo")
@@ -976,14 +1595,14 @@ public class OfflineQueryLogicTest {
     ParseTaskUtils.wait(OfflineQueryLogic.fetchIncludesAsync(store, object, query, null));
     // only itself
     verify(store, times(1))
-        .fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class));
+        .fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class));
   }
 
   @Test
   public void testFetchIncludesDoesNotExist() throws ParseException {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
         .include("foo")
@@ -994,14 +1613,14 @@ public class OfflineQueryLogicTest {
     ParseTaskUtils.wait(OfflineQueryLogic.fetchIncludesAsync(store, object, query, null));
     // only itself
     verify(store, times(1))
-        .fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class));
+        .fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class));
   }
 
   @Test
   public void testFetchIncludesNestedNull() throws Exception {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
         .include("foo.bar")
@@ -1013,14 +1632,14 @@ public class OfflineQueryLogicTest {
     ParseTaskUtils.wait(OfflineQueryLogic.fetchIncludesAsync(store, object, query, null));
     // only itself
     verify(store, times(1))
-        .fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class));
+        .fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class));
   }
 
   @Test
   public void testFetchIncludesNestedNonParseObject() throws Exception {
     OfflineStore store = mock(OfflineStore.class);
-    when(store.fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class)))
-        .thenReturn(Task.<ParseObject>forResult(null));
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
 
     ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
         .include("foo.bar")
@@ -1033,7 +1652,36 @@ public class OfflineQueryLogicTest {
     ParseTaskUtils.wait(OfflineQueryLogic.fetchIncludesAsync(store, object, query, null));
     // only itself
     verify(store, times(1))
-        .fetchLocallyAsync(any(ParseObject.class), any(ParseSQLiteDatabase.class));
+        .fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class));
+  }
+
+  @Test
+  public void testFetchIncludesOfResultsTogether() throws ParseException {
+    OfflineStore store = mock(OfflineStore.class);
+    when(store.fetchAllLocallyAsync(anyListOf(ParseObject.class), any(ParseSQLiteDatabase.class)))
+        .thenReturn(Task.<Void>forResult(null));
+
+    ParseSQLiteDatabase db = mock(ParseSQLiteDatabase.class);
+
+    ParseQuery.State<ParseObject> query = new ParseQuery.State.Builder<>("TestObject")
+        .include("foo")
+        .build();
+
+    ParseObject author = new ParseObject("Author");
+    ParseObject otherAuthor = new ParseObject("Author");
+    ParseObject first = new ParseObject("TestObject");
+    first.put("foo", author);
+    ParseObject second = new ParseObject("TestObject");
+    second.put("foo", author);
+    ParseObject third = new ParseObject("TestObject");
+    third.put("foo", otherAuthor);
+
+    ParseTaskUtils.wait(OfflineQueryLogic.fetchIncludesAsync(
+        store, Arrays.asList(first, second, third), query, db));
+    verify(store).fetchAllLocallyAsync(Arrays.asList(first, second, third), db);
+    // Objects included by more than one result are only fetched once.
+    verify(store).fetchAllLocallyAsync(Arrays.asList(author, otherAuthor), db);
+    verifyNoMoreInteractions(store);
   }
 
   //endregion
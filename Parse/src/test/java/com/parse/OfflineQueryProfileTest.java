@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class OfflineQueryProfileTest {
+
+  @Test
+  public void testAccumulates() {
+    OfflineQueryProfile profile = new OfflineQueryProfile("TestObject", "stuff");
+    profile.addRowsScanned(100);
+    profile.addRowsScanned(50);
+    profile.addRowsDecoded(20);
+    profile.addRowsMatched(10);
+    profile.setResultCount(5);
+    profile.addMatchNanos(1000);
+    profile.addMatchNanos(500);
+    profile.addStatement("SELECT 1");
+    profile.addStatement("SELECT 2");
+
+    assertEquals(150, profile.getRowsScanned());
+    assertEquals(20, profile.getRowsDecoded());
+    assertEquals(10, profile.getRowsMatched());
+    assertEquals(5, profile.getResultCount());
+    assertEquals(1500, profile.getMatchNanos());
+    assertEquals(Arrays.asList("SELECT 1", "SELECT 2"), profile.getStatements());
+  }
+
+  @Test
+  public void testToString() {
+    OfflineQueryProfile profile = new OfflineQueryProfile("TestObject", "stuff");
+    profile.addRowsScanned(3);
+    profile.addPlan("SCAN TABLE ParseObjects AS A");
+    profile.addStatement("SELECT 1");
+    profile.setTotalNanos(2500000);
+
+    String report = profile.toString();
+    assertTrue(report.contains("TestObject in pin stuff"));
+    assertTrue(report.contains("3 scanned"));
+    assertTrue(report.contains("2.500 ms"));
+    assertTrue(report.contains("SCAN TABLE ParseObjects AS A"));
+    assertTrue(report.contains("statements (1)"));
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OfflineSQLiteOpenHelperTest {
+
+  private SQLiteDatabase db;
+  private OfflineSQLiteOpenHelper helper;
+
+  @Before
+  public void setUp() {
+    Map<String, Set<String>> keys = new HashMap<>();
+    keys.put("TestObject", Collections.singleton("foo"));
+    helper = new OfflineSQLiteOpenHelper(RuntimeEnvironment.application, new OfflineIndexes(keys));
+    db = SQLiteDatabase.create(null);
+    helper.onCreate(db);
+  }
+
+  @After
+  public void tearDown() {
+    db.close();
+  }
+
+  private long countIndexedKeys(SQLiteDatabase db) {
+    return DatabaseUtils.queryNumEntries(db, OfflineSQLiteOpenHelper.TABLE_INDEXED_KEYS);
+  }
+
+  @Test
+  public void testSyncsIndexesOnlyOnFirstOpen() {
+    helper.onOpen(db);
+    assertEquals(1, countIndexedKeys(db));
+
+    // A later open doesn't look at the index tables again.
+    db.execSQL("DELETE FROM " + OfflineSQLiteOpenHelper.TABLE_INDEXED_KEYS);
+    helper.onOpen(db);
+    assertEquals(0, countIndexedKeys(db));
+  }
+
+  @Test
+  public void testSyncsIndexesAgainAfterCreate() {
+    helper.onOpen(db);
+
+    SQLiteDatabase recreated = SQLiteDatabase.create(null);
+    try {
+      helper.onCreate(recreated);
+      helper.onOpen(recreated);
+      assertEquals(1, countIndexedKeys(recreated));
+    } finally {
+      recreated.close();
+    }
+  }
+}
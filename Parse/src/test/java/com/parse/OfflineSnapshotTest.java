@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OfflineSnapshotTest {
+
+  @Rule
+  public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Rule
+  public ExpectedException thrown = ExpectedException.none();
+
+  private SQLiteDatabase source;
+  private SQLiteDatabase target;
+
+  private static void createTables(SQLiteDatabase db) {
+    db.execSQL("CREATE TABLE ParseObjects (uuid TEXT PRIMARY KEY, className TEXT NOT NULL,"
+        + " objectId TEXT, json TEXT, data BLOB, isDeletingEventually INTEGER DEFAULT 0,"
+        + " UNIQUE(className, objectId))");
+    db.execSQL("CREATE TABLE Dependencies (key TEXT NOT NULL, uuid TEXT NOT NULL,"
+        + " PRIMARY KEY(key, uuid))");
+    db.execSQL("CREATE TABLE ParseObjectReferences (uuid TEXT NOT NULL,"
+        + " referencedUuid TEXT NOT NULL, PRIMARY KEY(uuid, referencedUuid))");
+    db.execSQL("CREATE TABLE ParsePinSyncedObjects (key TEXT NOT NULL, uuid TEXT NOT NULL,"
+        + " PRIMARY KEY(key, uuid))");
+    db.execSQL("CREATE TABLE ParsePinSyncWatermarks (key TEXT NOT NULL, syncKey TEXT NOT NULL,"
+        + " updatedAt INTEGER, objectId TEXT, PRIMARY KEY(key, syncKey))");
+  }
+
+  private static void insertObject(SQLiteDatabase db, String uuid, String className,
+      String objectId, String json) {
+    db.execSQL("INSERT INTO ParseObjects (uuid, className, objectId, json) VALUES (?, ?, ?, ?)",
+        new Object[] { uuid, className, objectId, json });
+  }
+
+  private static void insertDependency(SQLiteDatabase db, String key, String uuid) {
+    db.execSQL("INSERT INTO Dependencies (key, uuid) VALUES (?, ?)", new Object[] { key, uuid });
+  }
+
+  private static long count(SQLiteDatabase db, String table) {
+    return DatabaseUtils.queryNumEntries(db, table);
+  }
+
+  @Before
+  public void setUp() {
+    source = SQLiteDatabase.create(null);
+    createTables(source);
+    insertObject(source, "pin1", "_Pin", null, "{\"_name\":\"stuff\"}");
+    insertObject(source, "obj1", "Foo", "a", "{\"x\":1}");
+    insertDependency(source, "pin1", "pin1");
+    insertDependency(source, "pin1", "obj1");
+    insertObject(source, "pin2", "_Pin", null, "{\"_name\":\"_currentUser\"}");
+    insertObject(source, "user1", "_User", "u", "{}");
+    insertDependency(source, "pin2", "pin2");
+    insertDependency(source, "pin2", "user1");
+
+    target = SQLiteDatabase.create(null);
+    createTables(target);
+  }
+
+  @After
+  public void tearDown() {
+    source.close();
+    target.close();
+  }
+
+  @Test
+  public void testExportAndImport() throws Exception {
+    File file = new File(temporaryFolder.getRoot(), "snapshot");
+
+    // The current user's pin describes this device, so it's left out.
+    assertEquals(2, OfflineSnapshot.export(source, file));
+    assertTrue(file.exists());
+
+    assertEquals(2, OfflineSnapshot.importInto(target, new OfflineIndexes(), file));
+    assertEquals(2, count(target, "ParseObjects"));
+    assertEquals(2, count(target, "Dependencies"));
+    assertEquals("{\"x\":1}", DatabaseUtils.stringForQuery(target,
+        "SELECT json FROM ParseObjects WHERE className = 'Foo' AND objectId = 'a'", null));
+  }
+
+  @Test
+  public void testImportRecordsReferences() throws Exception {
+    insertObject(source, "obj2", "Foo", null,
+        "{\"child\":{\"__type\":\"OfflineObject\",\"uuid\":\"obj1\"}}");
+    insertDependency(source, "pin1", "obj2");
+    File file = new File(temporaryFolder.getRoot(), "snapshot");
+    OfflineSnapshot.export(source, file);
+
+    OfflineSnapshot.importInto(target, new OfflineIndexes(), file);
+    assertEquals(1, count(target, "ParseObjectReferences"));
+    assertEquals("obj1", DatabaseUtils.stringForQuery(target,
+        "SELECT referencedUuid FROM ParseObjectReferences WHERE uuid = 'obj2'", null));
+  }
+
+  @Test
+  public void testExportAndImportSyncs() throws Exception {
+    source.execSQL("INSERT INTO ParsePinSyncedObjects (key, uuid) VALUES ('pin1', 'obj1')");
+    source.execSQL("INSERT INTO ParsePinSyncWatermarks (key, syncKey, updatedAt, objectId)"
+        + " VALUES ('pin1', 'Foo', 1000, 'a')");
+    // Syncs of the current user's pin stay behind with it.
+    source.execSQL("INSERT INTO ParsePinSyncedObjects (key, uuid) VALUES ('pin2', 'user1')");
+    File file = new File(temporaryFolder.getRoot(), "snapshot");
+    OfflineSnapshot.export(source, file);
+
+    OfflineSnapshot.importInto(target, new OfflineIndexes(), file);
+    assertEquals(1, count(target, "ParsePinSyncedObjects"));
+    assertEquals("obj1", DatabaseUtils.stringForQuery(target,
+        "SELECT uuid FROM ParsePinSyncedObjects WHERE key = 'pin1'", null));
+    assertEquals(1000, DatabaseUtils.longForQuery(target,
+        "SELECT updatedAt FROM ParsePinSyncWatermarks WHERE key = 'pin1' AND syncKey = 'Foo'",
+        null));
+  }
+
+  @Test
+  public void testExportClearsDeletingEventually() throws Exception {
+    insertObject(source, "obj2", "Foo", "b", "{\"__isDeletingEventually\":2}");
+    insertDependency(source, "pin1", "obj2");
+    source.execSQL("UPDATE ParseObjects SET isDeletingEventually = 2 WHERE uuid = 'obj2'");
+    File file = new File(temporaryFolder.getRoot(), "snapshot");
+
+    OfflineSnapshot.export(source, file);
+    OfflineSnapshot.importInto(target, new OfflineIndexes(), file);
+    assertEquals(0, DatabaseUtils.longForQuery(target,
+        "SELECT isDeletingEventually FROM ParseObjects WHERE uuid = 'obj2'", null));
+    JSONObject json = new JSONObject(DatabaseUtils.stringForQuery(target,
+        "SELECT json FROM ParseObjects WHERE uuid = 'obj2'", null));
+    assertEquals(0, json.getInt("__isDeletingEventually"));
+  }
+
+  @Test
+  public void testImportClearsDeletingEventually() throws Exception {
+    // A snapshot that was written before exports cleared it.
+    File file = new File(temporaryFolder.getRoot(), "snapshot");
+    SQLiteDatabase snapshot = SQLiteDatabase.openOrCreateDatabase(file, null);
+    try {
+      createTables(snapshot);
+      insertObject(snapshot, "pin1", "_Pin", null, "{\"_name\":\"stuff\"}");
+      insertObject(snapshot, "obj1", "Foo", "a", "{\"isDeletingEventually\":1}");
+      insertDependency(snapshot, "pin1", "pin1");
+      insertDependency(snapshot, "pin1", "obj1");
+      snapshot.execSQL("UPDATE ParseObjects SET isDeletingEventually = 1 WHERE uuid = 'obj1'");
+      snapshot.setVersion(1);
+    } finally {
+      snapshot.close();
+    }
+
+    OfflineSnapshot.importInto(target, new OfflineIndexes(), file);
+    assertEquals(0, DatabaseUtils.longForQuery(target,
+        "SELECT isDeletingEventually FROM ParseObjects WHERE uuid = 'obj1'", null));
+    JSONObject json = new JSONObject(DatabaseUtils.stringForQuery(target,
+        "SELECT json FROM ParseObjects WHERE uuid = 'obj1'", null));
+    assertEquals(0, json.getInt("__isDeletingEventually"));
+    assertFalse(json.has("isDeletingEventually"));
+  }
+
+  @Test
+  public void testImportExistingPin() throws Exception {
+    File file = new File(temporaryFolder.getRoot(), "snapshot");
+    OfflineSnapshot.export(source, file);
+    insertObject(target, "pin3", "_Pin", null, "{\"_name\":\"stuff\"}");
+
+    thrown.expect(IllegalStateException.class);
+    thrown.expectMessage("stuff");
+    OfflineSnapshot.importInto(target, new OfflineIndexes(), file);
+  }
+}
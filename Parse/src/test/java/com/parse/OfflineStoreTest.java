@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import android.database.Cursor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+// Runs against a real database.
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class OfflineStoreTest {
+
+  private static final String PIN_NAME = "test";
+
+  private OfflineSQLiteOpenHelper helper;
+  private OfflineStore store;
+
+  @Before
+  public void setUp() {
+    ParseObject.registerParseSubclasses();
+    helper = new OfflineSQLiteOpenHelper(RuntimeEnvironment.application);
+    store = new OfflineStore(helper);
+    Parse.setLocalDatastore(store);
+  }
+
+  @After
+  public void tearDown() {
+    Parse.setLocalDatastore(null);
+    store.close();
+    store.clearDatabase(RuntimeEnvironment.application);
+    ParseObject.unregisterParseSubclasses();
+    ParseCorePlugins.getInstance().reset();
+  }
+
+  /**
+   * Pins {@code count} objects with {@code n} from 0, in shuffled order so that the rows aren't
+   * already sorted by it.
+   */
+  private List<ParseObject> pinNumbered(int count) throws Exception {
+    List<ParseObject> objects = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      ParseObject object = ParseObject.create("TestObject");
+      object.put("n", i);
+      objects.add(object);
+    }
+    List<ParseObject> shuffled = new ArrayList<>(objects);
+    Collections.shuffle(shuffled);
+    ParseTaskUtils.wait(store.pinAllObjectsAsync(PIN_NAME, shuffled, false));
+    return objects;
+  }
+
+  private static List<Integer> numbers(List<ParseObject> objects) {
+    List<Integer> numbers = new ArrayList<>(objects.size());
+    for (ParseObject object : objects) {
+      numbers.add(object.getInt("n"));
+    }
+    return numbers;
+  }
+
+  private static List<Integer> range(int from, int to) {
+    List<Integer> numbers = new ArrayList<>();
+    for (int i = from; i < to; i++) {
+      numbers.add(i);
+    }
+    return numbers;
+  }
+
+  private List<ParseObject> find(ParseQuery.State.Builder<ParseObject> builder) throws Exception {
+    return ParseTaskUtils.wait(store.findFromPinAsync(PIN_NAME, builder.build(), null));
+  }
+
+  private void pinWithoutChildren(String name, ParseObject... objects) throws Exception {
+    ParseTaskUtils.wait(store.pinAllObjectsAsync(name, Arrays.asList(objects), false));
+  }
+
+  private long countObjectRows() throws Exception {
+    return countRows(OfflineSQLiteOpenHelper.TABLE_OBJECTS);
+  }
+
+  private long countRows(String table) throws Exception {
+    ParseSQLiteDatabase db = ParseTaskUtils.wait(helper.getReadableDatabaseAsync());
+    try {
+      Cursor cursor = ParseTaskUtils.wait(db.rawQueryAsync("SELECT COUNT(*) FROM " + table, null));
+      try {
+        cursor.moveToFirst();
+        return cursor.getLong(0);
+      } finally {
+        cursor.close();
+      }
+    } finally {
+      ParseTaskUtils.wait(db.closeAsync());
+    }
+  }
+
+  /**
+   * Waits for the collections started by earlier unpins, and then collects whatever they left.
+   */
+  private void collectOrphans() throws Exception {
+    ParseTaskUtils.wait(store.collectOrphansAsync(Long.MAX_VALUE));
+  }
+
+  //region Paging
+
+  @Test
+  public void testFindAcrossPageBoundaries() throws Exception {
+    pinNumbered(250);
+    store.simulateReboot();
+
+    List<ParseObject> results = find(new ParseQuery.State.Builder<>("TestObject")
+        .orderByAscending("n"));
+    assertEquals(range(0, 250), numbers(results));
+  }
+
+  @Test
+  public void testFindWithConstraintAcrossPageBoundaries() throws Exception {
+    pinNumbered(250);
+    store.simulateReboot();
+
+    // Only some of the rows of every page match.
+    List<ParseObject> results = find(new ParseQuery.State.Builder<>("TestObject")
+        .addCondition("n", "$gte", 90)
+        .orderByAscending("n"));
+    assertEquals(range(90, 250), numbers(results));
+  }
+
+  @Test
+  public void testSkipAndLimitAcrossPages() throws Exception {
+    pinNumbered(250);
+    store.simulateReboot();
+
+    List<ParseObject> results = find(new ParseQuery.State.Builder<>("TestObject")
+        .orderByAscending("n")
+        .setSkip(95)
+        .setLimit(110));
+    assertEquals(range(95, 205), numbers(results));
+
+    // A skip past the last page leaves nothing.
+    results = find(new ParseQuery.State.Builder<>("TestObject")
+        .orderByAscending("n")
+        .setSkip(250)
+        .setLimit(10));
+    assertEquals(0, results.size());
+  }
+
+  @Test
+  public void testStopsReadingPagesOnceLimitIsReached() throws Exception {
+    pinNumbered(250);
+    store.simulateReboot();
+
+    // Without an order, any 10 objects will do, so the first page is all that's read.
+    ParseQuery.State<ParseObject> state = new ParseQuery.State.Builder<>("TestObject")
+        .setLimit(10)
+        .build();
+    OfflineQueryProfile profile =
+        ParseTaskUtils.wait(store.profileFromPinAsync(PIN_NAME, state, null));
+    assertEquals(10, profile.getResultCount());
+    assertEquals(100, profile.getRowsScanned());
+
+    // Without a limit, every page is read.
+    state = new ParseQuery.State.Builder<>("TestObject").build();
+    profile = ParseTaskUtils.wait(store.profileFromPinAsync(PIN_NAME, state, null));
+    assertEquals(250, profile.getResultCount());
+    assertEquals(250, profile.getRowsScanned());
+  }
+
+  //endregion
+
+  //region Orphan Collection
+
+  @Test
+  public void testUnpinCollectsUnsavedChildren() throws Exception {
+    ParseObject child = ParseObject.create("TestObject");
+    ParseObject parent = ParseObject.create("TestObject");
+    parent.put("child", child);
+    // Without its children, only a placeholder row is stored for the child.
+    pinWithoutChildren(PIN_NAME, parent);
+
+    ParseTaskUtils.wait(store.unpinAllObjectsAsync(PIN_NAME));
+    store.simulateReboot();
+    collectOrphans();
+    assertEquals(0, countObjectRows());
+  }
+
+  @Test
+  public void testCollectionKeepsObjectsInMemory() throws Exception {
+    ParseObject child = ParseObject.create("TestObject");
+    ParseObject parent = ParseObject.create("TestObject");
+    parent.put("child", child);
+    pinWithoutChildren(PIN_NAME, parent);
+
+    ParseTaskUtils.wait(store.unpinAllObjectsAsync(PIN_NAME));
+    collectOrphans();
+    // The child may be about to be pinned again.
+    assertEquals(1, countObjectRows());
+
+    // Once it's gone from memory, the next collection deletes it.
+    store.simulateReboot();
+    collectOrphans();
+    assertEquals(0, countObjectRows());
+  }
+
+  @Test
+  public void testCollectionKeepsUnsavedChildrenOfOtherObjects() throws Exception {
+    ParseObject child = ParseObject.create("TestObject");
+    ParseObject parent = ParseObject.create("TestObject");
+    parent.put("child", child);
+    ParseObject otherParent = ParseObject.create("TestObject");
+    otherParent.put("child", child);
+    ParseObject unrelated = ParseObject.create("TestObject");
+    pinWithoutChildren(PIN_NAME, parent);
+    pinWithoutChildren("other", otherParent, unrelated);
+
+    // The only row left that points to the child is the parent's.
+    ParseTaskUtils.wait(store.unpinAllObjectsAsync("other"));
+    store.simulateReboot();
+    collectOrphans();
+
+    store.simulateReboot();
+    List<ParseObject> results = find(new ParseQuery.State.Builder<>("TestObject"));
+    assertEquals(1, results.size());
+    assertNotNull(results.get(0).getParseObject("child"));
+  }
+
+  @Test
+  public void testReferencesAreDeletedWithTheirObjects() throws Exception {
+    ParseObject parent = ParseObject.create("TestObject");
+    parent.put("child", ParseObject.create("TestObject"));
+    parent.put("children", Arrays.asList(ParseObject.create("TestObject")));
+    pinWithoutChildren(PIN_NAME, parent);
+    assertEquals(2, countRows(OfflineSQLiteOpenHelper.TABLE_REFERENCES));
+
+    ParseTaskUtils.wait(store.unpinAllObjectsAsync(PIN_NAME));
+    assertEquals(0, countRows(OfflineSQLiteOpenHelper.TABLE_REFERENCES));
+  }
+
+  @Test
+  public void testCollectionChecksTheTimeAfterEveryCandidate() throws Exception {
+    ParseObject[] parents = new ParseObject[3];
+    for (int i = 0; i < parents.length; i++) {
+      parents[i] = ParseObject.create("TestObject");
+      parents[i].put("child", ParseObject.create("TestObject"));
+    }
+    pinWithoutChildren(PIN_NAME, parents);
+    ParseTaskUtils.wait(store.unpinAllObjectsAsync(PIN_NAME));
+    store.simulateReboot();
+
+    // Without any time, a collection only gets to look at one orphan.
+    assertEquals(1, (int) ParseTaskUtils.wait(store.collectOrphansAsync(0)));
+    assertEquals(2, countObjectRows());
+
+    // The next one picks up where it left off.
+    collectOrphans();
+    assertEquals(0, countObjectRows());
+  }
+
+  //endregion
+
+  //region Sync
+
+  private static ParseObject createSynced(String objectId) {
+    ParseObject object = ParseObject.create("TestObject");
+    object.setObjectId(objectId);
+    return object;
+  }
+
+  @Test
+  public void testMergeSyncedObjectsOnlyAddsNewObjects() throws Exception {
+    ParseObject a = createSynced("a");
+    ParseObject b = createSynced("b");
+    ParseObject c = createSynced("c");
+    ParseTaskUtils.wait(store.mergeSyncedObjectsAsync(
+        PIN_NAME, "TestObject", "TestObject", Arrays.asList(a, b), new Date(1), "b"));
+    // b was updated again since the last page.
+    ParseTaskUtils.wait(store.mergeSyncedObjectsAsync(
+        PIN_NAME, "TestObject", "TestObject", Arrays.asList(b, c), new Date(2), "c"));
+
+    store.simulateReboot();
+    ParsePin pin = ParseTaskUtils.wait(store.getParsePinAsync(PIN_NAME));
+    List<String> objectIds = new ArrayList<>();
+    for (ParseObject object : pin.getObjects()) {
+      objectIds.add(object.getObjectId());
+    }
+    assertEquals(Arrays.asList("a", "b", "c"), objectIds);
+    assertEquals(new Date(2), pin.getSyncedUpdatedAt("TestObject"));
+    assertEquals("c", pin.getSyncedObjectId("TestObject"));
+  }
+
+  @Test
+  public void testMergeSyncedObjectsKeepsWatermarksPerSyncKey() throws Exception {
+    ParseTaskUtils.wait(store.mergeSyncedObjectsAsync(PIN_NAME, "TestObject", "TestObject.foo",
+        Collections.singletonList(createSynced("a")), new Date(1), "a"));
+    ParseTaskUtils.wait(store.mergeSyncedObjectsAsync(PIN_NAME, "TestObject", "TestObject.bar",
+        Collections.singletonList(createSynced("b")), new Date(2), "b"));
+
+    store.simulateReboot();
+    ParsePin pin = ParseTaskUtils.wait(store.getParsePinAsync(PIN_NAME));
+    assertEquals(new Date(1), pin.getSyncedUpdatedAt("TestObject.foo"));
+    assertEquals("a", pin.getSyncedObjectId("TestObject.foo"));
+    assertEquals(new Date(2), pin.getSyncedUpdatedAt("TestObject.bar"));
+    assertEquals("b", pin.getSyncedObjectId("TestObject.bar"));
+    assertNull(pin.getSyncedUpdatedAt("TestObject"));
+    assertEquals(2, pin.getObjects().size());
+  }
+
+  private String getPinJson() throws Exception {
+    ParseSQLiteDatabase db = ParseTaskUtils.wait(helper.getReadableDatabaseAsync());
+    try {
+      Cursor cursor = ParseTaskUtils.wait(db.rawQueryAsync("SELECT json FROM "
+          + OfflineSQLiteOpenHelper.TABLE_OBJECTS + " WHERE className = '_Pin'", null));
+      try {
+        cursor.moveToFirst();
+        return cursor.getString(0);
+      } finally {
+        cursor.close();
+      }
+    } finally {
+      ParseTaskUtils.wait(db.closeAsync());
+    }
+  }
+
+  @Test
+  public void testMergeSyncedObjectsDoesNotStorePinAgain() throws Exception {
+    ParseTaskUtils.wait(store.mergeSyncedObjectsAsync(PIN_NAME, "TestObject", "TestObject",
+        Arrays.asList(createSynced("a"), createSynced("b")), new Date(1), "b"));
+    String json = getPinJson();
+    ParseTaskUtils.wait(store.mergeSyncedObjectsAsync(PIN_NAME, "TestObject", "TestObject",
+        Collections.singletonList(createSynced("c")), new Date(2), "c"));
+
+    // Each page only added rows of its own.
+    assertEquals(json, getPinJson());
+    assertEquals(3, countRows(OfflineSQLiteOpenHelper.TABLE_SYNCED_OBJECTS));
+    assertEquals(1, countRows(OfflineSQLiteOpenHelper.TABLE_SYNC_WATERMARKS));
+  }
+
+  @Test
+  public void testPinningKeepsSyncedObjects() throws Exception {
+    ParseTaskUtils.wait(store.mergeSyncedObjectsAsync(PIN_NAME, "TestObject", "TestObject",
+        Arrays.asList(createSynced("a"), createSynced("b")), new Date(1), "b"));
+    pinWithoutChildren(PIN_NAME, createSynced("d"));
+
+    // Storing the whole pin moved what the sync added into it.
+    assertEquals(0, countRows(OfflineSQLiteOpenHelper.TABLE_SYNCED_OBJECTS));
+    assertEquals(0, countRows(OfflineSQLiteOpenHelper.TABLE_SYNC_WATERMARKS));
+
+    store.simulateReboot();
+    ParsePin pin = ParseTaskUtils.wait(store.getParsePinAsync(PIN_NAME));
+    List<String> objectIds = new ArrayList<>();
+    for (ParseObject object : pin.getObjects()) {
+      objectIds.add(object.getObjectId());
+    }
+    assertEquals(Arrays.asList("a", "b", "d"), objectIds);
+    assertEquals(new Date(1), pin.getSyncedUpdatedAt("TestObject"));
+    assertEquals("b", pin.getSyncedObjectId("TestObject"));
+  }
+
+  //endregion
+}
@@ -0,0 +1,342 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import bolts.Task;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyCollectionOf;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// Runs the callbacks that are posted to the main thread.
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ParseQueryObserverTest {
+
+  private OfflineStore store;
+  private FindCallback<ParseObject> callback;
+
+  @SuppressWarnings("unchecked")
+  @Before
+  public void setUp() {
+    store = mock(OfflineStore.class);
+    callback = mock(FindCallback.class);
+  }
+
+  private static ParseObject createObject(int n) {
+    ParseObject object = new ParseObject("TestObject");
+    object.put("n", n);
+    return object;
+  }
+
+  @SuppressWarnings("unchecked")
+  private void mockFind(List<ParseObject> first, List<ParseObject>... rest) {
+    Task<List<ParseObject>>[] tasks = new Task[rest.length];
+    for (int i = 0; i < rest.length; i++) {
+      tasks[i] = Task.forResult(rest[i]);
+    }
+    when(store.findFromPinAsync(
+        anyString(), any(ParseQuery.State.class), any(ParseUser.class)))
+        .thenReturn(Task.forResult(first), tasks);
+  }
+
+  @SuppressWarnings("unchecked")
+  private void mockMatch(List<ParseObject> matched) {
+    when(store.matchObjectsAsync(
+        any(ParseQuery.State.class), any(ParseUser.class), anyCollectionOf(ParseObject.class)))
+        .thenReturn(Task.forResult(matched));
+  }
+
+  @SuppressWarnings("unchecked")
+  private void verifyFind(int count) {
+    verify(store, times(count)).findFromPinAsync(
+        anyString(), any(ParseQuery.State.class), any(ParseUser.class));
+  }
+
+  @SuppressWarnings("unchecked")
+  private void verifyNoMatch() {
+    verify(store, never()).matchObjectsAsync(
+        any(ParseQuery.State.class), any(ParseUser.class), anyCollectionOf(ParseObject.class));
+  }
+
+  private ParseQueryObserver<ParseObject> start(ParseQuery.State.Builder<ParseObject> builder)
+      throws ParseException {
+    ParseQueryObserver<ParseObject> observer =
+        new ParseQueryObserver<>(store, builder.fromPin("test").build(), callback);
+    ParseTaskUtils.wait(observer.startAsync(Task.<ParseUser>forResult(null)));
+    return observer;
+  }
+
+  private static void change(ParseQueryObserver<ParseObject> observer, ParseObject... objects)
+      throws ParseException {
+    OfflineChange change = new OfflineChange();
+    for (ParseObject object : objects) {
+      change.addObject(object);
+    }
+    ParseTaskUtils.wait(observer.onChange(change));
+  }
+
+  private static void changeClass(ParseQueryObserver<ParseObject> observer, String className)
+      throws ParseException {
+    OfflineChange change = new OfflineChange();
+    change.addClassName(className);
+    ParseTaskUtils.wait(observer.onChange(change));
+  }
+
+  //region Patching
+
+  @Test
+  public void testPatchesInTouchedObjectsThatMatch() throws Exception {
+    ParseObject a = createObject(1);
+    ParseObject b = createObject(2);
+    mockFind(Collections.singletonList(a));
+    mockMatch(Collections.singletonList(b));
+
+    ParseQueryObserver<ParseObject> observer = start(
+        new ParseQuery.State.Builder<>("TestObject").orderByAscending("n"));
+    change(observer, b);
+
+    assertEquals(Arrays.asList(a, b), observer.getResults());
+    verifyFind(1);
+    verify(callback).done(Arrays.asList(a, b), null);
+  }
+
+  @Test
+  public void testPatchesOutTouchedObjectsThatNoLongerMatch() throws Exception {
+    ParseObject a = createObject(1);
+    ParseObject b = createObject(2);
+    mockFind(Arrays.asList(a, b));
+    mockMatch(Collections.<ParseObject>emptyList());
+
+    ParseQueryObserver<ParseObject> observer = start(
+        new ParseQuery.State.Builder<>("TestObject").orderByAscending("n"));
+    change(observer, a);
+
+    assertEquals(Collections.singletonList(b), observer.getResults());
+    verifyFind(1);
+  }
+
+  @Test
+  public void testPatchesResultsThatTheLimitDidNotCutShort() throws Exception {
+    ParseObject a = createObject(1);
+    mockFind(Collections.singletonList(a));
+    mockMatch(Collections.<ParseObject>emptyList());
+
+    ParseQueryObserver<ParseObject> observer = start(
+        new ParseQuery.State.Builder<>("TestObject").orderByAscending("n").setLimit(2));
+    change(observer, a);
+
+    // Every object that matched was in the results, so there's nothing else to load.
+    assertEquals(0, observer.getResults().size());
+    verifyFind(1);
+  }
+
+  @Test
+  public void testPatchesNewObjectsIntoResultsThatTheLimitCutShort() throws Exception {
+    ParseObject a = createObject(1);
+    ParseObject b = createObject(2);
+    ParseObject c = createObject(0);
+    mockFind(Arrays.asList(a, b));
+    mockMatch(Collections.singletonList(c));
+
+    ParseQueryObserver<ParseObject> observer = start(
+        new ParseQuery.State.Builder<>("TestObject").orderByAscending("n").setLimit(2));
+    change(observer, c);
+
+    assertEquals(Arrays.asList(c, a), observer.getResults());
+    verifyFind(1);
+  }
+
+  @Test
+  public void testIgnoresChangesToOtherClasses() throws Exception {
+    mockFind(Collections.singletonList(createObject(1)));
+
+    ParseQueryObserver<ParseObject> observer = start(
+        new ParseQuery.State.Builder<>("TestObject"));
+    change(observer, new ParseObject("OtherObject"));
+    changeClass(observer, "OtherObject");
+
+    verifyFind(1);
+    verifyNoMatch();
+  }
+
+  //endregion
+
+  //region Refreshing
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testRefreshesWhenAnObjectLeavesResultsThatTheLimitCutShort() throws Exception {
+    ParseObject a = createObject(1);
+    ParseObject b = createObject(2);
+    ParseObject c = createObject(3);
+    mockFind(Arrays.asList(a, b), Arrays.asList(b, c));
+    mockMatch(Collections.<ParseObject>emptyList());
+
+    ParseQueryObserver<ParseObject> observer = start(
+        new ParseQuery.State.Builder<>("TestObject").orderByAscending("n").setLimit(2));
+    change(observer, a);
+
+    assertEquals(Arrays.asList(b, c), observer.getResults());
+    verifyFind(2);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testRefreshesWhenAnObjectMovesInResultsThatTheLimitCutShort() throws Exception {
+    ParseObject a = createObject(1);
+    ParseObject b = createObject(2);
+    ParseObject c = createObject(3);
+    mockFind(Arrays.asList(a, b), Arrays.asList(b, c));
+    mockMatch(Collections.singletonList(a));
+
+    ParseQueryObserver<ParseObject> observer = start(
+        new ParseQuery.State.Builder<>("TestObject").orderByAscending("n").setLimit(2));
+    a.put("n", 4);
+    change(observer, a);
+
+    assertEquals(Arrays.asList(b, c), observer.getResults());
+    verifyFind(2);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testRefreshesWithIncludes() throws Exception {
+    ParseObject a = createObject(1);
+    ParseObject b = createObject(2);
+    mockFind(Collections.singletonList(a), Arrays.asList(a, b));
+
+    ParseQueryObserver<ParseObject> observer = start(
+        new ParseQuery.State.Builder<>("TestObject").include("child"));
+    change(observer, b);
+
+    assertEquals(Arrays.asList(a, b), observer.getResults());
+    verifyFind(2);
+    verifyNoMatch();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testRefreshesWhenAnInQueryClassChanges() throws Exception {
+    ParseObject a = createObject(1);
+    ParseObject b = createObject(2);
+    mockFind(Collections.singletonList(a), Collections.singletonList(b));
+
+    ParseQueryObserver<ParseObject> observer = start(new ParseQuery.State.Builder<>("TestObject")
+        .whereMatchesQuery("owner", new ParseQuery.State.Builder<>("Owner")));
+    changeClass(observer, "Owner");
+
+    assertEquals(Collections.singletonList(b), observer.getResults());
+    verifyFind(2);
+    verifyNoMatch();
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testRefreshesWhenASelectClassChanges() throws Exception {
+    ParseObject a = createObject(1);
+    mockFind(Collections.singletonList(a), Collections.<ParseObject>emptyList());
+
+    ParseQueryObserver<ParseObject> observer = start(new ParseQuery.State.Builder<>("TestObject")
+        .whereDoesNotMatchKeyInQuery("name", "name", new ParseQuery.State.Builder<>("Blocked")));
+    changeClass(observer, "Blocked");
+
+    assertEquals(0, observer.getResults().size());
+    verifyFind(2);
+  }
+
+  @SuppressWarnings("unchecked")
+  @Test
+  public void testRefreshesWhenANestedSubqueryClassChanges() throws Exception {
+    mockFind(Collections.singletonList(createObject(1)), Collections.<ParseObject>emptyList());
+
+    ParseQuery.State.Builder<ParseObject> owners = new ParseQuery.State.Builder<>("Owner")
+        .whereDoesNotMatchQuery("team", new ParseQuery.State.Builder<>("Team"));
+    ParseQueryObserver<ParseObject> observer = start(new ParseQuery.State.Builder<>("TestObject")
+        .whereMatchesQuery("owner", owners));
+    changeClass(observer, "Team");
+
+    verifyFind(2);
+  }
+
+  @Test
+  public void testRefreshFailureIsReported() throws Exception {
+    ParseException error = new ParseException(ParseException.CACHE_MISS, "failed");
+    when(store.findFromPinAsync(
+        anyString(), any(ParseQuery.State.class), any(ParseUser.class)))
+        .thenReturn(Task.<List<ParseObject>>forResult(Collections.<ParseObject>emptyList()))
+        .thenReturn(Task.<List<ParseObject>>forError(error));
+
+    ParseQueryObserver<ParseObject> observer = start(new ParseQuery.State.Builder<>("TestObject")
+        .whereMatchesQuery("owner", new ParseQuery.State.Builder<>("Owner")));
+    changeClass(observer, "Owner");
+
+    verify(callback).done(null, error);
+  }
+
+  //endregion
+
+  //region Callbacks
+
+  @Test
+  public void testCallsBackWithEmptyFirstResults() throws Exception {
+    mockFind(Collections.<ParseObject>emptyList());
+
+    start(new ParseQuery.State.Builder<>("TestObject"));
+
+    verify(callback).done(Collections.<ParseObject>emptyList(), null);
+  }
+
+  @Test
+  public void testCallsBackWhenAResultIsEdited() throws Exception {
+    ParseObject a = createObject(1);
+    ParseObject b = createObject(2);
+    mockFind(Arrays.asList(a, b));
+    mockMatch(Collections.singletonList(a));
+
+    ParseQueryObserver<ParseObject> observer = start(
+        new ParseQuery.State.Builder<>("TestObject").orderByAscending("n"));
+    a.put("name", "edited");
+    change(observer, a);
+
+    assertEquals(Arrays.asList(a, b), observer.getResults());
+    verify(callback, times(2)).done(Arrays.asList(a, b), null);
+  }
+
+  @Test
+  public void testDoesNotCallBackWhenNoResultIsTouched() throws Exception {
+    ParseObject a = createObject(1);
+    mockFind(Collections.singletonList(a));
+    mockMatch(Collections.<ParseObject>emptyList());
+
+    ParseQueryObserver<ParseObject> observer = start(
+        new ParseQuery.State.Builder<>("TestObject").orderByAscending("n"));
+    change(observer, createObject(2));
+
+    verify(callback, times(1)).done(Collections.singletonList(a), null);
+  }
+
+  //endregion
+}
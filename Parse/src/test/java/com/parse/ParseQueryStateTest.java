@@ -51,6 +51,8 @@ public class ParseQueryStateTest {
     assertEquals(ParseQuery.CachePolicy.IGNORE_CACHE, state.cachePolicy());
     assertEquals(Long.MAX_VALUE, state.maxCacheAge());
 
+    assertEquals(ParseRequestPriority.NORMAL, state.priority());
+
     assertFalse(state.isFromLocalDatastore());
     assertNull(state.pinName());
     assertFalse(state.ignoreACLs());
@@ -157,6 +159,16 @@ public class ParseQueryStateTest {
         .isTracingEnabled());
   }
 
+  @Test
+  public void testPriority() {
+    ParseQuery.State<ParseObject> state = new ParseQuery.State.Builder<>("TestObject")
+        .setPriority(ParseRequestPriority.INTERACTIVE)
+        .build();
+    assertEquals(ParseRequestPriority.INTERACTIVE, state.priority());
+    assertEquals(ParseRequestPriority.INTERACTIVE,
+        new ParseQuery.State.Builder<>(state).build().priority());
+  }
+
   @Test
   public void testCachePolicy() {
     //TODO
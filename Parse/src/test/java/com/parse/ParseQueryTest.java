@@ -15,6 +15,7 @@ import org.mockito.ArgumentCaptor;
 
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -27,6 +28,7 @@ import bolts.Task;
 
 import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThat;
@@ -326,6 +328,62 @@ public class ParseQueryTest {
     assertEquals(ParseObject.DEFAULT_PIN, state.pinName());
   }
 
+  @Test
+  public void testCreateSyncState() throws Exception {
+    Parse.enableLocalDatastore(null);
+    ParseQuery.State.Builder<ParseObject> builder = new ParseQuery.State.Builder<>("Test")
+        .addCondition("updatedAt", "$lt", new Date(100))
+        .setLimit(5);
+
+    ParseQuery.State<ParseObject> first = ParseQuery.createSyncState(builder, null, null);
+    assertFalse(first.isFromLocalDatastore());
+    assertEquals(ParseQuery.SYNC_PAGE_SIZE, first.limit());
+    assertEquals(Arrays.asList("updatedAt", "objectId"), first.order());
+    assertEquals(builder.build().constraints(), first.constraints());
+
+    Date updatedAt = new Date(10);
+    ParseQuery.State<ParseObject> next = ParseQuery.createSyncState(builder, updatedAt, "abc");
+    @SuppressWarnings("unchecked")
+    List<ParseQuery.QueryConstraints> or =
+        (List<ParseQuery.QueryConstraints>) next.constraints().get("$or");
+    assertEquals(2, or.size());
+    ParseQuery.KeyConstraints newer = (ParseQuery.KeyConstraints) or.get(0).get("updatedAt");
+    assertEquals(new Date(100), newer.get("$lt"));
+    assertEquals(updatedAt, newer.get("$gt"));
+    ParseQuery.KeyConstraints same = (ParseQuery.KeyConstraints) or.get(1).get("updatedAt");
+    assertEquals(updatedAt, same.get("$gte"));
+    assertEquals(updatedAt, same.get("$lte"));
+    ParseQuery.KeyConstraints objectId = (ParseQuery.KeyConstraints) or.get(1).get("objectId");
+    assertEquals("abc", objectId.get("$gt"));
+
+    // The original constraints are left alone.
+    ParseQuery.KeyConstraints original =
+        (ParseQuery.KeyConstraints) builder.build().constraints().get("updatedAt");
+    assertEquals(1, original.size());
+  }
+
+  @Test
+  public void testSyncKey() throws Exception {
+    ParseQuery.State.Builder<ParseObject> all = new ParseQuery.State.Builder<>("Test");
+    assertEquals("Test", ParseQuery.getSyncKey(all));
+
+    ParseQuery.State.Builder<ParseObject> foo = new ParseQuery.State.Builder<>("Test")
+        .whereEqualTo("a", 1)
+        .whereEqualTo("b", "foo");
+    ParseQuery.State.Builder<ParseObject> sameAsFoo = new ParseQuery.State.Builder<>("Test")
+        .whereEqualTo("b", "foo")
+        .whereEqualTo("a", 1)
+        .setLimit(5);
+    ParseQuery.State.Builder<ParseObject> bar = new ParseQuery.State.Builder<>("Test")
+        .whereEqualTo("a", 1)
+        .whereEqualTo("b", "bar");
+    // Only the constraints matter, not their order or anything else about the query.
+    assertEquals(ParseQuery.getSyncKey(foo), ParseQuery.getSyncKey(sameAsFoo));
+    assertFalse(ParseQuery.getSyncKey(foo).equals(ParseQuery.getSyncKey(bar)));
+    assertFalse(ParseQuery.getSyncKey(foo).equals(ParseQuery.getSyncKey(all)));
+    assertTrue(ParseQuery.getSyncKey(foo).startsWith("Test."));
+  }
+
   @Test
   public void testMaxCacheAge() throws Exception {
     ParseQuery<ParseObject> query = new ParseQuery<>("Test");
@@ -12,6 +12,7 @@ import com.parse.http.ParseHttpRequest;
 import com.parse.http.ParseHttpResponse;
 
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Before;
@@ -26,6 +27,7 @@ import org.skyscreamer.jsonassert.JSONCompareMode;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 import bolts.Task;
 
@@ -37,6 +39,7 @@ import static org.mockito.Matchers.any;
 import static org.mockito.Mockito.doNothing;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -517,4 +520,85 @@ public class ParseRESTCommandTest {
     assertEquals("Error", responseTask.getError().getMessage());
     verify(mockResponseStream, times(1)).close();
   }
+
+  @Test
+  public void testOnResponseStreamsResults() throws Exception {
+    JSONObject bodyJson = new JSONObject();
+    JSONArray results = new JSONArray();
+    results.put(new JSONObject().put("objectId", "a").put("score", 1));
+    results.put(new JSONObject().put("objectId", "b").put("score", 2.5));
+    bodyJson.put("results", results);
+    bodyJson.put("trace", "serverTrace");
+    ParseHttpResponse mockResponse = newMockParseHttpResponse(200, bodyJson);
+
+    ParseRESTCommand command = new ParseRESTCommand.Builder().build();
+    command.setResultDecoder(new ParseRESTCommand.ResultDecoder() {
+      @Override
+      public Object decode(JSONObject result) throws JSONException {
+        return result.getString("objectId") + ":" + result.get("score");
+      }
+
+      @Override
+      public Object merge(Object decoded) {
+        return "merged " + decoded;
+      }
+    });
+    JSONObject json = ParseTaskUtils.wait(command.onResponseAsync(mockResponse, null));
+
+    // The results are decoded, and left out of the response.
+    assertEquals(Arrays.<Object>asList("merged a:1", "merged b:2.5"),
+        command.getDecodedResults());
+    assertFalse(json.has("results"));
+    assertEquals("serverTrace", json.getString("trace"));
+  }
+
+  @Test
+  public void testOnResponseDoesNotStreamErrors() throws Exception {
+    JSONObject bodyJson = new JSONObject();
+    bodyJson.put("code", 101);
+    bodyJson.put("error", "Object not found");
+    ParseHttpResponse mockResponse = newMockParseHttpResponse(400, bodyJson);
+
+    ParseRESTCommand command = new ParseRESTCommand.Builder().build();
+    command.setResultDecoder(mock(ParseRESTCommand.ResultDecoder.class));
+    Task<JSONObject> responseTask = command.onResponseAsync(mockResponse, null);
+    responseTask.waitForCompletion();
+
+    assertTrue(responseTask.isFaulted());
+    assertEquals(101, ((ParseException) responseTask.getError()).getCode());
+    assertNull(command.getDecodedResults());
+  }
+
+  @Test
+  public void testOnResponseStreamingBadJson() throws Exception {
+    ParseHttpResponse mockResponse = newMockParseHttpResponse(200, "{\"results\": [1]}");
+
+    ParseRESTCommand command = new ParseRESTCommand.Builder().build();
+    command.setResultDecoder(mock(ParseRESTCommand.ResultDecoder.class));
+    Task<JSONObject> responseTask = command.onResponseAsync(mockResponse, null);
+    responseTask.waitForCompletion();
+
+    assertTrue(responseTask.isFaulted());
+    assertEquals(ParseException.CONNECTION_FAILED,
+        ((ParseException) responseTask.getError()).getCode());
+    assertNull(command.getDecodedResults());
+  }
+
+  @Test
+  public void testOnResponseStreamingMergesNothingFromTruncatedBody() throws Exception {
+    ParseHttpResponse mockResponse =
+        newMockParseHttpResponse(200, "{\"results\": [{\"objectId\": \"a\"}, {\"objectId\"");
+
+    ParseRESTCommand command = new ParseRESTCommand.Builder().build();
+    ParseRESTCommand.ResultDecoder decoder = mock(ParseRESTCommand.ResultDecoder.class);
+    command.setResultDecoder(decoder);
+    Task<JSONObject> responseTask = command.onResponseAsync(mockResponse, null);
+    responseTask.waitForCompletion();
+
+    // The first result was read in full, but isn't merged without the rest of the response.
+    assertTrue(responseTask.isFaulted());
+    verify(decoder).decode(any(JSONObject.class));
+    verify(decoder, never()).merge(any());
+    assertNull(command.getDecodedResults());
+  }
 }
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import com.parse.http.ParseHttpRequest;
+import com.parse.http.ParseHttpResponse;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import bolts.Task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+// For org.json
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ParseRESTObjectBatchCommandTest {
+
+  @Before
+  public void setUp() {
+    ParseRequest.setDefaultInitialRetryDelay(1L);
+  }
+
+  @After
+  public void tearDown() {
+    ParseRequest.setDefaultInitialRetryDelay(ParseRequest.DEFAULT_INITIAL_RETRY_DELAY);
+    ParseRESTObjectBatchCommand.setMaxBatchesInFlight(
+        ParseRESTObjectBatchCommand.DEFAULT_MAX_BATCHES_IN_FLIGHT);
+  }
+
+  private static List<ParseRESTObjectCommand> deleteCommands(int count) {
+    List<ParseRESTObjectCommand> commands = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      ParseObject.State state = new ParseObject.State.Builder("Test")
+          .objectId("testObjectId" + i)
+          .build();
+      commands.add(ParseRESTObjectCommand.deleteObjectCommand(state, "sessionToken"));
+    }
+    return commands;
+  }
+
+  private static JSONObject success() throws Exception {
+    return new JSONObject().put("success", new JSONObject());
+  }
+
+  private static JSONObject error(int code) throws Exception {
+    return new JSONObject().put("error", new JSONObject().put("code", code).put("error", "Error"));
+  }
+
+  private static ParseHttpResponse batchResponse(JSONObject... results) {
+    JSONArray array = new JSONArray();
+    for (JSONObject result : results) {
+      array.put(result);
+    }
+    return newResponse(array.toString());
+  }
+
+  private static ParseHttpResponse successfulBatchResponse(int count) throws Exception {
+    JSONArray array = new JSONArray();
+    for (int i = 0; i < count; i++) {
+      array.put(success());
+    }
+    return newResponse(array.toString());
+  }
+
+  private static ParseHttpResponse newResponse(String content) {
+    byte[] contentBytes = content.getBytes();
+    return new ParseHttpResponse.Builder()
+        .setContent(new ByteArrayInputStream(contentBytes))
+        .setStatusCode(200)
+        .setTotalSize(contentBytes.length)
+        .setContentType("application/json")
+        .build();
+  }
+
+  @Test
+  public void testRetriesOnlyFailedCommands() throws Exception {
+    ParseHttpClient client = mock(ParseHttpClient.class);
+    when(client.execute(any(ParseHttpRequest.class))).thenReturn(
+        batchResponse(success(), error(ParseException.REQUEST_LIMIT_EXCEEDED),
+            error(ParseException.TIMEOUT)),
+        batchResponse(success(), success()));
+
+    List<Task<JSONObject>> tasks =
+        ParseRESTObjectBatchCommand.executeBatch(client, deleteCommands(3), "sessionToken");
+    ParseTaskUtils.wait(Task.whenAll(tasks));
+
+    // The first request had all three, the retry only the two that failed.
+    verify(client, times(2)).execute(any(ParseHttpRequest.class));
+    for (Task<JSONObject> task : tasks) {
+      assertFalse(task.isFaulted());
+    }
+  }
+
+  @Test
+  public void testDoesNotRetryPermanentErrors() throws Exception {
+    ParseHttpClient client = mock(ParseHttpClient.class);
+    when(client.execute(any(ParseHttpRequest.class))).thenReturn(
+        batchResponse(success(), error(ParseException.OBJECT_NOT_FOUND)));
+
+    List<Task<JSONObject>> tasks =
+        ParseRESTObjectBatchCommand.executeBatch(client, deleteCommands(2), "sessionToken");
+    Task.whenAll(tasks).waitForCompletion();
+
+    verify(client, times(1)).execute(any(ParseHttpRequest.class));
+    assertFalse(tasks.get(0).isFaulted());
+    assertTrue(tasks.get(1).isFaulted());
+    assertEquals(ParseException.OBJECT_NOT_FOUND,
+        ((ParseException) tasks.get(1).getError()).getCode());
+  }
+
+  @Test
+  public void testDoesNotResendFailedCreates() throws Exception {
+    ParseHttpClient client = mock(ParseHttpClient.class);
+    when(client.execute(any(ParseHttpRequest.class))).thenReturn(
+        batchResponse(error(ParseException.INTERNAL_SERVER_ERROR)));
+
+    // The object may have been created before the error, so sending it again could create two.
+    ParseRESTObjectCommand command = ParseRESTObjectCommand.saveObjectCommand(
+        new ParseObject.State.Builder("Test").build(), new JSONObject(), "sessionToken");
+    List<Task<JSONObject>> tasks = ParseRESTObjectBatchCommand.executeBatch(
+        client, Collections.singletonList(command), "sessionToken");
+    Task.whenAll(tasks).waitForCompletion();
+
+    verify(client, times(1)).execute(any(ParseHttpRequest.class));
+    assertTrue(tasks.get(0).isFaulted());
+    assertEquals(ParseException.INTERNAL_SERVER_ERROR,
+        ((ParseException) tasks.get(0).getError()).getCode());
+  }
+
+  @Test
+  public void testDoesNotResendTimedOutIncrements() throws Exception {
+    ParseHttpClient client = mock(ParseHttpClient.class);
+    when(client.execute(any(ParseHttpRequest.class))).thenReturn(
+        batchResponse(error(ParseException.TIMEOUT), error(ParseException.TIMEOUT)),
+        batchResponse(success()));
+
+    ParseObject.State state = new ParseObject.State.Builder("Test").objectId("abc").build();
+    JSONObject increment = new JSONObject()
+        .put("score", new JSONObject().put("__op", "Increment").put("amount", 1));
+    JSONObject set = new JSONObject().put("name", "foo");
+    List<ParseRESTObjectCommand> commands = Arrays.asList(
+        ParseRESTObjectCommand.saveObjectCommand(state, increment, "sessionToken"),
+        ParseRESTObjectCommand.saveObjectCommand(state, set, "sessionToken"));
+    List<Task<JSONObject>> tasks =
+        ParseRESTObjectBatchCommand.executeBatch(client, commands, "sessionToken");
+    Task.whenAll(tasks).waitForCompletion();
+
+    // Only the update that sets a value is sent again.
+    verify(client, times(2)).execute(any(ParseHttpRequest.class));
+    assertTrue(tasks.get(0).isFaulted());
+    assertEquals(ParseException.TIMEOUT, ((ParseException) tasks.get(0).getError()).getCode());
+    assertFalse(tasks.get(1).isFaulted());
+  }
+
+  @Test
+  public void testPipelinesOversizedBatches() throws Exception {
+    ParseRESTObjectBatchCommand.setMaxBatchesInFlight(1);
+    ParseHttpClient client = mock(ParseHttpClient.class);
+    // With a single batch in flight, the batches are sent in order.
+    when(client.execute(any(ParseHttpRequest.class))).thenReturn(
+        successfulBatchResponse(50), successfulBatchResponse(50), successfulBatchResponse(20));
+
+    List<Task<JSONObject>> tasks =
+        ParseRESTObjectBatchCommand.executeBatch(client, deleteCommands(120), "sessionToken");
+    ParseTaskUtils.wait(Task.whenAll(tasks));
+
+    verify(client, times(3)).execute(any(ParseHttpRequest.class));
+    assertEquals(120, tasks.size());
+    for (Task<JSONObject> task : tasks) {
+      assertFalse(task.isFaulted());
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bolts.Task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ParseRequestCoalescerTest {
+
+  private static Callable<Task<String>> request(
+      final AtomicInteger calls, final Task<String> response) {
+    return new Callable<Task<String>>() {
+      @Override
+      public Task<String> call() throws Exception {
+        calls.incrementAndGet();
+        return response;
+      }
+    };
+  }
+
+  @Test
+  public void testCoalescesRequestsInFlight() throws Exception {
+    ParseRequestCoalescer<String> coalescer = new ParseRequestCoalescer<>();
+    AtomicInteger calls = new AtomicInteger();
+    Task<String>.TaskCompletionSource tcs = Task.create();
+
+    Task<String> first = coalescer.executeAsync("key", request(calls, tcs.getTask()));
+    Task<String> second = coalescer.executeAsync("key", request(calls, tcs.getTask()));
+    assertEquals(1, calls.get());
+    assertEquals(1, coalescer.getInFlightCount());
+    assertFalse(first.isCompleted());
+
+    tcs.setResult("response");
+    ParseTaskUtils.wait(first);
+    assertEquals("response", first.getResult());
+    assertEquals("response", second.getResult());
+
+    assertEquals(2, coalescer.getRequestCount());
+    assertEquals(1, coalescer.getCoalescedCount());
+    assertEquals(0, coalescer.getInFlightCount());
+  }
+
+  @Test
+  public void testDifferentKeysRunSeparately() throws Exception {
+    ParseRequestCoalescer<String> coalescer = new ParseRequestCoalescer<>();
+    AtomicInteger calls = new AtomicInteger();
+    Task<String>.TaskCompletionSource tcs = Task.create();
+
+    coalescer.executeAsync("a", request(calls, tcs.getTask()));
+    coalescer.executeAsync("b", request(calls, tcs.getTask()));
+
+    assertEquals(2, calls.get());
+    assertEquals(0, coalescer.getCoalescedCount());
+  }
+
+  @Test
+  public void testRunsAgainOnceFinished() throws Exception {
+    ParseRequestCoalescer<String> coalescer = new ParseRequestCoalescer<>();
+    AtomicInteger calls = new AtomicInteger();
+
+    ParseTaskUtils.wait(coalescer.executeAsync("key", request(calls, Task.forResult("a"))));
+    ParseTaskUtils.wait(coalescer.executeAsync("key", request(calls, Task.forResult("b"))));
+
+    assertEquals(2, calls.get());
+    assertEquals(0, coalescer.getCoalescedCount());
+  }
+
+  @Test
+  public void testSharesErrors() throws Exception {
+    ParseRequestCoalescer<String> coalescer = new ParseRequestCoalescer<>();
+    AtomicInteger calls = new AtomicInteger();
+    Task<String>.TaskCompletionSource tcs = Task.create();
+
+    Task<String> first = coalescer.executeAsync("key", request(calls, tcs.getTask()));
+    Task<String> second = coalescer.executeAsync("key", request(calls, tcs.getTask()));
+    tcs.setError(new ParseException(ParseException.CONNECTION_FAILED, "failed"));
+    second.waitForCompletion();
+
+    assertTrue(first.isFaulted());
+    assertTrue(second.isFaulted());
+    assertEquals(0, coalescer.getInFlightCount());
+  }
+
+  @Test
+  public void testCallerCancelsOnlyItsOwnWait() throws Exception {
+    ParseRequestCoalescer<String> coalescer = new ParseRequestCoalescer<>();
+    AtomicInteger calls = new AtomicInteger();
+    Task<String>.TaskCompletionSource tcs = Task.create();
+    Task<Void>.TaskCompletionSource cts = Task.create();
+
+    Task<String> first = coalescer.executeAsync("key", request(calls, tcs.getTask()));
+    Task<String> second =
+        coalescer.executeAsync("key", request(calls, tcs.getTask()), cts.getTask());
+    cts.setCancelled();
+
+    assertTrue(second.isCancelled());
+    assertFalse(first.isCompleted());
+
+    tcs.setResult("a");
+    assertEquals("a", ParseTaskUtils.wait(first));
+    assertEquals(1, calls.get());
+  }
+}
@@ -19,12 +19,19 @@ import org.junit.BeforeClass;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import bolts.Task;
 
@@ -77,6 +84,56 @@ public class ParseRequestTest {
     verify(mockHttpClient, times(5)).execute(any(ParseHttpRequest.class));
   }
 
+  @Test
+  public void testPriorityLanes() {
+    assertEquals(ParseRequest.NETWORK_EXECUTOR,
+        ParseRequest.executorFor(ParseRequestPriority.NORMAL));
+    Set<Executor> executors = new HashSet<>();
+    for (ParseRequestPriority priority : ParseRequestPriority.values()) {
+      executors.add(ParseRequest.executorFor(priority));
+    }
+    assertEquals(ParseRequestPriority.values().length, executors.size());
+  }
+
+  @Test
+  public void testSendsOnPriorityLane() throws Exception {
+    final List<String> threadNames = new ArrayList<>();
+    ParseHttpClient mockHttpClient = mock(ParseHttpClient.class);
+    when(mockHttpClient.execute(any(ParseHttpRequest.class))).thenAnswer(
+        new Answer<ParseHttpResponse>() {
+      @Override
+      public ParseHttpResponse answer(InvocationOnMock invocation) throws Throwable {
+        threadNames.add(Thread.currentThread().getName());
+        return new ParseHttpResponse.Builder().setStatusCode(200).build();
+      }
+    });
+
+    TestParseRequest request =
+        new TestParseRequest(ParseHttpRequest.Method.GET, "http://parse.com");
+    request.setPriority(ParseRequestPriority.BULK);
+    ParseTaskUtils.wait(request.executeAsync(mockHttpClient));
+
+    assertEquals(1, threadNames.size());
+    assertTrue(threadNames.get(0).startsWith("ParseRequest.BULK_EXECUTOR"));
+  }
+
+  @Test
+  public void testSetConcurrency() {
+    ThreadPoolExecutor executor = ParseRequest.executorFor(ParseRequestPriority.BACKGROUND);
+    int maxPoolSize = executor.getMaximumPoolSize();
+    try {
+      ParseRequest.setConcurrency(ParseRequestPriority.BACKGROUND, 5);
+      assertEquals(5, executor.getCorePoolSize());
+      assertEquals(5, executor.getMaximumPoolSize());
+
+      ParseRequest.setConcurrency(ParseRequestPriority.BACKGROUND, 1);
+      assertEquals(1, executor.getCorePoolSize());
+      assertEquals(1, executor.getMaximumPoolSize());
+    } finally {
+      ParseRequest.setConcurrency(ParseRequestPriority.BACKGROUND, maxPoolSize);
+    }
+  }
+
   // TODO(grantland): Move to ParseAWSRequestTest or ParseCountingByteArrayHttpBodyTest
   @Test
   public void testDownloadProgress() throws Exception {
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ParseSQLiteDatabaseTest {
+
+  private SQLiteDatabase db;
+
+  @Before
+  public void setUp() {
+    db = SQLiteDatabase.create(null);
+    db.execSQL("CREATE TABLE Test (a TEXT, b INTEGER)");
+  }
+
+  @After
+  public void tearDown() {
+    db.close();
+  }
+
+  @Test
+  public void testStatementCacheReusesStatements() {
+    ParseSQLiteDatabase.StatementCache cache = new ParseSQLiteDatabase.StatementCache(2);
+    String sql = "INSERT INTO Test (a, b) VALUES (?, ?)";
+
+    SQLiteStatement first = cache.get(db, sql, new String[] { "foo", "1" });
+    first.executeInsert();
+    SQLiteStatement second = cache.get(db, sql, new String[] { "bar", null });
+    second.executeInsert();
+
+    assertSame(first, second);
+    assertEquals(1, cache.size());
+    assertEquals("foo",
+        cache.get(db, "SELECT a FROM Test WHERE b = ?", new String[] { "1" })
+            .simpleQueryForString());
+    assertEquals(1, cache.get(db, "SELECT COUNT(*) FROM Test WHERE b IS NULL", null)
+        .simpleQueryForLong());
+    cache.clear();
+  }
+
+  @Test
+  public void testStatementCacheEvictsLeastRecentlyUsed() {
+    ParseSQLiteDatabase.StatementCache cache = new ParseSQLiteDatabase.StatementCache(2);
+    String a = "SELECT COUNT(*) FROM Test";
+    String b = "SELECT COUNT(a) FROM Test";
+    String c = "SELECT COUNT(b) FROM Test";
+
+    SQLiteStatement statementA = cache.get(db, a, null);
+    cache.get(db, b, null);
+    // Using a makes b the least recently used.
+    cache.get(db, a, null);
+    cache.get(db, c, null);
+
+    assertEquals(2, cache.size());
+    assertSame(statementA, cache.get(db, a, null));
+    cache.clear();
+    assertEquals(0, cache.size());
+    assertNotSame(statementA, cache.get(db, a, null));
+    cache.clear();
+  }
+
+  @Test
+  public void testReadStrings() {
+    db.execSQL("INSERT INTO Test (a, b) VALUES ('foo', 1)");
+    db.execSQL("INSERT INTO Test (a, b) VALUES (NULL, 2)");
+
+    List<String[]> rows =
+        ParseSQLiteDatabase.readStrings(db.rawQuery("SELECT a, b FROM Test ORDER BY b", null));
+    assertEquals(2, rows.size());
+    assertArrayEquals(new String[] { "foo", "1" }, rows.get(0));
+    assertArrayEquals(new String[] { null, "2" }, rows.get(1));
+  }
+}
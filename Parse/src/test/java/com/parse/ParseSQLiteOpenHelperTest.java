@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import bolts.Task;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class ParseSQLiteOpenHelperTest {
+
+  private static final String DATABASE_NAME = "ParseSQLiteOpenHelperTest";
+
+  private ParseSQLiteOpenHelper helper;
+
+  @Before
+  public void setUp() {
+    helper = new ParseSQLiteOpenHelper(RuntimeEnvironment.application, DATABASE_NAME, null, 1) {
+      @Override
+      public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE Test (a TEXT)");
+        db.execSQL("INSERT INTO Test (a) VALUES ('foo')");
+      }
+
+      @Override
+      public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // do nothing
+      }
+    };
+  }
+
+  @After
+  public void tearDown() {
+    helper.close();
+    RuntimeEnvironment.application.deleteDatabase(DATABASE_NAME);
+  }
+
+  private static long count(ParseSQLiteDatabase db) throws Exception {
+    Cursor cursor = ParseTaskUtils.wait(db.rawQueryAsync("SELECT COUNT(*) FROM Test", null));
+    try {
+      cursor.moveToFirst();
+      return cursor.getLong(0);
+    } finally {
+      cursor.close();
+    }
+  }
+
+  @Test
+  public void testPooledReadsDoNotWaitForWriter() throws Exception {
+    helper.enableConnectionPool(2);
+
+    ParseSQLiteDatabase writer = ParseTaskUtils.wait(helper.getWritableDatabaseAsync());
+    try {
+      // The writable session is still open, but the read-only sessions run anyway.
+      ParseSQLiteDatabase first = ParseTaskUtils.wait(helper.getReadableDatabaseAsync());
+      ParseSQLiteDatabase second = ParseTaskUtils.wait(helper.getReadableDatabaseAsync());
+      assertEquals(1, count(first));
+      assertEquals(1, count(second));
+      ParseTaskUtils.wait(first.closeAsync());
+      ParseTaskUtils.wait(second.closeAsync());
+    } finally {
+      ParseTaskUtils.wait(writer.closeAsync());
+    }
+  }
+
+  @Test
+  public void testReadsWaitForWriterWithoutPool() throws Exception {
+    ParseSQLiteDatabase writer = ParseTaskUtils.wait(helper.getWritableDatabaseAsync());
+    Task<ParseSQLiteDatabase> reader = helper.getReadableDatabaseAsync();
+    Thread.sleep(50);
+    assertFalse(reader.isCompleted());
+
+    ParseTaskUtils.wait(writer.closeAsync());
+    ParseSQLiteDatabase db = ParseTaskUtils.wait(reader);
+    assertEquals(1, count(db));
+    ParseTaskUtils.wait(db.closeAsync());
+  }
+
+  @Test
+  public void testProfileListsStatementsOfBatches() throws Exception {
+    final ParseSQLiteDatabase db = ParseTaskUtils.wait(helper.getReadableDatabaseAsync());
+    try {
+      OfflineQueryProfile profile = new OfflineQueryProfile("Test", null);
+      db.setProfile(profile);
+      ParseTaskUtils.wait(db.runBatchAsync(new ParseSQLiteDatabase.Batch<Void>() {
+        @Override
+        public Void run(SQLiteDatabase sqlDb) throws Exception {
+          db.longForQuery("SELECT COUNT(*) FROM Test", null);
+          ParseSQLiteDatabase.readStrings(db.rawQuery("SELECT a FROM Test", null));
+          ParseSQLiteDatabase.readStrings(
+              db.query("Test", new String[] { "a" }, "a = ?", new String[] { "foo" }));
+          return null;
+        }
+      }));
+      assertEquals(Arrays.asList(
+          "SELECT COUNT(*) FROM Test",
+          "SELECT a FROM Test",
+          "SELECT a FROM Test WHERE a = ?"), profile.getStatements());
+    } finally {
+      ParseTaskUtils.wait(db.closeAsync());
+    }
+  }
+
+  @Test
+  public void testCloseStopsReaderThreads() throws Exception {
+    helper.enableConnectionPool(2);
+    ParseSQLiteDatabase db = ParseTaskUtils.wait(helper.getReadableDatabaseAsync());
+    assertEquals(1, count(db));
+    ParseTaskUtils.wait(db.closeAsync());
+
+    ExecutorService executor = helper.getReaderExecutor();
+    helper.close();
+    assertTrue(executor.awaitTermination(1, TimeUnit.SECONDS));
+    assertNull(helper.getReaderExecutor());
+
+    // Sessions opened afterwards reopen the database without the pool.
+    db = ParseTaskUtils.wait(helper.getReadableDatabaseAsync());
+    assertEquals(1, count(db));
+    ParseTaskUtils.wait(db.closeAsync());
+  }
+}
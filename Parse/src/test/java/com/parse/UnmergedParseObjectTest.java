@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2015-present, Parse, LLC.
+ * All rights reserved.
+ *
+ * This source code is licensed under the BSD-style license found in the
+ * LICENSE file in the root directory of this source tree. An additional grant
+ * of patent rights can be found in the PATENTS file in the same directory.
+ */
+package com.parse;
+
+import org.json.JSONObject;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = BuildConfig.class, sdk = 21)
+public class UnmergedParseObjectTest {
+
+  @Test
+  public void testMergeFillsInTheObjectAndTheObjectsNestedInIt() throws Exception {
+    JSONObject owner = new JSONObject();
+    owner.put("__type", "Object");
+    owner.put("className", "Owner");
+    owner.put("objectId", "owner");
+    owner.put("name", "Bob");
+    JSONObject json = new JSONObject();
+    json.put("objectId", "score");
+    json.put("createdAt", "2015-06-22T21:23:41.733Z");
+    json.put("score", 10);
+    json.put("owner", owner);
+
+    ParseObject object = UnmergedParseObject.decode(json, "GameScore", true).merge();
+
+    assertEquals("GameScore", object.getClassName());
+    assertEquals("score", object.getObjectId());
+    assertTrue(object.isDataAvailable());
+    assertEquals(10, object.getInt("score"));
+    ParseObject nested = object.getParseObject("owner");
+    assertEquals("owner", nested.getObjectId());
+    assertTrue(nested.isDataAvailable());
+    assertEquals("Bob", nested.getString("name"));
+  }
+
+  @Test
+  public void testMergeOfSelectedKeysDoesNotCompleteTheObject() throws Exception {
+    JSONObject json = new JSONObject();
+    json.put("objectId", "score");
+    json.put("score", 10);
+
+    ParseObject object = UnmergedParseObject.decode(json, "GameScore", false).merge();
+
+    assertFalse(object.isDataAvailable());
+    assertEquals(10, object.getState().get("score"));
+  }
+
+  @Test
+  public void testMergeWithoutClassName() throws Exception {
+    JSONObject json = new JSONObject();
+    json.put("objectId", "score");
+
+    assertNull(UnmergedParseObject.decode(json, null, true).merge());
+  }
+}